@@ -98,4 +98,6 @@ public interface Constants {
 
   public static final String FORCE_BROWSER = "helpForceBrowser";
   public final static String HIDE_NOTIFY = "hideServiceNotifications";
+  public final static String INTERPRETER_POOL_SIZE = "interpreterPoolSize";
+  public final static String INTERPRETER_POOL_IDLE_TIMEOUT = "interpreterPoolIdleTimeout";
 }
\ No newline at end of file
@@ -35,7 +35,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 public class Process {
 
-  private static final int DEFAULT_BUFFER_SIZE = 8192;
+  private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
 
   private final List<String> mArguments;
   private final Map<String, String> mEnvironment;
@@ -117,7 +117,7 @@ public class Process {
 
     int[] pid = new int[1];
     String[] argumentsArray = mArguments.toArray(new String[mArguments.size()]);
-    mLog = new File(String.format("%s/%s.log", InterpreterConstants.SDCARD_SL4A_ROOT, getName()));
+    mLog = createLogFile();
 
     mFd =
         Exec.createSubprocess(binaryPath, argumentsArray, getEnvironmentArray(),
@@ -150,6 +150,21 @@ public class Process {
     }).start();
   }
 
+  /**
+   * Returns the file the output of the process is logged to. Subclasses may return {@code null} to
+   * start the process without a log and call {@link #startLog()} later.
+   */
+  protected File createLogFile() {
+    return new File(String.format("%s/%s.log", InterpreterConstants.SDCARD_SL4A_ROOT, getName()));
+  }
+
+  /** Starts logging the output of a running process that was started without a log. */
+  protected void startLog() {
+    mLog = createLogFile();
+    ((StreamGobbler) mIn).startLog(mLog, StreamGobbler.DEFAULT_MAX_LOG_SIZE,
+        StreamGobbler.DEFAULT_LOG_BACKUPS);
+  }
+
   private String[] getEnvironmentArray() {
     List<String> environmentVariables = new ArrayList<String>();
     for (Entry<String, String> entry : mEnvironment.entrySet()) {
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.android_scripting.event;
+
+/**
+ * Decides which events of a particular name enter an {@link EventQueue}.
+ */
+public class EventFilter {
+
+  private final boolean mEnqueue;
+  private final long mMinInterval;
+  private final boolean mLatestOnly;
+  private long mLastAccepted;
+  private boolean mAcceptedAny = false;
+
+  /**
+   * @param enqueue
+   *          false to keep all events of this name out of the queue
+   * @param minInterval
+   *          the minimum time in milliseconds between two queued events, or 0 to queue all of them
+   * @param latestOnly
+   *          whether a new event replaces the one of the same name that is already queued
+   */
+  public EventFilter(boolean enqueue, long minInterval, boolean latestOnly) {
+    mEnqueue = enqueue;
+    mMinInterval = minInterval;
+    mLatestOnly = latestOnly;
+  }
+
+  /** Returns true if an event posted at {@code time} (in milliseconds) should be queued. */
+  public synchronized boolean accept(long time) {
+    if (!mEnqueue) {
+      return false;
+    }
+    if (mMinInterval > 0) {
+      if (mAcceptedAny && time - mLastAccepted < mMinInterval) {
+        return false;
+      }
+      mLastAccepted = time;
+      mAcceptedAny = true;
+    }
+    return true;
+  }
+
+  public boolean isLatestOnly() {
+    return mLatestOnly;
+  }
+
+  /**
+   * Queues {@code event} if it is accepted at {@code time}. A rejected event still wakes up threads
+   * waiting for it.
+   */
+  public void post(EventQueue queue, Event event, long time) {
+    if (!accept(time)) {
+      queue.dispatch(event);
+    } else if (mLatestOnly) {
+      queue.replace(event);
+    } else {
+      queue.add(event);
+    }
+  }
+}
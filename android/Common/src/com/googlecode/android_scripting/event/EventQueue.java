@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.android_scripting.event;
+
+import com.googlecode.android_scripting.util.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded FIFO of {@link Event}s. When the queue is full, the oldest event is discarded.
+ * 
+ * <p>
+ * Events are kept in a ring buffer. Events of the same name are additionally chained together, so
+ * that the oldest event of a given name is found without scanning the queue. Threads can block
+ * until an event arrives.
+ * 
+ * <p>
+ * Events may also be dispatched without being queued. Waiters that are blocked at that time still
+ * receive them, but they cannot be polled later.
+ */
+public class EventQueue {
+
+  private static final long NONE = -1;
+
+  private final int mCapacity;
+  private final Event[] mEvents;
+  // The sequence number of the next event of the same name, for each slot.
+  private final long[] mNextOfSameName;
+  private final Map<String, NameIndex> mNameIndex = new HashMap<String, NameIndex>();
+
+  // Sequence numbers of the oldest queued event and of the next event to be queued.
+  private long mHead = 0;
+  private long mTail = 0;
+
+  // Counts every event posted, queued or not. Waiters use it to recognize unqueued events that
+  // were dispatched while they were blocked.
+  private long mPostCount = 0;
+  private Event mLastDispatched;
+  private long mLastDispatchedPost = NONE;
+
+  private final ReentrantLock mLock = new ReentrantLock();
+  private final Condition mPosted = mLock.newCondition();
+
+  /**
+   * The queued events of one name. It is dropped once no event of that name is queued and no
+   * thread waits for one, so generated names don't pile up.
+   */
+  private static class NameIndex {
+    private long mmHead;
+    private long mmTail;
+    private int mmCount = 0;
+    private int mmWaiters = 0;
+    private Event mmLastDispatched;
+    private long mmLastDispatchedPost = NONE;
+  }
+
+  public EventQueue(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Capacity must be positive.");
+    }
+    mCapacity = capacity;
+    mEvents = new Event[capacity];
+    mNextOfSameName = new long[capacity];
+  }
+
+  /**
+   * Adds an event to the queue, discarding the oldest event if the queue is full, and wakes up any
+   * waiting threads.
+   */
+  public void add(Event event) {
+    mLock.lock();
+    try {
+      if (mTail - mHead == mCapacity) {
+        removeHead();
+      }
+      long sequence = mTail++;
+      int slot = slot(sequence);
+      mEvents[slot] = event;
+      mNextOfSameName[slot] = NONE;
+      NameIndex index = mNameIndex.get(event.getName());
+      if (index == null) {
+        index = new NameIndex();
+        mNameIndex.put(event.getName(), index);
+      }
+      if (index.mmCount == 0) {
+        index.mmHead = sequence;
+      } else {
+        mNextOfSameName[slot(index.mmTail)] = sequence;
+      }
+      index.mmTail = sequence;
+      index.mmCount++;
+      mPostCount++;
+      mPosted.signalAll();
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  /**
+   * Replaces the newest queued event of the same name with {@code event}. The replacement keeps
+   * the position of the event it replaces. If no event of that name is queued, {@code event} is
+   * added like {@link #add(Event)} does.
+   */
+  public void replace(Event event) {
+    mLock.lock();
+    try {
+      NameIndex index = mNameIndex.get(event.getName());
+      if (index == null || index.mmCount == 0) {
+        add(event);
+        return;
+      }
+      mEvents[slot(index.mmTail)] = event;
+      mPostCount++;
+      mPosted.signalAll();
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  /** Wakes up threads waiting for {@code event} without adding it to the queue. */
+  public void dispatch(Event event) {
+    mLock.lock();
+    try {
+      long post = mPostCount++;
+      mLastDispatched = event;
+      mLastDispatchedPost = post;
+      NameIndex index = mNameIndex.get(event.getName());
+      if (index != null) {
+        index.mmLastDispatched = event;
+        index.mmLastDispatchedPost = post;
+      }
+      mPosted.signalAll();
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  /** Removes and returns the oldest event, or returns null if the queue is empty. */
+  public Event poll() {
+    mLock.lock();
+    try {
+      return mHead == mTail ? null : removeHead();
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  /** Removes and returns up to {@code count} of the oldest events. */
+  public List<Event> poll(int count) {
+    mLock.lock();
+    try {
+      int size = (int) Math.min(count, mTail - mHead);
+      List<Event> events = new ArrayList<Event>(Math.max(size, 0));
+      for (int i = 0; i < size; i++) {
+        events.add(removeHead());
+      }
+      return events;
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  /** Returns the oldest event with the given name without removing it, or null if there is none. */
+  public Event peek(String name) {
+    mLock.lock();
+    try {
+      NameIndex index = mNameIndex.get(name);
+      return index == null || index.mmCount == 0 ? null : mEvents[slot(index.mmHead)];
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  /**
+   * Removes and returns the oldest event, waiting for one to be posted if the queue is empty. An
+   * event dispatched without being queued while waiting is returned as well.
+   * 
+   * @param timeout
+   *          the maximum time to wait in milliseconds, or null to wait indefinitely
+   * @return the event or null if the timeout expired
+   */
+  public Event take(Integer timeout) throws InterruptedException {
+    mLock.lock();
+    try {
+      long start = mPostCount;
+      long nanos = toNanos(timeout);
+      while (mHead == mTail) {
+        if (mLastDispatchedPost >= start) {
+          return mLastDispatched;
+        }
+        if (timeout == null) {
+          mPosted.await();
+        } else if (nanos > 0) {
+          nanos = mPosted.awaitNanos(nanos);
+        } else {
+          return null;
+        }
+      }
+      return removeHead();
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  /**
+   * Returns the oldest event with the given name without removing it, waiting for one to be posted
+   * if there is none. An event of that name dispatched without being queued while waiting is
+   * returned as well.
+   * 
+   * @param timeout
+   *          the maximum time to wait in milliseconds, or null to wait indefinitely
+   * @return the event or null if the timeout expired
+   */
+  public Event waitFor(String name, Integer timeout) throws InterruptedException {
+    mLock.lock();
+    try {
+      long start = mPostCount;
+      long nanos = toNanos(timeout);
+      NameIndex index = mNameIndex.get(name);
+      if (index == null) {
+        // Create the index now so that unqueued events of this name are recorded.
+        index = new NameIndex();
+        mNameIndex.put(name, index);
+      }
+      index.mmWaiters++;
+      try {
+        while (index.mmCount == 0) {
+          if (index.mmLastDispatchedPost >= start) {
+            return index.mmLastDispatched;
+          }
+          if (timeout == null) {
+            mPosted.await();
+          } else if (nanos > 0) {
+            nanos = mPosted.awaitNanos(nanos);
+          } else {
+            return null;
+          }
+        }
+        return mEvents[slot(index.mmHead)];
+      } finally {
+        index.mmWaiters--;
+        dropIfUnused(name, index);
+      }
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  /** Returns the number of queued events. */
+  public int size() {
+    mLock.lock();
+    try {
+      return (int) (mTail - mHead);
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  /** Returns the number of event names the queue keeps an index for. */
+  @VisibleForTesting
+  int getIndexedNameCount() {
+    mLock.lock();
+    try {
+      return mNameIndex.size();
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  public void clear() {
+    mLock.lock();
+    try {
+      while (mHead != mTail) {
+        mEvents[slot(mHead++)] = null;
+      }
+      // Waiters hold on to their index entries, so those are emptied rather than removed.
+      for (Iterator<NameIndex> it = mNameIndex.values().iterator(); it.hasNext();) {
+        NameIndex index = it.next();
+        index.mmCount = 0;
+        if (index.mmWaiters == 0) {
+          it.remove();
+        }
+      }
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  private Event removeHead() {
+    int slot = slot(mHead++);
+    Event event = mEvents[slot];
+    mEvents[slot] = null;
+    NameIndex index = mNameIndex.get(event.getName());
+    index.mmCount--;
+    if (index.mmCount > 0) {
+      index.mmHead = mNextOfSameName[slot];
+    } else {
+      dropIfUnused(event.getName(), index);
+    }
+    return event;
+  }
+
+  private void dropIfUnused(String name, NameIndex index) {
+    if (index.mmCount == 0 && index.mmWaiters == 0) {
+      mNameIndex.remove(name);
+    }
+  }
+
+  private int slot(long sequence) {
+    return (int) (sequence % mCapacity);
+  }
+
+  private static long toNanos(Integer timeout) {
+    return timeout == null ? 0 : TimeUnit.MILLISECONDS.toNanos(timeout);
+  }
+}
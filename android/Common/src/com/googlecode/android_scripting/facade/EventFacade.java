@@ -20,13 +20,14 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Bundle;
+import android.os.SystemClock;
 
 import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Multimaps;
 import com.googlecode.android_scripting.event.Event;
-import com.googlecode.android_scripting.future.FutureResult;
+import com.googlecode.android_scripting.event.EventFilter;
+import com.googlecode.android_scripting.event.EventQueue;
 import com.googlecode.android_scripting.jsonrpc.JsonBuilder;
 import com.googlecode.android_scripting.jsonrpc.RpcReceiver;
 import com.googlecode.android_scripting.rpc.Rpc;
@@ -38,11 +39,11 @@ import com.googlecode.android_scripting.rpc.RpcParameter;
 
 import java.util.HashMap;
 import java.util.List;
-import java.util.Queue;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.TimeUnit;
 
 import org.json.JSONException;
 
@@ -68,7 +69,8 @@ public class EventFacade extends RpcReceiver {
    * exceeded.
    */
   private static final int MAX_QUEUE_SIZE = 1024;
-  private final Queue<Event> mEventQueue = new ConcurrentLinkedQueue<Event>();
+  private final EventQueue mEventQueue = new EventQueue(MAX_QUEUE_SIZE);
+  private final Map<String, EventFilter> mFilters = new ConcurrentHashMap<String, EventFilter>();
   private final CopyOnWriteArrayList<EventObserver> mGlobalEventObservers =
       new CopyOnWriteArrayList<EventObserver>();
   private final Multimap<String, EventObserver> mNamedEventObservers = Multimaps
@@ -91,6 +93,31 @@ public class EventFacade extends RpcReceiver {
     mEventQueue.clear();
   }
 
+  /**
+   * Filters only apply to the event queue of this connection. Event observers such as the event
+   * dispatcher and triggers still receive all events.
+   * 
+   * <pre>
+   * Example (python):
+   *   droid.eventSetFilter('sensors', True, 500, True)
+   * </pre>
+   * 
+   * Queues at most two sensor events per second and keeps only the newest one in the buffer.
+   */
+  @Rpc(description = "Controls which events of the given name enter the event buffer.")
+  public void eventSetFilter(
+      @RpcParameter(name = "eventName") String eventName,
+      @RpcParameter(name = "enqueue", description = "False to keep all events of this name out of the buffer.") @RpcDefault("true") Boolean enqueue,
+      @RpcParameter(name = "minInterval", description = "Minimum time (in ms) between two buffered events of this name. Events arriving sooner are discarded.") @RpcDefault("0") Integer minInterval,
+      @RpcParameter(name = "latestOnly", description = "Keep only the newest event of this name in the buffer.") @RpcDefault("false") Boolean latestOnly) {
+    mFilters.put(eventName, new EventFilter(enqueue, minInterval, latestOnly));
+  }
+
+  @Rpc(description = "Removes the filter for the given event name.")
+  public void eventClearFilter(@RpcParameter(name = "eventName") String eventName) {
+    mFilters.remove(eventName);
+  }
+
   /**
    * Registers a listener for a new broadcast signal
    */
@@ -153,15 +180,7 @@ public class EventFacade extends RpcReceiver {
   @Rpc(description = "Returns and removes the oldest n events (i.e. location or sensor update, etc.) from the event buffer.", returns = "A List of Maps of event properties.")
   public List<Event> eventPoll(
       @RpcParameter(name = "number_of_events") @RpcDefault("1") Integer number_of_events) {
-    List<Event> events = Lists.newArrayList();
-    for (int i = 0; i < number_of_events; i++) {
-      Event event = mEventQueue.poll();
-      if (event == null) {
-        break;
-      }
-      events.add(event);
-    }
-    return events;
+    return mEventQueue.poll(number_of_events);
   }
 
   @Rpc(description = "Blocks until an event with the supplied name occurs. The returned event is not removed from the buffer.", returns = "Map of event properties.")
@@ -169,65 +188,14 @@ public class EventFacade extends RpcReceiver {
       @RpcParameter(name = "eventName") final String eventName,
       @RpcParameter(name = "timeout", description = "the maximum time to wait (in ms)") @RpcOptional Integer timeout)
       throws InterruptedException {
-    synchronized (mEventQueue) { // First check to make sure it isn't already there
-      for (Event event : mEventQueue) {
-        if (event.getName().equals(eventName)) {
-          return event;
-        }
-      }
-    }
-    final FutureResult<Event> futureEvent = new FutureResult<Event>();
-    addNamedEventObserver(eventName, new EventObserver() {
-      @Override
-      public void onEventReceived(Event event) {
-        if (event.getName().equals(eventName)) {
-          synchronized (futureEvent) {
-            if (!futureEvent.isDone()) {
-              futureEvent.set(event);
-              removeEventObserver(this);
-            }
-          }
-        }
-      }
-    });
-    if (timeout != null) {
-      return futureEvent.get(timeout, TimeUnit.MILLISECONDS);
-    } else {
-      return futureEvent.get();
-    }
+    return mEventQueue.waitFor(eventName, timeout);
   }
 
   @Rpc(description = "Blocks until an event occurs. The returned event is removed from the buffer.", returns = "Map of event properties.")
   public Event eventWait(
       @RpcParameter(name = "timeout", description = "the maximum time to wait") @RpcOptional Integer timeout)
       throws InterruptedException {
-    Event result = null;
-    final FutureResult<Event> futureEvent = new FutureResult<Event>();
-    synchronized (mEventQueue) { // Anything in queue?
-      if (mEventQueue.size() > 0) {
-        return mEventQueue.poll(); // return it.
-      }
-    }
-    EventObserver observer = new EventObserver() {
-      @Override
-      public void onEventReceived(Event event) { // set up observer for any events.
-        synchronized (futureEvent) {
-          if (!futureEvent.isDone()) {
-            futureEvent.set(event);
-            removeEventObserver(this);
-          }
-          mEventQueue.remove(event);
-        }
-      }
-    };
-    addGlobalEventObserver(observer);
-    if (timeout != null) {
-      result = futureEvent.get(timeout, TimeUnit.MILLISECONDS);
-    } else {
-      result = futureEvent.get();
-    }
-    removeEventObserver(observer); // Make quite sure this goes away.
-    return result;
+    return mEventQueue.take(timeout);
   }
 
   /**
@@ -260,11 +228,13 @@ public class EventFacade extends RpcReceiver {
    */
   public void postEvent(String name, Object data, boolean enqueue) {
     Event event = new Event(name, data);
-    if (enqueue != false) {
+    EventFilter filter = mFilters.get(name);
+    if (enqueue == false) {
+      mEventQueue.dispatch(event);
+    } else if (filter == null) {
       mEventQueue.add(event);
-      if (mEventQueue.size() > MAX_QUEUE_SIZE) {
-        mEventQueue.remove();
-      }
+    } else {
+      filter.post(mEventQueue, event, SystemClock.elapsedRealtime());
     }
     synchronized (mNamedEventObservers) {
       for (EventObserver observer : mNamedEventObservers.get(name)) {
@@ -303,12 +273,21 @@ public class EventFacade extends RpcReceiver {
 
   @Rpc(description = "Opens up a socket where you can read for events posted")
   public int startEventDispatcher(
-      @RpcParameter(name = "port", description = "Port to use") @RpcDefault("0") @RpcOptional() Integer port) {
+      @RpcParameter(name = "port", description = "Port to use") @RpcDefault("0") @RpcOptional() Integer port,
+      @RpcParameter(name = "overflow", description = "What to do when a listener falls behind: drop_oldest or disconnect") @RpcDefault("drop_oldest") String overflow) {
     if (mEventServer == null) {
       if (port == null) {
         port = 0;
       }
-      mEventServer = new EventServer(port);
+      EventServer.OverflowPolicy policy = EventServer.OverflowPolicy.DROP_OLDEST;
+      if (overflow != null) {
+        try {
+          policy = EventServer.OverflowPolicy.valueOf(overflow.toUpperCase(Locale.US));
+        } catch (IllegalArgumentException e) {
+          throw new IllegalArgumentException("Unknown overflow policy: " + overflow);
+        }
+      }
+      mEventServer = new EventServer(port, policy, EventServer.DEFAULT_QUEUE_CAPACITY);
       addGlobalEventObserver(mEventServer);
     }
     return mEventServer.getAddress().getPort();
@@ -325,6 +304,14 @@ public class EventFacade extends RpcReceiver {
     return;
   }
 
+  @Rpc(description = "Returns the dispatch counters of the event server and of each of its listeners.", returns = "Map of counters, including the number of dispatched, dropped and disconnected events and listeners.")
+  public Map<String, Object> eventGetDispatcherStats() throws RuntimeException {
+    if (mEventServer == null) {
+      throw new RuntimeException("Not running");
+    }
+    return mEventServer.getStatistics();
+  }
+
   @Override
   public void shutdown() {
     try {
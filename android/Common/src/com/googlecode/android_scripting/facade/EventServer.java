@@ -21,11 +21,19 @@ import com.googlecode.android_scripting.event.Event;
 import com.googlecode.android_scripting.jsonrpc.JsonBuilder;
 
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.Vector;
-import java.util.concurrent.CountDownLatch;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.json.JSONException;
 
@@ -33,11 +41,37 @@ import org.json.JSONException;
  * An Event Forwarding server that forwards events from the rpc queue in realtime to listener
  * clients.
  * 
+ * <p>
+ * Each event is serialized once and then handed to every listener's bounded queue, so the thread
+ * that posted the event never blocks on a socket. Every listener is served by its own connection
+ * thread. When a listener falls behind and its queue is full, the {@link OverflowPolicy} decides
+ * what happens.
+ * 
  * @author Manuel Naranjo (manuel@aircable.net)
  * @see com.googlecode.android_scripting.SimpleServer
  */
 public class EventServer extends SimpleServer implements EventFacade.EventObserver {
-  private static final Vector<Listener> mListeners = new Vector<Listener>();
+
+  public enum OverflowPolicy {
+    /** Discard the oldest event queued for the listener. */
+    DROP_OLDEST,
+    /** Disconnect the listener. */
+    DISCONNECT
+  }
+
+  public static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+  private static final Log.Logger LOG = Log.getLogger(EventServer.class);
+
+  // Tells a listener's connection thread to stop once everything before it has been written.
+  private static final String END_OF_STREAM = new String("end of stream");
+
+  private final List<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+  private final OverflowPolicy mOverflowPolicy;
+  private final int mQueueCapacity;
+  private final AtomicLong mDispatched = new AtomicLong();
+  private final AtomicLong mDropped = new AtomicLong();
+  private final AtomicLong mDisconnected = new AtomicLong();
   private InetSocketAddress address = null;
 
   public EventServer() {
@@ -45,6 +79,12 @@ public class EventServer extends SimpleServer implements EventFacade.EventObserv
   }
 
   public EventServer(int port) {
+    this(port, OverflowPolicy.DROP_OLDEST, DEFAULT_QUEUE_CAPACITY);
+  }
+
+  public EventServer(int port, OverflowPolicy overflowPolicy, int queueCapacity) {
+    mOverflowPolicy = overflowPolicy;
+    mQueueCapacity = queueCapacity;
     address = startAllInterfaces(port);
   }
 
@@ -52,68 +92,154 @@ public class EventServer extends SimpleServer implements EventFacade.EventObserv
     return address;
   }
 
+  public OverflowPolicy getOverflowPolicy() {
+    return mOverflowPolicy;
+  }
+
+  /** Returns the dispatch counters of the server and of each connected listener. */
+  public Map<String, Object> getStatistics() {
+    Map<String, Object> statistics = new HashMap<String, Object>();
+    statistics.put("overflowPolicy", mOverflowPolicy.name().toLowerCase(Locale.US));
+    statistics.put("queueCapacity", mQueueCapacity);
+    statistics.put("dispatched", mDispatched.get());
+    statistics.put("dropped", mDropped.get());
+    statistics.put("disconnected", mDisconnected.get());
+    List<Map<String, Object>> listeners = new ArrayList<Map<String, Object>>();
+    for (Listener listener : mListeners) {
+      Map<String, Object> listenerStatistics = new HashMap<String, Object>();
+      listenerStatistics.put("port", listener.mmSocket.getPort());
+      listenerStatistics.put("queued", listener.mmQueue.size());
+      listenerStatistics.put("sent", listener.mmSent.get());
+      listenerStatistics.put("dropped", listener.mmDropped.get());
+      listeners.add(listenerStatistics);
+    }
+    statistics.put("listeners", listeners);
+    return statistics;
+  }
+
   @Override
   public void shutdown() {
     onEventReceived(new Event("sl4a", "{\"shutdown\": \"event-server\"}"));
     for (Listener listener : mListeners) {
       mListeners.remove(listener);
-      listener.lock.countDown();
+      listener.finish();
     }
     super.shutdown();
   }
 
   @Override
   protected void handleConnection(Socket socket) throws IOException {
-    Listener l = new Listener(socket);
-    Log.v("Adding EventServer listener " + socket.getPort());
-    mListeners.add(l);
-    // we are running in the socket accept thread
-    // wait until the event dispatcher gets us the events
-    // or we die, what ever happens first
+    Listener listener = new Listener(socket);
+    LOG.v("Adding EventServer listener " + socket.getPort());
+    mListeners.add(listener);
+    // We are running in the socket's connection thread, which writes the listener's events until
+    // the listener is removed or the connection fails.
     try {
-      l.lock.await();
+      listener.writeEvents();
     } catch (InterruptedException e) {
-      e.printStackTrace();
-    }
-    try {
-      l.sock.close();
+      LOG.w("EventServer listener " + socket.getPort() + " interrupted.", e);
     } catch (IOException e) {
-      e.printStackTrace();
+      LOG.v("EventServer listener " + socket.getPort() + " failed: " + e.getMessage());
+    } finally {
+      mListeners.remove(listener);
+      try {
+        socket.close();
+      } catch (IOException e) {
+        LOG.e("Failed to close EventServer listener " + socket.getPort() + ".", e);
+      }
     }
-    Log.v("Ending EventServer listener " + socket.getPort());
+    LOG.v("Ending EventServer listener " + socket.getPort());
   }
 
   @Override
   public void onEventReceived(Event event) {
-    Object result = null;
+    if (mListeners.isEmpty()) {
+      return;
+    }
+    StringBuilder json = new StringBuilder();
     try {
-      result = JsonBuilder.build(event);
+      JsonBuilder.write(event, json);
     } catch (JSONException e) {
       return;
     }
-
-    Log.v("EventServer dispatching " + result);
-
+    String line = json.append('\n').toString();
+    if (Log.isLoggable(Log.VERBOSE)) {
+      LOG.v("EventServer dispatching " + line);
+    }
+    mDispatched.incrementAndGet();
     for (Listener listener : mListeners) {
-      if (!listener.out.checkError()) {
-        listener.out.write(result + "\n");
-        listener.out.flush();
-      } else {
-        // let the socket accept thread we're done
-        mListeners.remove(listener);
-        listener.lock.countDown();
+      if (!listener.mmQueue.offer(line)) {
+        overflow(listener, line);
+      }
+    }
+  }
+
+  private void overflow(Listener listener, String line) {
+    switch (mOverflowPolicy) {
+    case DROP_OLDEST:
+      // Another thread may fill the queue again between these calls. Each failed attempt drops
+      // one more event, so this ends.
+      do {
+        if (listener.mmQueue.poll() != null) {
+          listener.mmDropped.incrementAndGet();
+          mDropped.incrementAndGet();
+        }
+      } while (!listener.mmQueue.offer(line));
+      break;
+    case DISCONNECT:
+      if (mListeners.remove(listener)) {
+        LOG.v("Disconnecting slow EventServer listener " + listener.mmSocket.getPort());
+        mDisconnected.incrementAndGet();
+        listener.disconnect();
       }
+      break;
     }
   }
 
   private class Listener {
-    private Socket sock;
-    private PrintWriter out;
-    private CountDownLatch lock = new CountDownLatch(1);
+    private final Socket mmSocket;
+    private final Writer mmOut;
+    private final BlockingQueue<String> mmQueue = new ArrayBlockingQueue<String>(mQueueCapacity);
+    private final AtomicLong mmSent = new AtomicLong();
+    private final AtomicLong mmDropped = new AtomicLong();
 
-    public Listener(Socket l) throws IOException {
-      sock = l;
-      out = new PrintWriter(l.getOutputStream(), true);
+    public Listener(Socket socket) throws IOException {
+      mmSocket = socket;
+      mmOut = new OutputStreamWriter(socket.getOutputStream());
+    }
+
+    public void writeEvents() throws InterruptedException, IOException {
+      while (true) {
+        String line = mmQueue.take();
+        if (line == END_OF_STREAM) {
+          mmOut.flush();
+          return;
+        }
+        mmOut.write(line);
+        mmSent.incrementAndGet();
+        if (mmQueue.isEmpty()) {
+          mmOut.flush();
+        }
+      }
+    }
+
+    /** Stops the listener once the events already queued have been written. */
+    public void finish() {
+      while (!mmQueue.offer(END_OF_STREAM)) {
+        mmQueue.poll();
+      }
+    }
+
+    /** Stops the listener immediately, discarding any queued events. */
+    public void disconnect() {
+      mmQueue.clear();
+      finish();
+      try {
+        // Unblocks a pending write.
+        mmSocket.close();
+      } catch (IOException e) {
+        LOG.w("Failed to close slow EventServer listener " + mmSocket.getPort() + ".", e);
+      }
     }
   }
 }
@@ -7,6 +7,7 @@ import com.googlecode.android_scripting.Log;
 import com.googlecode.android_scripting.exception.Sl4aException;
 import com.googlecode.android_scripting.jsonrpc.RpcReceiver;
 import com.googlecode.android_scripting.jsonrpc.RpcReceiverManager;
+import com.googlecode.android_scripting.jsonrpc.RpcRegistry;
 import com.googlecode.android_scripting.rpc.RpcDeprecated;
 import com.googlecode.android_scripting.rpc.RpcMinSdk;
 
@@ -22,7 +23,11 @@ public class FacadeManager extends RpcReceiverManager {
 
   public FacadeManager(int sdkLevel, Service service, Intent intent,
       Collection<Class<? extends RpcReceiver>> classList) {
-    super(classList);
+    this(sdkLevel, service, intent, RpcRegistry.forClasses(classList));
+  }
+
+  public FacadeManager(int sdkLevel, Service service, Intent intent, RpcRegistry registry) {
+    super(registry);
     mSdkLevel = sdkLevel;
     mService = service;
     mIntent = intent;
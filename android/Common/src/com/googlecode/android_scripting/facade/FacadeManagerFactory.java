@@ -6,6 +6,7 @@ import android.content.Intent;
 import com.googlecode.android_scripting.jsonrpc.RpcReceiver;
 import com.googlecode.android_scripting.jsonrpc.RpcReceiverManager;
 import com.googlecode.android_scripting.jsonrpc.RpcReceiverManagerFactory;
+import com.googlecode.android_scripting.jsonrpc.RpcRegistry;
 
 import java.util.ArrayList;
 import java.util.Collection;
@@ -15,8 +16,8 @@ public class FacadeManagerFactory implements RpcReceiverManagerFactory {
 
   private final int mSdkLevel;
   private final Service mService;
-  private final Intent mIntent;
-  private final Collection<Class<? extends RpcReceiver>> mClassList;
+  private volatile Intent mIntent;
+  private final RpcRegistry mRegistry;
   private final List<RpcReceiverManager> mFacadeManagers;
 
   public FacadeManagerFactory(int sdkLevel, Service service, Intent intent,
@@ -24,12 +25,17 @@ public class FacadeManagerFactory implements RpcReceiverManagerFactory {
     mSdkLevel = sdkLevel;
     mService = service;
     mIntent = intent;
-    mClassList = classList;
+    mRegistry = RpcRegistry.forClasses(classList);
     mFacadeManagers = new ArrayList<RpcReceiverManager>();
   }
 
+  /** Sets the intent handed to facade managers created from now on. */
+  public void setIntent(Intent intent) {
+    mIntent = intent;
+  }
+
   public FacadeManager create() {
-    FacadeManager facadeManager = new FacadeManager(mSdkLevel, mService, mIntent, mClassList);
+    FacadeManager facadeManager = new FacadeManager(mSdkLevel, mService, mIntent, mRegistry);
     mFacadeManagers.add(facadeManager);
     return facadeManager;
   }
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.android_scripting.facade;
+
+import com.googlecode.android_scripting.Log;
+import com.googlecode.android_scripting.jsonrpc.RpcReceiver;
+import com.googlecode.android_scripting.jsonrpc.RpcStatistics;
+import com.googlecode.android_scripting.rpc.Rpc;
+import com.googlecode.android_scripting.rpc.RpcDefault;
+import com.googlecode.android_scripting.rpc.RpcParameter;
+
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Reports how long RPCs take. <br>
+ * <br>
+ * The statistics cover all scripts and servers of SL4A since it started or since they were last
+ * reset. Per method there are call and error counts, the total time and latency percentiles. Per
+ * connection there are the number of requests and the bytes received and sent.
+ * <br>
+ * The SL4A log level and asynchronous logging can be changed here as well, to trace a workload
+ * without restarting.
+ *
+ * <br>
+ * <b>Example (python)</b>
+ *
+ * <pre>
+ * droid.rpcStats(True)  # Start from scratch.
+ * run_workload()
+ * print droid.rpcStatsDump().result
+ * </pre>
+ */
+public class RpcStatisticsFacade extends RpcReceiver {
+
+  private static final String[] LOG_LEVELS = { "verbose", "debug", "info", "warn", "error" };
+  private static final int[] LOG_LEVEL_VALUES =
+      { Log.VERBOSE, Log.DEBUG, Log.INFO, Log.WARN, Log.ERROR };
+
+  public RpcStatisticsFacade(FacadeManager manager) {
+    super(manager);
+  }
+
+  @Rpc(description = "Returns per method call counts, error counts and latencies in milliseconds, and per connection traffic.", returns = "A map with the entries methods, connections and closed.")
+  public Map<String, Object> rpcStats(
+      @RpcParameter(name = "reset", description = "Clear the statistics after reading them") @RpcDefault("false") Boolean reset) {
+    RpcStatistics statistics = RpcStatistics.getInstance();
+    Map<String, Object> result = statistics.toMap();
+    if (reset) {
+      statistics.reset();
+    }
+    return result;
+  }
+
+  @Rpc(description = "Returns the RPC statistics as a text table, the methods that took the most time first.")
+  public String rpcStatsDump() {
+    return RpcStatistics.getInstance().dump();
+  }
+
+  @Rpc(description = "Sets the lowest level SL4A logs at.", returns = "The previous level.")
+  public String logSetLevel(
+      @RpcParameter(name = "level", description = "verbose, debug, info, warn or error") String level) {
+    String previous = getLogLevelName(Log.getLevel());
+    Log.setLevel(getLogLevel(level));
+    return previous;
+  }
+
+  @Rpc(description = "Writes the SL4A log from a background thread, so that logging doesn't slow down RPCs.")
+  public void logSetAsync(
+      @RpcParameter(name = "enabled") Boolean enabled,
+      @RpcParameter(name = "capacity", description = "Messages queued before new ones are dropped") @RpcDefault("1024") Integer capacity) {
+    if (enabled) {
+      if (capacity <= 0) {
+        throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+      }
+      Log.startAsync(capacity);
+    } else {
+      Log.stopAsync();
+    }
+  }
+
+  private static int getLogLevel(String name) {
+    String lowerCaseName = name.toLowerCase(Locale.US);
+    for (int i = 0; i < LOG_LEVELS.length; i++) {
+      if (LOG_LEVELS[i].equals(lowerCaseName)) {
+        return LOG_LEVEL_VALUES[i];
+      }
+    }
+    throw new IllegalArgumentException("Unknown log level: " + name);
+  }
+
+  private static String getLogLevelName(int level) {
+    for (int i = 0; i < LOG_LEVEL_VALUES.length; i++) {
+      if (LOG_LEVEL_VALUES[i] == level) {
+        return LOG_LEVELS[i];
+      }
+    }
+    return Integer.toString(level);
+  }
+
+  @Override
+  public void shutdown() {
+  }
+}
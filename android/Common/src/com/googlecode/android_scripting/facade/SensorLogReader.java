@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.android_scripting.facade;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * Reads a sensor log written by {@link SensorLogWriter}. A partially written record at the end of
+ * the log, e.g. of a recording that is still running, is ignored.
+ */
+public class SensorLogReader {
+
+  private static final int RECORDS_PER_READ = 256;
+
+  private final RandomAccessFile mFile;
+  private final int mIndexInterval;
+  private final long mEpochOffset;
+  private final long mRecordCount;
+  private final byte[] mBuffer = new byte[SensorLogWriter.RECORD_SIZE * RECORDS_PER_READ];
+  // The first record in the buffer and the number of records it holds.
+  private long mBufferStart = 0;
+  private int mBufferCount = 0;
+  // The next record to read.
+  private long mPosition = 0;
+
+  /** A sample read from the log. Instances are reused by {@link SensorLogReader#next(Sample)}. */
+  public static class Sample {
+    private int mmSensorType;
+    private long mmTimestamp;
+    private long mmEpochOffset;
+    private final float[] mmValues = new float[3];
+
+    public int getSensorType() {
+      return mmSensorType;
+    }
+
+    /** Returns the timestamp of the sample, in nanoseconds of the sensors' monotonic clock. */
+    public long getTimestamp() {
+      return mmTimestamp;
+    }
+
+    /** Returns the time of the sample in milliseconds since the epoch. */
+    public long getTime() {
+      return (mmTimestamp + mmEpochOffset) / 1000000;
+    }
+
+    public float getValue(int index) {
+      return mmValues[index];
+    }
+  }
+
+  public SensorLogReader(File file) throws IOException {
+    mFile = new RandomAccessFile(file, "r");
+    byte[] magic = new byte[SensorLogWriter.MAGIC.length];
+    try {
+      mFile.readFully(magic);
+      int version = mFile.readInt();
+      if (!Arrays.equals(magic, SensorLogWriter.MAGIC) || version != SensorLogWriter.VERSION) {
+        throw new IOException(file + " is not a sensor log.");
+      }
+      mIndexInterval = mFile.readInt();
+      mEpochOffset = mFile.readLong();
+    } catch (IOException e) {
+      mFile.close();
+      throw e;
+    }
+    mRecordCount = (mFile.length() - SensorLogWriter.HEADER_SIZE) / SensorLogWriter.RECORD_SIZE;
+  }
+
+  /**
+   * Positions the reader at the first sample taken at or after {@code time}, in milliseconds since
+   * the epoch.
+   */
+  public void seek(long time) throws IOException {
+    seekTimestamp(time * 1000000 - mEpochOffset);
+  }
+
+  /** Positions the reader at the first sample with a timestamp at or after {@code timestamp}. */
+  private void seekTimestamp(long timestamp) throws IOException {
+    // Index record k is followed by the k-th block of samples.
+    long blockSize = mIndexInterval + 1;
+    long low = 0;
+    long high = (mRecordCount + blockSize - 1) / blockSize - 1;
+    long block = 0;
+    while (low <= high) {
+      long middle = (low + high) >>> 1;
+      if (readTimestamp(middle * blockSize) < timestamp) {
+        block = middle;
+        low = middle + 1;
+      } else {
+        high = middle - 1;
+      }
+    }
+    // The block found by the index may start a little early. Skip ahead to the exact time.
+    mPosition = block * blockSize;
+    while (mPosition < mRecordCount) {
+      int offset = load(mPosition);
+      if (readInt(offset) != SensorLogWriter.INDEX_TAG && readLong(offset + 4) >= timestamp) {
+        break;
+      }
+      mPosition++;
+    }
+  }
+
+  /** Reads the next sample into {@code sample}. Returns false at the end of the log. */
+  public boolean next(Sample sample) throws IOException {
+    while (mPosition < mRecordCount) {
+      int offset = load(mPosition++);
+      int tag = readInt(offset);
+      if (tag == SensorLogWriter.INDEX_TAG) {
+        continue;
+      }
+      sample.mmSensorType = tag;
+      sample.mmTimestamp = readLong(offset + 4);
+      sample.mmEpochOffset = mEpochOffset;
+      for (int i = 0; i < 3; i++) {
+        sample.mmValues[i] = Float.intBitsToFloat(readInt(offset + 12 + 4 * i));
+      }
+      return true;
+    }
+    return false;
+  }
+
+  public void close() throws IOException {
+    mFile.close();
+  }
+
+  private long readTimestamp(long record) throws IOException {
+    return readLong(load(record) + 4);
+  }
+
+  /** Makes sure {@code record} is buffered and returns its offset in the buffer. */
+  private int load(long record) throws IOException {
+    if (record < mBufferStart || record >= mBufferStart + mBufferCount) {
+      mBufferStart = record;
+      mBufferCount = (int) Math.min(RECORDS_PER_READ, mRecordCount - record);
+      mFile.seek(SensorLogWriter.HEADER_SIZE + record * SensorLogWriter.RECORD_SIZE);
+      mFile.readFully(mBuffer, 0, mBufferCount * SensorLogWriter.RECORD_SIZE);
+    }
+    return (int) (record - mBufferStart) * SensorLogWriter.RECORD_SIZE;
+  }
+
+  private int readInt(int offset) {
+    return ((mBuffer[offset] & 0xff) << 24) | ((mBuffer[offset + 1] & 0xff) << 16)
+        | ((mBuffer[offset + 2] & 0xff) << 8) | (mBuffer[offset + 3] & 0xff);
+  }
+
+  private long readLong(int offset) {
+    return ((long) readInt(offset) << 32) | (readInt(offset + 4) & 0xffffffffL);
+  }
+}
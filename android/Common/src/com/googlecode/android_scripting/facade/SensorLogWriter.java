@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.android_scripting.facade;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Appends sensor samples to a binary sensor log.
+ * 
+ * <p>
+ * A log starts with a 24 byte header: the magic bytes "SL4ASENS", the format version, the index
+ * interval N and the epoch offset (long). It is followed by fixed size records of 24 bytes, all
+ * big-endian. A sample record holds the sensor type (int), the timestamp of the sample (long) and
+ * three values (float). Before every N samples, an index record holds the tag -1 (int), the
+ * timestamp of the next sample (long) and the number of samples before it (long). Index records are
+ * therefore found at fixed offsets, which lets {@link SensorLogReader} seek by time with a binary
+ * search.
+ *
+ * <p>
+ * Timestamps are {@link android.hardware.SensorEvent#timestamp}s, in nanoseconds of a monotonic
+ * clock, so they keep increasing when the wall clock is set back during a recording. Adding the
+ * epoch offset turns a timestamp into nanoseconds since the epoch.
+ */
+public class SensorLogWriter {
+
+  static final byte[] MAGIC = { 'S', 'L', '4', 'A', 'S', 'E', 'N', 'S' };
+  static final int VERSION = 2;
+  static final int HEADER_SIZE = 24;
+  static final int RECORD_SIZE = 24;
+  static final int INDEX_TAG = -1;
+
+  public static final int DEFAULT_INDEX_INTERVAL = 1024;
+
+  private final DataOutputStream mOut;
+  private final int mIndexInterval;
+  private long mEpochOffset = 0;
+  private boolean mHeaderWritten = false;
+  private long mSampleCount = 0;
+
+  public SensorLogWriter(File file, int indexInterval) throws IOException {
+    if (indexInterval <= 0) {
+      throw new IllegalArgumentException("Index interval must be positive.");
+    }
+    mIndexInterval = indexInterval;
+    mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 8192));
+  }
+
+  /**
+   * Sets the nanoseconds to add to a timestamp to get the time since the epoch. The header is
+   * written with the first sample, so the offset can be set until then.
+   */
+  public void setEpochOffset(long epochOffset) {
+    if (mHeaderWritten) {
+      throw new IllegalStateException("The header has already been written.");
+    }
+    mEpochOffset = epochOffset;
+  }
+
+  private void writeHeader() throws IOException {
+    mOut.write(MAGIC);
+    mOut.writeInt(VERSION);
+    mOut.writeInt(mIndexInterval);
+    mOut.writeLong(mEpochOffset);
+    mHeaderWritten = true;
+  }
+
+  /** Appends a sample. Sensors with fewer than three values should pass 0 for the others. */
+  public void write(int sensorType, long timestamp, float x, float y, float z) throws IOException {
+    if (!mHeaderWritten) {
+      writeHeader();
+    }
+    if (mSampleCount % mIndexInterval == 0) {
+      mOut.writeInt(INDEX_TAG);
+      mOut.writeLong(timestamp);
+      mOut.writeLong(mSampleCount);
+      mOut.writeInt(0);
+    }
+    mOut.writeInt(sensorType);
+    mOut.writeLong(timestamp);
+    mOut.writeFloat(x);
+    mOut.writeFloat(y);
+    mOut.writeFloat(z);
+    mSampleCount++;
+  }
+
+  public long getSampleCount() {
+    return mSampleCount;
+  }
+
+  public void flush() throws IOException {
+    if (mHeaderWritten) {
+      mOut.flush();
+    }
+  }
+
+  public void close() throws IOException {
+    try {
+      if (!mHeaderWritten) {
+        writeHeader();
+      }
+    } finally {
+      mOut.close();
+    }
+  }
+}
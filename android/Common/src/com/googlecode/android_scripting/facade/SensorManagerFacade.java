@@ -32,7 +32,12 @@ import com.googlecode.android_scripting.rpc.RpcStartEvent;
 import com.googlecode.android_scripting.rpc.RpcStopEvent;
 
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
 
 /**
  * Exposes the SensorManager related functionality. <br>
@@ -132,6 +137,13 @@ public class SensorManagerFacade extends RpcReceiver {
 
   private SensorEventListener mSensorListener;
 
+  private SensorEventListener mBatchListener;
+  // Batched samples keyed by sensor type.
+  private volatile Map<Integer, SensorSampleBuffer> mSampleBuffers;
+
+  private final Map<String, SensorEventListener> mPipelines =
+      new HashMap<String, SensorEventListener>();
+
   public SensorManagerFacade(FacadeManager manager) {
     super(manager);
     mEventFacade = manager.getReceiver(EventFacade.class);
@@ -253,6 +265,122 @@ public class SensorManagerFacade extends RpcReceiver {
     }
   }
 
+  /**
+   * Batched capture keeps every sample in a preallocated buffer per sensor instead of posting
+   * events. It is meant for logging at high rates.
+   * 
+   * <pre>
+   * Example (python):
+   *   droid.startSensingBatched(2, 4096)
+   *   time.sleep(10)
+   *   batch = droid.sensorsReadBatch(2, 4096).result
+   *   # batch['time'], batch['xforce'], batch['yforce'] and batch['zforce'] are lists of equal
+   *   # length.
+   * </pre>
+   */
+  @Rpc(description = "Starts capturing every sensor sample into a buffer per sensor. No events are posted. Use sensorsReadBatch to read the samples.")
+  public void startSensingBatched(
+      @RpcParameter(name = "sensorNumber", description = "1 = All, 2 = Accelerometer, 3 = Magnetometer and 4 = Light") Integer sensorNumber,
+      @RpcParameter(name = "capacity", description = "Number of samples buffered per sensor. When a buffer is full, the oldest samples are dropped.") @RpcDefault("1024") Integer capacity) {
+    stopSensingBatched();
+    Map<Integer, SensorSampleBuffer> buffers = new HashMap<Integer, SensorSampleBuffer>();
+    for (int type : SensorNumbers.getSensorTypes(sensorNumber)) {
+      buffers.put(type, new SensorSampleBuffer(capacity, getAxisNames(type).length));
+    }
+    mSampleBuffers = buffers;
+    mBatchListener = new SensorSampleCollector();
+    for (int type : buffers.keySet()) {
+      for (Sensor sensor : mSensorManager.getSensorList(type)) {
+        mSensorManager.registerListener(mBatchListener, sensor, SensorManager.SENSOR_DELAY_FASTEST);
+      }
+    }
+  }
+
+  @Rpc(description = "Returns and removes the oldest buffered samples of a sensor captured by startSensingBatched.", returns = "Map of lists: time (the sample times in nanoseconds) and one list per axis, named like the fields of readSensors. dropped is the number of samples lost to a full buffer since the last read.")
+  public Map<String, Object> sensorsReadBatch(
+      @RpcParameter(name = "sensorNumber", description = "2 = Accelerometer, 3 = Magnetometer and 4 = Light") Integer sensorNumber,
+      @RpcParameter(name = "maxSamples", description = "Maximum number of samples to return") @RpcDefault("1024") Integer maxSamples) {
+    Map<Integer, SensorSampleBuffer> buffers = mSampleBuffers;
+    int[] types = SensorNumbers.getSensorTypes(sensorNumber);
+    if (buffers == null || types.length != 1 || !buffers.containsKey(types[0])) {
+      throw new IllegalStateException("Batched capture is not running for sensor " + sensorNumber
+          + ".");
+    }
+    SensorSampleBuffer.Batch batch = buffers.get(types[0]).read(maxSamples);
+    Map<String, Object> result = new HashMap<String, Object>();
+    result.put("time", batch.getTimes());
+    String[] axisNames = getAxisNames(types[0]);
+    for (int axis = 0; axis < axisNames.length; axis++) {
+      result.put(axisNames[axis], batch.getValues(axis));
+    }
+    result.put("dropped", batch.getDropped());
+    return result;
+  }
+
+  @Rpc(description = "Stops batched sensor capture and discards the buffered samples.")
+  public void stopSensingBatched() {
+    if (mBatchListener != null) {
+      mSensorManager.unregisterListener(mBatchListener);
+      mBatchListener = null;
+    }
+    mSampleBuffers = null;
+  }
+
+  /**
+   * Runs every sample of a sensor through a {@link SensorPipeline} and posts only the samples that
+   * pass all of its stages. Several pipelines may run at once, each posting its own events.
+   * 
+   * <pre>
+   * droid.startSensingPipeline('shake', 2, [{'type': 'highpass', 'alpha': 0.2},
+   *     {'type': 'magnitude'}, {'type': 'threshold', 'high': 15, 'low': 5, 'debounce': 50}])
+   * e = droid.eventWait('shake').result
+   * # e['data'] has the fields magnitude, magnitude_above and time.
+   * </pre>
+   */
+  @Rpc(description = "Runs the samples of a sensor through a processing pipeline and posts the samples that pass it as events.")
+  public void startSensingPipeline(
+      @RpcParameter(name = "eventName", description = "Name of the events to post") String eventName,
+      @RpcParameter(name = "sensorNumber", description = "2 = Accelerometer, 3 = Magnetometer and 4 = Light") Integer sensorNumber,
+      @RpcParameter(name = "stages", description = "List of stages, each a map with a type (decimate, lowpass, highpass, magnitude, window or threshold) and its parameters") JSONArray stages)
+      throws JSONException {
+    int[] types = SensorNumbers.getSensorTypes(sensorNumber);
+    if (types.length != 1) {
+      throw new IllegalArgumentException("A pipeline processes a single sensor.");
+    }
+    SensorPipeline pipeline = SensorPipeline.parse(getAxisNames(types[0]), stages);
+    SensorEventListener listener = new SensorPipelineCollector(eventName, pipeline);
+    synchronized (mPipelines) {
+      stopSensingPipeline(eventName);
+      mPipelines.put(eventName, listener);
+    }
+    for (Sensor sensor : mSensorManager.getSensorList(types[0])) {
+      mSensorManager.registerListener(listener, sensor, SensorManager.SENSOR_DELAY_FASTEST);
+    }
+  }
+
+  @Rpc(description = "Stops a pipeline started by startSensingPipeline.")
+  public void stopSensingPipeline(
+      @RpcParameter(name = "eventName", description = "Name of the events posted by the pipeline") String eventName) {
+    SensorEventListener listener;
+    synchronized (mPipelines) {
+      listener = mPipelines.remove(eventName);
+    }
+    if (listener != null) {
+      mSensorManager.unregisterListener(listener);
+    }
+  }
+
+  private static String[] getAxisNames(int sensorType) {
+    switch (sensorType) {
+    case Sensor.TYPE_ACCELEROMETER:
+      return new String[] { "xforce", "yforce", "zforce" };
+    case Sensor.TYPE_MAGNETIC_FIELD:
+      return new String[] { "xMag", "yMag", "zMag" };
+    default:
+      return new String[] { "light" };
+    }
+  }
+
   @Rpc(description = "Starts recording sensor data to be available for polling.")
   @RpcDeprecated(value = "startSensingTimed or startSensingThreshhold", release = "4")
   public void startSensing(
@@ -265,6 +393,59 @@ public class SensorManagerFacade extends RpcReceiver {
   @Override
   public void shutdown() {
     stopSensing();
+    stopSensingBatched();
+    synchronized (mPipelines) {
+      for (SensorEventListener listener : mPipelines.values()) {
+        mSensorManager.unregisterListener(listener);
+      }
+      mPipelines.clear();
+    }
+  }
+
+  private class SensorSampleCollector implements SensorEventListener {
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+    }
+
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+      Map<Integer, SensorSampleBuffer> buffers = mSampleBuffers;
+      if (buffers == null) {
+        return;
+      }
+      SensorSampleBuffer buffer = buffers.get(event.sensor.getType());
+      if (buffer != null) {
+        buffer.write(event.timestamp, event.values);
+      }
+    }
+  }
+
+  private class SensorPipelineCollector implements SensorEventListener {
+    private final String mmEventName;
+    private final SensorPipeline mmPipeline;
+
+    public SensorPipelineCollector(String eventName, SensorPipeline pipeline) {
+      mmEventName = eventName;
+      mmPipeline = pipeline;
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+    }
+
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+      if (!mmPipeline.process(event.timestamp, event.values)) {
+        return;
+      }
+      String[] names = mmPipeline.getOutputNames();
+      Bundle data = new Bundle();
+      for (int i = 0; i < names.length; i++) {
+        data.putDouble(names[i], mmPipeline.getOutput(i));
+      }
+      data.putDouble("time", System.currentTimeMillis() / 1000.0);
+      mEventFacade.postEvent(mmEventName, data);
+    }
   }
 
   private class SensorValuesCollector implements SensorEventListener {
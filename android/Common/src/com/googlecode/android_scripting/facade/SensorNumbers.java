@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.android_scripting.facade;
+
+import android.hardware.Sensor;
+
+/**
+ * Maps the sensor numbers the sensing RPCs take (1 = All, 2 = Accelerometer, 3 = Magnetometer and
+ * 4 = Light) to sensor types and back.
+ */
+class SensorNumbers {
+
+  private SensorNumbers() {
+  }
+
+  static int[] getSensorTypes(int sensorNumber) {
+    switch (sensorNumber) {
+    case 1:
+      return new int[] { Sensor.TYPE_ACCELEROMETER, Sensor.TYPE_MAGNETIC_FIELD, Sensor.TYPE_LIGHT };
+    case 2:
+      return new int[] { Sensor.TYPE_ACCELEROMETER };
+    case 3:
+      return new int[] { Sensor.TYPE_MAGNETIC_FIELD };
+    case 4:
+      return new int[] { Sensor.TYPE_LIGHT };
+    default:
+      throw new IllegalArgumentException("Unknown sensor number " + sensorNumber + ".");
+    }
+  }
+
+  /** Returns the number of a single sensor type, or 0 if it has none. */
+  static int getSensorNumber(int sensorType) {
+    switch (sensorType) {
+    case Sensor.TYPE_ACCELEROMETER:
+      return 2;
+    case Sensor.TYPE_MAGNETIC_FIELD:
+      return 3;
+    case Sensor.TYPE_LIGHT:
+      return 4;
+    default:
+      return 0;
+    }
+  }
+}
@@ -0,0 +1,366 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.android_scripting.facade;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A chain of processing stages applied to the samples of a sensor. A stage may transform the
+ * values of a sample, change their number or drop the sample, so that only derived results have to
+ * be posted as events. Processing a sample does not allocate.
+ * 
+ * <p>
+ * Pipelines are described as a list of stages, each a map with a {@code type} and its parameters:
+ * <ul>
+ * <li>{@code decimate}: keeps every {@code factor}-th sample.</li>
+ * <li>{@code lowpass}, {@code highpass}: first order filters with smoothing factor {@code alpha}
+ * between 0 and 1. Smaller values filter more.</li>
+ * <li>{@code magnitude}: replaces the values by their euclidean norm.</li>
+ * <li>{@code window}: emits the min, max, mean and variance of each value once every {@code size}
+ * samples.</li>
+ * <li>{@code threshold}: emits a sample only when a value rises above {@code high} or falls below
+ * {@code low} (defaults to {@code high}) and stays there for {@code debounce} milliseconds (default
+ * 0). Adds a 1/0 value per input telling whether it is above the threshold.</li>
+ * </ul>
+ */
+public class SensorPipeline {
+
+  private final Stage[] mStages;
+  private final int mInputCount;
+  private final String[] mOutputNames;
+  private double[] mValues;
+  private double[] mScratch;
+  private int mCount;
+
+  /** A step of a pipeline. Stages keep state and belong to a single pipeline. */
+  abstract static class Stage {
+    /** Returns the output names for the given input names. Called once before processing. */
+    abstract String[] configure(String[] inputs);
+
+    /**
+     * Processes the first {@code count} values of {@code in} into {@code out}.
+     * 
+     * @param time
+     *          the time of the sample in nanoseconds
+     * @return the number of output values or -1 to drop the sample
+     */
+    abstract int process(long time, double[] in, int count, double[] out);
+  }
+
+  public SensorPipeline(String[] inputNames, List<Stage> stages) {
+    mStages = stages.toArray(new Stage[stages.size()]);
+    mInputCount = inputNames.length;
+    String[] names = inputNames;
+    int width = names.length;
+    for (Stage stage : mStages) {
+      names = stage.configure(names);
+      width = Math.max(width, names.length);
+    }
+    mOutputNames = names;
+    mValues = new double[width];
+    mScratch = new double[width];
+  }
+
+  /** Builds a pipeline from a list of stage descriptions as documented above. */
+  public static SensorPipeline parse(String[] inputNames, JSONArray description)
+      throws JSONException {
+    List<Stage> stages = new ArrayList<Stage>(description.length());
+    for (int i = 0; i < description.length(); i++) {
+      stages.add(parseStage(description.getJSONObject(i)));
+    }
+    return new SensorPipeline(inputNames, stages);
+  }
+
+  private static Stage parseStage(JSONObject description) throws JSONException {
+    String type = description.getString("type");
+    if (type.equals("decimate")) {
+      return new Decimate(description.getInt("factor"));
+    } else if (type.equals("lowpass")) {
+      return new LowPass(description.getDouble("alpha"));
+    } else if (type.equals("highpass")) {
+      return new HighPass(description.getDouble("alpha"));
+    } else if (type.equals("magnitude")) {
+      return new Magnitude();
+    } else if (type.equals("window")) {
+      return new Window(description.getInt("size"));
+    } else if (type.equals("threshold")) {
+      double high = description.getDouble("high");
+      return new Threshold(high, description.optDouble("low", high), description.optLong(
+          "debounce", 0));
+    }
+    throw new JSONException("Unknown pipeline stage " + type + ".");
+  }
+
+  public String[] getOutputNames() {
+    return mOutputNames;
+  }
+
+  /**
+   * Runs a sample through the pipeline. Missing input values are treated as 0.
+   * 
+   * @return true if the sample passed all stages, in which case its values are available from
+   *         {@link #getOutput(int)}
+   */
+  public boolean process(long time, float[] values) {
+    for (int i = 0; i < mInputCount; i++) {
+      mValues[i] = i < values.length ? values[i] : 0;
+    }
+    int count = mInputCount;
+    for (Stage stage : mStages) {
+      count = stage.process(time, mValues, count, mScratch);
+      if (count < 0) {
+        mCount = 0;
+        return false;
+      }
+      double[] swap = mValues;
+      mValues = mScratch;
+      mScratch = swap;
+    }
+    mCount = count;
+    return true;
+  }
+
+  /** Returns an output value of the last sample that passed the pipeline. */
+  public double getOutput(int index) {
+    if (index >= mCount) {
+      throw new IndexOutOfBoundsException();
+    }
+    return mValues[index];
+  }
+
+  static class Decimate extends Stage {
+    private final int mmFactor;
+    private int mmSkipped = 0;
+
+    Decimate(int factor) {
+      if (factor <= 0) {
+        throw new IllegalArgumentException("Decimation factor must be positive.");
+      }
+      mmFactor = factor;
+    }
+
+    @Override
+    String[] configure(String[] inputs) {
+      return inputs;
+    }
+
+    @Override
+    int process(long time, double[] in, int count, double[] out) {
+      if (++mmSkipped < mmFactor) {
+        return -1;
+      }
+      mmSkipped = 0;
+      System.arraycopy(in, 0, out, 0, count);
+      return count;
+    }
+  }
+
+  static class LowPass extends Stage {
+    private final double mmAlpha;
+    private double[] mmState;
+    private boolean mmStarted = false;
+
+    LowPass(double alpha) {
+      if (alpha <= 0 || alpha > 1) {
+        throw new IllegalArgumentException("Alpha must be in (0, 1].");
+      }
+      mmAlpha = alpha;
+    }
+
+    @Override
+    String[] configure(String[] inputs) {
+      mmState = new double[inputs.length];
+      return inputs;
+    }
+
+    @Override
+    int process(long time, double[] in, int count, double[] out) {
+      for (int i = 0; i < count; i++) {
+        mmState[i] = mmStarted ? mmState[i] + mmAlpha * (in[i] - mmState[i]) : in[i];
+        out[i] = mmState[i];
+      }
+      mmStarted = true;
+      return count;
+    }
+  }
+
+  static class HighPass extends LowPass {
+    HighPass(double alpha) {
+      super(alpha);
+    }
+
+    @Override
+    int process(long time, double[] in, int count, double[] out) {
+      super.process(time, in, count, out);
+      for (int i = 0; i < count; i++) {
+        out[i] = in[i] - out[i];
+      }
+      return count;
+    }
+  }
+
+  static class Magnitude extends Stage {
+    @Override
+    String[] configure(String[] inputs) {
+      return new String[] { "magnitude" };
+    }
+
+    @Override
+    int process(long time, double[] in, int count, double[] out) {
+      double sum = 0;
+      for (int i = 0; i < count; i++) {
+        sum += in[i] * in[i];
+      }
+      out[0] = Math.sqrt(sum);
+      return 1;
+    }
+  }
+
+  static class Window extends Stage {
+    private static final String[] SUFFIXES = { "_min", "_max", "_mean", "_var" };
+
+    private final int mmSize;
+    private int mmCount = 0;
+    private double[] mmMin;
+    private double[] mmMax;
+    private double[] mmMean;
+    private double[] mmSquares;
+
+    Window(int size) {
+      if (size <= 0) {
+        throw new IllegalArgumentException("Window size must be positive.");
+      }
+      mmSize = size;
+    }
+
+    @Override
+    String[] configure(String[] inputs) {
+      mmMin = new double[inputs.length];
+      mmMax = new double[inputs.length];
+      mmMean = new double[inputs.length];
+      mmSquares = new double[inputs.length];
+      String[] outputs = new String[inputs.length * SUFFIXES.length];
+      for (int i = 0; i < inputs.length; i++) {
+        for (int j = 0; j < SUFFIXES.length; j++) {
+          outputs[i * SUFFIXES.length + j] = inputs[i] + SUFFIXES[j];
+        }
+      }
+      return outputs;
+    }
+
+    @Override
+    int process(long time, double[] in, int count, double[] out) {
+      mmCount++;
+      for (int i = 0; i < count; i++) {
+        double value = in[i];
+        if (mmCount == 1) {
+          mmMin[i] = value;
+          mmMax[i] = value;
+          mmMean[i] = value;
+          mmSquares[i] = 0;
+        } else {
+          mmMin[i] = Math.min(mmMin[i], value);
+          mmMax[i] = Math.max(mmMax[i], value);
+          // Welford's method keeps the variance accurate for large offsets like gravity.
+          double delta = value - mmMean[i];
+          mmMean[i] += delta / mmCount;
+          mmSquares[i] += delta * (value - mmMean[i]);
+        }
+      }
+      if (mmCount < mmSize) {
+        return -1;
+      }
+      for (int i = 0; i < count; i++) {
+        int offset = i * SUFFIXES.length;
+        out[offset] = mmMin[i];
+        out[offset + 1] = mmMax[i];
+        out[offset + 2] = mmMean[i];
+        out[offset + 3] = mmSquares[i] / mmCount;
+      }
+      mmCount = 0;
+      return count * SUFFIXES.length;
+    }
+  }
+
+  static class Threshold extends Stage {
+    private final double mmHigh;
+    private final double mmLow;
+    private final long mmDebounce;
+    private boolean[] mmAbove;
+    // The time at which a value first crossed into the opposite state, or -1.
+    private long[] mmCrossed;
+
+    /**
+     * @param debounce
+     *          the time in milliseconds a value has to stay across the threshold
+     */
+    Threshold(double high, double low, long debounce) {
+      if (low > high) {
+        throw new IllegalArgumentException("Low threshold must not exceed the high threshold.");
+      }
+      mmHigh = high;
+      mmLow = low;
+      mmDebounce = debounce * 1000000;
+    }
+
+    @Override
+    String[] configure(String[] inputs) {
+      mmAbove = new boolean[inputs.length];
+      mmCrossed = new long[inputs.length];
+      String[] outputs = new String[inputs.length * 2];
+      for (int i = 0; i < inputs.length; i++) {
+        mmCrossed[i] = -1;
+        outputs[i] = inputs[i];
+        outputs[inputs.length + i] = inputs[i] + "_above";
+      }
+      return outputs;
+    }
+
+    @Override
+    int process(long time, double[] in, int count, double[] out) {
+      boolean changed = false;
+      for (int i = 0; i < count; i++) {
+        boolean crossing = mmAbove[i] ? in[i] < mmLow : in[i] > mmHigh;
+        if (!crossing) {
+          mmCrossed[i] = -1;
+          continue;
+        }
+        if (mmCrossed[i] < 0) {
+          mmCrossed[i] = time;
+        }
+        if (time - mmCrossed[i] >= mmDebounce) {
+          mmAbove[i] = !mmAbove[i];
+          mmCrossed[i] = -1;
+          changed = true;
+        }
+      }
+      if (!changed) {
+        return -1;
+      }
+      for (int i = 0; i < count; i++) {
+        out[i] = in[i];
+        out[count + i] = mmAbove[i] ? 1 : 0;
+      }
+      return count * 2;
+    }
+  }
+}
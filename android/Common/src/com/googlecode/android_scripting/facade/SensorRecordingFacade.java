@@ -0,0 +1,376 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.android_scripting.facade;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Bundle;
+
+import com.googlecode.android_scripting.Log;
+import com.googlecode.android_scripting.jsonrpc.RpcReceiver;
+import com.googlecode.android_scripting.rpc.Rpc;
+import com.googlecode.android_scripting.rpc.RpcDefault;
+import com.googlecode.android_scripting.rpc.RpcOptional;
+import com.googlecode.android_scripting.rpc.RpcParameter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Records sensor samples to a compact binary log and replays them. <br>
+ * <br>
+ * Recording runs independently of startSensingTimed and keeps every sample the sensors deliver.
+ * Samples are handed to a background thread that appends them to the log (see
+ * {@link SensorLogWriter}), so no events are posted while recording. A replay posts "sensors"
+ * events with the same fields as live sensing, which allows scripts to be tested offline.
+ * 
+ * <br>
+ * <b>Example (python)</b>
+ * 
+ * <pre>
+ * droid.sensorRecordingStart('/sdcard/walk.sensors', 2)
+ * time.sleep(600)
+ * droid.sensorRecordingStop()
+ * droid.sensorRecordingReplay('/sdcard/walk.sensors', 10.0)
+ * </pre>
+ */
+public class SensorRecordingFacade extends RpcReceiver {
+
+  private static final int QUEUE_CAPACITY = 4096;
+  private static final long WRITE_INTERVAL = 250;
+
+  private final EventFacade mEventFacade;
+  private final SensorManager mSensorManager;
+
+  private Recorder mRecorder;
+  private Thread mReplay;
+
+  public SensorRecordingFacade(FacadeManager manager) {
+    super(manager);
+    mEventFacade = manager.getReceiver(EventFacade.class);
+    mSensorManager = (SensorManager) manager.getService().getSystemService(Context.SENSOR_SERVICE);
+  }
+
+  @Rpc(description = "Starts recording every sample of the chosen sensors to a binary log file.")
+  public void sensorRecordingStart(
+      @RpcParameter(name = "path", description = "The log file to create") String path,
+      @RpcParameter(name = "sensorNumber", description = "1 = All, 2 = Accelerometer, 3 = Magnetometer and 4 = Light") @RpcDefault("1") Integer sensorNumber)
+      throws IOException {
+    if (mRecorder != null) {
+      throw new IllegalStateException("Already recording.");
+    }
+    Recorder recorder = new Recorder(new SensorLogWriter(new File(path),
+        SensorLogWriter.DEFAULT_INDEX_INTERVAL));
+    for (int type : SensorNumbers.getSensorTypes(sensorNumber)) {
+      for (Sensor sensor : mSensorManager.getSensorList(type)) {
+        mSensorManager.registerListener(recorder, sensor, SensorManager.SENSOR_DELAY_FASTEST);
+      }
+    }
+    recorder.start();
+    mRecorder = recorder;
+  }
+
+  @Rpc(description = "Stops recording.", returns = "Map with the number of samples written (samples) and dropped because the writer fell behind (dropped).")
+  public Map<String, Object> sensorRecordingStop() throws IOException, InterruptedException {
+    if (mRecorder == null) {
+      throw new IllegalStateException("Not recording.");
+    }
+    Recorder recorder = mRecorder;
+    mRecorder = null;
+    mSensorManager.unregisterListener(recorder);
+    recorder.finish();
+    Map<String, Object> result = new HashMap<String, Object>();
+    result.put("samples", recorder.mmWriter.getSampleCount());
+    result.put("dropped", recorder.mmDropped);
+    return result;
+  }
+
+  @Rpc(description = "Reads the samples of a sensor log taken within a time range.", returns = "Map of lists of equal length: time (in seconds), sensor (2 = Accelerometer, 3 = Magnetometer, 4 = Light), x, y and z.")
+  public Map<String, Object> sensorRecordingRead(
+      @RpcParameter(name = "path") String path,
+      @RpcParameter(name = "start", description = "Start of the range in seconds since the epoch") @RpcDefault("0") Double start,
+      @RpcParameter(name = "end", description = "End of the range in seconds since the epoch") @RpcOptional Double end,
+      @RpcParameter(name = "maxSamples", description = "Maximum number of samples to return") @RpcDefault("1024") Integer maxSamples)
+      throws IOException {
+    SensorLogReader reader = new SensorLogReader(new File(path));
+    try {
+      reader.seek((long) (start * 1000));
+      long endTime = end == null ? Long.MAX_VALUE : (long) (end * 1000);
+      double[] times = new double[maxSamples];
+      int[] sensors = new int[maxSamples];
+      float[][] values = new float[3][maxSamples];
+      SensorLogReader.Sample sample = new SensorLogReader.Sample();
+      int count = 0;
+      while (count < maxSamples && reader.next(sample) && sample.getTime() <= endTime) {
+        times[count] = sample.getTime() / 1000.0;
+        sensors[count] = SensorNumbers.getSensorNumber(sample.getSensorType());
+        for (int i = 0; i < 3; i++) {
+          values[i][count] = sample.getValue(i);
+        }
+        count++;
+      }
+      Map<String, Object> result = new HashMap<String, Object>();
+      result.put("time", trim(times, count));
+      result.put("sensor", trim(sensors, count));
+      result.put("x", trim(values[0], count));
+      result.put("y", trim(values[1], count));
+      result.put("z", trim(values[2], count));
+      return result;
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Rpc(description = "Replays a sensor log as \"sensors\" events in the background.")
+  public void sensorRecordingReplay(
+      @RpcParameter(name = "path") String path,
+      @RpcParameter(name = "speed", description = "Playback speed relative to the recording. 0 posts all events as fast as possible.") @RpcDefault("1") Double speed,
+      @RpcParameter(name = "start", description = "Start of the range in seconds since the epoch") @RpcDefault("0") Double start,
+      @RpcParameter(name = "end", description = "End of the range in seconds since the epoch") @RpcOptional Double end)
+      throws IOException {
+    sensorRecordingStopReplay();
+    SensorLogReader reader = new SensorLogReader(new File(path));
+    reader.seek((long) (start * 1000));
+    mReplay = new Replay(reader, speed, end == null ? Long.MAX_VALUE : (long) (end * 1000));
+    mReplay.start();
+  }
+
+  @Rpc(description = "Stops a running replay.")
+  public void sensorRecordingStopReplay() {
+    if (mReplay != null) {
+      mReplay.interrupt();
+      mReplay = null;
+    }
+  }
+
+  @Override
+  public void shutdown() {
+    sensorRecordingStopReplay();
+    if (mRecorder != null) {
+      try {
+        sensorRecordingStop();
+      } catch (Exception e) {
+        Log.e("Failed to stop sensor recording.", e);
+      }
+    }
+  }
+
+  private static double[] trim(double[] array, int length) {
+    double[] trimmed = new double[length];
+    System.arraycopy(array, 0, trimmed, 0, length);
+    return trimmed;
+  }
+
+  private static int[] trim(int[] array, int length) {
+    int[] trimmed = new int[length];
+    System.arraycopy(array, 0, trimmed, 0, length);
+    return trimmed;
+  }
+
+  private static float[] trim(float[] array, int length) {
+    float[] trimmed = new float[length];
+    System.arraycopy(array, 0, trimmed, 0, length);
+    return trimmed;
+  }
+
+  /**
+   * Collects samples on the sensor thread and writes them on its own thread. Samples are kept in
+   * preallocated arrays, which are swapped with the writer's arrays on every write.
+   */
+  private static class Recorder extends Thread implements SensorEventListener {
+    private final SensorLogWriter mmWriter;
+    private int[] mmTypes = new int[QUEUE_CAPACITY];
+    private long[] mmTimes = new long[QUEUE_CAPACITY];
+    private float[] mmValues = new float[QUEUE_CAPACITY * 3];
+    private int mmCount = 0;
+    private int[] mmWriterTypes = new int[QUEUE_CAPACITY];
+    private long[] mmWriterTimes = new long[QUEUE_CAPACITY];
+    private float[] mmWriterValues = new float[QUEUE_CAPACITY * 3];
+    // Guarded by this.
+    private Long mmEpochOffset;
+    private volatile long mmDropped = 0;
+    private volatile boolean mmFinished = false;
+    private IOException mmError;
+
+    public Recorder(SensorLogWriter writer) {
+      super("SensorRecorder");
+      mmWriter = writer;
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+    }
+
+    @Override
+    public synchronized void onSensorChanged(SensorEvent event) {
+      if (mmCount == QUEUE_CAPACITY) {
+        mmDropped++;
+        return;
+      }
+      if (mmEpochOffset == null) {
+        // The one wall clock reading of the recording. Samples keep the monotonic timestamps the
+        // sensors give them, so a clock change does not reorder the log.
+        mmEpochOffset = System.currentTimeMillis() * 1000000 - event.timestamp;
+      }
+      mmTypes[mmCount] = event.sensor.getType();
+      mmTimes[mmCount] = event.timestamp;
+      int length = Math.min(event.values.length, 3);
+      int offset = mmCount * 3;
+      for (int i = 0; i < 3; i++) {
+        mmValues[offset + i] = i < length ? event.values[i] : 0;
+      }
+      mmCount++;
+    }
+
+    @Override
+    public void run() {
+      try {
+        boolean started = false;
+        while (true) {
+          int count;
+          Long epochOffset;
+          synchronized (this) {
+            if (!mmFinished && mmCount == 0) {
+              wait(WRITE_INTERVAL);
+            }
+            count = mmCount;
+            if (count == 0 && mmFinished) {
+              break;
+            }
+            swap();
+            epochOffset = mmEpochOffset;
+          }
+          if (!started && count > 0) {
+            mmWriter.setEpochOffset(epochOffset);
+            started = true;
+          }
+          for (int i = 0; i < count; i++) {
+            int offset = i * 3;
+            mmWriter.write(mmWriterTypes[i], mmWriterTimes[i], mmWriterValues[offset],
+                mmWriterValues[offset + 1], mmWriterValues[offset + 2]);
+          }
+          mmWriter.flush();
+        }
+      } catch (InterruptedException e) {
+        // Stop writing.
+      } catch (IOException e) {
+        mmError = e;
+      } finally {
+        try {
+          mmWriter.close();
+        } catch (IOException e) {
+          if (mmError == null) {
+            mmError = e;
+          }
+        }
+      }
+    }
+
+    private void swap() {
+      int[] types = mmTypes;
+      mmTypes = mmWriterTypes;
+      mmWriterTypes = types;
+      long[] times = mmTimes;
+      mmTimes = mmWriterTimes;
+      mmWriterTimes = times;
+      float[] values = mmValues;
+      mmValues = mmWriterValues;
+      mmWriterValues = values;
+      mmCount = 0;
+    }
+
+    /** Writes the remaining samples and closes the log. */
+    public void finish() throws IOException, InterruptedException {
+      synchronized (this) {
+        mmFinished = true;
+        notifyAll();
+      }
+      join();
+      if (mmError != null) {
+        throw mmError;
+      }
+    }
+  }
+
+  private class Replay extends Thread {
+    private final SensorLogReader mmReader;
+    private final double mmSpeed;
+    private final long mmEnd;
+
+    public Replay(SensorLogReader reader, double speed, long end) {
+      super("SensorReplay");
+      mmReader = reader;
+      mmSpeed = speed;
+      mmEnd = end;
+    }
+
+    @Override
+    public void run() {
+      Bundle readings = new Bundle();
+      SensorLogReader.Sample sample = new SensorLogReader.Sample();
+      long firstTimestamp = -1;
+      long startTime = System.currentTimeMillis();
+      try {
+        while (!isInterrupted() && mmReader.next(sample) && sample.getTime() <= mmEnd) {
+          if (firstTimestamp < 0) {
+            firstTimestamp = sample.getTimestamp();
+          }
+          if (mmSpeed > 0) {
+            long due =
+                startTime + (long) ((sample.getTimestamp() - firstTimestamp) / 1000000 / mmSpeed);
+            long delay = due - System.currentTimeMillis();
+            if (delay > 0) {
+              Thread.sleep(delay);
+            }
+          }
+          switch (sample.getSensorType()) {
+          case Sensor.TYPE_ACCELEROMETER:
+            readings.putFloat("xforce", sample.getValue(0));
+            readings.putFloat("yforce", sample.getValue(1));
+            readings.putFloat("zforce", sample.getValue(2));
+            break;
+          case Sensor.TYPE_MAGNETIC_FIELD:
+            readings.putFloat("xMag", sample.getValue(0));
+            readings.putFloat("yMag", sample.getValue(1));
+            readings.putFloat("zMag", sample.getValue(2));
+            break;
+          case Sensor.TYPE_LIGHT:
+            readings.putFloat("light", sample.getValue(0));
+            break;
+          }
+          readings.putDouble("time", sample.getTime() / 1000.0);
+          mEventFacade.postEvent("sensors", readings.clone());
+        }
+      } catch (InterruptedException e) {
+        // Replay stopped.
+      } catch (IOException e) {
+        Log.e("Sensor replay failed.", e);
+      } finally {
+        try {
+          mmReader.close();
+        } catch (IOException e) {
+          Log.e(e);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.android_scripting.facade;
+
+/**
+ * A ring buffer of timestamped sensor samples kept in preallocated primitive arrays. Writing a
+ * sample does not allocate. When the buffer is full, the oldest sample is overwritten.
+ */
+public class SensorSampleBuffer {
+
+  private final int mCapacity;
+  private final int mAxes;
+  private final long[] mTimes;
+  private final float[] mValues;
+  private int mHead = 0;
+  private int mSize = 0;
+  private long mDropped = 0;
+
+  /** A block of samples in columnar form. */
+  public static class Batch {
+    private final long[] mmTimes;
+    private final float[][] mmValues;
+    private final long mmDropped;
+
+    private Batch(long[] times, float[][] values, long dropped) {
+      mmTimes = times;
+      mmValues = values;
+      mmDropped = dropped;
+    }
+
+    /** Returns the time of each sample in nanoseconds. */
+    public long[] getTimes() {
+      return mmTimes;
+    }
+
+    /** Returns the value of the given axis for each sample. */
+    public float[] getValues(int axis) {
+      return mmValues[axis];
+    }
+
+    /** Returns the number of samples overwritten before they could be read. */
+    public long getDropped() {
+      return mmDropped;
+    }
+  }
+
+  public SensorSampleBuffer(int capacity, int axes) {
+    if (capacity <= 0 || axes <= 0) {
+      throw new IllegalArgumentException("Capacity and number of axes must be positive.");
+    }
+    mCapacity = capacity;
+    mAxes = axes;
+    mTimes = new long[capacity];
+    mValues = new float[capacity * axes];
+  }
+
+  public int getAxes() {
+    return mAxes;
+  }
+
+  /** Adds a sample. Only the first {@link #getAxes()} values are kept. */
+  public synchronized void write(long time, float[] values) {
+    int slot = (mHead + mSize) % mCapacity;
+    if (mSize == mCapacity) {
+      mHead = (mHead + 1) % mCapacity;
+      mDropped++;
+    } else {
+      mSize++;
+    }
+    mTimes[slot] = time;
+    System.arraycopy(values, 0, mValues, slot * mAxes, Math.min(values.length, mAxes));
+  }
+
+  public synchronized int size() {
+    return mSize;
+  }
+
+  /** Removes and returns up to {@code max} of the oldest samples. */
+  public synchronized Batch read(int max) {
+    int count = Math.max(0, Math.min(max, mSize));
+    long[] times = new long[count];
+    float[][] values = new float[mAxes][count];
+    for (int i = 0; i < count; i++) {
+      int slot = (mHead + i) % mCapacity;
+      times[i] = mTimes[slot];
+      int offset = slot * mAxes;
+      for (int axis = 0; axis < mAxes; axis++) {
+        values[axis][i] = mValues[offset + axis];
+      }
+    }
+    mHead = (mHead + count) % mCapacity;
+    mSize -= count;
+    Batch batch = new Batch(times, values, mDropped);
+    mDropped = 0;
+    return batch;
+  }
+
+  public synchronized void clear() {
+    mHead = 0;
+    mSize = 0;
+    mDropped = 0;
+  }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright (C) 2010 Google Inc.
+ * Copyright (C) 2009 Google Inc.
  *
  * Licensed under the Apache License, Version 2.0 (the "License"); you may not
  * use this file except in compliance with the License. You may obtain a copy of
@@ -31,224 +31,424 @@ import com.googlecode.android_scripting.event.Event;
 
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.commons.codec.binary.Base64Codec;
+import org.apache.commons.codec.binary.StringUtils;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+/**
+ * Converts RPC results to JSON.
+ *
+ * <p>
+ * Results can either be built as {@link JSONObject}/{@link JSONArray} trees with
+ * {@link #build(Object)} or streamed straight into a {@link StringBuilder} with
+ * {@link #write(Object, StringBuilder)}, which produces the same text as
+ * {@code build(data).toString()} without materializing the tree.
+ *
+ * <p>
+ * Values are converted by the {@link JsonSerializer} registered for the closest matching type. The
+ * serializer chosen for each concrete class is cached, so nested collections don't repeat the
+ * lookup for every element. Types without a serializer are converted to their string
+ * representation.
+ */
 public class JsonBuilder {
 
   private JsonBuilder() {
     // This is a utility class.
   }
 
-  @SuppressWarnings("unchecked")
   public static Object build(Object data) throws JSONException {
+    TreeSink sink = new TreeSink();
+    write(data, sink);
+    return sink.getResult();
+  }
+
+  /** Appends the JSON text of {@code data} to {@code out}. */
+  public static void write(Object data, StringBuilder out) throws JSONException {
+    write(data, new StreamingSink(out));
+  }
+
+  public static void write(Object data, JsonSink sink) throws JSONException {
     if (data == null) {
-      return JSONObject.NULL;
-    }
-    if (data instanceof Integer) {
-      return data;
-    }
-    if (data instanceof Float) {
-      return data;
-    }
-    if (data instanceof Double) {
-      return data;
-    }
-    if (data instanceof Long) {
-      return data;
-    }
-    if (data instanceof String) {
-      return data;
-    }
-    if (data instanceof Boolean) {
-      return data;
-    }
-    if (data instanceof JSONObject) {
-      return data;
-    }
-    if (data instanceof JSONArray) {
-      return data;
-    }
-    if (data instanceof Set<?>) {
-      List<Object> items = new ArrayList<Object>((Set<?>) data);
-      return buildJsonList(items);
-    }
-    if (data instanceof List<?>) {
-      return buildJsonList((List<?>) data);
-    }
-    if (data instanceof Address) {
-      return buildJsonAddress((Address) data);
-    }
-    if (data instanceof Location) {
-      return buildJsonLocation((Location) data);
-    }
-    if (data instanceof Bundle) {
-      return buildJsonBundle((Bundle) data);
-    }
-    if (data instanceof Intent) {
-      return buildJsonIntent((Intent) data);
-    }
-    if (data instanceof Event) {
-      return buildJsonEvent((Event) data);
-    }
-    if (data instanceof Map<?, ?>) {
-      // TODO(damonkohler): I would like to make this a checked cast if possible.
-      return buildJsonMap((Map<String, ?>) data);
-    }
-    if (data instanceof ScanResult) {
-      return buildJsonScanResult((ScanResult) data);
-    }
-    if (data instanceof CellLocation) {
-      return buildJsonCellLocation((CellLocation) data);
-    }
-    if (data instanceof WifiInfo) {
-      return buildJsonWifiInfo((WifiInfo) data);
+      sink.value(JSONObject.NULL);
+      return;
     }
-    if (data instanceof NeighboringCellInfo) {
-      return buildNeighboringCellInfo((NeighboringCellInfo) data);
+    serializerFor(data.getClass()).write(data, sink);
+  }
+
+  /**
+   * Registers a serializer for {@code type} and all of its subtypes. Serializers registered later
+   * take precedence over those registered earlier and over the built-in ones.
+   */
+  public static synchronized <T> void registerSerializer(Class<T> type,
+      JsonSerializer<? super T> serializer) {
+    sRegistrations.add(0, new Registration(type, serializer));
+    sResolved.clear();
+  }
+
+  private static JsonSerializer<Object> serializerFor(Class<?> clazz) {
+    JsonSerializer<Object> serializer = sResolved.get(clazz);
+    if (serializer == null) {
+      serializer = TO_STRING;
+      for (Registration registration : sRegistrations) {
+        if (registration.mmType.isAssignableFrom(clazz)) {
+          serializer = registration.mmSerializer;
+          break;
+        }
+      }
+      sResolved.put(clazz, serializer);
     }
-    if (data instanceof InetSocketAddress) {
-      return buildInetSocketAddress((InetSocketAddress) data);
+    return serializer;
+  }
+
+  private static final class Registration {
+    private final Class<?> mmType;
+    private final JsonSerializer<Object> mmSerializer;
+
+    @SuppressWarnings("unchecked")
+    private Registration(Class<?> type, JsonSerializer<?> serializer) {
+      mmType = type;
+      mmSerializer = (JsonSerializer<Object>) serializer;
     }
-    if (data instanceof byte[]) {
-      return Base64Codec.encodeBase64((byte[]) data);
+  }
+
+  /** Registered serializers in order of precedence. */
+  private static final List<Registration> sRegistrations =
+      new CopyOnWriteArrayList<Registration>();
+
+  /** The serializer for each concrete class seen so far. */
+  private static final Map<Class<?>, JsonSerializer<Object>> sResolved =
+      new ConcurrentHashMap<Class<?>, JsonSerializer<Object>>();
+
+  private static final JsonSerializer<Object> VALUE = new JsonSerializer<Object>() {
+    @Override
+    public void write(Object value, JsonSink sink) throws JSONException {
+      sink.value(value);
     }
-    if (data instanceof Object[]) {
-      return buildJSONArray((Object[]) data);
+  };
+
+  private static final JsonSerializer<Object> TO_STRING = new JsonSerializer<Object>() {
+    @Override
+    public void write(Object value, JsonSink sink) throws JSONException {
+      sink.value(value.toString());
     }
-    return data.toString();
-    // throw new JSONException("Failed to build JSON result. " + data.getClass().getName());
+  };
+
+  static {
+    // Built-in serializers, listed in order of precedence.
+    addBuiltIn(Integer.class, VALUE);
+    addBuiltIn(Float.class, VALUE);
+    addBuiltIn(Double.class, VALUE);
+    addBuiltIn(Long.class, VALUE);
+    addBuiltIn(String.class, VALUE);
+    addBuiltIn(Boolean.class, VALUE);
+    addBuiltIn(JSONObject.class, VALUE);
+    addBuiltIn(JSONArray.class, VALUE);
+    addBuiltIn(Set.class, new JsonSerializer<Set<?>>() {
+      @Override
+      public void write(Set<?> value, JsonSink sink) throws JSONException {
+        writeJsonList(value, sink);
+      }
+    });
+    addBuiltIn(List.class, new JsonSerializer<List<?>>() {
+      @Override
+      public void write(List<?> value, JsonSink sink) throws JSONException {
+        writeJsonList(value, sink);
+      }
+    });
+    addBuiltIn(Address.class, new JsonSerializer<Address>() {
+      @Override
+      public void write(Address value, JsonSink sink) throws JSONException {
+        writeJsonAddress(value, sink);
+      }
+    });
+    addBuiltIn(Location.class, new JsonSerializer<Location>() {
+      @Override
+      public void write(Location value, JsonSink sink) throws JSONException {
+        writeJsonLocation(value, sink);
+      }
+    });
+    addBuiltIn(Bundle.class, new JsonSerializer<Bundle>() {
+      @Override
+      public void write(Bundle value, JsonSink sink) throws JSONException {
+        writeJsonBundle(value, sink);
+      }
+    });
+    addBuiltIn(Intent.class, new JsonSerializer<Intent>() {
+      @Override
+      public void write(Intent value, JsonSink sink) throws JSONException {
+        writeJsonIntent(value, sink);
+      }
+    });
+    addBuiltIn(Event.class, new JsonSerializer<Event>() {
+      @Override
+      public void write(Event value, JsonSink sink) throws JSONException {
+        writeJsonEvent(value, sink);
+      }
+    });
+    addBuiltIn(Map.class, new JsonSerializer<Map<String, ?>>() {
+      @Override
+      public void write(Map<String, ?> value, JsonSink sink) throws JSONException {
+        // TODO(damonkohler): I would like to make this a checked cast if possible.
+        writeJsonMap(value, sink);
+      }
+    });
+    addBuiltIn(ScanResult.class, new JsonSerializer<ScanResult>() {
+      @Override
+      public void write(ScanResult value, JsonSink sink) throws JSONException {
+        writeJsonScanResult(value, sink);
+      }
+    });
+    addBuiltIn(CellLocation.class, new JsonSerializer<CellLocation>() {
+      @Override
+      public void write(CellLocation value, JsonSink sink) throws JSONException {
+        writeJsonCellLocation(value, sink);
+      }
+    });
+    addBuiltIn(WifiInfo.class, new JsonSerializer<WifiInfo>() {
+      @Override
+      public void write(WifiInfo value, JsonSink sink) throws JSONException {
+        writeJsonWifiInfo(value, sink);
+      }
+    });
+    addBuiltIn(NeighboringCellInfo.class, new JsonSerializer<NeighboringCellInfo>() {
+      @Override
+      public void write(NeighboringCellInfo value, JsonSink sink) throws JSONException {
+        writeNeighboringCellInfo(value, sink);
+      }
+    });
+    addBuiltIn(InetSocketAddress.class, new JsonSerializer<InetSocketAddress>() {
+      @Override
+      public void write(InetSocketAddress value, JsonSink sink) throws JSONException {
+        writeInetSocketAddress(value, sink);
+      }
+    });
+    addBuiltIn(byte[].class, new JsonSerializer<byte[]>() {
+      @Override
+      public void write(byte[] value, JsonSink sink) throws JSONException {
+        sink.binary(value);
+      }
+    });
+    addBuiltIn(int[].class, new JsonSerializer<int[]>() {
+      @Override
+      public void write(int[] value, JsonSink sink) throws JSONException {
+        sink.beginArray();
+        for (int element : value) {
+          sink.value(element);
+        }
+        sink.endArray();
+      }
+    });
+    addBuiltIn(long[].class, new JsonSerializer<long[]>() {
+      @Override
+      public void write(long[] value, JsonSink sink) throws JSONException {
+        sink.beginArray();
+        for (long element : value) {
+          sink.value(element);
+        }
+        sink.endArray();
+      }
+    });
+    addBuiltIn(float[].class, new JsonSerializer<float[]>() {
+      @Override
+      public void write(float[] value, JsonSink sink) throws JSONException {
+        sink.beginArray();
+        for (float element : value) {
+          sink.value(element);
+        }
+        sink.endArray();
+      }
+    });
+    addBuiltIn(double[].class, new JsonSerializer<double[]>() {
+      @Override
+      public void write(double[] value, JsonSink sink) throws JSONException {
+        sink.beginArray();
+        for (double element : value) {
+          sink.value(element);
+        }
+        sink.endArray();
+      }
+    });
+    addBuiltIn(Object[].class, new JsonSerializer<Object[]>() {
+      @Override
+      public void write(Object[] value, JsonSink sink) throws JSONException {
+        writeJSONArray(value, sink);
+      }
+    });
+  }
+
+  private static void addBuiltIn(Class<?> type, JsonSerializer<?> serializer) {
+    sRegistrations.add(new Registration(type, serializer));
+  }
+
+  // The put() overloads mirror those of JSONObject so that every member is converted exactly as
+  // JSONObject.put() would have converted it.
+
+  private static void put(JsonSink sink, String name, boolean value) throws JSONException {
+    sink.key(name);
+    sink.value(value);
+  }
+
+  private static void put(JsonSink sink, String name, double value) throws JSONException {
+    sink.key(name);
+    sink.value(value);
+  }
+
+  private static void put(JsonSink sink, String name, int value) throws JSONException {
+    sink.key(name);
+    sink.value(value);
+  }
+
+  private static void put(JsonSink sink, String name, long value) throws JSONException {
+    sink.key(name);
+    sink.value(value);
+  }
+
+  private static void put(JsonSink sink, String name, Object value) throws JSONException {
+    sink.key(name);
+    sink.value(value);
   }
 
-  private static JSONArray buildJSONArray(Object[] data) throws JSONException {
-    JSONArray result = new JSONArray();
+  /** Adds a member whose value is converted with {@link #write(Object, JsonSink)}. */
+  private static void putBuilt(JsonSink sink, String name, Object value) throws JSONException {
+    sink.key(name);
+    write(value, sink);
+  }
+
+  private static void writeJSONArray(Object[] data, JsonSink sink) throws JSONException {
+    sink.beginArray();
     for (Object o : data) {
-      result.put(build(o));
+      write(o, sink);
     }
-    return result;
+    sink.endArray();
   }
 
-  private static Object buildInetSocketAddress(InetSocketAddress data) {
-    JSONArray address = new JSONArray();
-    address.put(data.getHostName());
-    address.put(data.getPort());
-    return address;
+  private static void writeInetSocketAddress(InetSocketAddress data, JsonSink sink)
+      throws JSONException {
+    sink.beginArray();
+    sink.value(data.getHostName());
+    sink.value(data.getPort());
+    sink.endArray();
   }
 
-  private static <T> JSONArray buildJsonList(final List<T> list) throws JSONException {
-    JSONArray result = new JSONArray();
-    for (T item : list) {
-      result.put(build(item));
+  private static void writeJsonList(final Collection<?> list, JsonSink sink) throws JSONException {
+    sink.beginArray();
+    for (Object item : list) {
+      write(item, sink);
     }
-    return result;
+    sink.endArray();
   }
 
-  private static JSONObject buildJsonAddress(Address address) throws JSONException {
-    JSONObject result = new JSONObject();
-    result.put("admin_area", address.getAdminArea());
-    result.put("country_code", address.getCountryCode());
-    result.put("country_name", address.getCountryName());
-    result.put("feature_name", address.getFeatureName());
-    result.put("phone", address.getPhone());
-    result.put("locality", address.getLocality());
-    result.put("postal_code", address.getPostalCode());
-    result.put("sub_admin_area", address.getSubAdminArea());
-    result.put("thoroughfare", address.getThoroughfare());
-    result.put("url", address.getUrl());
-    return result;
+  private static void writeJsonAddress(Address address, JsonSink sink) throws JSONException {
+    sink.beginObject();
+    put(sink, "admin_area", address.getAdminArea());
+    put(sink, "country_code", address.getCountryCode());
+    put(sink, "country_name", address.getCountryName());
+    put(sink, "feature_name", address.getFeatureName());
+    put(sink, "phone", address.getPhone());
+    put(sink, "locality", address.getLocality());
+    put(sink, "postal_code", address.getPostalCode());
+    put(sink, "sub_admin_area", address.getSubAdminArea());
+    put(sink, "thoroughfare", address.getThoroughfare());
+    put(sink, "url", address.getUrl());
+    sink.endObject();
   }
 
-  private static JSONObject buildJsonLocation(Location location) throws JSONException {
-    JSONObject result = new JSONObject();
-    result.put("altitude", location.getAltitude());
-    result.put("latitude", location.getLatitude());
-    result.put("longitude", location.getLongitude());
-    result.put("time", location.getTime());
-    result.put("accuracy", location.getAccuracy());
-    result.put("speed", location.getSpeed());
-    result.put("provider", location.getProvider());
-    result.put("bearing", location.getBearing());
-    return result;
+  private static void writeJsonLocation(Location location, JsonSink sink) throws JSONException {
+    sink.beginObject();
+    put(sink, "altitude", location.getAltitude());
+    put(sink, "latitude", location.getLatitude());
+    put(sink, "longitude", location.getLongitude());
+    put(sink, "time", location.getTime());
+    put(sink, "accuracy", location.getAccuracy());
+    put(sink, "speed", location.getSpeed());
+    put(sink, "provider", location.getProvider());
+    put(sink, "bearing", location.getBearing());
+    sink.endObject();
   }
 
-  private static JSONObject buildJsonBundle(Bundle bundle) throws JSONException {
-    JSONObject result = new JSONObject();
+  private static void writeJsonBundle(Bundle bundle, JsonSink sink) throws JSONException {
+    sink.beginObject();
     for (String key : bundle.keySet()) {
-      result.put(key, build(bundle.get(key)));
+      putBuilt(sink, key, bundle.get(key));
     }
-    return result;
+    sink.endObject();
   }
 
-  private static JSONObject buildJsonIntent(Intent data) throws JSONException {
-    JSONObject result = new JSONObject();
-    result.put("data", data.getDataString());
-    result.put("type", data.getType());
-    result.put("extras", build(data.getExtras()));
-    result.put("categories", build(data.getCategories()));
-    result.put("action", data.getAction());
+  private static void writeJsonIntent(Intent data, JsonSink sink) throws JSONException {
+    sink.beginObject();
+    put(sink, "data", data.getDataString());
+    put(sink, "type", data.getType());
+    putBuilt(sink, "extras", data.getExtras());
+    putBuilt(sink, "categories", data.getCategories());
+    put(sink, "action", data.getAction());
     ComponentName component = data.getComponent();
     if (component != null) {
-      result.put("packagename", component.getPackageName());
-      result.put("classname", component.getClassName());
+      put(sink, "packagename", component.getPackageName());
+      put(sink, "classname", component.getClassName());
     }
-    result.put("flags", data.getFlags());
-    return result;
+    put(sink, "flags", data.getFlags());
+    sink.endObject();
   }
 
-  private static JSONObject buildJsonEvent(Event event) throws JSONException {
-    JSONObject result = new JSONObject();
-    result.put("name", event.getName());
-    result.put("data", build(event.getData()));
-    result.put("time", event.getCreationTime());
-    return result;
+  private static void writeJsonEvent(Event event, JsonSink sink) throws JSONException {
+    sink.beginObject();
+    put(sink, "name", event.getName());
+    putBuilt(sink, "data", event.getData());
+    put(sink, "time", event.getCreationTime());
+    sink.endObject();
   }
 
-  private static JSONObject buildJsonMap(Map<String, ?> map) throws JSONException {
-    JSONObject result = new JSONObject();
+  private static void writeJsonMap(Map<String, ?> map, JsonSink sink) throws JSONException {
+    sink.beginObject();
     for (Entry<String, ?> entry : map.entrySet()) {
-      result.put(entry.getKey(), build(entry.getValue()));
+      putBuilt(sink, entry.getKey(), entry.getValue());
     }
-    return result;
+    sink.endObject();
   }
 
-  private static JSONObject buildJsonScanResult(ScanResult scanResult) throws JSONException {
-    JSONObject result = new JSONObject();
-    result.put("bssid", scanResult.BSSID);
-    result.put("ssid", scanResult.SSID);
-    result.put("frequency", scanResult.frequency);
-    result.put("level", scanResult.level);
-    result.put("capabilities", scanResult.capabilities);
-    return result;
+  private static void writeJsonScanResult(ScanResult scanResult, JsonSink sink)
+      throws JSONException {
+    sink.beginObject();
+    put(sink, "bssid", scanResult.BSSID);
+    put(sink, "ssid", scanResult.SSID);
+    put(sink, "frequency", scanResult.frequency);
+    put(sink, "level", scanResult.level);
+    put(sink, "capabilities", scanResult.capabilities);
+    sink.endObject();
   }
 
-  private static JSONObject buildJsonCellLocation(CellLocation cellLocation) throws JSONException {
-    JSONObject result = new JSONObject();
+  private static void writeJsonCellLocation(CellLocation cellLocation, JsonSink sink)
+      throws JSONException {
+    sink.beginObject();
     if (cellLocation instanceof GsmCellLocation) {
       GsmCellLocation location = (GsmCellLocation) cellLocation;
-      result.put("lac", location.getLac());
-      result.put("cid", location.getCid());
+      put(sink, "lac", location.getLac());
+      put(sink, "cid", location.getCid());
     }
     // TODO(damonkohler): Add support for CdmaCellLocation. Not supported until API level 5.
-    return result;
-  }
-
-  private static JSONObject buildJsonWifiInfo(WifiInfo data) throws JSONException {
-    JSONObject result = new JSONObject();
-    result.put("hidden_ssid", data.getHiddenSSID());
-    result.put("ip_address", data.getIpAddress());
-    result.put("link_speed", data.getLinkSpeed());
-    result.put("network_id", data.getNetworkId());
-    result.put("rssi", data.getRssi());
-    result.put("bssid", data.getBSSID());
-    result.put("mac_address", data.getMacAddress());
-    result.put("ssid", data.getSSID());
+    sink.endObject();
+  }
+
+  private static void writeJsonWifiInfo(WifiInfo data, JsonSink sink) throws JSONException {
+    sink.beginObject();
+    put(sink, "hidden_ssid", data.getHiddenSSID());
+    put(sink, "ip_address", data.getIpAddress());
+    put(sink, "link_speed", data.getLinkSpeed());
+    put(sink, "network_id", data.getNetworkId());
+    put(sink, "rssi", data.getRssi());
+    put(sink, "bssid", data.getBSSID());
+    put(sink, "mac_address", data.getMacAddress());
+    put(sink, "ssid", data.getSSID());
     String supplicantState = "";
     switch (data.getSupplicantState()) {
     case ASSOCIATED:
@@ -287,15 +487,235 @@ public class JsonBuilder {
     default:
       supplicantState = null;
     }
-    result.put("supplicant_state", build(supplicantState));
-    return result;
+    putBuilt(sink, "supplicant_state", supplicantState);
+    sink.endObject();
   }
 
-  private static JSONObject buildNeighboringCellInfo(NeighboringCellInfo data) throws JSONException {
+  private static void writeNeighboringCellInfo(NeighboringCellInfo data, JsonSink sink)
+      throws JSONException {
     // TODO(damonkohler): Additional information available at API level 5.
-    JSONObject result = new JSONObject();
-    result.put("cid", data.getCid());
-    result.put("rssi", data.getRssi());
-    return result;
+    sink.beginObject();
+    put(sink, "cid", data.getCid());
+    put(sink, "rssi", data.getRssi());
+    sink.endObject();
+  }
+
+  /** Builds {@link JSONObject} and {@link JSONArray} trees. */
+  private static final class TreeSink implements JsonSink {
+    private final ArrayList<Object> mStack = new ArrayList<Object>();
+    private String mKey;
+    private Object mResult;
+
+    public Object getResult() {
+      return mResult;
+    }
+
+    @Override
+    public void beginObject() throws JSONException {
+      JSONObject object = new JSONObject();
+      add(object);
+      mStack.add(object);
+    }
+
+    @Override
+    public void endObject() {
+      mStack.remove(mStack.size() - 1);
+    }
+
+    @Override
+    public void beginArray() throws JSONException {
+      JSONArray array = new JSONArray();
+      add(array);
+      mStack.add(array);
+    }
+
+    @Override
+    public void endArray() {
+      mStack.remove(mStack.size() - 1);
+    }
+
+    @Override
+    public void key(String name) {
+      mKey = name;
+    }
+
+    @Override
+    public void value(Object value) throws JSONException {
+      add(value);
+    }
+
+    @Override
+    public void binary(byte[] data) throws JSONException {
+      add(encodeBase64(data));
+    }
+
+    private void add(Object value) throws JSONException {
+      if (mStack.isEmpty()) {
+        mResult = value;
+        return;
+      }
+      Object parent = mStack.get(mStack.size() - 1);
+      if (parent instanceof JSONObject) {
+        String key = mKey;
+        mKey = null;
+        ((JSONObject) parent).put(key, value);
+      } else {
+        ((JSONArray) parent).put(value);
+      }
+    }
+  }
+
+  /** Renders JSON text in the format of {@link JSONObject#toString()}. */
+  private static final class StreamingSink implements JsonSink {
+    private final StringBuilder mOut;
+    // Whether the container at each depth has not received an element yet.
+    private boolean[] mEmpty = new boolean[16];
+    private int mDepth = 0;
+    private String mKey;
+
+    private StreamingSink(StringBuilder out) {
+      mOut = out;
+    }
+
+    @Override
+    public void beginObject() {
+      beforeValue();
+      mOut.append('{');
+      push();
+    }
+
+    @Override
+    public void endObject() {
+      mDepth--;
+      mOut.append('}');
+    }
+
+    @Override
+    public void beginArray() {
+      beforeValue();
+      mOut.append('[');
+      push();
+    }
+
+    @Override
+    public void endArray() {
+      mDepth--;
+      mOut.append(']');
+    }
+
+    @Override
+    public void key(String name) throws JSONException {
+      if (name == null) {
+        throw new JSONException("Names must be non-null");
+      }
+      mKey = name;
+    }
+
+    @Override
+    public void value(Object value) throws JSONException {
+      if (value == null && mKey != null) {
+        // JSONObject.put() removes the member instead.
+        mKey = null;
+        return;
+      }
+      if (value instanceof Number) {
+        // Also rejects NaN and infinities like JSONObject does.
+        String number = JSONObject.numberToString((Number) value);
+        beforeValue();
+        mOut.append(number);
+      } else if (value instanceof String) {
+        beforeValue();
+        appendQuoted(mOut, (String) value);
+      } else if (value == null || value instanceof Boolean || value == JSONObject.NULL
+          || value instanceof JSONObject || value instanceof JSONArray) {
+        beforeValue();
+        mOut.append(value);
+      } else {
+        beforeValue();
+        appendQuoted(mOut, value.toString());
+      }
+    }
+
+    @Override
+    public void binary(byte[] data) throws JSONException {
+      value(encodeBase64(data));
+    }
+
+    private void push() {
+      mDepth++;
+      if (mDepth == mEmpty.length) {
+        boolean[] grown = new boolean[mEmpty.length * 2];
+        System.arraycopy(mEmpty, 0, grown, 0, mEmpty.length);
+        mEmpty = grown;
+      }
+      mEmpty[mDepth] = true;
+    }
+
+    private void beforeValue() {
+      if (mDepth == 0) {
+        return;
+      }
+      if (mEmpty[mDepth]) {
+        mEmpty[mDepth] = false;
+      } else {
+        mOut.append(',');
+      }
+      if (mKey != null) {
+        appendQuoted(mOut, mKey);
+        mOut.append(':');
+        mKey = null;
+      }
+    }
+  }
+
+  private static String encodeBase64(byte[] data) {
+    return StringUtils.newStringUtf8(Base64Codec.encodeBase64(data));
+  }
+
+  /** Appends a string literal escaped like {@link JSONObject#quote(String)}. */
+  static void appendQuoted(StringBuilder out, String value) {
+    out.append('"');
+    int length = value.length();
+    int start = 0;
+    for (int i = 0; i < length; i++) {
+      char c = value.charAt(i);
+      String replacement;
+      switch (c) {
+      case '"':
+        replacement = "\\\"";
+        break;
+      case '\\':
+        replacement = "\\\\";
+        break;
+      case '/':
+        replacement = "\\/";
+        break;
+      case '\t':
+        replacement = "\\t";
+        break;
+      case '\b':
+        replacement = "\\b";
+        break;
+      case '\n':
+        replacement = "\\n";
+        break;
+      case '\r':
+        replacement = "\\r";
+        break;
+      case '\f':
+        replacement = "\\f";
+        break;
+      default:
+        if (c > 0x1f) {
+          continue;
+        }
+        replacement = String.format("\\u%04x", (int) c);
+      }
+      out.append(value, start, i);
+      out.append(replacement);
+      start = i + 1;
+    }
+    out.append(value, start, length);
+    out.append('"');
   }
 }
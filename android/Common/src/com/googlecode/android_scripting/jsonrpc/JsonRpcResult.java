@@ -55,4 +55,45 @@ public class JsonRpcResult {
     json.put("error", t.toString());
     return json;
   }
+
+  /**
+   * Appends the text of {@link #result(int, Object)} to {@code out} without building the
+   * intermediate {@link JSONObject}.
+   */
+  public static void writeResult(int id, Object data, StringBuilder out) throws JSONException {
+    out.append("{\"id\":").append(id).append(",\"result\":");
+    JsonBuilder.write(data, out);
+    out.append(",\"error\":null}");
+  }
+
+  /** Appends the text of {@link #error(int, Throwable)} to {@code out}. */
+  public static void writeError(int id, Throwable t, StringBuilder out) {
+    out.append("{\"id\":").append(id).append(",\"result\":null,\"error\":");
+    JsonBuilder.appendQuoted(out, t.toString());
+    out.append('}');
+  }
+
+  /** Writes the structure of {@link #result(int, Object)} to {@code sink}. */
+  public static void writeResult(int id, Object data, JsonSink sink) throws JSONException {
+    sink.beginObject();
+    sink.key("id");
+    sink.value(id);
+    sink.key("result");
+    JsonBuilder.write(data, sink);
+    sink.key("error");
+    sink.value(JSONObject.NULL);
+    sink.endObject();
+  }
+
+  /** Writes the structure of {@link #error(int, Throwable)} to {@code sink}. */
+  public static void writeError(int id, Throwable t, JsonSink sink) throws JSONException {
+    sink.beginObject();
+    sink.key("id");
+    sink.value(id);
+    sink.key("result");
+    sink.value(JSONObject.NULL);
+    sink.key("error");
+    sink.value(t.toString());
+    sink.endObject();
+  }
 }
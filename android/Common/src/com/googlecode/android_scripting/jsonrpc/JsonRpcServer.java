@@ -21,9 +21,14 @@ import com.googlecode.android_scripting.SimpleServer;
 import com.googlecode.android_scripting.rpc.MethodDescriptor;
 import com.googlecode.android_scripting.rpc.RpcError;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.Writer;
 import java.net.Socket;
 
 import org.json.JSONArray;
@@ -33,9 +38,30 @@ import org.json.JSONObject;
 /**
  * A JSON RPC server that forwards RPC calls to a specified receiver object.
  * 
+ * <p>
+ * Requests and responses are newline delimited JSON text by default. A client may instead ask for
+ * binary framing by passing {@link #FRAMING_MSGPACK} as the second parameter of
+ * {@code _authenticate}. The result of {@code _authenticate} then names the selected framing. If
+ * it is {@link #FRAMING_MSGPACK}, all following requests and responses are MessagePack encoded and
+ * each is preceded by its length as a 4 byte big-endian integer. Byte array results are sent as
+ * MessagePack binary instead of Base64 strings. Binary framing is only offered by the
+ * thread-per-connection transport. In selector mode {@code _authenticate} answers
+ * {@link #FRAMING_JSON}.
+ * 
  * @author Damon Kohler (damonkohler@gmail.com)
  */
-public class JsonRpcServer extends SimpleServer {
+public class JsonRpcServer extends SimpleServer implements SimpleServer.LineHandlerFactory {
+
+  public static final String FRAMING_JSON = "json";
+  public static final String FRAMING_MSGPACK = "msgpack";
+
+  private static final Log.Logger LOG = Log.getLogger(JsonRpcServer.class);
+
+  private static final String AUTHENTICATE = "_authenticate";
+  private static final int READ_BUFFER_SIZE = 8192;
+  private static final int RESPONSE_BUFFER_SIZE = 8192;
+  private static final int MAX_RETAINED_RESPONSE_BUFFER_SIZE = 256 * 1024;
+  private static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
 
   private final RpcReceiverManagerFactory mRpcReceiverManagerFactory;
   private final String mHandshake;
@@ -64,56 +90,410 @@ public class JsonRpcServer extends SimpleServer {
 
   @Override
   protected void handleConnection(Socket socket) throws Exception {
-    RpcReceiverManager receiverManager = mRpcReceiverManagerFactory.create();
-    BufferedReader reader =
-        new BufferedReader(new InputStreamReader(socket.getInputStream()), 8192);
-    PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
-    boolean passedAuthentication = false;
-    String data;
-    while ((data = reader.readLine()) != null) {
-      Log.v("Received: " + data);
-      JSONObject request = new JSONObject(data);
+    Session session = new Session(true);
+    try {
+      ConnectionReader reader = new ConnectionReader(socket.getInputStream());
+      OutputStream out = new BufferedOutputStream(socket.getOutputStream(), RESPONSE_BUFFER_SIZE);
+      PrintWriter writer = new PrintWriter(new OutputStreamWriter(out), false);
+      String data;
+      while ((data = reader.readLine()) != null) {
+        session.handleLine(data, writer);
+        if (session.isBinary()) {
+          writer.flush();
+          handleFrames(session, reader, out);
+          return;
+        }
+        // Clients may pipeline requests. Only flush once all requests that have already arrived
+        // have been answered.
+        if (!reader.ready()) {
+          writer.flush();
+        }
+      }
+    } finally {
+      session.close();
+    }
+  }
+
+  private void handleFrames(Session session, ConnectionReader reader, OutputStream out)
+      throws Exception {
+    byte[] frame;
+    while ((frame = reader.readFrame()) != null) {
+      session.handleFrame(frame, out);
+      if (!reader.ready()) {
+        out.flush();
+      }
+    }
+  }
+
+  @Override
+  public LineHandler createLineHandler() {
+    return new Session(false);
+  }
+
+  /**
+   * The state of a single client connection. Shared by the thread-per-connection and selector
+   * transports so that both enforce the same handshake.
+   * 
+   * <p>
+   * Each line holds either a single request object or a batch of request objects in a JSON array.
+   * A batch is answered with a single array holding the results in request order. Once binary
+   * framing has been negotiated, the same applies to each frame.
+   */
+  private class Session implements LineHandler {
+    private final RpcReceiverManager mmReceiverManager = mRpcReceiverManagerFactory.create();
+    private final boolean mmBinarySupported;
+    private boolean mmPassedAuthentication = false;
+    private boolean mmFailedAuthentication = false;
+    private boolean mmBinary = false;
+    // Responses are rendered here and then copied to the connection in chunks.
+    private StringBuilder mmResponse = new StringBuilder(RESPONSE_BUFFER_SIZE);
+    private final char[] mmChunk = new char[RESPONSE_BUFFER_SIZE];
+    private MessagePackSink mmBinaryResponse;
+    private final RpcStatistics.ConnectionStatistics mmStatistics =
+        RpcStatistics.getInstance().openConnection();
+
+    /**
+     * @param binarySupported
+     *          whether the transport can switch to binary framing
+     */
+    public Session(boolean binarySupported) {
+      mmBinarySupported = binarySupported;
+    }
+
+    /** Returns true once binary framing has been negotiated. */
+    public boolean isBinary() {
+      return mmBinary;
+    }
+
+    @Override
+    public void close() {
+      mmStatistics.close();
+    }
+
+    @Override
+    public void handleLine(String data, Writer writer) throws Exception {
+      if (Log.isLoggable(Log.VERBOSE)) {
+        LOG.v("Received: " + data);
+      }
+      // The line arrives decoded, so count what it took in UTF-8 on the wire.
+      mmStatistics.addBytesIn(MessagePackSink.getUtf8Length(data) + 1);
+      StringBuilder response = mmResponse;
+      response.setLength(0);
+      TextResponse textResponse = new TextResponse(response);
+      if (isBatch(data)) {
+        JSONArray requests = new JSONArray(data);
+        response.append('[');
+        for (int i = 0; i < requests.length() && !mmFailedAuthentication; i++) {
+          if (i > 0) {
+            response.append(',');
+          }
+          handleRequest(requests.getJSONObject(i), textResponse, true);
+        }
+        response.append(']');
+      } else {
+        handleRequest(new JSONObject(data), textResponse, false);
+      }
+      send(writer, response);
+      if (response.capacity() > MAX_RETAINED_RESPONSE_BUFFER_SIZE) {
+        // Don't hold on to the buffer of an unusually large result.
+        mmResponse = new StringBuilder(RESPONSE_BUFFER_SIZE);
+      }
+      if (mmFailedAuthentication) {
+        writer.flush();
+        shutdown();
+        throw new SecurityException("Authentication failed!");
+      }
+    }
+
+    public void handleFrame(byte[] frame, OutputStream out) throws Exception {
+      mmStatistics.addBytesIn(frame.length + 4);
+      Object data = MessagePackParser.parse(frame, 0, frame.length);
+      if (Log.isLoggable(Log.VERBOSE)) {
+        LOG.v("Received: " + data);
+      }
+      if (mmBinaryResponse == null) {
+        mmBinaryResponse = new MessagePackSink(RESPONSE_BUFFER_SIZE);
+      }
+      MessagePackSink response = mmBinaryResponse;
+      response.truncate(0);
+      BinaryResponse binaryResponse = new BinaryResponse(response);
+      if (data instanceof JSONArray) {
+        JSONArray requests = (JSONArray) data;
+        response.writeArrayHeader(requests.length());
+        for (int i = 0; i < requests.length(); i++) {
+          handleRequest(requests.getJSONObject(i), binaryResponse, true);
+        }
+      } else if (data instanceof JSONObject) {
+        handleRequest((JSONObject) data, binaryResponse, false);
+      } else {
+        throw new JSONException("Expected a request or a batch of requests.");
+      }
+      int size = response.size();
+      mmStatistics.addBytesOut(size + 4);
+      if (Log.isLoggable(Log.VERBOSE)) {
+        LOG.v("Sent: " + size + " bytes.");
+      }
+      out.write(size >>> 24);
+      out.write(size >>> 16);
+      out.write(size >>> 8);
+      out.write(size);
+      response.writeTo(out);
+      if (response.capacity() > MAX_RETAINED_RESPONSE_BUFFER_SIZE) {
+        mmBinaryResponse = null;
+      }
+    }
+
+    private void handleRequest(JSONObject request, Response response, boolean batch)
+        throws JSONException {
       int id = request.getInt("id");
       String method = request.getString("method");
       JSONArray params = request.getJSONArray("params");
 
       // First RPC must be _authenticate if a handshake was specified.
-      if (!passedAuthentication && mHandshake != null) {
-        if (!checkHandshake(method, params)) {
-          SecurityException exception = new SecurityException("Authentication failed!");
-          send(writer, JsonRpcResult.error(id, exception));
-          shutdown();
-          throw exception;
+      if (!mmPassedAuthentication && (mHandshake != null || method.equals(AUTHENTICATE))) {
+        if (mHandshake != null && !checkHandshake(method, params)) {
+          mmFailedAuthentication = true;
+          response.writeError(id, new SecurityException("Authentication failed!"));
+          return;
         }
-        passedAuthentication = true;
-        send(writer, JsonRpcResult.result(id, true));
-        continue;
+        mmPassedAuthentication = true;
+        response.writeResult(id, negotiateFraming(params, batch));
+        return;
       }
 
-      MethodDescriptor rpc = receiverManager.getMethodDescriptor(method);
+      MethodDescriptor rpc = mmReceiverManager.getMethodDescriptor(method);
       if (rpc == null) {
-        send(writer, JsonRpcResult.error(id, new RpcError("Unknown RPC.")));
-        continue;
+        response.writeError(id, new RpcError("Unknown RPC."));
+        return;
       }
+      mmStatistics.addRequest();
+      int start = response.mark();
+      long startTime = System.nanoTime();
       try {
-        send(writer, JsonRpcResult.result(id, rpc.invoke(receiverManager, params)));
+        response.writeResult(id, rpc.invoke(mmReceiverManager, params));
+        RpcStatistics.getInstance().getMethod(method).record(System.nanoTime() - startTime, false);
       } catch (Throwable t) {
-        Log.e("Invocation error.", t);
-        send(writer, JsonRpcResult.error(id, t));
+        RpcStatistics.getInstance().getMethod(method).record(System.nanoTime() - startTime, true);
+        LOG.e("Invocation error.", t);
+        // Discard whatever part of the result was already rendered.
+        response.reset(start);
+        response.writeError(id, t);
+      }
+    }
+
+    /**
+     * Selects the framing requested by the optional second parameter of {@code _authenticate}.
+     * Binary framing takes effect after the response to a request that is not part of a batch.
+     * 
+     * @return the selected framing, or true if the client did not ask for one
+     */
+    private Object negotiateFraming(JSONArray params, boolean batch) throws JSONException {
+      if (params.length() < 2) {
+        return true;
+      }
+      if (FRAMING_MSGPACK.equals(params.getString(1)) && mmBinarySupported && !batch) {
+        mmBinary = true;
+        return FRAMING_MSGPACK;
+      }
+      return FRAMING_JSON;
+    }
+
+    private void send(Writer writer, StringBuilder response) throws IOException {
+      if (Log.isLoggable(Log.VERBOSE)) {
+        LOG.v("Sent: " + response);
+      }
+      response.append('\n');
+      int length = response.length();
+      mmStatistics.addBytesOut(MessagePackSink.getUtf8Length(response));
+      for (int offset = 0; offset < length; offset += mmChunk.length) {
+        int count = Math.min(mmChunk.length, length - offset);
+        response.getChars(offset, offset + count, mmChunk, 0);
+        writer.write(mmChunk, 0, count);
+      }
+    }
+  }
+
+  /** Where a {@link Session} renders its responses. */
+  private interface Response {
+    /** Returns a position that {@link #reset(int)} can later return to. */
+    public int mark();
+
+    public void reset(int mark);
+
+    public void writeResult(int id, Object data) throws JSONException;
+
+    public void writeError(int id, Throwable t) throws JSONException;
+  }
+
+  private static class TextResponse implements Response {
+    private final StringBuilder mOut;
+
+    public TextResponse(StringBuilder out) {
+      mOut = out;
+    }
+
+    @Override
+    public int mark() {
+      return mOut.length();
+    }
+
+    @Override
+    public void reset(int mark) {
+      mOut.setLength(mark);
+    }
+
+    @Override
+    public void writeResult(int id, Object data) throws JSONException {
+      JsonRpcResult.writeResult(id, data, mOut);
+    }
+
+    @Override
+    public void writeError(int id, Throwable t) {
+      JsonRpcResult.writeError(id, t, mOut);
+    }
+  }
+
+  private static class BinaryResponse implements Response {
+    private final MessagePackSink mOut;
+
+    public BinaryResponse(MessagePackSink out) {
+      mOut = out;
+    }
+
+    @Override
+    public int mark() {
+      return mOut.size();
+    }
+
+    @Override
+    public void reset(int mark) {
+      mOut.truncate(mark);
+    }
+
+    @Override
+    public void writeResult(int id, Object data) throws JSONException {
+      JsonRpcResult.writeResult(id, data, mOut);
+    }
+
+    @Override
+    public void writeError(int id, Throwable t) throws JSONException {
+      JsonRpcResult.writeError(id, t, mOut);
+    }
+  }
+
+  /**
+   * Reads newline delimited lines and, once binary framing is negotiated, length prefixed frames
+   * from the same buffered stream.
+   */
+  private static class ConnectionReader {
+    private final InputStream mIn;
+    private final byte[] mBuffer = new byte[READ_BUFFER_SIZE];
+    private int mPosition = 0;
+    private int mLimit = 0;
+    private byte[] mLine = new byte[256];
+
+    public ConnectionReader(InputStream in) {
+      mIn = in;
+    }
+
+    /** Returns true if data can be read without blocking. */
+    public boolean ready() throws IOException {
+      return mPosition < mLimit || mIn.available() > 0;
+    }
+
+    /**
+     * Returns the next line without its terminating '\n' or "\r\n", or null at the end of the
+     * stream.
+     */
+    public String readLine() throws IOException {
+      int length = 0;
+      while (true) {
+        if (mPosition == mLimit && !fill()) {
+          if (length == 0) {
+            return null;
+          }
+          break;
+        }
+        int end = mPosition;
+        while (end < mLimit && mBuffer[end] != '\n') {
+          end++;
+        }
+        int count = end - mPosition;
+        if (length + count > mLine.length) {
+          byte[] line = new byte[Math.max(mLine.length * 2, length + count)];
+          System.arraycopy(mLine, 0, line, 0, length);
+          mLine = line;
+        }
+        System.arraycopy(mBuffer, mPosition, mLine, length, count);
+        length += count;
+        mPosition = end;
+        if (end < mLimit) {
+          mPosition++;
+          break;
+        }
+      }
+      if (length > 0 && mLine[length - 1] == '\r') {
+        length--;
+      }
+      return new String(mLine, 0, length, "UTF-8");
+    }
+
+    /** Returns the payload of the next frame, or null at the end of the stream. */
+    public byte[] readFrame() throws IOException {
+      if (mPosition == mLimit && !fill()) {
+        return null;
       }
+      byte[] header = new byte[4];
+      readFully(header);
+      int size =
+          ((header[0] & 0xff) << 24) | ((header[1] & 0xff) << 16) | ((header[2] & 0xff) << 8)
+              | (header[3] & 0xff);
+      if (size < 0 || size > MAX_FRAME_SIZE) {
+        throw new IOException("Invalid frame size " + size + ".");
+      }
+      byte[] frame = new byte[size];
+      readFully(frame);
+      return frame;
+    }
+
+    private void readFully(byte[] data) throws IOException {
+      int offset = 0;
+      while (offset < data.length) {
+        if (mPosition == mLimit && !fill()) {
+          throw new EOFException("Connection closed in the middle of a frame.");
+        }
+        int count = Math.min(data.length - offset, mLimit - mPosition);
+        System.arraycopy(mBuffer, mPosition, data, offset, count);
+        mPosition += count;
+        offset += count;
+      }
+    }
+
+    private boolean fill() throws IOException {
+      int count = mIn.read(mBuffer);
+      if (count <= 0) {
+        return false;
+      }
+      mPosition = 0;
+      mLimit = count;
+      return true;
     }
   }
 
+  private static boolean isBatch(String data) {
+    for (int i = 0; i < data.length(); i++) {
+      char c = data.charAt(i);
+      if (!Character.isWhitespace(c)) {
+        return c == '[';
+      }
+    }
+    return false;
+  }
+
   private boolean checkHandshake(String method, JSONArray params) throws JSONException {
     if (!method.equals("_authenticate") || !mHandshake.equals(params.getString(0))) {
       return false;
     }
     return true;
   }
-
-  private void send(PrintWriter writer, JSONObject result) {
-    writer.write(result + "\n");
-    writer.flush();
-    Log.v("Sent: " + result);
-  }
 }
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.android_scripting.jsonrpc;
+
+import org.json.JSONException;
+
+/**
+ * Converts values of a particular type to JSON. Serializers are registered with
+ * {@link JsonBuilder#registerSerializer(Class, JsonSerializer)}.
+ *
+ * @param <T>
+ *          the type of values this serializer converts
+ */
+public interface JsonSerializer<T> {
+  /**
+   * Writes {@code value} to {@code sink} as exactly one JSON value. Nested values should be written
+   * with {@link JsonBuilder#write(Object, JsonSink)}.
+   */
+  public void write(T value, JsonSink sink) throws JSONException;
+}
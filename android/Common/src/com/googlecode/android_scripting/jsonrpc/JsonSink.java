@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.android_scripting.jsonrpc;
+
+import org.json.JSONException;
+
+/**
+ * Receives the structure of a JSON value as it is produced by {@link JsonBuilder}.
+ *
+ * <p>
+ * Implementations follow the semantics of {@link org.json.JSONObject#put(String, Object)}: a
+ * {@code null} value (as opposed to {@link org.json.JSONObject#NULL}) following a {@link #key}
+ * omits the member entirely.
+ */
+public interface JsonSink {
+
+  public void beginObject() throws JSONException;
+
+  public void endObject() throws JSONException;
+
+  public void beginArray() throws JSONException;
+
+  public void endArray() throws JSONException;
+
+  /** Names the next value of the current object. */
+  public void key(String name) throws JSONException;
+
+  /**
+   * Adds a {@link String}, {@link Number}, {@link Boolean}, {@link org.json.JSONObject#NULL},
+   * {@link org.json.JSONObject} or {@link org.json.JSONArray}. Any other object is added as its
+   * string representation.
+   */
+  public void value(Object value) throws JSONException;
+
+  /**
+   * Adds binary data. Text formats add it as a Base64 string, binary formats add the raw bytes.
+   */
+  public void binary(byte[] data) throws JSONException;
+}
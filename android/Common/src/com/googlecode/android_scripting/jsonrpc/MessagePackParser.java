@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.android_scripting.jsonrpc;
+
+import java.io.UnsupportedEncodingException;
+
+import org.apache.commons.codec.binary.Base64Codec;
+import org.apache.commons.codec.binary.StringUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Decodes a MessagePack value into the objects {@link JSONObject} and {@link JSONArray} hold, so
+ * that requests can be handled the same way regardless of their encoding.
+ *
+ * <p>
+ * Binary values are converted to Base64 strings, which is what RPCs taking binary data expect.
+ * Extension types are not supported.
+ */
+class MessagePackParser {
+
+  private final byte[] mData;
+  private final int mLimit;
+  private int mPosition;
+
+  private MessagePackParser(byte[] data, int offset, int length) {
+    mData = data;
+    mPosition = offset;
+    mLimit = offset + length;
+  }
+
+  /** Decodes the single value held in {@code length} bytes of {@code data}. */
+  static Object parse(byte[] data, int offset, int length) throws JSONException {
+    MessagePackParser parser = new MessagePackParser(data, offset, length);
+    Object value = parser.readValue();
+    if (parser.mPosition != parser.mLimit) {
+      throw new JSONException("Trailing data after MessagePack value.");
+    }
+    return value;
+  }
+
+  private Object readValue() throws JSONException {
+    int type = readByte();
+    if (type <= 0x7f) {
+      return type;
+    }
+    if (type >= 0xe0) {
+      return (int) (byte) type;
+    }
+    if (type <= 0x8f) {
+      return readMap(type & 0x0f);
+    }
+    if (type <= 0x9f) {
+      return readArray(type & 0x0f);
+    }
+    if (type <= 0xbf) {
+      return readString(type & 0x1f);
+    }
+    switch (type) {
+    case 0xc0:
+      return JSONObject.NULL;
+    case 0xc2:
+      return false;
+    case 0xc3:
+      return true;
+    case 0xc4:
+      return readBinary(readByte());
+    case 0xc5:
+      return readBinary(readShort());
+    case 0xc6:
+      return readBinary(readLength());
+    case 0xca:
+      return (double) Float.intBitsToFloat(readInt());
+    case 0xcb:
+      return Double.longBitsToDouble(readLong());
+    case 0xcc:
+      return readByte();
+    case 0xcd:
+      return readShort();
+    case 0xce:
+      return toNumber(readInt() & 0xffffffffL);
+    case 0xcf:
+      long unsigned = readLong();
+      if (unsigned < 0) {
+        throw new JSONException("Integer out of range.");
+      }
+      return toNumber(unsigned);
+    case 0xd0:
+      return (int) (byte) readByte();
+    case 0xd1:
+      return (int) (short) readShort();
+    case 0xd2:
+      return readInt();
+    case 0xd3:
+      return toNumber(readLong());
+    case 0xd9:
+      return readString(readByte());
+    case 0xda:
+      return readString(readShort());
+    case 0xdb:
+      return readString(readLength());
+    case 0xdc:
+      return readArray(readShort());
+    case 0xdd:
+      return readArray(readLength());
+    case 0xde:
+      return readMap(readShort());
+    case 0xdf:
+      return readMap(readLength());
+    default:
+      throw new JSONException(String.format("Unsupported MessagePack type 0x%02x.", type));
+    }
+  }
+
+  private JSONObject readMap(int size) throws JSONException {
+    JSONObject object = new JSONObject();
+    for (int i = 0; i < size; i++) {
+      Object key = readValue();
+      if (!(key instanceof String)) {
+        throw new JSONException("Map keys must be strings.");
+      }
+      object.put((String) key, readValue());
+    }
+    return object;
+  }
+
+  private JSONArray readArray(int size) throws JSONException {
+    JSONArray array = new JSONArray();
+    for (int i = 0; i < size; i++) {
+      array.put(readValue());
+    }
+    return array;
+  }
+
+  private String readString(int length) throws JSONException {
+    require(length);
+    String value;
+    try {
+      value = new String(mData, mPosition, length, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+    mPosition += length;
+    return value;
+  }
+
+  private String readBinary(int length) throws JSONException {
+    require(length);
+    byte[] data = new byte[length];
+    System.arraycopy(mData, mPosition, data, 0, length);
+    mPosition += length;
+    return StringUtils.newStringUtf8(Base64Codec.encodeBase64(data));
+  }
+
+  private static Number toNumber(long value) {
+    if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+      return (int) value;
+    }
+    return value;
+  }
+
+  private int readByte() throws JSONException {
+    require(1);
+    return mData[mPosition++] & 0xff;
+  }
+
+  private int readShort() throws JSONException {
+    return (readByte() << 8) | readByte();
+  }
+
+  private int readInt() throws JSONException {
+    return (readShort() << 16) | readShort();
+  }
+
+  private long readLong() throws JSONException {
+    return ((long) readInt() << 32) | (readInt() & 0xffffffffL);
+  }
+
+  /** Reads a 32 bit length. */
+  private int readLength() throws JSONException {
+    int length = readInt();
+    if (length < 0) {
+      throw new JSONException("Length out of range.");
+    }
+    return length;
+  }
+
+  private void require(int count) throws JSONException {
+    if (count > mLimit - mPosition) {
+      throw new JSONException("Truncated MessagePack value.");
+    }
+  }
+}
@@ -0,0 +1,383 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.android_scripting.jsonrpc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Encodes values as MessagePack (http://msgpack.org/) into a growable buffer. Byte arrays are
+ * written as raw binary instead of Base64 strings.
+ *
+ * <p>
+ * The size of a map or an array is not known when it is started, so its header is patched once it
+ * ends. Any number of top level values may be written one after another.
+ */
+class MessagePackSink implements JsonSink {
+
+  private static final int INITIAL_DEPTH = 16;
+
+  private byte[] mBuffer;
+  private int mSize = 0;
+
+  // The header position and element count of each open container.
+  private int[] mHeaders = new int[INITIAL_DEPTH];
+  private int[] mCounts = new int[INITIAL_DEPTH];
+  private int mDepth = 0;
+  private String mKey;
+
+  MessagePackSink(int capacity) {
+    mBuffer = new byte[capacity];
+  }
+
+  /** Returns the number of bytes written so far. */
+  int size() {
+    return mSize;
+  }
+
+  int capacity() {
+    return mBuffer.length;
+  }
+
+  /**
+   * Discards everything written after the first {@code size} bytes, including the state of any
+   * open containers.
+   */
+  void truncate(int size) {
+    mSize = size;
+    mDepth = 0;
+    mKey = null;
+  }
+
+  void writeTo(OutputStream out) throws IOException {
+    out.write(mBuffer, 0, mSize);
+  }
+
+  /** Starts a top level array with a known number of elements. */
+  void writeArrayHeader(int count) {
+    writeHeader(count, 0x90, 0xdc, 0xdd);
+  }
+
+  @Override
+  public void beginObject() {
+    beforeValue();
+    push(0xdf);
+  }
+
+  @Override
+  public void endObject() {
+    pop(0x80, 0xde);
+  }
+
+  @Override
+  public void beginArray() {
+    beforeValue();
+    push(0xdd);
+  }
+
+  @Override
+  public void endArray() {
+    pop(0x90, 0xdc);
+  }
+
+  @Override
+  public void key(String name) throws JSONException {
+    if (name == null) {
+      throw new JSONException("Names must be non-null");
+    }
+    mKey = name;
+  }
+
+  @Override
+  public void value(Object value) throws JSONException {
+    if (value == null && mKey != null) {
+      // Like JSONObject.put(), omit the member.
+      mKey = null;
+      return;
+    }
+    beforeValue();
+    writeValue(value);
+  }
+
+  @Override
+  public void binary(byte[] data) {
+    beforeValue();
+    writeBinary(data);
+  }
+
+  private void writeValue(Object value) throws JSONException {
+    if (value == null || value == JSONObject.NULL) {
+      writeByte(0xc0);
+    } else if (value instanceof Boolean) {
+      writeByte((Boolean) value ? 0xc3 : 0xc2);
+    } else if (value instanceof Integer || value instanceof Long || value instanceof Short
+        || value instanceof Byte) {
+      writeInteger(((Number) value).longValue());
+    } else if (value instanceof Float) {
+      ensureCapacity(5);
+      mBuffer[mSize++] = (byte) 0xca;
+      writeInt(Float.floatToIntBits((Float) value));
+    } else if (value instanceof Number) {
+      ensureCapacity(9);
+      mBuffer[mSize++] = (byte) 0xcb;
+      writeLong(Double.doubleToLongBits(((Number) value).doubleValue()));
+    } else if (value instanceof String) {
+      writeString((String) value);
+    } else if (value instanceof byte[]) {
+      writeBinary((byte[]) value);
+    } else if (value instanceof JSONObject) {
+      JSONObject object = (JSONObject) value;
+      writeHeader(object.length(), 0x80, 0xde, 0xdf);
+      Iterator<?> keys = object.keys();
+      while (keys.hasNext()) {
+        String key = (String) keys.next();
+        writeString(key);
+        writeValue(object.get(key));
+      }
+    } else if (value instanceof JSONArray) {
+      JSONArray array = (JSONArray) value;
+      int length = array.length();
+      writeHeader(length, 0x90, 0xdc, 0xdd);
+      for (int i = 0; i < length; i++) {
+        writeValue(array.get(i));
+      }
+    } else {
+      writeString(value.toString());
+    }
+  }
+
+  private void beforeValue() {
+    if (mDepth > 0) {
+      mCounts[mDepth - 1]++;
+      if (mKey != null) {
+        writeString(mKey);
+        mKey = null;
+      }
+    }
+  }
+
+  private void push(int header32) {
+    if (mDepth == mHeaders.length) {
+      int[] headers = new int[mDepth * 2];
+      System.arraycopy(mHeaders, 0, headers, 0, mDepth);
+      mHeaders = headers;
+      int[] counts = new int[mDepth * 2];
+      System.arraycopy(mCounts, 0, counts, 0, mDepth);
+      mCounts = counts;
+    }
+    mHeaders[mDepth] = mSize;
+    mCounts[mDepth] = 0;
+    mDepth++;
+    // Reserve room for the largest header.
+    ensureCapacity(5);
+    mBuffer[mSize] = (byte) header32;
+    mSize += 5;
+  }
+
+  private void pop(int fixHeader, int header16) {
+    mDepth--;
+    int header = mHeaders[mDepth];
+    int count = mCounts[mDepth];
+    int bodyStart = header + 5;
+    int headerSize;
+    if (count < 16) {
+      mBuffer[header] = (byte) (fixHeader | count);
+      headerSize = 1;
+    } else if (count < 0x10000) {
+      mBuffer[header] = (byte) header16;
+      mBuffer[header + 1] = (byte) (count >> 8);
+      mBuffer[header + 2] = (byte) count;
+      headerSize = 3;
+    } else {
+      putInt(header + 1, count);
+      return;
+    }
+    // Close the gap left by the reserved header.
+    System.arraycopy(mBuffer, bodyStart, mBuffer, header + headerSize, mSize - bodyStart);
+    mSize -= 5 - headerSize;
+  }
+
+  private void writeHeader(int count, int fixHeader, int header16, int header32) {
+    ensureCapacity(5);
+    if (count < 16) {
+      mBuffer[mSize++] = (byte) (fixHeader | count);
+    } else if (count < 0x10000) {
+      mBuffer[mSize++] = (byte) header16;
+      mBuffer[mSize++] = (byte) (count >> 8);
+      mBuffer[mSize++] = (byte) count;
+    } else {
+      mBuffer[mSize++] = (byte) header32;
+      writeInt(count);
+    }
+  }
+
+  private void writeInteger(long value) {
+    ensureCapacity(9);
+    if (value >= 0) {
+      if (value < 0x80) {
+        mBuffer[mSize++] = (byte) value;
+      } else if (value < 0x100) {
+        mBuffer[mSize++] = (byte) 0xcc;
+        mBuffer[mSize++] = (byte) value;
+      } else if (value < 0x10000) {
+        mBuffer[mSize++] = (byte) 0xcd;
+        mBuffer[mSize++] = (byte) (value >> 8);
+        mBuffer[mSize++] = (byte) value;
+      } else if (value < 0x100000000L) {
+        mBuffer[mSize++] = (byte) 0xce;
+        writeInt((int) value);
+      } else {
+        mBuffer[mSize++] = (byte) 0xcf;
+        writeLong(value);
+      }
+    } else if (value >= -32) {
+      mBuffer[mSize++] = (byte) value;
+    } else if (value >= Byte.MIN_VALUE) {
+      mBuffer[mSize++] = (byte) 0xd0;
+      mBuffer[mSize++] = (byte) value;
+    } else if (value >= Short.MIN_VALUE) {
+      mBuffer[mSize++] = (byte) 0xd1;
+      mBuffer[mSize++] = (byte) (value >> 8);
+      mBuffer[mSize++] = (byte) value;
+    } else if (value >= Integer.MIN_VALUE) {
+      mBuffer[mSize++] = (byte) 0xd2;
+      writeInt((int) value);
+    } else {
+      mBuffer[mSize++] = (byte) 0xd3;
+      writeLong(value);
+    }
+  }
+
+  /** Returns the number of bytes {@code value} takes in UTF-8. */
+  static int getUtf8Length(CharSequence value) {
+    int length = value.length();
+    int encodedLength = 0;
+    for (int i = 0; i < length; i++) {
+      char c = value.charAt(i);
+      if (c < 0x80) {
+        encodedLength++;
+      } else if (c < 0x800) {
+        encodedLength += 2;
+      } else if (Character.isHighSurrogate(c) && i + 1 < length
+          && Character.isLowSurrogate(value.charAt(i + 1))) {
+        encodedLength += 4;
+        i++;
+      } else if (isSurrogate(c)) {
+        encodedLength++;
+      } else {
+        encodedLength += 3;
+      }
+    }
+    return encodedLength;
+  }
+
+  private void writeString(String value) {
+    int length = value.length();
+    int encodedLength = getUtf8Length(value);
+    // str8 is not understood by older decoders, so longer strings start at str16.
+    if (encodedLength < 32) {
+      writeByte(0xa0 | encodedLength);
+    } else {
+      writeHeader(encodedLength, 0xa0, 0xda, 0xdb);
+    }
+    ensureCapacity(encodedLength);
+    byte[] buffer = mBuffer;
+    int position = mSize;
+    for (int i = 0; i < length; i++) {
+      char c = value.charAt(i);
+      if (c < 0x80) {
+        buffer[position++] = (byte) c;
+      } else if (c < 0x800) {
+        buffer[position++] = (byte) (0xc0 | (c >> 6));
+        buffer[position++] = (byte) (0x80 | (c & 0x3f));
+      } else if (Character.isHighSurrogate(c) && i + 1 < length
+          && Character.isLowSurrogate(value.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, value.charAt(++i));
+        buffer[position++] = (byte) (0xf0 | (codePoint >> 18));
+        buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+        buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+        buffer[position++] = (byte) (0x80 | (codePoint & 0x3f));
+      } else if (isSurrogate(c)) {
+        // Unpaired surrogates are replaced like String.getBytes() does.
+        buffer[position++] = (byte) '?';
+      } else {
+        buffer[position++] = (byte) (0xe0 | (c >> 12));
+        buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        buffer[position++] = (byte) (0x80 | (c & 0x3f));
+      }
+    }
+    mSize = position;
+  }
+
+  private static boolean isSurrogate(char c) {
+    return c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE;
+  }
+
+  private void writeBinary(byte[] data) {
+    int length = data.length;
+    ensureCapacity(5 + length);
+    if (length < 0x100) {
+      mBuffer[mSize++] = (byte) 0xc4;
+      mBuffer[mSize++] = (byte) length;
+    } else if (length < 0x10000) {
+      mBuffer[mSize++] = (byte) 0xc5;
+      mBuffer[mSize++] = (byte) (length >> 8);
+      mBuffer[mSize++] = (byte) length;
+    } else {
+      mBuffer[mSize++] = (byte) 0xc6;
+      writeInt(length);
+    }
+    System.arraycopy(data, 0, mBuffer, mSize, length);
+    mSize += length;
+  }
+
+  private void writeByte(int value) {
+    ensureCapacity(1);
+    mBuffer[mSize++] = (byte) value;
+  }
+
+  private void writeInt(int value) {
+    ensureCapacity(4);
+    putInt(mSize, value);
+    mSize += 4;
+  }
+
+  private void writeLong(long value) {
+    writeInt((int) (value >> 32));
+    writeInt((int) value);
+  }
+
+  private void putInt(int position, int value) {
+    mBuffer[position] = (byte) (value >> 24);
+    mBuffer[position + 1] = (byte) (value >> 16);
+    mBuffer[position + 2] = (byte) (value >> 8);
+    mBuffer[position + 3] = (byte) value;
+  }
+
+  private void ensureCapacity(int count) {
+    if (mSize + count > mBuffer.length) {
+      byte[] buffer = new byte[Math.max(mBuffer.length * 2, mSize + count)];
+      System.arraycopy(mBuffer, 0, buffer, 0, mSize);
+      mBuffer = buffer;
+    }
+  }
+}
@@ -27,35 +27,37 @@ import java.util.Map;
 
 public abstract class RpcReceiverManager {
 
-  private final Map<Class<? extends RpcReceiver>, RpcReceiver> mReceivers;
+  private final RpcRegistry mRegistry;
 
-  /**
-   * A map of strings to known RPCs.
-   */
-  private final Map<String, MethodDescriptor> mKnownRpcs = new HashMap<String, MethodDescriptor>();
+  /** Receiver instances, created lazily and indexed like {@link RpcRegistry#indexOf(Class)}. */
+  private final RpcReceiver[] mReceivers;
+
+  /** Receivers requested via {@link #getReceiver(Class)} that are not part of the registry. */
+  private Map<Class<? extends RpcReceiver>, RpcReceiver> mUnregisteredReceivers;
 
   public RpcReceiverManager(Collection<Class<? extends RpcReceiver>> classList) {
-    mReceivers = new HashMap<Class<? extends RpcReceiver>, RpcReceiver>();
-    for (Class<? extends RpcReceiver> receiverClass : classList) {
-      mReceivers.put(receiverClass, null);
-      Collection<MethodDescriptor> methodList = MethodDescriptor.collectFrom(receiverClass);
-      for (MethodDescriptor m : methodList) {
-        if (mKnownRpcs.containsKey(m.getName())) {
-          // We already know an RPC of the same name. We don't catch this anywhere because this is a
-          // programming error.
-          throw new RuntimeException("An RPC with the name " + m.getName() + " is already known.");
-        }
-        mKnownRpcs.put(m.getName(), m);
-      }
-    }
+    this(RpcRegistry.forClasses(classList));
+  }
+
+  public RpcReceiverManager(RpcRegistry registry) {
+    mRegistry = registry;
+    mReceivers = new RpcReceiver[registry.getReceiverCount()];
   }
 
   public Collection<Class<? extends RpcReceiver>> getRpcReceiverClasses() {
-    return mReceivers.keySet();
+    return mRegistry.getReceiverClasses();
   }
 
   private RpcReceiver get(Class<? extends RpcReceiver> clazz) {
-    RpcReceiver object = mReceivers.get(clazz);
+    int index = mRegistry.indexOf(clazz);
+    RpcReceiver object;
+    if (index >= 0) {
+      object = mReceivers[index];
+    } else if (mUnregisteredReceivers != null) {
+      object = mUnregisteredReceivers.get(clazz);
+    } else {
+      object = null;
+    }
     if (object != null) {
       return object;
     }
@@ -64,7 +66,14 @@ public abstract class RpcReceiverManager {
     try {
       constructor = clazz.getConstructor(getClass());
       object = constructor.newInstance(this);
-      mReceivers.put(clazz, object);
+      if (index >= 0) {
+        mReceivers[index] = object;
+      } else {
+        if (mUnregisteredReceivers == null) {
+          mUnregisteredReceivers = new HashMap<Class<? extends RpcReceiver>, RpcReceiver>();
+        }
+        mUnregisteredReceivers.put(clazz, object);
+      }
     } catch (Exception e) {
       Log.e(e);
     }
@@ -78,7 +87,7 @@ public abstract class RpcReceiverManager {
   }
 
   public MethodDescriptor getMethodDescriptor(String methodName) {
-    return mKnownRpcs.get(methodName);
+    return mRegistry.getMethodDescriptor(methodName);
   }
 
   public Object invoke(Class<? extends RpcReceiver> clazz, Method method, Object[] args)
@@ -88,10 +97,15 @@ public abstract class RpcReceiverManager {
   }
 
   public void shutdown() {
-    for (RpcReceiver receiver : mReceivers.values()) {
+    for (RpcReceiver receiver : mReceivers) {
       if (receiver != null) {
         receiver.shutdown();
       }
     }
+    if (mUnregisteredReceivers != null) {
+      for (RpcReceiver receiver : mUnregisteredReceivers.values()) {
+        receiver.shutdown();
+      }
+    }
   }
 }
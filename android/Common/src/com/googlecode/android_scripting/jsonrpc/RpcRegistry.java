@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.android_scripting.jsonrpc;
+
+import com.googlecode.android_scripting.rpc.MethodDescriptor;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable index of the RPCs offered by a set of {@link RpcReceiver} classes.
+ *
+ * <p>
+ * Collecting the {@link MethodDescriptor}s of a receiver class requires a reflective scan of all of
+ * its methods. Registries are therefore cached per set of receiver classes and shared by all
+ * {@link RpcReceiverManager}s, which only have to allocate their table of receiver instances.
+ */
+public final class RpcRegistry {
+
+  private static final Map<Set<Class<? extends RpcReceiver>>, RpcRegistry> sRegistries =
+      new HashMap<Set<Class<? extends RpcReceiver>>, RpcRegistry>();
+
+  private final List<Class<? extends RpcReceiver>> mReceiverClasses;
+  private final Map<Class<? extends RpcReceiver>, Integer> mReceiverIndices;
+  private final Map<String, MethodDescriptor> mKnownRpcs;
+
+  private RpcRegistry(Collection<Class<? extends RpcReceiver>> classList) {
+    List<Class<? extends RpcReceiver>> receiverClasses =
+        new ArrayList<Class<? extends RpcReceiver>>(classList.size());
+    mReceiverIndices = new HashMap<Class<? extends RpcReceiver>, Integer>();
+    Map<String, MethodDescriptor> knownRpcs = new HashMap<String, MethodDescriptor>();
+    for (Class<? extends RpcReceiver> receiverClass : classList) {
+      if (mReceiverIndices.containsKey(receiverClass)) {
+        continue;
+      }
+      mReceiverIndices.put(receiverClass, receiverClasses.size());
+      receiverClasses.add(receiverClass);
+      for (MethodDescriptor m : MethodDescriptor.collectFrom(receiverClass)) {
+        if (knownRpcs.containsKey(m.getName())) {
+          // We already know an RPC of the same name. We don't catch this anywhere because this is a
+          // programming error.
+          throw new RuntimeException("An RPC with the name " + m.getName() + " is already known.");
+        }
+        knownRpcs.put(m.getName(), m);
+      }
+    }
+    mReceiverClasses = Collections.unmodifiableList(receiverClasses);
+    mKnownRpcs = Collections.unmodifiableMap(knownRpcs);
+  }
+
+  /**
+   * Returns the shared registry for the given receiver classes, building it on first use.
+   */
+  public static RpcRegistry forClasses(Collection<Class<? extends RpcReceiver>> classList) {
+    Set<Class<? extends RpcReceiver>> key = new HashSet<Class<? extends RpcReceiver>>(classList);
+    synchronized (sRegistries) {
+      RpcRegistry registry = sRegistries.get(key);
+      if (registry == null) {
+        registry = new RpcRegistry(key);
+        sRegistries.put(key, registry);
+      }
+      return registry;
+    }
+  }
+
+  /** Builds a new registry without consulting or populating the shared cache. */
+  public static RpcRegistry build(Collection<Class<? extends RpcReceiver>> classList) {
+    return new RpcRegistry(classList);
+  }
+
+  /** Returns the number of receiver classes in this registry. */
+  public int getReceiverCount() {
+    return mReceiverClasses.size();
+  }
+
+  /** Returns the receiver classes in index order. */
+  public List<Class<? extends RpcReceiver>> getReceiverClasses() {
+    return mReceiverClasses;
+  }
+
+  /** Returns the index of the receiver class or -1 if it is not part of this registry. */
+  public int indexOf(Class<? extends RpcReceiver> clazz) {
+    Integer index = mReceiverIndices.get(clazz);
+    return index == null ? -1 : index;
+  }
+
+  public MethodDescriptor getMethodDescriptor(String methodName) {
+    return mKnownRpcs.get(methodName);
+  }
+
+  /** Returns all known RPCs keyed by name. */
+  public Map<String, MethodDescriptor> getMethodDescriptors() {
+    return mKnownRpcs;
+  }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.android_scripting.jsonrpc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the RPCs served by all {@link JsonRpcServer}s of the process: calls, errors and a latency
+ * histogram per method, and the bytes transferred per connection.
+ *
+ * <p>
+ * All updates are lock free. Latencies are measured from dispatch until the result is rendered,
+ * so they include serializing the result but not the transport.
+ */
+public class RpcStatistics {
+
+  private static final RpcStatistics sInstance = new RpcStatistics();
+
+  private final ConcurrentHashMap<String, MethodStatistics> mMethods =
+      new ConcurrentHashMap<String, MethodStatistics>();
+  private final Map<Integer, ConnectionStatistics> mConnections =
+      new ConcurrentHashMap<Integer, ConnectionStatistics>();
+  private final AtomicInteger mNextConnectionId = new AtomicInteger();
+  private final AtomicLong mClosedConnections = new AtomicLong();
+  private final AtomicLong mClosedBytesIn = new AtomicLong();
+  private final AtomicLong mClosedBytesOut = new AtomicLong();
+
+  /** Returns the statistics shared by all servers. */
+  public static RpcStatistics getInstance() {
+    return sInstance;
+  }
+
+  /**
+   * A histogram of durations in microseconds with fixed buckets. Each power of two is split into
+   * {@link #SUB_BUCKETS} buckets, so a recorded value is off by at most 1/{@value #SUB_BUCKETS}.
+   * Values of 2^({@value #MAX_EXPONENT} + 1) us (about 4.8 hours) and more are counted in the last
+   * bucket.
+   */
+  public static class Histogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    public static final int MAX_EXPONENT = 33;
+    private static final int BUCKETS = SUB_BUCKETS * (MAX_EXPONENT - SUB_BUCKET_BITS + 2);
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+
+    static int getBucket(long value) {
+      if (value < SUB_BUCKETS) {
+        return (int) Math.max(0, value);
+      }
+      int exponent = 63 - Long.numberOfLeadingZeros(value);
+      if (exponent > MAX_EXPONENT) {
+        return BUCKETS - 1;
+      }
+      int shift = exponent - SUB_BUCKET_BITS;
+      int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+      return SUB_BUCKETS * (shift + 1) + subBucket;
+    }
+
+    /** Returns the largest value counted in the bucket. */
+    static long getUpperBound(int bucket) {
+      if (bucket < SUB_BUCKETS) {
+        return bucket;
+      }
+      int shift = bucket / SUB_BUCKETS - 1;
+      long subBucket = bucket % SUB_BUCKETS;
+      return ((SUB_BUCKETS + subBucket + 1) << shift) - 1;
+    }
+
+    public void record(long value) {
+      mCounts.incrementAndGet(getBucket(value));
+    }
+
+    /**
+     * Returns the values at the given percentiles, each the upper bound of the bucket it falls in.
+     *
+     * @param percentiles
+     *          ascending percentiles between 0 and 100
+     */
+    public long[] getPercentiles(double... percentiles) {
+      long[] counts = new long[BUCKETS];
+      long total = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        counts[i] = mCounts.get(i);
+        total += counts[i];
+      }
+      long[] values = new long[percentiles.length];
+      if (total == 0) {
+        return values;
+      }
+      int bucket = 0;
+      long seen = counts[0];
+      for (int i = 0; i < percentiles.length; i++) {
+        long rank = Math.max(1, (long) Math.ceil(percentiles[i] / 100 * total));
+        while (seen < rank && bucket < BUCKETS - 1) {
+          seen += counts[++bucket];
+        }
+        values[i] = getUpperBound(bucket);
+      }
+      return values;
+    }
+  }
+
+  /** The calls of one RPC method. */
+  public static class MethodStatistics {
+    private final String mName;
+    private final AtomicLong mCalls = new AtomicLong();
+    private final AtomicLong mErrors = new AtomicLong();
+    private final AtomicLong mTotalNanos = new AtomicLong();
+    private final AtomicLong mMaxNanos = new AtomicLong();
+    private final Histogram mHistogram = new Histogram();
+
+    private MethodStatistics(String name) {
+      mName = name;
+    }
+
+    public void record(long nanos, boolean error) {
+      mCalls.incrementAndGet();
+      if (error) {
+        mErrors.incrementAndGet();
+      }
+      mTotalNanos.addAndGet(nanos);
+      long max;
+      do {
+        max = mMaxNanos.get();
+      } while (nanos > max && !mMaxNanos.compareAndSet(max, nanos));
+      mHistogram.record(nanos / 1000);
+    }
+
+    public String getName() {
+      return mName;
+    }
+
+    public long getCalls() {
+      return mCalls.get();
+    }
+
+    public long getErrors() {
+      return mErrors.get();
+    }
+
+    public long getTotalNanos() {
+      return mTotalNanos.get();
+    }
+
+    public long getMaxNanos() {
+      return mMaxNanos.get();
+    }
+
+    public Histogram getHistogram() {
+      return mHistogram;
+    }
+  }
+
+  /** The traffic of one client connection. Text framing is counted in characters. */
+  public static class ConnectionStatistics {
+    private final RpcStatistics mStatistics;
+    private final int mId;
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mBytesIn = new AtomicLong();
+    private final AtomicLong mBytesOut = new AtomicLong();
+
+    private ConnectionStatistics(RpcStatistics statistics, int id) {
+      mStatistics = statistics;
+      mId = id;
+    }
+
+    public void addRequest() {
+      mRequests.incrementAndGet();
+    }
+
+    public void addBytesIn(long count) {
+      mBytesIn.addAndGet(count);
+    }
+
+    public void addBytesOut(long count) {
+      mBytesOut.addAndGet(count);
+    }
+
+    public int getId() {
+      return mId;
+    }
+
+    public long getRequests() {
+      return mRequests.get();
+    }
+
+    public long getBytesIn() {
+      return mBytesIn.get();
+    }
+
+    public long getBytesOut() {
+      return mBytesOut.get();
+    }
+
+    /** Adds the traffic of the connection to the totals of closed connections. */
+    public void close() {
+      if (mStatistics.mConnections.remove(mId) != null) {
+        mStatistics.mClosedConnections.incrementAndGet();
+        mStatistics.mClosedBytesIn.addAndGet(mBytesIn.get());
+        mStatistics.mClosedBytesOut.addAndGet(mBytesOut.get());
+      }
+    }
+
+    private void reset() {
+      mRequests.set(0);
+      mBytesIn.set(0);
+      mBytesOut.set(0);
+    }
+  }
+
+  /** Returns the statistics of the method, creating them on first use. */
+  public MethodStatistics getMethod(String name) {
+    MethodStatistics method = mMethods.get(name);
+    if (method == null) {
+      method = new MethodStatistics(name);
+      MethodStatistics existing = mMethods.putIfAbsent(name, method);
+      if (existing != null) {
+        method = existing;
+      }
+    }
+    return method;
+  }
+
+  /** Returns new statistics for a connection. Call {@link ConnectionStatistics#close} when done. */
+  public ConnectionStatistics openConnection() {
+    ConnectionStatistics connection =
+        new ConnectionStatistics(this, mNextConnectionId.incrementAndGet());
+    mConnections.put(connection.getId(), connection);
+    return connection;
+  }
+
+  /** Returns the methods that were called, the ones that took the most time first. */
+  public List<MethodStatistics> getMethods() {
+    List<MethodStatistics> methods = new ArrayList<MethodStatistics>(mMethods.values());
+    Collections.sort(methods, new Comparator<MethodStatistics>() {
+      @Override
+      public int compare(MethodStatistics a, MethodStatistics b) {
+        long difference = b.getTotalNanos() - a.getTotalNanos();
+        return difference < 0 ? -1 : (difference > 0 ? 1 : a.getName().compareTo(b.getName()));
+      }
+    });
+    return methods;
+  }
+
+  /** Forgets all calls and the traffic of all connections. Open connections stay registered. */
+  public void reset() {
+    mMethods.clear();
+    for (ConnectionStatistics connection : mConnections.values()) {
+      connection.reset();
+    }
+    mClosedConnections.set(0);
+    mClosedBytesIn.set(0);
+    mClosedBytesOut.set(0);
+  }
+
+  /** Returns the statistics as maps and lists of numbers, durations in milliseconds. */
+  public Map<String, Object> toMap() {
+    Map<String, Object> methods = new HashMap<String, Object>();
+    for (MethodStatistics method : getMethods()) {
+      long[] percentiles = method.getHistogram().getPercentiles(50, 90, 99);
+      Map<String, Object> entry = new HashMap<String, Object>();
+      entry.put("calls", method.getCalls());
+      entry.put("errors", method.getErrors());
+      entry.put("totalMs", method.getTotalNanos() / 1e6);
+      entry.put("meanMs", method.getTotalNanos() / 1e6 / Math.max(1, method.getCalls()));
+      entry.put("p50Ms", percentiles[0] / 1e3);
+      entry.put("p90Ms", percentiles[1] / 1e3);
+      entry.put("p99Ms", percentiles[2] / 1e3);
+      entry.put("maxMs", method.getMaxNanos() / 1e6);
+      methods.put(method.getName(), entry);
+    }
+    List<Object> connections = new ArrayList<Object>();
+    for (ConnectionStatistics connection : mConnections.values()) {
+      Map<String, Object> entry = new HashMap<String, Object>();
+      entry.put("id", connection.getId());
+      entry.put("requests", connection.getRequests());
+      entry.put("bytesIn", connection.getBytesIn());
+      entry.put("bytesOut", connection.getBytesOut());
+      connections.add(entry);
+    }
+    Map<String, Object> closed = new HashMap<String, Object>();
+    closed.put("connections", mClosedConnections.get());
+    closed.put("bytesIn", mClosedBytesIn.get());
+    closed.put("bytesOut", mClosedBytesOut.get());
+    Map<String, Object> result = new HashMap<String, Object>();
+    result.put("methods", methods);
+    result.put("connections", connections);
+    result.put("closed", closed);
+    return result;
+  }
+
+  /** Returns the statistics as a text table, the methods that took the most time first. */
+  public String dump() {
+    StringBuilder out = new StringBuilder();
+    out.append(String.format("%-32s %8s %6s %10s %8s %8s %8s %8s %8s\n", "method", "calls",
+        "errors", "total ms", "mean ms", "p50 ms", "p90 ms", "p99 ms", "max ms"));
+    for (MethodStatistics method : getMethods()) {
+      long[] percentiles = method.getHistogram().getPercentiles(50, 90, 99);
+      out.append(String.format("%-32s %8d %6d %10.1f %8.2f %8.2f %8.2f %8.2f %8.2f\n", method
+          .getName(), method.getCalls(), method.getErrors(), method.getTotalNanos() / 1e6, method
+          .getTotalNanos()
+          / 1e6 / Math.max(1, method.getCalls()), percentiles[0] / 1e3, percentiles[1] / 1e3,
+          percentiles[2] / 1e3, method.getMaxNanos() / 1e6));
+    }
+    out.append(String.format("\n%-10s %10s %12s %12s\n", "connection", "requests", "bytes in",
+        "bytes out"));
+    for (ConnectionStatistics connection : mConnections.values()) {
+      out.append(String.format("%-10d %10d %12d %12d\n", connection.getId(), connection
+          .getRequests(), connection.getBytesIn(), connection.getBytesOut()));
+    }
+    out.append(String.format("%-10s %10s %12d %12d\n", mClosedConnections.get() + " closed", "",
+        mClosedBytesIn.get(), mClosedBytesOut.get()));
+    return out.toString();
+  }
+}
@@ -36,6 +36,16 @@ public class BeanShellLanguage extends Language {
     return rpcReceiver + " = Android();\n";
   }
 
+  @Override
+  public String getPrompt() {
+    return "bsh % ";
+  }
+
+  @Override
+  public String getRunScriptStatement(String path) {
+    return "try { source(" + getEscapedStringText(path) + "); } finally { exit(); }";
+  }
+
   @Override
   protected String getMethodCallText(String receiver, String method,
       ParameterDescriptor[] parameters) {
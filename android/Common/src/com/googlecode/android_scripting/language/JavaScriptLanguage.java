@@ -34,4 +34,21 @@ public class JavaScriptLanguage extends Language {
     return "var " + rpcReceiver + " = Android();\n";
   }
 
+  @Override
+  public String getStandardInputCommand() {
+    // Rhino only reads its standard input when "-" is given as the script, because the interpreter
+    // arguments include an -e expression.
+    return "-";
+  }
+
+  @Override
+  public String getPrompt() {
+    return "js> ";
+  }
+
+  @Override
+  public String getRunScriptStatement(String path) {
+    return "try { load(" + getEscapedStringText(path) + "); } finally { quit(); }";
+  }
+
 }
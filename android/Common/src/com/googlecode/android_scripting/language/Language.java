@@ -65,6 +65,31 @@ public class Language {
     return AUTO_CLOSE_MAP.get(token);
   }
 
+  /**
+   * Returns the command that makes the interpreter read statements from its standard input. It is
+   * used to start an interpreter before the script it will run is known.
+   */
+  public String getStandardInputCommand() {
+    return "";
+  }
+
+  /**
+   * Returns a single line that, typed into an interpreter reading its standard input, runs the
+   * script at the given path and then exits the interpreter. Returns {@code null} if the language
+   * does not support this, in which case each script needs an interpreter of its own.
+   */
+  public String getRunScriptStatement(String path) {
+    return null;
+  }
+
+  /**
+   * Returns the prompt the interpreter prints when it is ready for the next statement on its
+   * standard input, or {@code null} if it is not known.
+   */
+  public String getPrompt() {
+    return null;
+  }
+
   /** Returns the RPC call text with given parameter values. */
   public final String getRpcText(String content, MethodDescriptor rpc, String[] values) {
     return getMethodCallText(getRpcReceiverName(content), rpc.getName(),
@@ -161,6 +186,12 @@ public class Language {
     return getQuote() + value + getQuote();
   }
 
+  /** Returns the string quoted as a literal, with quotes and backslashes escaped. */
+  protected String getEscapedStringText(String value) {
+    String quote = getQuote();
+    return quote + value.replace("\\", "\\\\").replace(quote, "\\" + quote) + quote;
+  }
+
   /** Returns the boolean parameter value suitable for code generation. */
   protected String getBooleanValueText(String value) {
     if (value.equals(Boolean.TRUE.toString())) {
@@ -27,6 +27,7 @@ import com.googlecode.android_scripting.util.VisibleForTesting;
 
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
@@ -43,17 +44,90 @@ import org.json.JSONObject;
 /**
  * An adapter that wraps {@code Method}.
  * 
+ * <p>
+ * Everything that can be derived from the method's signature and annotations (parameter types,
+ * their conversions and default values) is resolved once at construction so that
+ * {@link #invoke(RpcReceiverManager, JSONArray)} only has to convert the arguments and make the
+ * call.
+ * 
  * @author igor.v.karp@gmail.com (Igor Karp)
  */
 public final class MethodDescriptor {
   private static final Map<Class<?>, Converter<?>> sConverters = populateConverters();
 
+  // How a JSON parameter is converted to the Java type of the method parameter.
+  private static final int CONVERT_CAST = 0;
+  private static final int CONVERT_BOOLEAN = 1;
+  private static final int CONVERT_LONG = 2;
+  private static final int CONVERT_DOUBLE = 3;
+  private static final int CONVERT_INTEGER = 4;
+  private static final int CONVERT_INTENT = 5;
+
   private final Method mMethod;
   private final Class<? extends RpcReceiver> mClass;
+  private final String mName;
+
+  // The call plan.
+  private final Type[] mParameterTypes;
+  private final Class<?>[] mParameterClasses;
+  private final int[] mConversions;
+  private final Annotation[][] mParameterAnnotations;
+  private final boolean[] mHasDefault;
+  // Defaults that can be shared between calls because they are immutable.
+  private final boolean[] mHasCachedDefault;
+  private final Object[] mDefaults;
 
   public MethodDescriptor(Class<? extends RpcReceiver> clazz, Method method) {
     mClass = clazz;
     mMethod = method;
+    if (method.isAnnotationPresent(RpcName.class)) {
+      mName = method.getAnnotation(RpcName.class).name();
+    } else {
+      mName = method.getName();
+    }
+    try {
+      // Skips the access check on every call.
+      method.setAccessible(true);
+    } catch (SecurityException e) {
+      // Fall back to checked invocation.
+    }
+
+    mParameterTypes = method.getGenericParameterTypes();
+    mParameterAnnotations = method.getParameterAnnotations();
+    int count = mParameterTypes.length;
+    mParameterClasses = new Class<?>[count];
+    mConversions = new int[count];
+    mHasDefault = new boolean[count];
+    mHasCachedDefault = new boolean[count];
+    mDefaults = new Object[count];
+    for (int i = 0; i < count; i++) {
+      mParameterClasses[i] = rawClassOf(mParameterTypes[i]);
+      mConversions[i] = conversionFor(mParameterTypes[i]);
+      mHasDefault[i] = hasDefaultValue(mParameterAnnotations[i]);
+      if (mHasDefault[i]) {
+        // Invalid defaults are only reported when they are actually needed, like before.
+        try {
+          Object value = getDefaultValue(mParameterTypes[i], mParameterAnnotations[i]);
+          if (isImmutable(value)) {
+            mDefaults[i] = value;
+            mHasCachedDefault[i] = true;
+          }
+        } catch (RuntimeException e) {
+          // Thrown again, freshly, by the calls that need the default.
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns true if value can be passed to any number of calls. Converters may return mutable
+   * objects, which a facade could modify.
+   */
+  private static boolean isImmutable(Object value) {
+    return value == null || value instanceof String || value instanceof Integer
+        || value instanceof Long || value instanceof Double || value instanceof Float
+        || value instanceof Boolean || value instanceof Short || value instanceof Byte
+        || value instanceof Character;
   }
 
   @Override
@@ -83,34 +157,32 @@ public final class MethodDescriptor {
    */
   public Object invoke(RpcReceiverManager manager, final JSONArray parameters) throws Throwable {
     // Issue track call first in case of failure.
-    Analytics.track("api", getName());
-
-    final Type[] parameterTypes = getGenericParameterTypes();
-    final Object[] args = new Object[parameterTypes.length];
-    final Annotation annotations[][] = getParameterAnnotations();
+    Analytics.track("api", mName);
 
-    if (parameters.length() > args.length) {
+    final int count = mConversions.length;
+    final int supplied = parameters.length();
+    if (supplied > count) {
       throw new RpcError("Too many parameters specified.");
     }
 
-    for (int i = 0; i < args.length; i++) {
-      final Type parameterType = parameterTypes[i];
-      if (i < parameters.length()) {
-        args[i] = convertParameter(parameters, i, parameterType);
-      } else if (MethodDescriptor.hasDefaultValue(annotations[i])) {
-        args[i] = MethodDescriptor.getDefaultValue(parameterType, annotations[i]);
+    final Object[] args = new Object[count];
+    for (int i = 0; i < count; i++) {
+      if (i < supplied) {
+        args[i] = convertParameter(parameters, i, mConversions[i], mParameterClasses[i]);
+      } else if (mHasCachedDefault[i]) {
+        args[i] = mDefaults[i];
+      } else if (mHasDefault[i]) {
+        args[i] = getDefaultValue(mParameterTypes[i], mParameterAnnotations[i]);
       } else {
         throw new RpcError("Argument " + (i + 1) + " is not present");
       }
     }
 
-    Object result = null;
     try {
-      result = manager.invoke(mClass, mMethod, args);
-    } catch (Throwable t) {
-      throw t.getCause();
+      return manager.invoke(mClass, mMethod, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
     }
-    return result;
   }
 
   /**
@@ -124,35 +196,64 @@ public final class MethodDescriptor {
   @VisibleForTesting
   static Object convertParameter(final JSONArray parameters, int index, Type type)
       throws JSONException, RpcError {
+    return convertParameter(parameters, index, conversionFor(type), rawClassOf(type));
+  }
+
+  private static Object convertParameter(final JSONArray parameters, int index, int conversion,
+      Class<?> clazz) throws JSONException, RpcError {
     try {
       // We must handle null and numbers explicitly because we cannot magically cast them. We
       // also need to convert implicitly from numbers to bools.
       if (parameters.isNull(index)) {
         return null;
-      } else if (type == Boolean.class) {
+      }
+      switch (conversion) {
+      case CONVERT_BOOLEAN:
         try {
           return parameters.getBoolean(index);
         } catch (JSONException e) {
           return new Boolean(parameters.getInt(index) != 0);
         }
-      } else if (type == Long.class) {
+      case CONVERT_LONG:
         return parameters.getLong(index);
-      } else if (type == Double.class) {
+      case CONVERT_DOUBLE:
         return parameters.getDouble(index);
-      } else if (type == Integer.class) {
+      case CONVERT_INTEGER:
         return parameters.getInt(index);
-      } else if (type == Intent.class) {
+      case CONVERT_INTENT:
         return buildIntent(parameters.getJSONObject(index));
-      } else {
+      default:
         // Magically cast the parameter to the right Java type.
-        return ((Class<?>) type).cast(parameters.get(index));
+        return clazz.cast(parameters.get(index));
       }
     } catch (ClassCastException e) {
-      throw new RpcError("Argument " + (index + 1) + " should be of type "
-          + ((Class<?>) type).getSimpleName() + ".");
+      throw new RpcError("Argument " + (index + 1) + " should be of type " + clazz.getSimpleName()
+          + ".");
     }
   }
 
+  private static int conversionFor(Type type) {
+    if (type == Boolean.class) {
+      return CONVERT_BOOLEAN;
+    } else if (type == Long.class) {
+      return CONVERT_LONG;
+    } else if (type == Double.class) {
+      return CONVERT_DOUBLE;
+    } else if (type == Integer.class) {
+      return CONVERT_INTEGER;
+    } else if (type == Intent.class) {
+      return CONVERT_INTENT;
+    }
+    return CONVERT_CAST;
+  }
+
+  private static Class<?> rawClassOf(Type type) {
+    if (type instanceof ParameterizedType) {
+      return (Class<?>) ((ParameterizedType) type).getRawType();
+    }
+    return (Class<?>) type;
+  }
+
   public static Object buildIntent(JSONObject jsonObject) throws JSONException {
     Intent intent = new Intent();
     if (jsonObject.has("action")) {
@@ -193,10 +294,7 @@ public final class MethodDescriptor {
   }
 
   public String getName() {
-    if (mMethod.isAnnotationPresent(RpcName.class)) {
-      return mMethod.getAnnotation(RpcName.class).name();
-    }
-    return mMethod.getName();
+    return mName;
   }
 
   public Type[] getGenericParameterTypes() {
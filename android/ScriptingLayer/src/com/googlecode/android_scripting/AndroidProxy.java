@@ -29,10 +29,16 @@ import java.util.UUID;
 
 public class AndroidProxy {
 
+  /**
+   * The number of worker threads kept to serve RPCs when the selector transport is used. More are
+   * started while RPCs block.
+   */
+  public static final int SELECTOR_WORKER_THREADS = 4;
+
   private InetSocketAddress mAddress;
   private final JsonRpcServer mJsonRpcServer;
   private final UUID mSecret;
-  private final RpcReceiverManagerFactory mFacadeManagerFactory;
+  private final FacadeManagerFactory mFacadeManagerFactory;
 
   /**
    * 
@@ -44,6 +50,23 @@ public class AndroidProxy {
    *          indicates whether RPC security protocol should be enabled.
    */
   public AndroidProxy(Service service, Intent intent, boolean requiresHandshake) {
+    this(service, intent, requiresHandshake, false);
+  }
+
+  /**
+   * 
+   * @param service
+   *          Android service (required to build facades).
+   * @param intent
+   *          the intent that launched the proxy/script.
+   * @param requiresHandshake
+   *          indicates whether RPC security protocol should be enabled.
+   * @param useSelector
+   *          serve all connections from a single selector thread and a pool of at least
+   *          {@link #SELECTOR_WORKER_THREADS} workers instead of one thread per connection.
+   */
+  public AndroidProxy(Service service, Intent intent, boolean requiresHandshake,
+      boolean useSelector) {
     if (requiresHandshake) {
       mSecret = UUID.randomUUID();
     } else {
@@ -53,6 +76,9 @@ public class AndroidProxy {
         new FacadeManagerFactory(FacadeConfiguration.getSdkLevel(), service, intent,
             FacadeConfiguration.getFacadeClasses());
     mJsonRpcServer = new JsonRpcServer(mFacadeManagerFactory, getSecret());
+    if (useSelector) {
+      mJsonRpcServer.setSelectorMode(SELECTOR_WORKER_THREADS);
+    }
   }
 
   public InetSocketAddress getAddress() {
@@ -88,6 +114,14 @@ public class AndroidProxy {
     return mSecret.toString();
   }
 
+  /**
+   * Sets the intent facades see as the one that launched the script. Connections made before the
+   * call keep the previous intent.
+   */
+  public void setIntent(Intent intent) {
+    mFacadeManagerFactory.setIntent(intent);
+  }
+
   public RpcReceiverManagerFactory getRpcReceiverManagerFactory() {
     return mFacadeManagerFactory;
   }
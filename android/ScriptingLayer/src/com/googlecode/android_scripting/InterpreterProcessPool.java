@@ -0,0 +1,482 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.android_scripting;
+
+import android.app.Service;
+import android.content.Intent;
+
+import com.googlecode.android_scripting.interpreter.Interpreter;
+import com.googlecode.android_scripting.interpreter.InterpreterConfiguration;
+import com.googlecode.android_scripting.language.Language;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps interpreters started ahead of the scripts they will run, so that launching a script does
+ * not have to wait for the interpreter to start. This matters most for interpreters that run in
+ * their own dalvikvm, like Rhino and BeanShell.
+ *
+ * <p>
+ * Each idle interpreter has its own {@link AndroidProxy} and environment, and reads statements from
+ * its standard input. An interpreter only becomes idle once it has printed its
+ * {@link Language#getPrompt}, and everything it printed until then is dropped. A launch claims one
+ * and types the {@link Language#getRunScriptStatement} for the script into it. The terminal echoes
+ * that statement, so the echo is dropped too before the script's output is logged. Interpreters
+ * whose language does not have a prompt and such a statement are not pooled.
+ *
+ * <p>
+ * The pool is empty until it is given a size. It then keeps up to that many idle interpreters for
+ * each interpreter a script was launched with, and stops the ones that stay idle longer than the
+ * idle timeout. Interpreters are started on a background thread and replaced when claimed.
+ */
+public class InterpreterProcessPool {
+
+  /** The time in milliseconds a new interpreter has to print its prompt. */
+  private static final long PROMPT_TIMEOUT = 30 * 1000;
+  /** The time in milliseconds the terminal has to echo the run statement. */
+  private static final long ECHO_TIMEOUT = 5 * 1000;
+  private static final long POLL_INTERVAL = 10;
+
+  /** Learns whether a claimed interpreter got its script, see {@link #launch}. */
+  public interface LaunchListener {
+    /**
+     * Called on a background thread.
+     *
+     * @param launched
+     *          the result of {@link PooledProcess#launch}
+     */
+    public void onLaunched(PooledProcess process, boolean launched);
+  }
+
+  /** An interpreter started by the pool. */
+  public static class PooledProcess extends ScriptProcess {
+
+    private final InterpreterProcessPool mmPool;
+    private final AndroidProxy mmProxy;
+    // Guarded by the pool.
+    private boolean mmClaimed = false;
+    private boolean mmExited = false;
+    private Runnable mmShutdownHook;
+
+    private PooledProcess(InterpreterProcessPool pool, Interpreter interpreter, AndroidProxy proxy) {
+      super(interpreter, proxy);
+      mmPool = pool;
+      mmProxy = proxy;
+    }
+
+    private void start() {
+      start(new Runnable() {
+        @Override
+        public void run() {
+          boolean idle;
+          Runnable shutdownHook;
+          synchronized (mmPool) {
+            mmExited = true;
+            idle = !mmClaimed;
+            shutdownHook = mmShutdownHook;
+          }
+          if (idle) {
+            mmPool.removeIdle(PooledProcess.this);
+          }
+          if (shutdownHook == null) {
+            mmProxy.shutdown();
+          } else {
+            shutdownHook.run();
+          }
+        }
+      });
+    }
+
+    /**
+     * Reads the output of the interpreter up to and including text.
+     *
+     * @return false if the interpreter exited or the timeout passed before text was read
+     */
+    private boolean skipThrough(String text, long timeout) throws IOException,
+        InterruptedException {
+      InputStream in = getIn();
+      long deadline = System.currentTimeMillis() + timeout;
+      StringBuilder tail = new StringBuilder();
+      while (!tail.toString().equals(text)) {
+        if (in.available() == 0) {
+          if (!isAlive() || System.currentTimeMillis() > deadline) {
+            return false;
+          }
+          Thread.sleep(POLL_INTERVAL);
+          continue;
+        }
+        int c = in.read();
+        if (c < 0) {
+          return false;
+        }
+        tail.append((char) c);
+        if (tail.length() > text.length()) {
+          tail.deleteCharAt(0);
+        }
+      }
+      return true;
+    }
+
+    @Override
+    protected File createLogFile() {
+      // Don't log anything before the script is known.
+      return getPath() == null ? null : super.createLogFile();
+    }
+
+    /**
+     * Runs the script in this interpreter. Blocks until the interpreter echoes the statement, so it
+     * must not be called on the main thread, see {@link InterpreterProcessPool#launch}.
+     *
+     * @param intent
+     *          the intent that launched the script, seen by its facades
+     * @param shutdownHook
+     *          run when the interpreter exits
+     * @return false if the interpreter exited before it got the script, in which case the script
+     *         has to be launched in a new one
+     */
+    public boolean launch(File script, Intent intent, Runnable shutdownHook) {
+      if (!script.exists()) {
+        throw new RuntimeException("No such script to launch.");
+      }
+      long start = System.nanoTime();
+      synchronized (mmPool) {
+        if (mmExited) {
+          return false;
+        }
+        mmShutdownHook = shutdownHook;
+      }
+      mmProxy.setIntent(intent);
+      setScript(script);
+      String statement = getInterpreter().getLanguage().getRunScriptStatement(
+          script.getAbsolutePath());
+      try {
+        OutputStream out = getOut();
+        out.write((statement + "\n").getBytes());
+        out.flush();
+        // Keep the echoed statement out of the log and the terminal.
+        if (!skipThrough("\n", ECHO_TIMEOUT)) {
+          Log.w("Pooled " + getInterpreter().getName() + " interpreter did not echo its script.");
+        }
+        startLog();
+      } catch (IOException e) {
+        Log.e("Failed to launch " + script + " in a pooled interpreter.", e);
+        kill();
+        return false;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        kill();
+        return false;
+      }
+      mmPool.recordClaim(System.nanoTime() - start);
+      return true;
+    }
+  }
+
+  private final Service mService;
+  private final InterpreterConfiguration mConfiguration;
+  private final ScheduledExecutorService mExecutor;
+  private final ExecutorService mLauncher;
+  private final Map<String, List<PooledProcess>> mIdle;
+
+  private int mSize = 0;
+  private long mIdleTimeout = 0;
+  private boolean mShutdown = false;
+  private Runnable mEmptyListener;
+
+  private int mHits = 0;
+  private int mMisses = 0;
+  private int mStarted = 0;
+  private int mExpired = 0;
+  private long mStartTime = 0;
+  private long mClaimTime = 0;
+  private long mWarmLaunchTime = 0;
+  private long mColdLaunchTime = 0;
+  private int mWarmLaunches = 0;
+  private int mColdLaunches = 0;
+
+  public InterpreterProcessPool(Service service, InterpreterConfiguration configuration) {
+    mService = service;
+    mConfiguration = configuration;
+    mExecutor = Executors.newSingleThreadScheduledExecutor();
+    mLauncher = Executors.newCachedThreadPool();
+    mIdle = new HashMap<String, List<PooledProcess>>();
+  }
+
+  /**
+   * @param size
+   *          the number of idle interpreters to keep for each interpreter, 0 disables the pool
+   * @param idleTimeout
+   *          the time in milliseconds after which an idle interpreter is stopped
+   */
+  public void configure(int size, long idleTimeout) {
+    List<PooledProcess> excess = new LinkedList<PooledProcess>();
+    synchronized (this) {
+      mSize = Math.max(0, size);
+      mIdleTimeout = idleTimeout;
+      for (List<PooledProcess> idle : mIdle.values()) {
+        while (idle.size() > mSize) {
+          excess.add(idle.remove(idle.size() - 1));
+        }
+      }
+    }
+    for (PooledProcess process : excess) {
+      process.kill();
+    }
+  }
+
+  /**
+   * Sets a listener that is run on a background thread when the last idle interpreter stops because
+   * it timed out or exited.
+   */
+  public synchronized void setEmptyListener(Runnable listener) {
+    mEmptyListener = listener;
+  }
+
+  /** Returns true if the pool has no idle interpreters. */
+  public synchronized boolean isEmpty() {
+    for (List<PooledProcess> idle : mIdle.values()) {
+      if (!idle.isEmpty()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Returns true if scripts for the interpreter can be run by pooled interpreters. */
+  public static boolean isPoolable(Interpreter interpreter) {
+    Language language = interpreter.getLanguage();
+    return interpreter.hasInteractiveMode() && language != null && language.getPrompt() != null
+        && language.getRunScriptStatement("") != null;
+  }
+
+  /**
+   * Claims an idle interpreter for the script and starts a replacement in the background.
+   *
+   * @return the interpreter, or {@code null} if there is no idle interpreter for the script
+   */
+  public PooledProcess claim(File script) {
+    final Interpreter interpreter = mConfiguration.getInterpreterForScript(script.getName());
+    if (interpreter == null || !isPoolable(interpreter)) {
+      return null;
+    }
+    PooledProcess process = null;
+    synchronized (this) {
+      if (mSize == 0 || mShutdown) {
+        return null;
+      }
+      List<PooledProcess> idle = mIdle.get(interpreter.getName());
+      if (idle != null && !idle.isEmpty()) {
+        process = idle.remove(0);
+        process.mmClaimed = true;
+        mHits++;
+      } else {
+        mMisses++;
+      }
+    }
+    mExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        fill(interpreter);
+      }
+    });
+    return process;
+  }
+
+  /**
+   * Runs the script in a claimed interpreter on a background thread, since it waits for the
+   * interpreter to echo the statement. Scripts are not launched on the thread that starts the
+   * interpreters, so a launch does not wait for a new interpreter's prompt.
+   */
+  public void launch(final PooledProcess process, final File script, final Intent intent,
+      final Runnable shutdownHook, final LaunchListener listener) {
+    mLauncher.execute(new Runnable() {
+      @Override
+      public void run() {
+        listener.onLaunched(process, process.launch(script, intent, shutdownHook));
+      }
+    });
+  }
+
+  /** Starts interpreters until there are enough idle ones. Runs on the executor only. */
+  private void fill(Interpreter interpreter) {
+    while (true) {
+      synchronized (this) {
+        List<PooledProcess> idle = mIdle.get(interpreter.getName());
+        if (mShutdown || (idle != null && idle.size() >= mSize)) {
+          return;
+        }
+      }
+      long start = System.nanoTime();
+      AndroidProxy proxy = new AndroidProxy(mService, new Intent(), true);
+      final PooledProcess process;
+      try {
+        proxy.startLocal();
+        process = new PooledProcess(this, interpreter, proxy);
+        process.start();
+      } catch (RuntimeException e) {
+        Log.e("Failed to start pooled " + interpreter.getName() + " interpreter.", e);
+        proxy.shutdown();
+        return;
+      }
+      // Only an interpreter that is reading statements is idle. Its banner and prompt are dropped.
+      boolean ready;
+      try {
+        ready = process.skipThrough(interpreter.getLanguage().getPrompt(), PROMPT_TIMEOUT);
+      } catch (IOException e) {
+        ready = false;
+      } catch (InterruptedException e) {
+        // The pool is shutting down.
+        process.kill();
+        return;
+      }
+      if (!ready) {
+        Log.e("Pooled " + interpreter.getName() + " interpreter did not print its prompt.");
+        process.kill();
+        return;
+      }
+      boolean added = false;
+      long idleTimeout;
+      synchronized (this) {
+        List<PooledProcess> idle = mIdle.get(interpreter.getName());
+        if (idle == null) {
+          idle = new LinkedList<PooledProcess>();
+          mIdle.put(interpreter.getName(), idle);
+        }
+        if (!mShutdown && !process.mmExited && idle.size() < mSize) {
+          idle.add(process);
+          added = true;
+          mStarted++;
+          mStartTime += System.nanoTime() - start;
+        }
+        idleTimeout = mIdleTimeout;
+      }
+      if (!added) {
+        process.kill();
+        return;
+      }
+      if (idleTimeout > 0) {
+        mExecutor.schedule(new Runnable() {
+          @Override
+          public void run() {
+            expire(process);
+          }
+        }, idleTimeout, TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
+  private void expire(PooledProcess process) {
+    synchronized (this) {
+      List<PooledProcess> idle = mIdle.get(process.getInterpreter().getName());
+      if (idle == null || !idle.remove(process)) {
+        return;
+      }
+      mExpired++;
+    }
+    process.kill();
+    notifyIfEmpty();
+  }
+
+  private void removeIdle(PooledProcess process) {
+    synchronized (this) {
+      List<PooledProcess> idle = mIdle.get(process.getInterpreter().getName());
+      if (idle == null || !idle.remove(process)) {
+        return;
+      }
+    }
+    notifyIfEmpty();
+  }
+
+  private void notifyIfEmpty() {
+    Runnable listener;
+    synchronized (this) {
+      if (!isEmpty()) {
+        return;
+      }
+      listener = mEmptyListener;
+    }
+    if (listener != null) {
+      listener.run();
+    }
+  }
+
+  private synchronized void recordClaim(long nanos) {
+    mClaimTime += nanos;
+  }
+
+  /**
+   * Records the time it took to launch a script, from the launch request until its interpreter was
+   * running it.
+   *
+   * @param warm
+   *          whether a pooled interpreter ran the script
+   */
+  public synchronized void recordLaunch(boolean warm, long nanos) {
+    if (warm) {
+      mWarmLaunches++;
+      mWarmLaunchTime += nanos;
+    } else {
+      mColdLaunches++;
+      mColdLaunchTime += nanos;
+    }
+  }
+
+  /** Returns a summary of the pool's activity and its average latencies in milliseconds. */
+  public synchronized String getStatistics() {
+    int idle = 0;
+    for (List<PooledProcess> processes : mIdle.values()) {
+      idle += processes.size();
+    }
+    return String.format("idle %d, hits %d, misses %d, started %d, expired %d; "
+        + "start %.1f ms, claim %.1f ms, warm launch %.1f ms, cold launch %.1f ms", idle, mHits,
+        mMisses, mStarted, mExpired, average(mStartTime, mStarted), average(mClaimTime, mHits),
+        average(mWarmLaunchTime, mWarmLaunches), average(mColdLaunchTime, mColdLaunches));
+  }
+
+  private static double average(long nanos, int count) {
+    return count == 0 ? 0 : nanos / 1e6 / count;
+  }
+
+  /** Stops all idle interpreters. Claimed interpreters keep running. */
+  public void shutdown() {
+    List<PooledProcess> idle = new LinkedList<PooledProcess>();
+    synchronized (this) {
+      mShutdown = true;
+      for (List<PooledProcess> processes : mIdle.values()) {
+        idle.addAll(processes);
+      }
+      mIdle.clear();
+    }
+    mExecutor.shutdownNow();
+    // Launches in progress finish; their scripts keep running like other claimed interpreters.
+    mLauncher.shutdown();
+    for (PooledProcess process : idle) {
+      process.kill();
+    }
+  }
+}
@@ -24,7 +24,7 @@ import java.io.File;
 
 public class ScriptProcess extends InterpreterProcess {
 
-  private final File mScript;
+  private volatile File mScript;
 
   public ScriptProcess(File script, InterpreterConfiguration configuration, AndroidProxy proxy) {
     super(configuration.getInterpreterForScript(script.getName()), proxy);
@@ -35,8 +35,23 @@ public class ScriptProcess extends InterpreterProcess {
     setCommand(String.format(interpreter.getScriptCommand(), script.getAbsolutePath()));
   }
 
+  /**
+   * Creates a process that starts the interpreter reading statements from its standard input. The
+   * script it runs is set later, see {@link InterpreterProcessPool}.
+   */
+  protected ScriptProcess(Interpreter interpreter, AndroidProxy proxy) {
+    super(interpreter, proxy);
+    setCommand(interpreter.getLanguage().getStandardInputCommand());
+  }
+
+  protected void setScript(File script) {
+    mScript = script;
+    setName(script.getName());
+  }
+
   public String getPath() {
-    return mScript.getPath();
+    File script = mScript;
+    return script == null ? null : script.getPath();
   }
 
 }
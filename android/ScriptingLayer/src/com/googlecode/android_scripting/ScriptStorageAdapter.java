@@ -18,6 +18,7 @@ package com.googlecode.android_scripting;
 
 import com.googlecode.android_scripting.interpreter.Interpreter;
 import com.googlecode.android_scripting.interpreter.InterpreterConfiguration;
+import com.googlecode.android_scripting.interpreter.InterpreterConfiguration.ConfigurationObserver;
 import com.googlecode.android_scripting.interpreter.InterpreterConstants;
 
 import java.io.BufferedWriter;
@@ -28,9 +29,13 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
 
 /**
  * Manages storage and retrieval of scripts on the file system.
@@ -39,6 +44,61 @@ import java.util.List;
  */
 public class ScriptStorageAdapter {
 
+  /**
+   * Directory listings are kept until the directory's modification time changes. FAT, which most
+   * sdcards use, only keeps modification times in two second steps, so a listing made within that
+   * long of a change is not trusted.
+   */
+  private static final long MODIFICATION_TIME_GRANULARITY = 2000;
+
+  /** The number of directory listings kept. The least recently used one is dropped first. */
+  private static final int MAX_LISTINGS = 32;
+
+  @SuppressWarnings("serial")
+  private static final Map<File, Listing> sListings = new LinkedHashMap<File, Listing>(16, 0.75f,
+      true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<File, Listing> eldest) {
+      return size() > MAX_LISTINGS;
+    }
+  };
+
+  /**
+   * Whether scripts with a given extension can be executed, for each configuration. Cleared
+   * whenever an interpreter is added or removed.
+   */
+  private static final Map<InterpreterConfiguration, Map<String, Boolean>> sExecutableExtensions =
+      new WeakHashMap<InterpreterConfiguration, Map<String, Boolean>>();
+
+  private static final ConfigurationObserver sConfigurationObserver = new ConfigurationObserver() {
+    public void onConfigurationChanged() {
+      synchronized (sExecutableExtensions) {
+        sExecutableExtensions.clear();
+      }
+    }
+  };
+
+  /**
+   * The contents of a directory, directories first and then by name.
+   */
+  private static class Listing {
+    private final long mModified;
+    private final long mListed;
+    private final List<File> mFiles;
+    private final Set<File> mDirectories;
+
+    private Listing(long modified, long listed, List<File> files, Set<File> directories) {
+      mModified = modified;
+      mListed = listed;
+      mFiles = files;
+      mDirectories = directories;
+    }
+
+    private boolean isValid(long modified) {
+      return mModified == modified && mListed - mModified >= MODIFICATION_TIME_GRANULARITY;
+    }
+  }
+
   private ScriptStorageAdapter() {
     // Utility class.
   }
@@ -67,22 +127,11 @@ public class ScriptStorageAdapter {
     if (dir == null) {
       dir = new File(InterpreterConstants.SCRIPTS_ROOT);
     }
-    if (dir.exists()) {
-      List<File> scripts = Arrays.asList(dir.listFiles());
-      Collections.sort(scripts, new Comparator<File>() {
-        @Override
-        public int compare(File file1, File file2) {
-          if (file1.isDirectory() && !file2.isDirectory()) {
-            return -1;
-          } else if (!file1.isDirectory() && file2.isDirectory()) {
-            return 1;
-          }
-          return file1.compareTo(file2);
-        }
-      });
-      return scripts;
+    Listing listing = getListing(dir);
+    if (listing == null) {
+      return new ArrayList<File>();
     }
-    return new ArrayList<File>();
+    return new ArrayList<File>(listing.mFiles);
   }
 
   /**
@@ -90,18 +139,18 @@ public class ScriptStorageAdapter {
    * installed.
    */
   public static List<File> listExecutableScripts(File directory, InterpreterConfiguration config) {
-    // NOTE(damonkohler): Creating a LinkedList here is necessary in order to be able to filter it
-    // later.
-    List<File> scripts = new LinkedList<File>(listAllScripts(directory));
+    if (directory == null) {
+      directory = new File(InterpreterConstants.SCRIPTS_ROOT);
+    }
+    List<File> scripts = new ArrayList<File>();
+    Listing listing = getListing(directory);
+    if (listing == null) {
+      return scripts;
+    }
     // Filter out any files that don't have interpreters installed.
-    for (Iterator<File> it = scripts.iterator(); it.hasNext();) {
-      File script = it.next();
-      if (script.isDirectory()) {
-        continue;
-      }
-      Interpreter interpreter = config.getInterpreterForScript(script.getName());
-      if (interpreter == null || !interpreter.isInstalled()) {
-        it.remove();
+    for (File file : listing.mFiles) {
+      if (listing.mDirectories.contains(file) || isExecutable(file.getName(), config)) {
+        scripts.add(file);
       }
     }
     return scripts;
@@ -113,23 +162,99 @@ public class ScriptStorageAdapter {
    */
   public static List<File> listExecutableScriptsRecursively(File directory,
       InterpreterConfiguration config) {
-    // NOTE(damonkohler): Creating a LinkedList here is necessary in order to be able to filter it
-    // later.
-    List<File> scripts = new LinkedList<File>();
-    List<File> files = listAllScripts(directory);
+    if (directory == null) {
+      directory = new File(InterpreterConstants.SCRIPTS_ROOT);
+    }
+    List<File> scripts = new ArrayList<File>();
+    addExecutableScripts(directory, config, scripts);
+    Collections.sort(scripts);
+    return scripts;
+  }
 
-    // Filter out any files that don't have interpreters installed.
-    for (Iterator<File> it = files.iterator(); it.hasNext();) {
-      File file = it.next();
-      if (file.isDirectory()) {
-        scripts.addAll(listExecutableScriptsRecursively(file, config));
+  private static void addExecutableScripts(File directory, InterpreterConfiguration config,
+      List<File> scripts) {
+    Listing listing = getListing(directory);
+    if (listing == null) {
+      return;
+    }
+    for (File file : listing.mFiles) {
+      if (listing.mDirectories.contains(file)) {
+        addExecutableScripts(file, config, scripts);
       }
-      Interpreter interpreter = config.getInterpreterForScript(file.getName());
-      if (interpreter != null && interpreter.isInstalled()) {
+      if (isExecutable(file.getName(), config)) {
         scripts.add(file);
       }
     }
-    Collections.sort(scripts);
-    return scripts;
   }
-}
\ No newline at end of file
+
+  /**
+   * Returns the contents of directory, listing it again only if it changed since the last call.
+   * Returns null if directory does not exist.
+   */
+  private static Listing getListing(File directory) {
+    long modified = directory.lastModified();
+    synchronized (sListings) {
+      Listing listing = sListings.get(directory);
+      if (listing != null && listing.isValid(modified)) {
+        return listing;
+      }
+    }
+    long listed = System.currentTimeMillis();
+    File[] files = directory.listFiles();
+    if (files == null) {
+      synchronized (sListings) {
+        sListings.remove(directory);
+      }
+      return null;
+    }
+    final Set<File> directories = new HashSet<File>();
+    for (File file : files) {
+      if (file.isDirectory()) {
+        directories.add(file);
+      }
+    }
+    List<File> sorted = Arrays.asList(files);
+    Collections.sort(sorted, new Comparator<File>() {
+      @Override
+      public int compare(File file1, File file2) {
+        boolean isDirectory1 = directories.contains(file1);
+        boolean isDirectory2 = directories.contains(file2);
+        if (isDirectory1 && !isDirectory2) {
+          return -1;
+        } else if (!isDirectory1 && isDirectory2) {
+          return 1;
+        }
+        return file1.compareTo(file2);
+      }
+    });
+    Listing listing =
+        new Listing(modified, listed, Collections.unmodifiableList(sorted), directories);
+    synchronized (sListings) {
+      sListings.put(directory, listing);
+    }
+    return listing;
+  }
+
+  private static boolean isExecutable(String scriptName, InterpreterConfiguration config) {
+    int dotIndex = scriptName.lastIndexOf('.');
+    if (dotIndex == -1) {
+      return false;
+    }
+    String extension = scriptName.substring(dotIndex);
+    synchronized (sExecutableExtensions) {
+      Map<String, Boolean> extensions = sExecutableExtensions.get(config);
+      if (extensions == null) {
+        extensions = new HashMap<String, Boolean>();
+        sExecutableExtensions.put(config, extensions);
+        config.registerObserver(sConfigurationObserver);
+      }
+      Boolean executable = extensions.get(extension);
+      if (executable == null) {
+        Interpreter interpreter = config.getInterpreterForScript(scriptName);
+        executable = interpreter != null && interpreter.isInstalled();
+        extensions.put(extension, executable);
+      }
+      return executable;
+    }
+  }
+}
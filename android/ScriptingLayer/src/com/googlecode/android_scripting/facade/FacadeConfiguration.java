@@ -20,6 +20,7 @@ import com.google.common.collect.Maps;
 import com.googlecode.android_scripting.Log;
 import com.googlecode.android_scripting.facade.ui.UiFacade;
 import com.googlecode.android_scripting.jsonrpc.RpcReceiver;
+import com.googlecode.android_scripting.jsonrpc.RpcRegistry;
 import com.googlecode.android_scripting.rpc.MethodDescriptor;
 import com.googlecode.android_scripting.rpc.RpcDeprecated;
 import com.googlecode.android_scripting.rpc.RpcMinSdk;
@@ -72,6 +73,7 @@ public class FacadeConfiguration {
     sFacadeClassList.add(PhoneFacade.class);
     sFacadeClassList.add(MediaRecorderFacade.class);
     sFacadeClassList.add(SensorManagerFacade.class);
+    sFacadeClassList.add(SensorRecordingFacade.class);
     sFacadeClassList.add(SettingsFacade.class);
     sFacadeClassList.add(SmsFacade.class);
     sFacadeClassList.add(SpeechRecognitionFacade.class);
@@ -83,6 +85,7 @@ public class FacadeConfiguration {
     sFacadeClassList.add(ActivityResultFacade.class);
     sFacadeClassList.add(MediaPlayerFacade.class);
     sFacadeClassList.add(PreferencesFacade.class);
+    sFacadeClassList.add(RpcStatisticsFacade.class);
 
     if (sSdkLevel >= 4) {
       sFacadeClassList.add(TextToSpeechFacade.class);
@@ -102,11 +105,8 @@ public class FacadeConfiguration {
       sFacadeClassList.add(WebCamFacade.class);
     }
 
-    for (Class<? extends RpcReceiver> recieverClass : sFacadeClassList) {
-      for (MethodDescriptor rpcMethod : MethodDescriptor.collectFrom(recieverClass)) {
-        sRpcs.put(rpcMethod.getName(), rpcMethod);
-      }
-    }
+    // Share the reflective scan with all FacadeManagers.
+    sRpcs.putAll(RpcRegistry.forClasses(sFacadeClassList).getMethodDescriptors());
   }
 
   private FacadeConfiguration() {
@@ -22,7 +22,9 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
 import android.preference.PreferenceManager;
 
@@ -30,6 +32,8 @@ import com.googlecode.android_scripting.AndroidProxy;
 import com.googlecode.android_scripting.BaseApplication;
 import com.googlecode.android_scripting.Constants;
 import com.googlecode.android_scripting.ForegroundService;
+import com.googlecode.android_scripting.InterpreterProcessPool;
+import com.googlecode.android_scripting.Log;
 import com.googlecode.android_scripting.NotificationIdFactory;
 import com.googlecode.android_scripting.R;
 import com.googlecode.android_scripting.ScriptLauncher;
@@ -55,8 +59,10 @@ import org.connectbot.service.TerminalManager;
  * 
  * @author Damon Kohler (damonkohler@gmail.com)
  */
-public class ScriptingLayerService extends ForegroundService {
+public class ScriptingLayerService extends ForegroundService implements
+    OnSharedPreferenceChangeListener {
   private static final int NOTIFICATION_ID = NotificationIdFactory.create();
+  private static final int DEFAULT_POOL_IDLE_TIMEOUT = 300;
 
   private final IBinder mBinder;
   private final Map<Integer, InterpreterProcess> mProcessMap;
@@ -65,6 +71,9 @@ public class ScriptingLayerService extends ForegroundService {
   private Notification mNotification;
   private PendingIntent mNotificationPendingIntent;
   private InterpreterConfiguration mInterpreterConfiguration;
+  private InterpreterProcessPool mInterpreterPool;
+  private int mInterpreterPoolSize;
+  private Handler mHandler;
 
   private volatile WeakReference<InterpreterProcess> mRecentlyKilledProcess;
 
@@ -97,8 +106,51 @@ public class ScriptingLayerService extends ForegroundService {
     mNotificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
     mRecentlyKilledProcess = new WeakReference<InterpreterProcess>(null);
     mTerminalManager = new TerminalManager(this);
+    mHandler = new Handler();
     mPreferences = PreferenceManager.getDefaultSharedPreferences(this);
     mHide = mPreferences.getBoolean(Constants.HIDE_NOTIFY, false);
+    mInterpreterPool = new InterpreterProcessPool(this, mInterpreterConfiguration);
+    configureInterpreterPool();
+    mPreferences.registerOnSharedPreferenceChangeListener(this);
+    mInterpreterPool.setEmptyListener(new Runnable() {
+      @Override
+      public void run() {
+        // Lets the service stop if no scripts are running either.
+        Intent intent = new Intent(ScriptingLayerService.this, ScriptingLayerService.class);
+        intent.setAction(Constants.ACTION_KILL_PROCESS);
+        startService(intent);
+      }
+    });
+  }
+
+  @Override
+  public void onDestroy() {
+    mPreferences.unregisterOnSharedPreferenceChangeListener(this);
+    mInterpreterPool.shutdown();
+    super.onDestroy();
+  }
+
+  @Override
+  public void onSharedPreferenceChanged(SharedPreferences preferences, String key) {
+    if (Constants.INTERPRETER_POOL_SIZE.equals(key)
+        || Constants.INTERPRETER_POOL_IDLE_TIMEOUT.equals(key)) {
+      configureInterpreterPool();
+    }
+  }
+
+  private void configureInterpreterPool() {
+    mInterpreterPoolSize = readIntPref(Constants.INTERPRETER_POOL_SIZE, 0);
+    mInterpreterPool.configure(mInterpreterPoolSize, readIntPref(
+        Constants.INTERPRETER_POOL_IDLE_TIMEOUT, DEFAULT_POOL_IDLE_TIMEOUT) * 1000L);
+  }
+
+  private int readIntPref(String key, int defaultValue) {
+    try {
+      return Math.max(0, Integer.parseInt(mPreferences.getString(key, Integer
+          .toString(defaultValue))));
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
   }
 
   @Override
@@ -136,7 +188,6 @@ public class ScriptingLayerService extends ForegroundService {
   @Override
   public void onStart(Intent intent, int startId) {
     super.onStart(intent, startId);
-    String errmsg = null;
     if (intent.getAction().equals(Constants.ACTION_KILL_ALL)) {
       killAll();
       stopSelf(startId);
@@ -145,7 +196,7 @@ public class ScriptingLayerService extends ForegroundService {
 
     if (intent.getAction().equals(Constants.ACTION_KILL_PROCESS)) {
       killProcess(intent);
-      if (mProcessMap.isEmpty()) {
+      if (mProcessMap.isEmpty() && mInterpreterPool.isEmpty()) {
         stopSelf(startId);
       }
       return;
@@ -159,12 +210,21 @@ public class ScriptingLayerService extends ForegroundService {
     String name = intent.getStringExtra(Constants.EXTRA_SCRIPT_PATH);
     if (name != null && name.endsWith(HtmlInterpreter.HTML_EXTENSION)) {
       launchHtmlScript(intent);
-      if (mProcessMap.isEmpty()) {
+      if (mProcessMap.isEmpty() && mInterpreterPool.isEmpty()) {
         stopSelf(startId);
       }
       return;
     }
 
+    if (launchPooledScript(intent)) {
+      return;
+    }
+    launch(intent);
+  }
+
+  /** Launches the server, script or interpreter the intent asks for in a new interpreter. */
+  private void launch(Intent intent) {
+    String errmsg = null;
     AndroidProxy proxy = null;
     InterpreterProcess interpreterProcess = null;
     if (intent.getAction().equals(Constants.ACTION_LAUNCH_SERVER)) {
@@ -228,26 +288,80 @@ public class ScriptingLayerService extends ForegroundService {
   }
 
   private ScriptProcess launchScript(Intent intent, AndroidProxy proxy) {
-    final int port = proxy.getAddress().getPort();
+    long start = System.nanoTime();
     File script = new File(intent.getStringExtra(Constants.EXTRA_SCRIPT_PATH));
-    return ScriptLauncher.launchScript(script, mInterpreterConfiguration, proxy, new Runnable() {
-      @Override
-      public void run() {
-        // TODO(damonkohler): This action actually kills the script rather than notifying the
-        // service that script exited on its own. We should distinguish between these two cases.
-        Intent intent = new Intent(ScriptingLayerService.this, ScriptingLayerService.class);
-        intent.setAction(Constants.ACTION_KILL_PROCESS);
-        intent.putExtra(Constants.EXTRA_PROXY_PORT, port);
-        startService(intent);
-      }
-    });
+    ScriptProcess process =
+        ScriptLauncher.launchScript(script, mInterpreterConfiguration, proxy,
+            createShutdownHook(proxy.getAddress().getPort()));
+    if (mInterpreterPoolSize > 0) {
+      mInterpreterPool.recordLaunch(false, System.nanoTime() - start);
+      Log.v("Interpreter pool: " + mInterpreterPool.getStatistics());
+    }
+    return process;
+  }
+
+  /**
+   * Runs the script in a pre-started interpreter. The script is handed to the interpreter on a
+   * background thread; the process is added, or the script launched in a new interpreter after all,
+   * back on the main thread.
+   * 
+   * @return false if the script has to be launched in a new interpreter
+   */
+  private boolean launchPooledScript(final Intent intent) {
+    if (mInterpreterPoolSize == 0) {
+      return false;
+    }
+    if (!intent.getAction().equals(Constants.ACTION_LAUNCH_FOREGROUND_SCRIPT)
+        && !intent.getAction().equals(Constants.ACTION_LAUNCH_BACKGROUND_SCRIPT)) {
+      return false;
+    }
+    // Pooled interpreters are connected to a server on a random local port.
+    if (intent.getBooleanExtra(Constants.EXTRA_USE_EXTERNAL_IP, false)
+        || intent.getIntExtra(Constants.EXTRA_USE_SERVICE_PORT, 0) != 0) {
+      return false;
+    }
+    final long start = System.nanoTime();
+    File script = new File(intent.getStringExtra(Constants.EXTRA_SCRIPT_PATH));
+    if (!script.exists()) {
+      return false;
+    }
+    InterpreterProcessPool.PooledProcess process = mInterpreterPool.claim(script);
+    if (process == null) {
+      return false;
+    }
+    mInterpreterPool.launch(process, script, intent, createShutdownHook(process.getPort()),
+        new InterpreterProcessPool.LaunchListener() {
+          public void onLaunched(final InterpreterProcessPool.PooledProcess process,
+              final boolean launched) {
+            mHandler.post(new Runnable() {
+              @Override
+              public void run() {
+                if (!launched) {
+                  launch(intent);
+                  return;
+                }
+                mInterpreterPool.recordLaunch(true, System.nanoTime() - start);
+                Log.v("Interpreter pool: " + mInterpreterPool.getStatistics());
+                if (intent.getAction().equals(Constants.ACTION_LAUNCH_FOREGROUND_SCRIPT)) {
+                  launchTerminal(process.getAddress());
+                }
+                addProcess(process);
+              }
+            });
+          }
+        });
+    return true;
   }
 
   private InterpreterProcess launchInterpreter(Intent intent, AndroidProxy proxy) {
     InterpreterConfiguration config =
         ((BaseApplication) getApplication()).getInterpreterConfiguration();
-    final int port = proxy.getAddress().getPort();
-    return ScriptLauncher.launchInterpreter(proxy, intent, config, new Runnable() {
+    return ScriptLauncher.launchInterpreter(proxy, intent, config, createShutdownHook(proxy
+        .getAddress().getPort()));
+  }
+
+  private Runnable createShutdownHook(final int port) {
+    return new Runnable() {
       @Override
       public void run() {
         // TODO(damonkohler): This action actually kills the script rather than notifying the
@@ -257,7 +371,7 @@ public class ScriptingLayerService extends ForegroundService {
         intent.putExtra(Constants.EXTRA_PROXY_PORT, port);
         startService(intent);
       }
-    });
+    };
   }
 
   private void launchTerminal(InetSocketAddress address) {
@@ -45,13 +45,21 @@ public class VDUBuffer {
 
   public int height, width; /* rows and columns */
   public boolean[] update; /* contains the lines that need update */
-  public char[][] charArray; /* contains the characters */
-  public int[][] charAttributes; /* contains character attrs */
+  public int[] updateStart, updateEnd; /* the columns of those lines that need update */
   public int bufSize;
   public int maxBufSize; /* buffer sizes */
   public int screenBase; /* the actual screen start */
   public int windowBase; /* where the start displaying */
-  public int scrollMarker; /* marks the last line inserted */
+
+  /*
+   * The rows are kept in a ring of maxBufSize slots: row r of the buffer, as counted by screenBase
+   * and windowBase, is in slot (firstRow + r) % maxBufSize. Once the buffer is full, scrolling a
+   * line into the scrollback advances firstRow and reuses the oldest row instead of copying them
+   * all.
+   */
+  private char[][] charRows; /* contains the characters */
+  private int[][] attributeRows; /* contains character attrs */
+  private int firstRow; /* the slot of row 0 */
 
   private int topMargin; /* top scroll margin */
   private int bottomMargin; /* bottom scroll margin */
@@ -164,11 +172,10 @@ public class VDUBuffer {
    */
 
   public void putChar(int c, int l, char ch, int attributes) {
-    charArray[screenBase + l][c] = ch;
-    charAttributes[screenBase + l][c] = attributes;
-    if (l < height) {
-      update[l + 1] = true;
-    }
+    int slot = slot(screenBase + l);
+    charRows[slot][c] = ch;
+    attributeRows[slot][c] = attributes;
+    markColumns(c, l, 1);
   }
 
   /**
@@ -181,7 +188,7 @@ public class VDUBuffer {
    * @see #putChar
    */
   public char getChar(int c, int l) {
-    return charArray[screenBase + l][c];
+    return charRows[slot(screenBase + l)][c];
   }
 
   /**
@@ -194,7 +201,39 @@ public class VDUBuffer {
    * @see #putChar
    */
   public int getAttributes(int c, int l) {
-    return charAttributes[screenBase + l][c];
+    return attributeRows[slot(screenBase + l)][c];
+  }
+
+  /**
+   * Get the characters of a row of the buffer. Rows are counted from the top of the scrollback, so
+   * line l of the window is row windowBase + l and line l of the screen is row screenBase + l. The
+   * array belongs to the buffer and is reused for other rows as the buffer scrolls.
+   * 
+   * @param row
+   *          the row, from 0 to bufSize - 1
+   * @see #getAttributeRow
+   */
+  public char[] getCharRow(int row) {
+    return charRows[slot(row)];
+  }
+
+  /**
+   * Get the attributes of a row of the buffer.
+   * 
+   * @param row
+   *          the row, from 0 to bufSize - 1
+   * @see #getCharRow
+   */
+  public int[] getAttributeRow(int row) {
+    return attributeRows[slot(row)];
+  }
+
+  /**
+   * Get the slot of the ring that holds a row of the buffer.
+   */
+  private int slot(int row) {
+    int slot = firstRow + row;
+    return slot < charRows.length ? slot : slot - charRows.length;
   }
 
   /**
@@ -220,10 +259,11 @@ public class VDUBuffer {
    * @see #redraw
    */
   public void insertChar(int c, int l, char ch, int attributes) {
-    System.arraycopy(charArray[screenBase + l], c, charArray[screenBase + l], c + 1, width - c - 1);
-    System.arraycopy(charAttributes[screenBase + l], c, charAttributes[screenBase + l], c + 1,
-        width - c - 1);
+    int slot = slot(screenBase + l);
+    System.arraycopy(charRows[slot], c, charRows[slot], c + 1, width - c - 1);
+    System.arraycopy(attributeRows[slot], c, attributeRows[slot], c + 1, width - c - 1);
     putChar(c, l, ch, attributes);
+    markColumns(c, l, width - c);
   }
 
   /**
@@ -240,12 +280,12 @@ public class VDUBuffer {
    */
   public void deleteChar(int c, int l) {
     if (c < width - 1) {
-      System.arraycopy(charArray[screenBase + l], c + 1, charArray[screenBase + l], c, width - c
-          - 1);
-      System.arraycopy(charAttributes[screenBase + l], c + 1, charAttributes[screenBase + l], c,
-          width - c - 1);
+      int slot = slot(screenBase + l);
+      System.arraycopy(charRows[slot], c + 1, charRows[slot], c, width - c - 1);
+      System.arraycopy(attributeRows[slot], c + 1, attributeRows[slot], c, width - c - 1);
     }
     putChar(width - 1, l, (char) 0);
+    markColumns(c, l, width - c);
   }
 
   /**
@@ -303,6 +343,31 @@ public class VDUBuffer {
     }
   }
 
+  /**
+   * Put characters from an array at a specific position giving all of them the same attributes.
+   * The characters have to fit on the line. You need to call redraw() to update the screen.
+   * 
+   * @param c
+   *          x-coordinate (column)
+   * @param l
+   *          y-coordinate (line)
+   * @param s
+   *          the characters to be shown on the screen
+   * @param start
+   *          index of the first character in s
+   * @param length
+   *          number of characters, at most width - c
+   * @param attributes
+   *          character attributes
+   * @see #putString
+   */
+  public void putChars(int c, int l, char[] s, int start, int length, int attributes) {
+    int slot = slot(screenBase + l);
+    System.arraycopy(s, start, charRows[slot], c, length);
+    Arrays.fill(attributeRows[slot], c, c + length, attributes);
+    markColumns(c, l, length);
+  }
+
   /**
    * Insert a blank line at a specific position. The current line and all previous lines are
    * scrolled one line up. The top line is lost. You need to call redraw() to update the screen.
@@ -363,15 +428,6 @@ public class VDUBuffer {
    * @see #redraw
    */
   public synchronized void insertLine(int l, int n, boolean scrollDown) {
-    char cbuf[][] = null;
-    int abuf[][] = null;
-    int offset = 0;
-    int oldBase = screenBase;
-
-    int newScreenBase = screenBase;
-    int newWindowBase = windowBase;
-    int newBufSize = bufSize;
-
     if (l > bottomMargin) {
       return;
     }
@@ -382,119 +438,53 @@ public class VDUBuffer {
         (l > bottomMargin ? height - 1 : (l < topMargin ? (topMargin > 0 ? topMargin - 1 : 0)
             : bottomMargin));
 
-    // System.out.println("l is "+l+", top is "+top+", bottom is "+bottom+", bottomargin is "+bottomMargin+", topMargin is "+topMargin);
-
     if (scrollDown) {
       if (n > (bottom - top)) {
         n = (bottom - top);
       }
-      int size = bottom - l - (n - 1);
-      if (size < 0) {
-        size = 0;
+      if (n > bottom - l + 1) {
+        n = bottom - l + 1;
       }
-      cbuf = new char[size][];
-      abuf = new int[size][];
-
-      System.arraycopy(charArray, oldBase + l, cbuf, 0, bottom - l - (n - 1));
-      System.arraycopy(charAttributes, oldBase + l, abuf, 0, bottom - l - (n - 1));
-      System.arraycopy(cbuf, 0, charArray, oldBase + l + n, bottom - l - (n - 1));
-      System.arraycopy(abuf, 0, charAttributes, oldBase + l + n, bottom - l - (n - 1));
-      cbuf = charArray;
-      abuf = charAttributes;
+      // the lines pushed off the bottom come back as the blank lines at l
+      rotateRows(screenBase + l, screenBase + bottom + 1, n);
+      clearRows(screenBase + l, n);
     } else {
-      try {
-        if (n > (bottom - top) + 1) {
-          n = (bottom - top) + 1;
-        }
+      if (n > (bottom - top) + 1) {
+        n = (bottom - top) + 1;
+      }
+      if (n > l - top + 1) {
+        n = l - top + 1;
+      }
+      // the lines scrolled out at the top margin go in front of the screen, where they become
+      // the newest lines of the scrollback
+      if (top > 0) {
+        rotateRows(screenBase, screenBase + top + n, n);
+      }
+      // append the blank lines to the buffer, reusing the oldest lines once it is full
+      int added = 0;
+      int insert = screenBase + l + 1;
+      for (int i = 0; i < n; i++) {
         if (bufSize < maxBufSize) {
-          if (bufSize + n > maxBufSize) {
-            offset = n - (maxBufSize - bufSize);
-            scrollMarker += offset;
-            newBufSize = maxBufSize;
-            newScreenBase = maxBufSize - height - 1;
-            newWindowBase = screenBase;
-          } else {
-            scrollMarker += n;
-            newScreenBase += n;
-            newWindowBase += n;
-            newBufSize += n;
+          int slot = slot(bufSize);
+          if (charRows[slot] == null) {
+            charRows[slot] = new char[width];
+            attributeRows[slot] = new int[width];
           }
-
-          cbuf = new char[newBufSize][];
-          abuf = new int[newBufSize][];
+          bufSize++;
+          added++;
         } else {
-          offset = n;
-          cbuf = charArray;
-          abuf = charAttributes;
-        }
-        // copy anything from the top of the buffer (+offset) to the new top
-        // up to the screenBase.
-        if (oldBase > 0) {
-          System.arraycopy(charArray, offset, cbuf, 0, oldBase - offset);
-          System.arraycopy(charAttributes, offset, abuf, 0, oldBase - offset);
-        }
-        // copy anything from the top of the screen (screenBase) up to the
-        // topMargin to the new screen
-        if (top > 0) {
-          System.arraycopy(charArray, oldBase, cbuf, newScreenBase, top);
-          System.arraycopy(charAttributes, oldBase, abuf, newScreenBase, top);
-        }
-        // copy anything from the topMargin up to the amount of lines inserted
-        // to the gap left over between scrollback buffer and screenBase
-        if (oldBase >= 0) {
-          System.arraycopy(charArray, oldBase + top, cbuf, oldBase - offset, n);
-          System.arraycopy(charAttributes, oldBase + top, abuf, oldBase - offset, n);
+          discardLine(charRows[slot(0)]);
+          firstRow = slot(1);
+          insert--;
         }
-        // copy anything from topMargin + n up to the line linserted to the
-        // topMargin
-        System
-            .arraycopy(charArray, oldBase + top + n, cbuf, newScreenBase + top, l - top - (n - 1));
-        System.arraycopy(charAttributes, oldBase + top + n, abuf, newScreenBase + top, l - top
-            - (n - 1));
-        //
-        // copy the all lines next to the inserted to the new buffer
-        if (l < height - 1) {
-          System.arraycopy(charArray, oldBase + l + 1, cbuf, newScreenBase + l + 1, (height - 1)
-              - l);
-          System.arraycopy(charAttributes, oldBase + l + 1, abuf, newScreenBase + l + 1,
-              (height - 1) - l);
-        }
-      } catch (ArrayIndexOutOfBoundsException e) {
-        // this should not happen anymore, but I will leave the code
-        // here in case something happens anyway. That code above is
-        // so complex I always have a hard time understanding what
-        // I did, even though there are comments
-        System.err.println("*** Error while scrolling up:");
-        System.err.println("--- BEGIN STACK TRACE ---");
-        e.printStackTrace();
-        System.err.println("--- END STACK TRACE ---");
-        System.err.println("bufSize=" + bufSize + ", maxBufSize=" + maxBufSize);
-        System.err.println("top=" + top + ", bottom=" + bottom);
-        System.err.println("n=" + n + ", l=" + l);
-        System.err.println("screenBase=" + screenBase + ", windowBase=" + windowBase);
-        System.err.println("newScreenBase=" + newScreenBase + ", newWindowBase=" + newWindowBase);
-        System.err.println("oldBase=" + oldBase);
-        System.err.println("size.width=" + width + ", size.height=" + height);
-        System.err.println("abuf.length=" + abuf.length + ", cbuf.length=" + cbuf.length);
-        System.err.println("*** done dumping debug information");
       }
+      clearRows(bufSize - n, n);
+      // and move them below line l, which only has to touch the lines under it
+      rotateRows(insert, bufSize, n);
+      screenBase += added;
+      windowBase += added;
     }
 
-    // this is a little helper to mark the scrolling
-    scrollMarker -= n;
-
-    for (int i = 0; i < n; i++) {
-      cbuf[(newScreenBase + l) + (scrollDown ? i : -i)] = new char[width];
-      Arrays.fill(cbuf[(newScreenBase + l) + (scrollDown ? i : -i)], ' ');
-      abuf[(newScreenBase + l) + (scrollDown ? i : -i)] = new int[width];
-    }
-
-    charArray = cbuf;
-    charAttributes = abuf;
-    screenBase = newScreenBase;
-    windowBase = newWindowBase;
-    bufSize = newBufSize;
-
     if (scrollDown) {
       markLine(l, bottom - l + 1);
     } else {
@@ -504,6 +494,42 @@ public class VDUBuffer {
     display.updateScrollBar();
   }
 
+  /**
+   * Rotate the rows from start up to end down by distance rows. The rows moved past end wrap
+   * around to start.
+   */
+  private void rotateRows(int start, int end, int distance) {
+    int length = end - start;
+    if (length < 2 || distance % length == 0) {
+      return;
+    }
+    distance %= length;
+    reverseRows(start, end);
+    reverseRows(start, start + distance);
+    reverseRows(start + distance, end);
+  }
+
+  private void reverseRows(int start, int end) {
+    for (int i = start, j = end - 1; i < j; i++, j--) {
+      int first = slot(i);
+      int second = slot(j);
+      char[] chars = charRows[first];
+      charRows[first] = charRows[second];
+      charRows[second] = chars;
+      int[] attributes = attributeRows[first];
+      attributeRows[first] = attributeRows[second];
+      attributeRows[second] = attributes;
+    }
+  }
+
+  private void clearRows(int row, int n) {
+    for (int i = 0; i < n; i++) {
+      int slot = slot(row + i);
+      Arrays.fill(charRows[slot], ' ');
+      Arrays.fill(attributeRows[slot], 0);
+    }
+  }
+
   /**
    * Delete a line at a specific position. Subsequent lines will be scrolled up to fill the space
    * and a blank line is inserted at the end of the screen.
@@ -514,21 +540,13 @@ public class VDUBuffer {
    */
   public void deleteLine(int l) {
     int bottom = (l > bottomMargin ? height - 1 : (l < topMargin ? topMargin : bottomMargin + 1));
-    int numRows = bottom - l - 1;
-
-    char[] discardedChars = charArray[screenBase + l];
-    int[] discardedAttributes = charAttributes[screenBase + l];
-
-    if (numRows > 0) {
-      System.arraycopy(charArray, screenBase + l + 1, charArray, screenBase + l, numRows);
-      System.arraycopy(charAttributes, screenBase + l + 1, charAttributes, screenBase + l, numRows);
+    if (bottom <= l) {
+      bottom = l + 1;
     }
 
-    int newBottomRow = screenBase + bottom - 1;
-    charArray[newBottomRow] = discardedChars;
-    charAttributes[newBottomRow] = discardedAttributes;
-    Arrays.fill(charArray[newBottomRow], ' ');
-    Arrays.fill(charAttributes[newBottomRow], 0);
+    // move the discarded line to the bottom and the lines below it up
+    rotateRows(screenBase + l, screenBase + bottom, bottom - l - 1);
+    clearRows(screenBase + bottom - 1, 1);
 
     markLine(l, bottom - l);
   }
@@ -552,11 +570,10 @@ public class VDUBuffer {
    */
   public void deleteArea(int c, int l, int w, int h, int curAttr) {
     int endColumn = c + w;
-    int targetRow = screenBase + l;
     for (int i = 0; i < h && l + i < height; i++) {
-      Arrays.fill(charAttributes[targetRow], c, endColumn, curAttr);
-      Arrays.fill(charArray[targetRow], c, endColumn, ' ');
-      targetRow++;
+      int slot = slot(screenBase + l + i);
+      Arrays.fill(attributeRows[slot], c, endColumn, curAttr);
+      Arrays.fill(charRows[slot], c, endColumn, ' ');
     }
     markLine(l, h);
   }
@@ -745,22 +762,28 @@ public class VDUBuffer {
     if (amount < height) {
       amount = height;
     }
-    if (amount < maxBufSize) {
-      char cbuf[][] = new char[amount][width];
-      int abuf[][] = new int[amount][width];
+    if (amount != maxBufSize && charRows != null) {
+      // the ring has one slot per row, so it is rebuilt for the new size
+      char cbuf[][] = new char[amount][];
+      int abuf[][] = new int[amount][];
       int copyStart = bufSize - amount < 0 ? 0 : bufSize - amount;
       int copyCount = bufSize - amount < 0 ? bufSize : amount;
-      if (charArray != null) {
-        System.arraycopy(charArray, copyStart, cbuf, 0, copyCount);
+      for (int i = 0; i < copyStart; i++) {
+        discardLine(charRows[slot(i)]);
       }
-      if (charAttributes != null) {
-        System.arraycopy(charAttributes, copyStart, abuf, 0, copyCount);
+      for (int i = 0; i < copyCount; i++) {
+        int slot = slot(copyStart + i);
+        cbuf[i] = charRows[slot];
+        abuf[i] = attributeRows[slot];
+      }
+      charRows = cbuf;
+      attributeRows = abuf;
+      firstRow = 0;
+      if (amount < maxBufSize) {
+        bufSize = copyCount;
+        screenBase = bufSize - height;
+        windowBase = screenBase;
       }
-      charArray = cbuf;
-      charAttributes = abuf;
-      bufSize = copyCount;
-      screenBase = bufSize - height;
-      windowBase = screenBase;
     }
     maxBufSize = amount;
 
@@ -826,10 +849,12 @@ public class VDUBuffer {
       screenBase = bufSize - h;
     }
 
-    cbuf = new char[bufSize][w];
-    abuf = new int[bufSize][w];
+    cbuf = new char[maxBufSize][];
+    abuf = new int[maxBufSize][];
 
     for (int i = 0; i < bufSize; i++) {
+      cbuf[i] = new char[w];
+      abuf[i] = new int[w];
       Arrays.fill(cbuf[i], ' ');
     }
 
@@ -838,11 +863,12 @@ public class VDUBuffer {
     }
 
     int rowLength;
-    if (charArray != null && charAttributes != null) {
-      for (int i = 0; i < maxSize && charArray[i] != null; i++) {
-        rowLength = charArray[i].length;
-        System.arraycopy(charArray[i], 0, cbuf[i], 0, w < rowLength ? w : rowLength);
-        System.arraycopy(charAttributes[i], 0, abuf[i], 0, w < rowLength ? w : rowLength);
+    if (charRows != null && attributeRows != null) {
+      for (int i = 0; i < maxSize && charRows[slot(i)] != null; i++) {
+        int slot = slot(i);
+        rowLength = charRows[slot].length;
+        System.arraycopy(charRows[slot], 0, cbuf[i], 0, w < rowLength ? w : rowLength);
+        System.arraycopy(attributeRows[slot], 0, abuf[i], 0, w < rowLength ? w : rowLength);
       }
     }
 
@@ -862,13 +888,16 @@ public class VDUBuffer {
 
     setCursorPosition(C, R);
 
-    charArray = cbuf;
-    charAttributes = abuf;
+    charRows = cbuf;
+    attributeRows = abuf;
+    firstRow = 0;
     width = w;
     height = h;
     topMargin = 0;
     bottomMargin = h - 1;
     update = new boolean[h + 1];
+    updateStart = new int[h + 1];
+    updateEnd = new int[h + 1];
     update[0] = true;
     /*
      * FIXME: ??? if(resizeStrategy == RESIZE_FONT) setBounds(getBounds());
@@ -901,6 +930,39 @@ public class VDUBuffer {
   public void markLine(int l, int n) {
     for (int i = 0; (i < n) && (l + i < height); i++) {
       update[l + i + 1] = true;
+      updateStart[l + i + 1] = 0;
+      updateEnd[l + i + 1] = width;
+    }
+  }
+
+  /**
+   * Mark characters of a line to be updated with redraw(). The columns to update are kept in
+   * updateStart and updateEnd while update is set for the line.
+   * 
+   * @param c
+   *          starting column
+   * @param l
+   *          line
+   * @param n
+   *          amount of characters to be updated
+   * @see #markLine
+   */
+  public void markColumns(int c, int l, int n) {
+    if (l >= height) {
+      return;
+    }
+    int i = l + 1;
+    if (!update[i]) {
+      updateStart[i] = c;
+      updateEnd[i] = c + n;
+      update[i] = true;
+    } else {
+      if (c < updateStart[i]) {
+        updateStart[i] = c;
+      }
+      if (c + n > updateEnd[i]) {
+        updateEnd[i] = c + n;
+      }
     }
   }
 
@@ -928,4 +990,11 @@ public class VDUBuffer {
       display.redraw();
     }
   }
+
+  /**
+   * Called with each line that drops off the top of the scrollback buffer. The array is reused
+   * once this returns.
+   */
+  protected void discardLine(char[] chars) {
+  }
 }
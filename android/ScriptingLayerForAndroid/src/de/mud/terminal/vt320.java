@@ -109,6 +109,16 @@ public abstract class vt320 extends VDUBuffer implements VDUInput {
         if (c <= 0x7F) {
           if (lastChar != -1) {
             putChar((char) lastChar, isWide, false);
+            lastChar = -1;
+          }
+          // Copy printable text straight to the line.
+          int run = getPlainRun(s, fullwidths, start, start + i, start + len);
+          if (run > 0) {
+            putChars(C, R, s, start + i, run, attributes);
+            C += run;
+            lastwaslf = 0;
+            i += run - 1;
+            continue;
           }
           lastChar = c;
           isWide = false;
@@ -140,6 +150,28 @@ public abstract class vt320 extends VDUBuffer implements VDUInput {
     }
   }
 
+  /**
+   * Counts the characters from position i on that putChar() would just store at the cursor: plain
+   * printable ASCII in the data state, without charset mapping, insert mode or a wrap. The last
+   * one is left out if a non-ASCII character follows, since that may be a combining mark.
+   */
+  private int getPlainRun(char[] s, byte[] fullwidths, int start, int i, int end) {
+    if (term_state != TSTATE_DATA || insertmode != 0 || useibmcharset || onegl >= 0
+        || (usedcharsets && gx[gl] != 'B' && gx[gl] != 'A')) {
+      return 0;
+    }
+    int last = Math.min(end, i + width - C);
+    int j = i;
+    while (j < last && s[j] >= ' ' && s[j] < 0x7F
+        && (fullwidths == null || fullwidths[j - start] == 0)) {
+      j++;
+    }
+    if (j < end && j > i && s[j] > 0x7F) {
+      j--;
+    }
+    return j - i;
+  }
+
   protected void sendTelnetCommand(byte cmd) {
 
   }
@@ -70,6 +70,7 @@ import com.googlecode.android_scripting.R;
 import com.googlecode.android_scripting.ScriptProcess;
 import com.googlecode.android_scripting.activity.Preferences;
 import com.googlecode.android_scripting.activity.ScriptingLayerService;
+import com.googlecode.android_scripting.interpreter.InterpreterConstants;
 
 import de.mud.terminal.VDUBuffer;
 import de.mud.terminal.vt320;
@@ -78,8 +79,17 @@ import org.connectbot.service.PromptHelper;
 import org.connectbot.service.TerminalBridge;
 import org.connectbot.service.TerminalManager;
 import org.connectbot.util.PreferenceConstants;
+import org.connectbot.util.ScrollbackArchive;
 import org.connectbot.util.SelectionArea;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+
 public class ConsoleActivity extends Activity {
 
   protected static final int REQUEST_EDIT = 1;
@@ -87,6 +97,7 @@ public class ConsoleActivity extends Activity {
   private static final int CLICK_TIME = 250;
   private static final float MAX_CLICK_DISTANCE = 25f;
   private static final int KEYBOARD_DISPLAY_TIME = 1250;
+  private static final int SEARCH_LIMIT = 100;
 
   // Direction to shift the ViewFlipper
   private static final int SHIFT_LEFT = 0;
@@ -619,6 +630,12 @@ public class ConsoleActivity extends Activity {
     case R.id.terminal_menu_send_email:
       doEmailTranscript();
       break;
+    case R.id.terminal_menu_export:
+      doExport();
+      break;
+    case R.id.terminal_menu_search:
+      doSearch();
+      break;
     case R.id.terminal_menu_exit_and_edit:
       TerminalView terminalView = (TerminalView) findCurrentView(R.id.console_flip);
       TerminalBridge bridge = terminalView.bridge;
@@ -695,6 +712,106 @@ public class ConsoleActivity extends Activity {
     startActivity(intent);
   }
 
+  private void doExport() {
+    TerminalView terminalView = (TerminalView) findCurrentView(R.id.console_flip);
+    final TerminalBridge bridge = terminalView.bridge;
+    final File file =
+        new File(InterpreterConstants.SDCARD_SL4A_ROOT, "session-" + System.currentTimeMillis()
+            + ".txt");
+    // The archived scrollback can be megabytes, so it is written out off the UI thread.
+    Thread exportThread = new Thread(new Runnable() {
+      public void run() {
+        String message;
+        try {
+          Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file)));
+          try {
+            bridge.exportSession(writer);
+          } finally {
+            writer.close();
+          }
+          message = getString(R.string.terminal_export_done, file.getPath());
+        } catch (IOException e) {
+          Log.e("Failed to export session.", e);
+          message = getString(R.string.terminal_export_failed);
+        }
+        final String text = message;
+        runOnUiThread(new Runnable() {
+          public void run() {
+            Toast.makeText(ConsoleActivity.this, text, Toast.LENGTH_LONG).show();
+          }
+        });
+      }
+    });
+    exportThread.setName("ExportSession");
+    exportThread.setDaemon(true);
+    exportThread.start();
+  }
+
+  private void doSearch() {
+    closeOptionsMenu();
+    TerminalView terminalView = (TerminalView) findCurrentView(R.id.console_flip);
+    final TerminalBridge bridge = terminalView.bridge;
+    final EditText query = new EditText(this);
+    query.setSingleLine(true);
+    new AlertDialog.Builder(ConsoleActivity.this).setTitle(R.string.terminal_search_title)
+        .setView(query).setPositiveButton(R.string.button_search,
+            new DialogInterface.OnClickListener() {
+              public void onClick(DialogInterface dialog, int which) {
+                String text = query.getText().toString();
+                if (text.length() > 0) {
+                  search(bridge, text);
+                }
+              }
+            }).setNegativeButton(android.R.string.cancel, null).create().show();
+  }
+
+  private void search(final TerminalBridge bridge, final String text) {
+    // The archived scrollback is searched on disk, so off the UI thread.
+    Thread searchThread = new Thread(new Runnable() {
+      public void run() {
+        List<String> lines = null;
+        try {
+          lines = bridge.findLines(ScrollbackArchive.contains(text), SEARCH_LIMIT);
+        } catch (IOException e) {
+          Log.e("Failed to search session.", e);
+        }
+        final List<String> found = lines;
+        runOnUiThread(new Runnable() {
+          public void run() {
+            showSearchResults(found);
+          }
+        });
+      }
+    });
+    searchThread.setName("SearchSession");
+    searchThread.setDaemon(true);
+    searchThread.start();
+  }
+
+  private void showSearchResults(List<String> lines) {
+    if (lines == null) {
+      Toast.makeText(ConsoleActivity.this, R.string.terminal_search_failed, Toast.LENGTH_LONG)
+          .show();
+      return;
+    }
+    if (lines.isEmpty()) {
+      Toast.makeText(ConsoleActivity.this, R.string.terminal_search_none, Toast.LENGTH_LONG).show();
+      return;
+    }
+    final String[] items = lines.toArray(new String[lines.size()]);
+    // Picking a line copies it to the clipboard.
+    new AlertDialog.Builder(ConsoleActivity.this).setTitle(
+        getString(R.string.terminal_search_found, items.length)).setItems(items,
+        new DialogInterface.OnClickListener() {
+          public void onClick(DialogInterface dialog, int which) {
+            clipboard.setText(items[which]);
+            Toast.makeText(ConsoleActivity.this,
+                getString(R.string.terminal_copy_done, items[which].length()), Toast.LENGTH_LONG)
+                .show();
+          }
+        }).setNegativeButton(android.R.string.cancel, null).create().show();
+  }
+
   @Override
   public void onCreateContextMenu(ContextMenu menu, View view, ContextMenuInfo menuInfo) {
     TerminalBridge bridge = ((TerminalView) findCurrentView(R.id.console_flip)).bridge;
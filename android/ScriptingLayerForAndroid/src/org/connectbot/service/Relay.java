@@ -148,9 +148,12 @@ public class Relay implements Runnable {
             EastAsianWidth.measure(charArray, 0, charBuffer.position(), wideAttribute,
                 isLegacyEastAsian);
           }
-          buffer.putString(charArray, wideAttribute, 0, charBuffer.position());
+          // The buffer is locked per chunk, so frames never show half a chunk. putString() only
+          // schedules the frame, the view draws it when it is due.
+          synchronized (buffer) {
+            buffer.putString(charArray, wideAttribute, 0, charBuffer.position());
+          }
           charBuffer.clear();
-          bridge.redraw();
         }
       }
     } catch (IOException e) {
@@ -27,6 +27,7 @@ import android.graphics.Paint;
 import android.graphics.Typeface;
 import android.graphics.Bitmap.Config;
 import android.graphics.Paint.FontMetrics;
+import android.os.SystemClock;
 import android.text.ClipboardManager;
 import android.view.ContextMenu;
 import android.view.Menu;
@@ -44,8 +45,11 @@ import de.mud.terminal.VDUBuffer;
 import de.mud.terminal.VDUDisplay;
 import de.mud.terminal.vt320;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.Writer;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -53,6 +57,7 @@ import org.connectbot.TerminalView;
 import org.connectbot.transport.AbsTransport;
 import org.connectbot.util.Colors;
 import org.connectbot.util.PreferenceConstants;
+import org.connectbot.util.ScrollbackArchive;
 import org.connectbot.util.SelectionArea;
 
 /**
@@ -68,6 +73,12 @@ public class TerminalBridge implements VDUDisplay, OnSharedPreferenceChangeListe
 
   private final static int FONT_SIZE_STEP = 2;
 
+  /** The shortest time in milliseconds between two frames, about 60 frames per second. */
+  private final static long FRAME_INTERVAL = 16;
+
+  /** The most compressed scrollback, in bytes, kept on disk for each bridge. */
+  private final static long SCROLLBACK_ARCHIVE_SIZE = 4 * 1024 * 1024;
+
   private final int[] color = new int[Colors.defaults.length];
 
   private final TerminalManager manager;
@@ -79,6 +90,14 @@ public class TerminalBridge implements VDUDisplay, OnSharedPreferenceChangeListe
 
   private int scrollback;
 
+  /*
+   * Lines that drop off the scrollback go to the archive, which is created with the first of them.
+   * archiveDirectory is cleared when archiving stops; the archive stays readable until it is
+   * closed. Both fields are guarded by buffer.
+   */
+  private File archiveDirectory = null;
+  private ScrollbackArchive archive = null;
+
   private String delKey;
   private String encoding;
 
@@ -91,9 +110,17 @@ public class TerminalBridge implements VDUDisplay, OnSharedPreferenceChangeListe
   private Bitmap bitmap = null;
   private final VDUBuffer buffer;
 
-  private TerminalView parent = null;
+  private volatile TerminalView parent = null;
   private final Canvas canvas = new Canvas();
 
+  /*
+   * Output only asks for a frame. Frames are drawn at most every FRAME_INTERVAL, so a flood of
+   * output is painted once per frame instead of once per chunk read.
+   */
+  private final Object frameLock = new Object();
+  private long lastFrameTime = 0; // guarded by frameLock
+  private long frameDueTime = 0; // guarded by frameLock, 0 if no frame is scheduled
+
   private boolean forcedSize = false;
   private int columns;
   private int rows;
@@ -256,8 +283,16 @@ public class TerminalBridge implements VDUDisplay, OnSharedPreferenceChangeListe
           manager.playBeep();
         }
       }
+
+      @Override
+      protected void discardLine(char[] chars) {
+        archiveLine(chars);
+      }
     };
 
+    archiveDirectory =
+        new File(manager.getScrollbackDirectory(), Integer.toString(process.getPort()));
+
     // Don't keep any scrollback if a session is not being opened.
 
     buffer.setBufferSize(scrollback);
@@ -381,6 +416,107 @@ public class TerminalBridge implements VDUDisplay, OnSharedPreferenceChangeListe
     }
   }
 
+  /**
+   * Called with the buffer lock held by the emulator. The archive only copies the line here; it
+   * compresses and writes full blocks on its own thread.
+   */
+  private void archiveLine(char[] chars) {
+    synchronized (buffer) {
+      if (archiveDirectory == null) {
+        // Not archiving, or archiving failed.
+        return;
+      }
+      if (archive == null) {
+        archive = new ScrollbackArchive(archiveDirectory, SCROLLBACK_ARCHIVE_SIZE);
+      }
+      try {
+        archive.addLine(chars);
+      } catch (IOException e) {
+        // Keep what was archived so far searchable and exportable; only stop adding to it.
+        Log.e("Unable to archive scrollback, lines that drop off from now on will be lost.", e);
+        archiveDirectory = null;
+      }
+    }
+  }
+
+  /**
+   * Deletes the archived scrollback. Lines that drop off the scrollback afterwards are lost.
+   */
+  public void closeScrollbackArchive() {
+    synchronized (buffer) {
+      if (archive != null) {
+        archive.close();
+        archive = null;
+      }
+      archiveDirectory = null;
+    }
+  }
+
+  /**
+   * Returns up to limit lines of the session, oldest first, that filter accepts. The archived
+   * scrollback is searched before the lines still in the buffer.
+   */
+  public List<String> findLines(ScrollbackArchive.LineFilter filter, int limit) throws IOException {
+    ScrollbackArchive history;
+    synchronized (buffer) {
+      history = archive;
+    }
+    List<String> result = new ArrayList<String>();
+    if (history != null) {
+      for (ScrollbackArchive.Match match : history.find(filter, 0, limit)) {
+        result.add(match.getText());
+      }
+    }
+    for (String line : getBufferLines()) {
+      if (result.size() == limit) {
+        break;
+      }
+      if (filter.accept(line)) {
+        result.add(line);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Writes the whole session, the archived scrollback followed by the buffer, one line per line.
+   */
+  public void exportSession(Writer writer) throws IOException {
+    ScrollbackArchive history;
+    long end;
+    List<String> lines;
+    synchronized (buffer) {
+      history = archive;
+      end = history == null ? 0 : history.getLineCount();
+      lines = getBufferLines();
+    }
+    if (history != null) {
+      history.export(writer, end);
+    }
+    for (String line : lines) {
+      writer.write(line);
+      writer.write('\n');
+    }
+    writer.flush();
+  }
+
+  /**
+   * Returns the lines in the buffer, leaving out the blank lines at the end of the screen.
+   */
+  private List<String> getBufferLines() {
+    synchronized (buffer) {
+      int rows = buffer.getBufferSize();
+      List<String> lines = new ArrayList<String>(rows);
+      for (int i = 0; i < rows; i++) {
+        lines.add(ScrollbackArchive.trim(buffer.getCharRow(i)));
+      }
+      while (!lines.isEmpty() && lines.get(lines.size() - 1).length() == 0) {
+        lines.remove(lines.size() - 1);
+      }
+      return lines;
+    }
+  }
+
   public void setSelectingForCopy(boolean selectingForCopy) {
     this.selectingForCopy = selectingForCopy;
   }
@@ -547,6 +683,9 @@ public class TerminalBridge implements VDUDisplay, OnSharedPreferenceChangeListe
   public synchronized void parentDestroyed() {
     parent = null;
     discardBitmap();
+    synchronized (frameLock) {
+      frameDueTime = 0;
+    }
   }
 
   private void discardBitmap() {
@@ -558,6 +697,10 @@ public class TerminalBridge implements VDUDisplay, OnSharedPreferenceChangeListe
 
   public void onDraw() {
     int fg, bg;
+    synchronized (frameLock) {
+      lastFrameTime = SystemClock.uptimeMillis();
+      frameDueTime = 0;
+    }
     synchronized (buffer) {
       boolean entireDirty = buffer.update[0] || fullRedraw;
       boolean isWideCharacter = false;
@@ -571,13 +714,18 @@ public class TerminalBridge implements VDUDisplay, OnSharedPreferenceChangeListe
           continue;
         }
 
-        // reset dirty flag for this line
+        // reset dirty flag for this line, only the runs overlapping its dirty columns are drawn
         buffer.update[l + 1] = false;
+        int dirtyStart = entireDirty ? 0 : buffer.updateStart[l + 1];
+        int dirtyEnd = entireDirty ? buffer.width : buffer.updateEnd[l + 1];
+
+        char[] chars = buffer.getCharRow(buffer.windowBase + l);
+        int[] attributes = buffer.getAttributeRow(buffer.windowBase + l);
 
         // walk through all characters in this line
         for (int c = 0; c < buffer.width; c++) {
           int addr = 0;
-          int currAttr = buffer.charAttributes[buffer.windowBase + l][c];
+          int currAttr = attributes[c];
           // check if foreground color attribute is set
           if ((currAttr & VDUBuffer.COLOR_FG) != 0) {
             int fgcolor = ((currAttr & VDUBuffer.COLOR_FG) >> VDUBuffer.COLOR_FG_SHIFT) - 1;
@@ -614,12 +762,20 @@ public class TerminalBridge implements VDUDisplay, OnSharedPreferenceChangeListe
           } else {
             // determine the amount of continuous characters with the same settings and print them
             // all at once
-            while (c + addr < buffer.width
-                && buffer.charAttributes[buffer.windowBase + l][c + addr] == currAttr) {
+            while (c + addr < buffer.width && attributes[c + addr] == currAttr) {
               addr++;
             }
           }
 
+          // skip runs that did not change
+          if (c >= dirtyEnd || c + (isWideCharacter ? 2 : addr) <= dirtyStart) {
+            c += addr - 1;
+            if (isWideCharacter) {
+              c++;
+            }
+            continue;
+          }
+
           // Save the current clip region
           canvas.save(Canvas.CLIP_SAVE_FLAG);
 
@@ -637,8 +793,8 @@ public class TerminalBridge implements VDUDisplay, OnSharedPreferenceChangeListe
           // write the text string starting at 'c' for 'addr' number of characters
           defaultPaint.setColor(fg);
           if ((currAttr & VDUBuffer.INVISIBLE) == 0) {
-            canvas.drawText(buffer.charArray[buffer.windowBase + l], c, addr, c * charWidth,
-                (l * charHeight) - charTop, defaultPaint);
+            canvas.drawText(chars, c, addr, c * charWidth, (l * charHeight) - charTop,
+                defaultPaint);
           }
 
           // Restore the previous clip region
@@ -658,9 +814,29 @@ public class TerminalBridge implements VDUDisplay, OnSharedPreferenceChangeListe
     fullRedraw = false;
   }
 
+  /**
+   * Schedules a frame, unless one is already scheduled. Nothing is drawn while the view is hidden;
+   * the dirty lines are kept until it is shown again.
+   */
   public void redraw() {
-    if (parent != null) {
-      parent.postInvalidate();
+    TerminalView view = parent;
+    if (view == null || !view.isShown()) {
+      return;
+    }
+    long delay;
+    synchronized (frameLock) {
+      long now = SystemClock.uptimeMillis();
+      // A frame that is overdue was dropped, for example because the view was hidden.
+      if (frameDueTime != 0 && now < frameDueTime + FRAME_INTERVAL) {
+        return;
+      }
+      frameDueTime = Math.max(now, lastFrameTime + FRAME_INTERVAL);
+      delay = frameDueTime - now;
+    }
+    if (delay > 0) {
+      view.postInvalidateDelayed(delay);
+    } else {
+      view.postInvalidate();
     }
   }
 
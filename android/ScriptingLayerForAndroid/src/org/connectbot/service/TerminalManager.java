@@ -42,6 +42,7 @@ import com.googlecode.android_scripting.interpreter.InterpreterProcess;
 import org.connectbot.transport.ProcessTransport;
 import org.connectbot.util.PreferenceConstants;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.List;
@@ -162,6 +163,7 @@ public class TerminalManager implements OnSharedPreferenceChangeListener {
     if (killProcess) {
       bridges.remove(bridge);
       mHostBridgeMap.remove(bridge.getId());
+      bridge.closeScrollbackArchive();
       if (mService.getProcess(bridge.getId()).isAlive()) {
         Intent intent = new Intent(mService, mService.getClass());
         intent.setAction(Constants.ACTION_KILL_PROCESS);
@@ -299,6 +301,13 @@ public class TerminalManager implements OnSharedPreferenceChangeListener {
     return mResources;
   }
 
+  /**
+   * Returns the directory that holds the scrollback archive of each bridge.
+   */
+  public File getScrollbackDirectory() {
+    return new File(mService.getCacheDir(), "scrollback");
+  }
+
   public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
     mPreferences.registerOnSharedPreferenceChangeListener(listener);
   }
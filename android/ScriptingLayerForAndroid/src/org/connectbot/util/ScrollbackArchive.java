@@ -0,0 +1,599 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.connectbot.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.googlecode.android_scripting.util.VisibleForTesting;
+
+/**
+ * Keeps the lines that drop off the top of a terminal's scrollback.
+ *
+ * Lines are collected into blocks of {@link #BLOCK_LINES}. A full block is handed to a writer
+ * thread, which deflates it and appends it to the newest segment file in the archive directory, so
+ * adding a line never waits for compression or the disk. Only the index of the blocks on disk is
+ * kept in memory. Once the segments add up to more than the maximum size, the oldest segment is
+ * deleted along with its lines.
+ *
+ * Lines are numbered from the first line ever added, so a line keeps its number when older lines
+ * are dropped.
+ */
+public class ScrollbackArchive {
+
+  public static final int BLOCK_LINES = 128;
+
+  private static final int SEGMENT_COUNT = 8;
+  private static final String SEGMENT_PREFIX = "segment-";
+
+  /**
+   * The number of full blocks that may wait for the writer before the archive gives up.
+   */
+  private static final int MAX_UNWRITTEN_BLOCKS = 64;
+
+  /**
+   * Decides which lines a search returns.
+   */
+  public interface LineFilter {
+    public boolean accept(String line);
+  }
+
+  /** A line found by {@link ScrollbackArchive#find}. */
+  public static class Match {
+    private final long mLine;
+    private final String mText;
+
+    private Match(long line, String text) {
+      mLine = line;
+      mText = text;
+    }
+
+    /** Returns the number of the line. */
+    public long getLine() {
+      return mLine;
+    }
+
+    public String getText() {
+      return mText;
+    }
+  }
+
+  private static class Segment {
+    private final File mFile;
+    private long mSize = 0;
+
+    private Segment(File file) {
+      mFile = file;
+    }
+  }
+
+  private static class Block {
+    private final Segment mSegment;
+    private final long mOffset;
+    private final int mLength;
+    private final int mInflatedLength;
+    private final long mFirstLine;
+
+    private Block(Segment segment, long offset, int length, int inflatedLength, long firstLine) {
+      mSegment = segment;
+      mOffset = offset;
+      mLength = length;
+      mInflatedLength = inflatedLength;
+      mFirstLine = firstLine;
+    }
+  }
+
+  /**
+   * A run of consecutive lines, starting with line number mFirstLine.
+   */
+  private static class Chunk {
+    private final long mFirstLine;
+    private final String[] mLines;
+
+    private Chunk(long firstLine, String[] lines) {
+      mFirstLine = firstLine;
+      mLines = lines;
+    }
+  }
+
+  private final File mDirectory;
+  private final long mMaxSize;
+  private final long mSegmentSize;
+
+  // Guarded by this.
+  private final LinkedList<Segment> mSegments = new LinkedList<Segment>();
+  private final ArrayList<Block> mBlocks = new ArrayList<Block>();
+  private final LinkedList<Chunk> mUnwritten = new LinkedList<Chunk>();
+  private final ArrayList<String> mPending = new ArrayList<String>(BLOCK_LINES);
+  private long mSize = 0;
+  private long mFirstLine = 0;
+  private long mLineCount = 0;
+  private Chunk mCachedChunk;
+  private IOException mError;
+  private boolean mClosed = false;
+
+  // Only used by the writer thread.
+  private final Deflater mDeflater = new Deflater();
+  private FileOutputStream mOutput;
+  private int mNextSegment = 0;
+
+  private final ExecutorService mWriter;
+  private final Runnable mWriteTask = new Runnable() {
+    public void run() {
+      writeBlock();
+    }
+  };
+
+  /**
+   * Creates an archive that keeps its segments in directory. Segments left in the directory by an
+   * earlier archive are deleted.
+   *
+   * @param maxSize
+   *          the number of compressed bytes to keep on disk
+   */
+  public ScrollbackArchive(File directory, long maxSize) {
+    mDirectory = directory;
+    mMaxSize = maxSize;
+    mSegmentSize = Math.max(maxSize / SEGMENT_COUNT, 1);
+    mWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable task) {
+        Thread thread = new Thread(task, "ScrollbackArchive");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    mWriter.execute(new Runnable() {
+      public void run() {
+        deleteSegments();
+      }
+    });
+  }
+
+  /**
+   * Returns the text of a terminal row with its trailing blanks removed.
+   */
+  public static String trim(char[] row) {
+    int end = row.length;
+    while (end > 0 && (row[end - 1] == ' ' || row[end - 1] == 0)) {
+      end--;
+    }
+    return new String(row, 0, end);
+  }
+
+  public static LineFilter contains(final String text) {
+    return new LineFilter() {
+      public boolean accept(String line) {
+        return line.indexOf(text) >= 0;
+      }
+    };
+  }
+
+  public static LineFilter matches(final Pattern pattern) {
+    return new LineFilter() {
+      public boolean accept(String line) {
+        return pattern.matcher(line).find();
+      }
+    };
+  }
+
+  public void addLine(char[] row) throws IOException {
+    addLine(trim(row));
+  }
+
+  public synchronized void addLine(String line) throws IOException {
+    if (mClosed) {
+      throw new IOException("Scrollback archive is closed.");
+    }
+    if (mError != null) {
+      throw new IOException("Unable to write scrollback archive: " + mError.getMessage());
+    }
+    mPending.add(line.replace('\n', ' '));
+    mLineCount++;
+    if (mPending.size() == BLOCK_LINES) {
+      if (mUnwritten.size() == MAX_UNWRITTEN_BLOCKS) {
+        mError = new IOException("Scrollback archive writer fell behind.");
+      }
+      String[] lines = mPending.toArray(new String[BLOCK_LINES]);
+      mUnwritten.add(new Chunk(mLineCount - BLOCK_LINES, lines));
+      mPending.clear();
+      mWriter.execute(mWriteTask);
+    }
+  }
+
+  /**
+   * Returns the number of the oldest line still in the archive.
+   */
+  public synchronized long getFirstLine() {
+    return mFirstLine;
+  }
+
+  /**
+   * Returns the number of the line the next call to addLine will add.
+   */
+  public synchronized long getLineCount() {
+    return mLineCount;
+  }
+
+  /**
+   * Returns the compressed size of the archive on disk.
+   */
+  public synchronized long getSize() {
+    return mSize;
+  }
+
+  /**
+   * Returns the text of a line, or null if the line was dropped or has not been added yet.
+   */
+  public String getLine(long line) throws IOException {
+    Chunk chunk = readChunk(line);
+    if (chunk == null || chunk.mFirstLine > line) {
+      return null;
+    }
+    return chunk.mLines[(int) (line - chunk.mFirstLine)];
+  }
+
+  /**
+   * Returns up to limit lines, starting at line from, that filter accepts.
+   */
+  public List<Match> find(LineFilter filter, long from, int limit) throws IOException {
+    List<Match> result = new ArrayList<Match>();
+    long line = from;
+    Chunk chunk;
+    // Only one block is read at a time, so lines can be added while the search runs.
+    while (result.size() < limit && (chunk = readChunk(line)) != null) {
+      line = Math.max(line, chunk.mFirstLine);
+      for (int i = (int) (line - chunk.mFirstLine); i < chunk.mLines.length; i++) {
+        if (filter.accept(chunk.mLines[i])) {
+          result.add(new Match(chunk.mFirstLine + i, chunk.mLines[i]));
+          if (result.size() == limit) {
+            break;
+          }
+        }
+      }
+      line = chunk.mFirstLine + chunk.mLines.length;
+    }
+    return result;
+  }
+
+  /**
+   * Writes the lines before line end, one per line.
+   */
+  public void export(Writer writer, long end) throws IOException {
+    long line = 0;
+    Chunk chunk;
+    while (line < end && (chunk = readChunk(line)) != null) {
+      line = Math.max(line, chunk.mFirstLine);
+      int stop = (int) Math.min(chunk.mLines.length, end - chunk.mFirstLine);
+      for (int i = (int) (line - chunk.mFirstLine); i < stop; i++) {
+        writer.write(chunk.mLines[i]);
+        writer.write('\n');
+      }
+      line = chunk.mFirstLine + chunk.mLines.length;
+    }
+  }
+
+  /**
+   * Deletes the segments. The archive can not be used afterwards.
+   */
+  public void close() {
+    synchronized (this) {
+      if (mClosed) {
+        return;
+      }
+      mClosed = true;
+      mSegments.clear();
+      mBlocks.clear();
+      mUnwritten.clear();
+      mPending.clear();
+      mCachedChunk = null;
+      mSize = 0;
+      mFirstLine = mLineCount;
+    }
+    // Runs after any block the writer is busy with.
+    mWriter.execute(new Runnable() {
+      public void run() {
+        closeOutput();
+        deleteSegments();
+        mDirectory.delete();
+        mDeflater.end();
+      }
+    });
+    mWriter.shutdown();
+  }
+
+  /**
+   * Waits until the writer has caught up with the blocks added so far, or has finished closing.
+   */
+  @VisibleForTesting
+  void awaitWriter() throws Exception {
+    try {
+      mWriter.submit(new Runnable() {
+        public void run() {
+        }
+      }).get();
+    } catch (RejectedExecutionException e) {
+      mWriter.awaitTermination(10, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Returns the lines of the block that holds line, or of the oldest block if line was dropped.
+   * Returns null once line is past the newest line.
+   *
+   * The block is read without holding the lock, so adding lines does not wait for the disk.
+   */
+  private Chunk readChunk(long line) throws IOException {
+    while (true) {
+      Block block;
+      synchronized (this) {
+        if (line >= mLineCount || mClosed) {
+          return null;
+        }
+        long pendingStart = mLineCount - mPending.size();
+        if (line >= pendingStart) {
+          return new Chunk(pendingStart, mPending.toArray(new String[mPending.size()]));
+        }
+        if (!mUnwritten.isEmpty()
+            && (mBlocks.isEmpty() || line >= mUnwritten.getFirst().mFirstLine)) {
+          return findUnwritten(line);
+        }
+        if (mBlocks.isEmpty()) {
+          return new Chunk(pendingStart, mPending.toArray(new String[mPending.size()]));
+        }
+        block = mBlocks.get(findBlock(line));
+        if (mCachedChunk != null && mCachedChunk.mFirstLine == block.mFirstLine) {
+          return mCachedChunk;
+        }
+      }
+      String[] lines;
+      try {
+        lines = inflate(block);
+      } catch (IOException e) {
+        synchronized (this) {
+          if (!mClosed && mBlocks.contains(block)) {
+            throw e;
+          }
+        }
+        // The segment was dropped while it was read, so look again.
+        continue;
+      }
+      synchronized (this) {
+        mCachedChunk = new Chunk(block.mFirstLine, lines);
+        return mCachedChunk;
+      }
+    }
+  }
+
+  /**
+   * Returns the block waiting for the writer that holds line, or the oldest one if line is older.
+   * Called with the lock held.
+   */
+  private Chunk findUnwritten(long line) {
+    for (Chunk chunk : mUnwritten) {
+      if (line < chunk.mFirstLine + chunk.mLines.length) {
+        return chunk;
+      }
+    }
+    return mUnwritten.getLast();
+  }
+
+  private int findBlock(long line) {
+    int low = 0;
+    int high = mBlocks.size() - 1;
+    while (low < high) {
+      int middle = (low + high + 1) >>> 1;
+      if (mBlocks.get(middle).mFirstLine <= line) {
+        low = middle;
+      } else {
+        high = middle - 1;
+      }
+    }
+    return low;
+  }
+
+  private static String[] inflate(Block block) throws IOException {
+    byte[] data = new byte[block.mLength];
+    RandomAccessFile file = new RandomAccessFile(block.mSegment.mFile, "r");
+    try {
+      file.seek(block.mOffset);
+      file.readFully(data);
+    } finally {
+      file.close();
+    }
+    byte[] text = new byte[block.mInflatedLength];
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(data);
+      int length = 0;
+      while (length < text.length && !inflater.finished()) {
+        int count = inflater.inflate(text, length, text.length - length);
+        if (count == 0 && inflater.needsInput()) {
+          break;
+        }
+        length += count;
+      }
+      if (length != text.length) {
+        throw new IOException("Truncated scrollback block.");
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupt scrollback block: " + e.getMessage());
+    } finally {
+      inflater.end();
+    }
+    return split(new String(text, "UTF-8"));
+  }
+
+  private static String[] split(String text) {
+    List<String> lines = new ArrayList<String>(BLOCK_LINES);
+    int start = 0;
+    int end;
+    while ((end = text.indexOf('\n', start)) >= 0) {
+      lines.add(text.substring(start, end));
+      start = end + 1;
+    }
+    lines.add(text.substring(start));
+    return lines.toArray(new String[lines.size()]);
+  }
+
+  /**
+   * Writes the oldest block waiting for the writer. Runs on the writer thread, and holds the lock
+   * only to pick the block and to add it to the index.
+   */
+  private void writeBlock() {
+    Chunk chunk;
+    Segment segment;
+    synchronized (this) {
+      if (mClosed || mError != null || mUnwritten.isEmpty()) {
+        return;
+      }
+      chunk = mUnwritten.getFirst();
+      segment = mSegments.isEmpty() ? null : mSegments.getLast();
+    }
+    try {
+      byte[] input = join(chunk.mLines).getBytes("UTF-8");
+      byte[] data = deflate(input);
+      boolean started = false;
+      // Only this thread changes the size of a segment.
+      if (segment == null || segment.mSize + data.length > mSegmentSize) {
+        segment = startSegment();
+        started = true;
+      }
+      mOutput.write(data);
+
+      List<Segment> dropped = new ArrayList<Segment>();
+      synchronized (this) {
+        if (mClosed) {
+          return;
+        }
+        if (started) {
+          mSegments.add(segment);
+        }
+        mBlocks.add(new Block(segment, segment.mSize, data.length, input.length, chunk.mFirstLine));
+        segment.mSize += data.length;
+        mSize += data.length;
+        mUnwritten.removeFirst();
+        while (mSize > mMaxSize && mSegments.size() > 1) {
+          dropped.add(dropSegment());
+        }
+      }
+      for (Segment old : dropped) {
+        old.mFile.delete();
+      }
+    } catch (IOException e) {
+      // Reported by the next call to addLine.
+      synchronized (this) {
+        mError = e;
+      }
+    }
+  }
+
+  private static String join(String[] lines) {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < lines.length; i++) {
+      if (i > 0) {
+        text.append('\n');
+      }
+      text.append(lines[i]);
+    }
+    return text.toString();
+  }
+
+  private byte[] deflate(byte[] input) {
+    mDeflater.reset();
+    mDeflater.setInput(input);
+    mDeflater.finish();
+    ByteArrayOutputStream output = new ByteArrayOutputStream(input.length / 4 + 64);
+    byte[] buffer = new byte[4096];
+    while (!mDeflater.finished()) {
+      int count = mDeflater.deflate(buffer);
+      output.write(buffer, 0, count);
+    }
+    return output.toByteArray();
+  }
+
+  private Segment startSegment() throws IOException {
+    closeOutput();
+    if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+      throw new IOException("Unable to create " + mDirectory);
+    }
+    Segment segment = new Segment(new File(mDirectory, SEGMENT_PREFIX + mNextSegment++));
+    mOutput = new FileOutputStream(segment.mFile);
+    return segment;
+  }
+
+  /**
+   * Removes the oldest segment from the index and returns it. Called with the lock held; the caller
+   * deletes the file once the lock is released.
+   */
+  private Segment dropSegment() {
+    Segment segment = mSegments.removeFirst();
+    int count = 0;
+    while (count < mBlocks.size() && mBlocks.get(count).mSegment == segment) {
+      count++;
+    }
+    mBlocks.subList(0, count).clear();
+    if (!mBlocks.isEmpty()) {
+      mFirstLine = mBlocks.get(0).mFirstLine;
+    } else if (!mUnwritten.isEmpty()) {
+      mFirstLine = mUnwritten.getFirst().mFirstLine;
+    } else {
+      mFirstLine = mLineCount - mPending.size();
+    }
+    mSize -= segment.mSize;
+    mCachedChunk = null;
+    return segment;
+  }
+
+  private void closeOutput() {
+    if (mOutput != null) {
+      try {
+        mOutput.close();
+      } catch (IOException e) {
+        // Nothing more is written to this segment.
+      }
+      mOutput = null;
+    }
+  }
+
+  private void deleteSegments() {
+    File[] files = mDirectory.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      if (file.getName().startsWith(SEGMENT_PREFIX)) {
+        file.delete();
+      }
+    }
+  }
+}
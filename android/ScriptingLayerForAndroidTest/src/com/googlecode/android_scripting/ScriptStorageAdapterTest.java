@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.android_scripting;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class ScriptStorageAdapterTest extends TestCase {
+
+  private File mDirectory;
+
+  @Override
+  protected void setUp() throws Exception {
+    mDirectory = File.createTempFile("scripts", "");
+    mDirectory.delete();
+    mDirectory.mkdir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    delete(mDirectory);
+  }
+
+  private void delete(File file) {
+    File[] files = file.listFiles();
+    if (files != null) {
+      for (File child : files) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+  private File create(String name) throws IOException {
+    File file = new File(mDirectory, name);
+    file.createNewFile();
+    return file;
+  }
+
+  public void testListsDirectoriesFirst() throws IOException {
+    File b = create("b.py");
+    File a = create("a.py");
+    File directory = new File(mDirectory, "c");
+    directory.mkdir();
+    assertEquals(Arrays.asList(directory, a, b), ScriptStorageAdapter.listAllScripts(mDirectory));
+  }
+
+  public void testSeesChanges() throws IOException {
+    File a = create("a.py");
+    assertEquals(Arrays.asList(a), ScriptStorageAdapter.listAllScripts(mDirectory));
+    // Both changes land well within the modification time granularity of the last listing.
+    File b = create("b.py");
+    assertEquals(Arrays.asList(a, b), ScriptStorageAdapter.listAllScripts(mDirectory));
+    a.delete();
+    assertEquals(Arrays.asList(b), ScriptStorageAdapter.listAllScripts(mDirectory));
+  }
+
+  public void testReusesOldListing() throws IOException {
+    File a = create("a.py");
+    long modified = System.currentTimeMillis() - 60 * 1000;
+    mDirectory.setLastModified(modified);
+    List<File> scripts = ScriptStorageAdapter.listAllScripts(mDirectory);
+    assertEquals(Arrays.asList(a), scripts);
+    // Callers get their own copy of the listing.
+    scripts.clear();
+    // A change that hides from the modification time is not seen, so the listing was reused.
+    File b = create("b.py");
+    mDirectory.setLastModified(modified);
+    assertEquals(Arrays.asList(a), ScriptStorageAdapter.listAllScripts(mDirectory));
+    mDirectory.setLastModified(modified + 1000);
+    assertEquals(Arrays.asList(a, b), ScriptStorageAdapter.listAllScripts(mDirectory));
+  }
+
+  public void testMissingDirectory() {
+    delete(mDirectory);
+    assertTrue(ScriptStorageAdapter.listAllScripts(mDirectory).isEmpty());
+  }
+}
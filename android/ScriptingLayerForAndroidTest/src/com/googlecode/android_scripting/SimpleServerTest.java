@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.android_scripting;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class SimpleServerTest extends TestCase {
+
+  private static final int WORKERS = 2;
+
+  /**
+   * Answers each line with itself. "wait" blocks until another connection sends "post", the way
+   * eventWait blocks until eventPost. "fail" throws a RuntimeException.
+   */
+  private static class EchoServer extends SimpleServer implements SimpleServer.LineHandlerFactory {
+    private final CountDownLatch mPosted = new CountDownLatch(1);
+
+    @Override
+    protected void handleConnection(Socket socket) {
+      throw new UnsupportedOperationException();
+    }
+
+    public LineHandler createLineHandler() {
+      return new LineHandler() {
+        public void handleLine(String line, Writer out) throws Exception {
+          if (line.equals("wait")) {
+            mPosted.await();
+          } else if (line.equals("post")) {
+            mPosted.countDown();
+          } else if (line.equals("fail")) {
+            throw new IllegalStateException();
+          }
+          out.write(line + "\n");
+        }
+
+        public void close() {
+        }
+      };
+    }
+  }
+
+  /** A server without selector support. */
+  private static class ThreadedServer extends SimpleServer {
+    @Override
+    protected void handleConnection(Socket socket) {
+    }
+  }
+
+  private EchoServer mServer;
+  private InetSocketAddress mAddress;
+  private final List<Socket> mClients = new ArrayList<Socket>();
+
+  @Override
+  protected void setUp() throws Exception {
+    mServer = new EchoServer();
+    mServer.setSelectorMode(WORKERS);
+    InetSocketAddress address = mServer.startLocal(0);
+    mAddress = new InetSocketAddress(address.getHostName(), address.getPort());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    for (Socket client : mClients) {
+      client.close();
+    }
+    mServer.shutdown();
+  }
+
+  private Socket connect() throws IOException {
+    Socket client = new Socket();
+    client.connect(mAddress);
+    client.setSoTimeout(10 * 1000);
+    mClients.add(client);
+    return client;
+  }
+
+  private void send(Socket client, String line) throws IOException {
+    PrintStream out = new PrintStream(client.getOutputStream());
+    out.print(line + "\n");
+    out.flush();
+  }
+
+  private String receive(Socket client) throws IOException {
+    return new BufferedReader(new InputStreamReader(client.getInputStream())).readLine();
+  }
+
+  public void testSelectorModeRequiresLineHandlerFactory() {
+    try {
+      new ThreadedServer().setSelectorMode(WORKERS);
+      fail();
+    } catch (UnsupportedOperationException e) {
+      // Expected.
+    }
+  }
+
+  public void testMoreBlockedConnectionsThanWorkers() throws Exception {
+    List<Socket> waiting = new ArrayList<Socket>();
+    for (int i = 0; i < WORKERS * 3; i++) {
+      Socket client = connect();
+      send(client, "wait");
+      waiting.add(client);
+    }
+    // Every worker is blocked, yet a new connection is still served and can wake the others.
+    Socket poster = connect();
+    send(poster, "post");
+    assertEquals("post", receive(poster));
+    for (Socket client : waiting) {
+      assertEquals("wait", receive(client));
+    }
+  }
+
+  public void testFailingConnectionLeavesOthersServed() throws Exception {
+    Socket healthy = connect();
+    Socket failing = connect();
+    send(failing, "fail");
+    assertNull(receive(failing));
+    send(healthy, "hello");
+    assertEquals("hello", receive(healthy));
+  }
+
+  public void testOverlongLineClosesConnection() throws Exception {
+    Socket healthy = connect();
+    Socket flooding = connect();
+    OutputStream out = flooding.getOutputStream();
+    byte[] chunk = new byte[64 * 1024];
+    Arrays.fill(chunk, (byte) 'x');
+    try {
+      for (int i = 0; i < 17 * 16; i++) {
+        out.write(chunk);
+      }
+      out.flush();
+    } catch (IOException e) {
+      // The server may close the connection while we are still writing.
+    }
+    try {
+      assertEquals(-1, flooding.getInputStream().read());
+    } catch (IOException e) {
+      // Or the connection was reset.
+    }
+    send(healthy, "hello");
+    assertEquals("hello", receive(healthy));
+    assertTrue(waitForConnections(1));
+  }
+
+  private boolean waitForConnections(int count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+    while (mServer.getNumberOfConnections() != count) {
+      if (System.currentTimeMillis() > deadline) {
+        return false;
+      }
+      Thread.sleep(10);
+    }
+    return true;
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.android_scripting;
+
+import com.trilead.ssh2.StreamGobbler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class StreamGobblerTest extends TestCase {
+
+  private File mLog;
+
+  @Override
+  protected void setUp() throws Exception {
+    mLog = File.createTempFile("gobbler", ".log");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    mLog.delete();
+    for (int i = 1; i <= 2; i++) {
+      new File(mLog.getPath() + "." + i).delete();
+    }
+  }
+
+  private static byte[] readFile(File file) throws IOException {
+    InputStream input = new FileInputStream(file);
+    try {
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      byte[] buffer = new byte[1024];
+      int count;
+      while ((count = input.read(buffer)) > 0) {
+        output.write(buffer, 0, count);
+      }
+      return output.toByteArray();
+    } finally {
+      input.close();
+    }
+  }
+
+  private static byte[] data(int length) {
+    byte[] data = new byte[length];
+    for (int i = 0; i < length; i++) {
+      data[i] = (byte) (i * 31 + i / 256);
+    }
+    return data;
+  }
+
+  private void waitForLog(int length) throws InterruptedException {
+    for (int i = 0; i < 500 && mLog.length() < length; i++) {
+      Thread.sleep(10);
+    }
+  }
+
+  public void testReadAndLog() throws Exception {
+    PipedOutputStream source = new PipedOutputStream();
+    StreamGobbler gobbler = new StreamGobbler(new PipedInputStream(source), mLog, 64);
+    byte[] data = data(10000);
+    byte[] read = new byte[data.length];
+    int position = 0;
+    for (int offset = 0; offset < data.length; offset += 40) {
+      source.write(data, offset, 40);
+      // Wakes up the reading end of the pipe.
+      source.flush();
+      while (position < offset + 40) {
+        position += gobbler.read(read, position, read.length - position);
+      }
+      // Don't let the gobbler overwrite data the log thread has yet to write.
+      waitForLog(position);
+    }
+    source.close();
+    assertEquals(-1, gobbler.read());
+    assertTrue(Arrays.equals(data, read));
+    waitForLog(data.length);
+    assertTrue(Arrays.equals(data, readFile(mLog)));
+  }
+
+  public void testStartLog() throws Exception {
+    PipedOutputStream source = new PipedOutputStream();
+    StreamGobbler gobbler = new StreamGobbler(new PipedInputStream(source), null, 256);
+    byte[] data = data(100);
+    source.write(data, 0, 30);
+    source.flush();
+    // Wait for the gobbler to consume the data that must not be logged.
+    while (gobbler.available() < 30) {
+      Thread.sleep(10);
+    }
+    gobbler.startLog(mLog, StreamGobbler.DEFAULT_MAX_LOG_SIZE, StreamGobbler.DEFAULT_LOG_BACKUPS);
+    source.write(data, 30, 70);
+    source.close();
+    waitForLog(70);
+    assertTrue(Arrays.equals(Arrays.copyOfRange(data, 30, 100), readFile(mLog)));
+  }
+
+  public void testOverwritesOldestUnreadData() throws Exception {
+    PipedOutputStream source = new PipedOutputStream();
+    StreamGobbler gobbler = new StreamGobbler(new PipedInputStream(source), null, 16);
+    byte[] data = data(100);
+    source.write(data);
+    source.flush();
+    source.close();
+    // Wait for the gobbler to consume everything.
+    Thread.sleep(200);
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    int b;
+    while ((b = gobbler.read()) >= 0) {
+      output.write(b);
+    }
+    byte[] read = output.toByteArray();
+    assertTrue(read.length > 0 && read.length <= 16);
+    assertTrue(Arrays.equals(Arrays.copyOfRange(data, data.length - read.length, data.length), read));
+  }
+
+  public void testLogRotation() throws Exception {
+    RotatingFileOutputStream output = new RotatingFileOutputStream(mLog, 10, 2);
+    byte[] data = data(35);
+    output.write(data, 0, 12);
+    output.write(data, 12, 23);
+    output.close();
+    assertTrue(Arrays.equals(Arrays.copyOfRange(data, 30, 35), readFile(mLog)));
+    assertTrue(Arrays.equals(Arrays.copyOfRange(data, 20, 30), readFile(output.getBackup(1))));
+    assertTrue(Arrays.equals(Arrays.copyOfRange(data, 10, 20), readFile(output.getBackup(2))));
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.android_scripting.event;
+
+import junit.framework.TestCase;
+
+public class EventFilterTest extends TestCase {
+
+  public void testRejectAll() {
+    EventFilter filter = new EventFilter(false, 0, false);
+    assertFalse(filter.accept(0));
+    assertFalse(filter.accept(1000));
+  }
+
+  public void testMinInterval() {
+    EventFilter filter = new EventFilter(true, 100, false);
+    assertTrue(filter.accept(1000));
+    assertFalse(filter.accept(1020));
+    assertFalse(filter.accept(1099));
+    assertTrue(filter.accept(1100));
+    assertFalse(filter.accept(1150));
+  }
+
+  public void testPostQueuesAcceptedEvents() {
+    EventQueue queue = new EventQueue(4);
+    EventFilter filter = new EventFilter(true, 100, true);
+    filter.post(queue, new Event("sensors", 1), 1000);
+    filter.post(queue, new Event("sensors", 2), 1050);
+    filter.post(queue, new Event("sensors", 3), 1100);
+    assertEquals(1, queue.size());
+    assertEquals(3, queue.poll().getData());
+  }
+
+  public void testPostWakesWaitersForRejectedEvents() throws InterruptedException {
+    final EventQueue queue = new EventQueue(4);
+    final EventFilter filter = new EventFilter(false, 0, false);
+    new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException e) {
+          return;
+        }
+        filter.post(queue, new Event("filtered", 0), 1000);
+      }
+    }.start();
+    Event event = queue.waitFor("filtered", 5000);
+    assertNotNull(event);
+    assertEquals("filtered", event.getName());
+    assertEquals(0, queue.size());
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.android_scripting.event;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class EventQueueTest extends TestCase {
+
+  public void testFifoAndEviction() {
+    EventQueue queue = new EventQueue(3);
+    for (int i = 0; i < 5; i++) {
+      queue.add(new Event(i % 2 == 0 ? "even" : "odd", i));
+    }
+    assertEquals(3, queue.size());
+    List<Event> events = queue.poll(10);
+    assertEquals(3, events.size());
+    assertEquals(2, events.get(0).getData());
+    assertEquals(3, events.get(1).getData());
+    assertEquals(4, events.get(2).getData());
+    assertNull(queue.poll());
+  }
+
+  public void testPeekByName() {
+    EventQueue queue = new EventQueue(4);
+    queue.add(new Event("a", 0));
+    queue.add(new Event("b", 1));
+    queue.add(new Event("a", 2));
+    assertEquals(1, queue.peek("b").getData());
+    assertEquals(0, queue.peek("a").getData());
+    queue.poll();
+    assertEquals(2, queue.peek("a").getData());
+    queue.clear();
+    assertNull(queue.peek("a"));
+    assertEquals(0, queue.size());
+  }
+
+  public void testReplace() {
+    EventQueue queue = new EventQueue(4);
+    queue.replace(new Event("sensors", 0));
+    queue.add(new Event("battery", 1));
+    queue.replace(new Event("sensors", 2));
+    assertEquals(2, queue.size());
+    List<Event> events = queue.poll(2);
+    assertEquals(2, events.get(0).getData());
+    assertEquals(1, events.get(1).getData());
+  }
+
+  public void testWaitForQueuedEvent() throws InterruptedException {
+    final EventQueue queue = new EventQueue(4);
+    new Thread() {
+      @Override
+      public void run() {
+        queue.add(new Event("other", 0));
+        queue.add(new Event("wanted", 1));
+      }
+    }.start();
+    Event event = queue.waitFor("wanted", 5000);
+    assertEquals(1, event.getData());
+    // waitFor() leaves the event in the queue.
+    assertEquals(2, queue.size());
+  }
+
+  public void testTakeDispatchedEvent() throws InterruptedException {
+    final EventQueue queue = new EventQueue(4);
+    new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException e) {
+          return;
+        }
+        queue.dispatch(new Event("unqueued", 0));
+      }
+    }.start();
+    Event event = queue.take(5000);
+    assertEquals("unqueued", event.getName());
+    assertEquals(0, queue.size());
+  }
+
+  public void testDropsUnusedNames() throws InterruptedException {
+    EventQueue queue = new EventQueue(4);
+    for (int i = 0; i < 100; i++) {
+      queue.add(new Event("job-" + i, null));
+    }
+    assertEquals(4, queue.getIndexedNameCount());
+    queue.poll(2);
+    assertEquals(2, queue.getIndexedNameCount());
+    queue.clear();
+    assertEquals(0, queue.getIndexedNameCount());
+    for (int i = 0; i < 100; i++) {
+      assertNull(queue.waitFor("wait-" + i, 0));
+    }
+    assertEquals(0, queue.getIndexedNameCount());
+  }
+
+  public void testTimeout() throws InterruptedException {
+    EventQueue queue = new EventQueue(4);
+    assertNull(queue.take(10));
+    assertNull(queue.waitFor("missing", 10));
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.android_scripting.facade;
+
+import com.googlecode.android_scripting.event.Event;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+public class EventServerTest extends TestCase {
+
+  private Socket connect(EventServer server) throws IOException, InterruptedException {
+    int listeners = getListenerCount(server);
+    Socket client = new Socket();
+    client.connect(new InetSocketAddress("localhost", server.getAddress().getPort()));
+    // Wait for the server to register the listener.
+    while (getListenerCount(server) == listeners) {
+      Thread.sleep(10);
+    }
+    return client;
+  }
+
+  private int getListenerCount(EventServer server) {
+    return ((List<?>) server.getStatistics().get("listeners")).size();
+  }
+
+  public void testFanOut() throws Exception {
+    EventServer server = new EventServer(0);
+    Socket first = connect(server);
+    Socket second = connect(server);
+    server.onEventReceived(new Event("test", "data"));
+    assertEvent("test", first);
+    assertEvent("test", second);
+    assertEquals(1L, server.getStatistics().get("dispatched"));
+    first.close();
+    second.close();
+    server.shutdown();
+  }
+
+  public void testDisconnectSlowListener() throws Exception {
+    EventServer server = new EventServer(0, EventServer.OverflowPolicy.DISCONNECT, 1);
+    Socket client = connect(server);
+    // Never read, so that the socket buffers and then the queue fill up.
+    StringBuilder data = new StringBuilder();
+    for (int i = 0; i < 64 * 1024; i++) {
+      data.append('x');
+    }
+    Map<String, Object> statistics;
+    do {
+      server.onEventReceived(new Event("test", data.toString()));
+      statistics = server.getStatistics();
+    } while ((Long) statistics.get("disconnected") == 0);
+    assertEquals(0L, statistics.get("dropped"));
+    client.close();
+    server.shutdown();
+  }
+
+  private void assertEvent(String name, Socket client) throws IOException, JSONException {
+    BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+    assertEquals(name, new JSONObject(in.readLine()).getString("name"));
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.android_scripting.facade;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class FrameHubTest extends TestCase {
+
+  private FrameHub mHub;
+
+  @Override
+  protected void setUp() throws Exception {
+    mHub = new FrameHub();
+  }
+
+  private FrameHub.Frame publish(int value) throws IOException {
+    FrameHub.Frame frame = mHub.obtain(1);
+    frame.getOutputStream().write(new byte[] { (byte) value, (byte) value });
+    mHub.publish(frame);
+    return frame;
+  }
+
+  public void testSlowClientSkipsFrames() throws Exception {
+    FrameHub.Client fast = mHub.addClient();
+    FrameHub.Client slow = mHub.addClient();
+    publish(1);
+    FrameHub.Frame frame = fast.take();
+    assertEquals(2, frame.getLength());
+    assertEquals(1, frame.getData()[0]);
+    fast.release(frame, 2);
+    publish(2);
+    publish(3);
+    frame = slow.take();
+    assertEquals(3, frame.getData()[0]);
+    slow.release(frame, 2);
+    frame = fast.take();
+    assertEquals(3, frame.getData()[0]);
+    fast.release(frame, 2);
+
+    List<Map<String, Object>> statistics = mHub.getStatistics();
+    assertEquals(2L, statistics.get(0).get("frames"));
+    assertEquals(4L, statistics.get(0).get("bytes"));
+    assertEquals(1L, statistics.get(0).get("dropped"));
+    assertEquals(2L, statistics.get(1).get("dropped"));
+  }
+
+  public void testBuffersAreReused() throws Exception {
+    FrameHub.Client client = mHub.addClient();
+    FrameHub.Frame first = publish(1);
+    client.release(client.take(), 2);
+    publish(2);
+    client.release(client.take(), 2);
+    // The first frame is no longer referenced by the hub or the client.
+    assertSame(first, mHub.obtain(1));
+  }
+
+  public void testCloseWakesClients() throws Exception {
+    final FrameHub.Client client = mHub.addClient();
+    final Object[] result = { "not returned" };
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          result[0] = client.take();
+        } catch (InterruptedException e) {
+        }
+      }
+    };
+    thread.start();
+    mHub.close();
+    thread.join(5000);
+    assertNull(result[0]);
+    assertEquals(0, mHub.getClientCount());
+  }
+}
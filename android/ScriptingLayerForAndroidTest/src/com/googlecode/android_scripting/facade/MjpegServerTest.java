@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.android_scripting.facade;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import junit.framework.TestCase;
+
+public class MjpegServerTest extends TestCase {
+
+  private FrameHub mHub;
+  private MjpegServer mServer;
+  private int mPort;
+
+  @Override
+  protected void setUp() throws Exception {
+    mHub = new FrameHub();
+    mServer = new MjpegServer(mHub);
+    mPort = mServer.startLocal(0).getPort();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    mServer.shutdown();
+    mHub.close();
+  }
+
+  private void publish(byte[] jpeg) throws IOException {
+    FrameHub.Frame frame = mHub.obtain(jpeg.length);
+    frame.getOutputStream().write(jpeg);
+    mHub.publish(frame);
+  }
+
+  private Socket connect() throws IOException {
+    Socket socket = new Socket();
+    socket.connect(new InetSocketAddress("localhost", mPort));
+    socket.setSoTimeout(5000);
+    return socket;
+  }
+
+  private static String readLine(InputStream input) throws IOException {
+    StringBuilder line = new StringBuilder();
+    int c;
+    while ((c = input.read()) != '\n' && c >= 0) {
+      line.append((char) c);
+    }
+    return line.toString().trim();
+  }
+
+  /** Reads a response and returns its body. Fails unless the status is {@code status}. */
+  private static byte[] readResponse(InputStream input, String status) throws IOException {
+    assertEquals("HTTP/1.1 " + status, readLine(input));
+    int length = 0;
+    String line;
+    while ((line = readLine(input)).length() > 0) {
+      if (line.startsWith("Content-Length: ")) {
+        length = Integer.parseInt(line.substring("Content-Length: ".length()));
+      }
+    }
+    byte[] body = new byte[length];
+    for (int i = 0; i < length; i++) {
+      body[i] = (byte) input.read();
+    }
+    return body;
+  }
+
+  public void testSnapshotKeepAlive() throws Exception {
+    publish(new byte[] { 1, 2, 3 });
+    Socket socket = connect();
+    OutputStream output = socket.getOutputStream();
+    InputStream input = new BufferedInputStream(socket.getInputStream());
+    output.write("GET /snapshot HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes());
+    assertEquals(3, readResponse(input, "200 OK").length);
+    publish(new byte[] { 4, 5 });
+    output.write("GET /snapshot HTTP/1.1\r\n\r\nGET /missing HTTP/1.1\r\n\r\n".getBytes());
+    byte[] body = readResponse(input, "200 OK");
+    assertEquals(2, body.length);
+    assertEquals(4, body[0]);
+    readResponse(input, "404 Not Found");
+    output.write("GET /snapshot HTTP/1.1\r\nConnection: close\r\n\r\n".getBytes());
+    readResponse(input, "200 OK");
+    assertEquals(-1, input.read());
+    socket.close();
+  }
+
+  public void testStream() throws Exception {
+    Socket socket = connect();
+    socket.getOutputStream().write("GET /stream?fps=100 HTTP/1.1\r\n\r\n".getBytes());
+    InputStream input = new BufferedInputStream(socket.getInputStream());
+    while (mHub.getClientCount() == 0) {
+      Thread.sleep(10);
+    }
+    publish(new byte[] { 7, 7, 7, 7 });
+    assertEquals("HTTP/1.1 200 OK", readLine(input));
+    while (readLine(input).length() > 0) {
+    }
+    assertEquals("--BoundaryString", readLine(input));
+    assertEquals("Content-type: image/jpg", readLine(input));
+    assertEquals("Content-Length: 4", readLine(input));
+    socket.close();
+  }
+}
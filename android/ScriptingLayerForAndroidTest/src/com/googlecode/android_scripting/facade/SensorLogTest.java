@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.android_scripting.facade;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+public class SensorLogTest extends TestCase {
+
+  // Samples are taken every 10 ms from 5 s after boot, which was 1 s after the epoch.
+  private static final long BOOT = 5000L * 1000000;
+  private static final long EPOCH_OFFSET = 1000L * 1000000 - BOOT;
+
+  private File mFile;
+
+  @Override
+  protected void setUp() throws Exception {
+    mFile = File.createTempFile("sensors", ".log");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    mFile.delete();
+  }
+
+  private void writeSamples(int count, int indexInterval) throws IOException {
+    SensorLogWriter writer = new SensorLogWriter(mFile, indexInterval);
+    writer.setEpochOffset(EPOCH_OFFSET);
+    for (int i = 0; i < count; i++) {
+      writer.write(1 + i % 2, BOOT + 10L * 1000000 * i, i, -i, i / 2f);
+    }
+    writer.close();
+  }
+
+  public void testRoundTrip() throws IOException {
+    writeSamples(100, 8);
+    SensorLogReader reader = new SensorLogReader(mFile);
+    SensorLogReader.Sample sample = new SensorLogReader.Sample();
+    for (int i = 0; i < 100; i++) {
+      assertTrue(reader.next(sample));
+      assertEquals(1 + i % 2, sample.getSensorType());
+      assertEquals(BOOT + 10L * 1000000 * i, sample.getTimestamp());
+      assertEquals(1000 + 10 * i, sample.getTime());
+      assertEquals((float) i, sample.getValue(0), 0);
+      assertEquals((float) -i, sample.getValue(1), 0);
+      assertEquals(i / 2f, sample.getValue(2), 0);
+    }
+    assertFalse(reader.next(sample));
+    reader.close();
+  }
+
+  public void testSeek() throws IOException {
+    writeSamples(1000, 16);
+    SensorLogReader reader = new SensorLogReader(mFile);
+    SensorLogReader.Sample sample = new SensorLogReader.Sample();
+    // Exact matches, times between samples and block boundaries.
+    long[] targets = { 1000, 1005, 1160, 1155, 5000, 10990 };
+    for (long target : targets) {
+      reader.seek(target);
+      assertTrue(reader.next(sample));
+      assertEquals((target - 1000 + 9) / 10 * 10 + 1000, sample.getTime());
+    }
+    reader.seek(0);
+    assertTrue(reader.next(sample));
+    assertEquals(1000, sample.getTime());
+    reader.seek(20000);
+    assertFalse(reader.next(sample));
+    reader.close();
+  }
+
+  public void testEmptyLog() throws IOException {
+    writeSamples(0, 16);
+    SensorLogReader reader = new SensorLogReader(mFile);
+    SensorLogReader.Sample sample = new SensorLogReader.Sample();
+    reader.seek(0);
+    assertFalse(reader.next(sample));
+    reader.close();
+  }
+
+  public void testEpochOffsetIsFixedByFirstSample() throws IOException {
+    SensorLogWriter writer = new SensorLogWriter(mFile, 16);
+    writer.write(1, BOOT, 0, 0, 0);
+    try {
+      writer.setEpochOffset(EPOCH_OFFSET);
+      fail();
+    } catch (IllegalStateException e) {
+      // Expected.
+    } finally {
+      writer.close();
+    }
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.android_scripting.facade;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class SensorPipelineTest extends TestCase {
+
+  private static final String[] AXES = { "xforce", "yforce", "zforce" };
+  private static final long MS = 1000000;
+
+  private SensorPipeline build(SensorPipeline.Stage... stages) {
+    List<SensorPipeline.Stage> list = new ArrayList<SensorPipeline.Stage>();
+    list.addAll(Arrays.asList(stages));
+    return new SensorPipeline(AXES, list);
+  }
+
+  public void testDecimate() {
+    SensorPipeline pipeline = build(new SensorPipeline.Decimate(3));
+    int passed = 0;
+    for (int i = 0; i < 9; i++) {
+      if (pipeline.process(i, new float[] { i, 0, 0 })) {
+        passed++;
+        assertEquals(i, pipeline.getOutput(0), 0);
+      }
+    }
+    assertEquals(3, passed);
+  }
+
+  public void testMagnitudeWindow() {
+    SensorPipeline pipeline =
+        build(new SensorPipeline.Magnitude(), new SensorPipeline.Window(4));
+    assertEquals(Arrays.asList("magnitude_min", "magnitude_max", "magnitude_mean", "magnitude_var"),
+        Arrays.asList(pipeline.getOutputNames()));
+    float[][] samples = { { 3, 4, 0 }, { 0, 0, 1 }, { 0, 3, 0 }, { 0, 0, 7 } };
+    for (int i = 0; i < 3; i++) {
+      assertFalse(pipeline.process(i, samples[i]));
+    }
+    assertTrue(pipeline.process(3, samples[3]));
+    assertEquals(1, pipeline.getOutput(0), 1e-9);
+    assertEquals(7, pipeline.getOutput(1), 1e-9);
+    assertEquals(4, pipeline.getOutput(2), 1e-9);
+    assertEquals(5, pipeline.getOutput(3), 1e-9);
+  }
+
+  public void testLowAndHighPass() {
+    SensorPipeline low = build(new SensorPipeline.LowPass(0.5));
+    SensorPipeline high = build(new SensorPipeline.HighPass(0.5));
+    low.process(0, new float[] { 0, 0, 0 });
+    high.process(0, new float[] { 0, 0, 0 });
+    low.process(1, new float[] { 8, 0, 0 });
+    high.process(1, new float[] { 8, 0, 0 });
+    assertEquals(4, low.getOutput(0), 1e-9);
+    assertEquals(4, high.getOutput(0), 1e-9);
+    for (int i = 2; i < 100; i++) {
+      high.process(i, new float[] { 8, 0, 0 });
+    }
+    assertEquals(0, high.getOutput(0), 1e-6);
+  }
+
+  public void testThresholdHysteresisAndDebounce() {
+    SensorPipeline pipeline =
+        build(new SensorPipeline.Magnitude(), new SensorPipeline.Threshold(10, 5, 20));
+    // A short spike is debounced.
+    assertFalse(pipeline.process(0, new float[] { 12, 0, 0 }));
+    assertFalse(pipeline.process(10 * MS, new float[] { 1, 0, 0 }));
+    // A sustained crossing is reported once.
+    assertFalse(pipeline.process(20 * MS, new float[] { 12, 0, 0 }));
+    assertTrue(pipeline.process(40 * MS, new float[] { 12, 0, 0 }));
+    assertEquals(1, pipeline.getOutput(1), 0);
+    assertFalse(pipeline.process(80 * MS, new float[] { 12, 0, 0 }));
+    // Values between the thresholds do not return.
+    assertFalse(pipeline.process(100 * MS, new float[] { 7, 0, 0 }));
+    assertFalse(pipeline.process(200 * MS, new float[] { 7, 0, 0 }));
+    assertFalse(pipeline.process(210 * MS, new float[] { 2, 0, 0 }));
+    assertTrue(pipeline.process(230 * MS, new float[] { 2, 0, 0 }));
+    assertEquals(0, pipeline.getOutput(1), 0);
+  }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.android_scripting.facade;
+
+import junit.framework.TestCase;
+
+public class SensorSampleBufferTest extends TestCase {
+
+  public void testReadInOrder() {
+    SensorSampleBuffer buffer = new SensorSampleBuffer(4, 3);
+    buffer.write(1, new float[] { 1, 2, 3 });
+    buffer.write(2, new float[] { 4, 5, 6 });
+    SensorSampleBuffer.Batch batch = buffer.read(10);
+    assertEquals(2, batch.getTimes().length);
+    assertEquals(1, batch.getTimes()[0]);
+    assertEquals(2, batch.getTimes()[1]);
+    assertEquals(4f, batch.getValues(0)[1], 0);
+    assertEquals(6f, batch.getValues(2)[1], 0);
+    assertEquals(0, batch.getDropped());
+    assertEquals(0, buffer.size());
+  }
+
+  public void testOverwriteOldest() {
+    SensorSampleBuffer buffer = new SensorSampleBuffer(2, 1);
+    for (int i = 0; i < 5; i++) {
+      buffer.write(i, new float[] { i });
+    }
+    SensorSampleBuffer.Batch batch = buffer.read(1);
+    assertEquals(3, batch.getTimes()[0]);
+    assertEquals(3, batch.getDropped());
+    batch = buffer.read(1);
+    assertEquals(4f, batch.getValues(0)[0], 0);
+    assertEquals(0, batch.getDropped());
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.android_scripting.jsonrpc;
+
+import android.net.wifi.ScanResult;
+import android.os.Bundle;
+
+import com.googlecode.android_scripting.Log;
+
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Measures {@link JsonBuilder} on typical RPC results: batches of sensor readings and Wi-Fi scans.
+ * Results are logged in us/op for both the tree and the streaming output.
+ */
+public class JsonBuilderBenchmark extends TestCase {
+
+  private static final int WARMUP = 200;
+  private static final int ITERATIONS = 1000;
+  private static final int PAYLOAD_SIZE = 100;
+
+  public void testSensorBundles() throws Exception {
+    List<Bundle> readings = new ArrayList<Bundle>(PAYLOAD_SIZE);
+    for (int i = 0; i < PAYLOAD_SIZE; i++) {
+      Bundle reading = new Bundle();
+      reading.putDouble("time", 1280000000.0 + i / 50.0);
+      reading.putInt("accuracy", 3);
+      reading.putDouble("xforce", Math.sin(i));
+      reading.putDouble("yforce", Math.cos(i));
+      reading.putDouble("zforce", 9.81);
+      readings.add(reading);
+    }
+    report("sensor bundles", readings);
+  }
+
+  public void testScanResults() throws Exception {
+    Constructor<ScanResult> constructor;
+    try {
+      // The only constructor is hidden, but this is what WifiFacade returns.
+      constructor =
+          ScanResult.class.getDeclaredConstructor(String.class, String.class, String.class,
+              int.class, int.class);
+    } catch (NoSuchMethodException e) {
+      Log.w("ScanResult constructor not available. Skipping benchmark.");
+      return;
+    }
+    constructor.setAccessible(true);
+    List<ScanResult> results = new ArrayList<ScanResult>(PAYLOAD_SIZE);
+    for (int i = 0; i < PAYLOAD_SIZE; i++) {
+      results.add(constructor.newInstance("network" + i, String.format("00:11:22:33:44:%02x", i),
+          "[WPA2-PSK-CCMP]", -40 - i % 50, 2412 + 5 * (i % 11)));
+    }
+    report("scan results", results);
+  }
+
+  private void report(String name, Object payload) throws Exception {
+    StringBuilder out = new StringBuilder();
+    for (int i = 0; i < WARMUP; i++) {
+      JsonBuilder.build(payload);
+      out.setLength(0);
+      JsonBuilder.write(payload, out);
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      JsonBuilder.build(payload).toString();
+    }
+    long build = (System.nanoTime() - start) / ITERATIONS / 1000;
+    start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      out.setLength(0);
+      JsonBuilder.write(payload, out);
+    }
+    long write = (System.nanoTime() - start) / ITERATIONS / 1000;
+    Log.v(String.format("JsonBuilder %d %s: build %d us/op, write %d us/op", PAYLOAD_SIZE, name,
+        build, write));
+  }
+}
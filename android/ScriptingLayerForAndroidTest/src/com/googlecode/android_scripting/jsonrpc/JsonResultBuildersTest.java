@@ -19,7 +19,9 @@ package com.googlecode.android_scripting.jsonrpc;
 import com.googlecode.android_scripting.jsonrpc.JsonBuilder;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -30,6 +32,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import android.content.Intent;
+import android.os.Bundle;
 
 public class JsonResultBuildersTest extends TestCase {
 
@@ -71,4 +74,35 @@ public class JsonResultBuildersTest extends TestCase {
     JSONObject nestedExtras = (JSONObject) nestedJson.get("extras");
     assertEquals(nestedExtras.getInt("baz"), 123);
   }
+
+  public void testWriteMatchesBuild() throws JSONException {
+    Bundle bundle = new Bundle();
+    bundle.putFloat("float", 0.1f);
+    bundle.putDouble("double", 2.0);
+    bundle.putLong("long", 1L << 40);
+    bundle.putString("escaped", "\"quoted\" \\ / </tag>\n\t\u0001");
+    bundle.putString("null", null);
+    Map<String, Object> map = new HashMap<String, Object>();
+    map.put("bundle", bundle);
+    map.put("list", new Object[] { 1, "two", null, new JSONObject(), true });
+    map.put("bytes", new byte[] { 1, 2, 3 });
+    Intent intent = new Intent("action");
+    intent.putExtra("extra", 42);
+    map.put("intent", intent);
+    StringBuilder out = new StringBuilder();
+    JsonBuilder.write(map, out);
+    assertEquals(JsonBuilder.build(map).toString(), out.toString());
+  }
+
+  public void testWriteResultMatchesResult() throws JSONException {
+    List<String> data = new ArrayList<String>();
+    data.add("foo");
+    StringBuilder out = new StringBuilder();
+    JsonRpcResult.writeResult(7, data, out);
+    assertEquals(JsonRpcResult.result(7, data).toString(), out.toString());
+    out.setLength(0);
+    Exception error = new Exception("bar");
+    JsonRpcResult.writeError(7, error, out);
+    assertEquals(JsonRpcResult.error(7, error).toString(), out.toString());
+  }
 }
@@ -17,11 +17,15 @@
 package com.googlecode.android_scripting.jsonrpc;
 
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import junit.framework.TestCase;
@@ -42,6 +46,26 @@ public class JsonRpcServerTest extends TestCase {
     return request.toString();
   }
 
+  private RpcReceiverManagerFactory buildEmptyFactory() {
+    return new RpcReceiverManagerFactory() {
+      private final List<RpcReceiverManager> mManagers = new ArrayList<RpcReceiverManager>();
+
+      @Override
+      public RpcReceiverManager create() {
+        RpcReceiverManager manager =
+            new RpcReceiverManager(Collections.<Class<? extends RpcReceiver>> emptyList()) {
+            };
+        mManagers.add(manager);
+        return manager;
+      }
+
+      @Override
+      public List<RpcReceiverManager> getRpcReceiverManagers() {
+        return mManagers;
+      }
+    };
+  }
+
   public void testValidHandshake() throws IOException, JSONException {
     JsonRpcServer server = new JsonRpcServer(null, "foo");
     InetSocketAddress address = server.startLocal(0);
@@ -57,6 +81,45 @@ public class JsonRpcServerTest extends TestCase {
     server.shutdown();
   }
 
+  public void testValidHandshakeInSelectorMode() throws IOException, JSONException {
+    JsonRpcServer server = new JsonRpcServer(buildEmptyFactory(), "foo");
+    server.setSelectorMode(2);
+    InetSocketAddress address = server.startLocal(0);
+    Socket client = new Socket();
+    client.connect(address);
+    PrintStream out = new PrintStream(client.getOutputStream());
+    out.println(buildRequest(0, "_authenticate", Lists.newArrayList("foo")));
+    BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+    JSONObject response = new JSONObject(in.readLine());
+    Object error = response.get("error");
+    assertEquals(JSONObject.NULL, error);
+    client.close();
+    server.shutdown();
+  }
+
+  public void testInvalidHandshakeInSelectorMode() throws IOException, JSONException {
+    JsonRpcServer server = new JsonRpcServer(buildEmptyFactory(), "foo");
+    server.setSelectorMode(2);
+    InetSocketAddress address = server.startLocal(0);
+    Socket client = new Socket();
+    client.connect(address);
+    PrintStream out = new PrintStream(client.getOutputStream());
+    out.println(buildRequest(0, "_authenticate", Lists.newArrayList("bar")));
+    BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+    JSONObject response = new JSONObject(in.readLine());
+    Object error = response.get("error");
+    assertTrue(JSONObject.NULL != error);
+    assertNull(in.readLine());
+    client.close();
+    // Further connections should fail;
+    client = new Socket();
+    try {
+      client.connect(address);
+      fail();
+    } catch (IOException e) {
+    }
+  }
+
   public void testInvalidHandshake() throws IOException, JSONException, InterruptedException {
     JsonRpcServer server = new JsonRpcServer(null, "foo");
     InetSocketAddress address = server.startLocal(0);
@@ -80,4 +143,104 @@ public class JsonRpcServerTest extends TestCase {
     } catch (IOException e) {
     }
   }
+
+  public void testBatchRequest() throws IOException, JSONException {
+    JsonRpcServer server = new JsonRpcServer(buildEmptyFactory(), "foo");
+    InetSocketAddress address = server.startLocal(0);
+    Socket client = new Socket();
+    client.connect(address);
+    PrintStream out = new PrintStream(client.getOutputStream());
+    out.println("[" + buildRequest(0, "_authenticate", Lists.newArrayList("foo")) + ","
+        + buildRequest(1, "unknown", new ArrayList<String>()) + "]");
+    BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+    JSONArray responses = new JSONArray(in.readLine());
+    assertEquals(2, responses.length());
+    assertEquals(0, responses.getJSONObject(0).getInt("id"));
+    assertEquals(JSONObject.NULL, responses.getJSONObject(0).get("error"));
+    assertEquals(1, responses.getJSONObject(1).getInt("id"));
+    assertTrue(JSONObject.NULL != responses.getJSONObject(1).get("error"));
+    client.close();
+    server.shutdown();
+  }
+
+  public void testPipelinedRequests() throws IOException, JSONException {
+    JsonRpcServer server = new JsonRpcServer(buildEmptyFactory(), null);
+    InetSocketAddress address = server.startLocal(0);
+    Socket client = new Socket();
+    client.connect(address);
+    PrintStream out = new PrintStream(client.getOutputStream());
+    StringBuilder requests = new StringBuilder();
+    for (int id = 0; id < 10; id++) {
+      requests.append(buildRequest(id, "unknown", new ArrayList<String>())).append("\n");
+    }
+    out.print(requests);
+    out.flush();
+    BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+    for (int id = 0; id < 10; id++) {
+      assertEquals(id, new JSONObject(in.readLine()).getInt("id"));
+    }
+    client.close();
+    server.shutdown();
+  }
+
+  public void testBinaryFraming() throws IOException, JSONException {
+    JsonRpcServer server = new JsonRpcServer(buildEmptyFactory(), "foo");
+    InetSocketAddress address = server.startLocal(0);
+    Socket client = new Socket();
+    client.connect(address);
+    PrintStream out = new PrintStream(client.getOutputStream());
+    out.println(buildRequest(0, "_authenticate",
+        Lists.newArrayList("foo", JsonRpcServer.FRAMING_MSGPACK)));
+    out.flush();
+    DataInputStream in = new DataInputStream(client.getInputStream());
+    // The response to _authenticate is still sent as text.
+    StringBuilder line = new StringBuilder();
+    int c;
+    while ((c = in.read()) != '\n') {
+      line.append((char) c);
+    }
+    assertEquals(JsonRpcServer.FRAMING_MSGPACK, new JSONObject(line.toString()).get("result"));
+
+    MessagePackSink request = new MessagePackSink(64);
+    request.beginObject();
+    request.key("id");
+    request.value(1);
+    request.key("method");
+    request.value("unknown");
+    request.key("params");
+    request.beginArray();
+    request.binary(new byte[] { 0, 1, 2 });
+    request.endArray();
+    request.endObject();
+    DataOutputStream frames = new DataOutputStream(client.getOutputStream());
+    frames.writeInt(request.size());
+    request.writeTo(frames);
+    frames.flush();
+
+    byte[] frame = new byte[in.readInt()];
+    in.readFully(frame);
+    JSONObject response = (JSONObject) MessagePackParser.parse(frame, 0, frame.length);
+    assertEquals(1, response.getInt("id"));
+    assertEquals(JSONObject.NULL, response.get("result"));
+    assertTrue(JSONObject.NULL != response.get("error"));
+    client.close();
+    server.shutdown();
+  }
+
+  public void testBinaryFramingNotOfferedInSelectorMode() throws IOException, JSONException {
+    JsonRpcServer server = new JsonRpcServer(buildEmptyFactory(), "foo");
+    server.setSelectorMode(2);
+    InetSocketAddress address = server.startLocal(0);
+    Socket client = new Socket();
+    client.connect(address);
+    PrintStream out = new PrintStream(client.getOutputStream());
+    out.println(buildRequest(0, "_authenticate",
+        Lists.newArrayList("foo", JsonRpcServer.FRAMING_MSGPACK)));
+    BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+    assertEquals(JsonRpcServer.FRAMING_JSON, new JSONObject(in.readLine()).get("result"));
+    out.println(buildRequest(1, "unknown", new ArrayList<String>()));
+    assertEquals(1, new JSONObject(in.readLine()).getInt("id"));
+    client.close();
+    server.shutdown();
+  }
 }
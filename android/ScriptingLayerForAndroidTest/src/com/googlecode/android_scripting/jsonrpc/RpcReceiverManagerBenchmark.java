@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.android_scripting.jsonrpc;
+
+import android.os.Debug;
+
+import com.googlecode.android_scripting.Log;
+import com.googlecode.android_scripting.facade.FacadeConfiguration;
+
+import java.util.Collection;
+
+import junit.framework.TestCase;
+
+/**
+ * Measures the per-connection cost of creating an {@link RpcReceiverManager} for all facades, with
+ * and without the shared {@link RpcRegistry}. Results are logged in us/op and allocations/op.
+ */
+public class RpcReceiverManagerBenchmark extends TestCase {
+
+  private static final int ITERATIONS = 50;
+
+  private static class BenchmarkManager extends RpcReceiverManager {
+    public BenchmarkManager(RpcRegistry registry) {
+      super(registry);
+    }
+  }
+
+  public void testConnectionSetup() {
+    Collection<Class<? extends RpcReceiver>> classes = FacadeConfiguration.getFacadeClasses();
+    // Warm up the shared registry and the class loader.
+    new BenchmarkManager(RpcRegistry.forClasses(classes));
+    new BenchmarkManager(RpcRegistry.build(classes));
+
+    Debug.startAllocCounting();
+    try {
+      Debug.resetThreadAllocCount();
+      long start = System.nanoTime();
+      for (int i = 0; i < ITERATIONS; i++) {
+        new BenchmarkManager(RpcRegistry.build(classes));
+      }
+      long scanTime = (System.nanoTime() - start) / ITERATIONS / 1000;
+      int scanAllocations = Debug.getThreadAllocCount() / ITERATIONS;
+
+      Debug.resetThreadAllocCount();
+      start = System.nanoTime();
+      for (int i = 0; i < ITERATIONS; i++) {
+        new BenchmarkManager(RpcRegistry.forClasses(classes));
+      }
+      long sharedTime = (System.nanoTime() - start) / ITERATIONS / 1000;
+      int sharedAllocations = Debug.getThreadAllocCount() / ITERATIONS;
+
+      Log.v(String.format("RpcReceiverManager setup: scan %d us/op, %d allocations/op; "
+          + "shared %d us/op, %d allocations/op", scanTime, scanAllocations, sharedTime,
+          sharedAllocations));
+    } finally {
+      Debug.stopAllocCounting();
+    }
+  }
+}
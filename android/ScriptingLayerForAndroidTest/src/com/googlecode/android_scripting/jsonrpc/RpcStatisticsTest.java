@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.android_scripting.jsonrpc;
+
+import com.googlecode.android_scripting.jsonrpc.RpcStatistics.ConnectionStatistics;
+import com.googlecode.android_scripting.jsonrpc.RpcStatistics.Histogram;
+import com.googlecode.android_scripting.jsonrpc.RpcStatistics.MethodStatistics;
+
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class RpcStatisticsTest extends TestCase {
+
+  public void testBucketsAreContiguous() {
+    long expected = 0;
+    for (long value = 0; value < 100000; value++) {
+      int bucket = Histogram.getBucket(value);
+      assertTrue(value <= Histogram.getUpperBound(bucket));
+      if (bucket > 0) {
+        assertTrue(value > Histogram.getUpperBound(bucket - 1));
+      }
+      assertTrue(bucket == expected || bucket == expected + 1);
+      expected = bucket;
+    }
+    long large = Long.MAX_VALUE;
+    assertEquals(Histogram.getBucket(large), Histogram.getBucket(large / 2));
+  }
+
+  public void testBucketPrecision() {
+    for (long value = 1; value < 1L << 30; value = value * 3 + 1) {
+      long upperBound = Histogram.getUpperBound(Histogram.getBucket(value));
+      assertTrue(upperBound - value <= value / Histogram.SUB_BUCKETS);
+    }
+  }
+
+  public void testPercentiles() {
+    Histogram histogram = new Histogram();
+    for (int i = 1; i <= 100; i++) {
+      histogram.record(i);
+    }
+    long[] percentiles = histogram.getPercentiles(50, 90, 100);
+    assertTrue(percentiles[0] >= 50 && percentiles[0] < 50 + 50 / Histogram.SUB_BUCKETS);
+    assertTrue(percentiles[1] >= 90 && percentiles[1] < 90 + 90 / Histogram.SUB_BUCKETS);
+    assertTrue(percentiles[2] >= 100 && percentiles[2] < 100 + 100 / Histogram.SUB_BUCKETS);
+    assertEquals(0, new Histogram().getPercentiles(50)[0]);
+  }
+
+  public void testMethods() {
+    RpcStatistics statistics = new RpcStatistics();
+    MethodStatistics poll = statistics.getMethod("eventPoll");
+    assertSame(poll, statistics.getMethod("eventPoll"));
+    poll.record(2000000, false);
+    poll.record(1000000, true);
+    statistics.getMethod("batteryGetLevel").record(5000000, false);
+
+    assertEquals(2, poll.getCalls());
+    assertEquals(1, poll.getErrors());
+    assertEquals(3000000, poll.getTotalNanos());
+    assertEquals(2000000, poll.getMaxNanos());
+    List<MethodStatistics> methods = statistics.getMethods();
+    assertEquals("batteryGetLevel", methods.get(0).getName());
+    assertEquals("eventPoll", methods.get(1).getName());
+    assertTrue(statistics.dump().contains("eventPoll"));
+
+    statistics.reset();
+    assertTrue(statistics.getMethods().isEmpty());
+  }
+
+  @SuppressWarnings("unchecked")
+  public void testConnections() {
+    RpcStatistics statistics = new RpcStatistics();
+    ConnectionStatistics first = statistics.openConnection();
+    ConnectionStatistics second = statistics.openConnection();
+    first.addRequest();
+    first.addBytesIn(10);
+    first.addBytesOut(20);
+    second.addBytesIn(1);
+    first.close();
+    first.close();
+
+    Map<String, Object> map = statistics.toMap();
+    List<Object> connections = (List<Object>) map.get("connections");
+    assertEquals(1, connections.size());
+    assertEquals(second.getId(), ((Map<String, Object>) connections.get(0)).get("id"));
+    Map<String, Object> closed = (Map<String, Object>) map.get("closed");
+    assertEquals(1L, closed.get("connections"));
+    assertEquals(10L, closed.get("bytesIn"));
+    assertEquals(20L, closed.get("bytesOut"));
+  }
+}
@@ -69,6 +69,20 @@ public class LanguageTest extends TestCase {
     checkMethodCall("$droid method 1 \"abc\" null null true isComplete", tcl, params);
   }
 
+  public void testRunScriptStatement() {
+    assertEquals("try { source(\"/sdcard/sl4a/scripts/a \\\"b\\\".bsh\"); } finally { exit(); }",
+        beanShell.getRunScriptStatement("/sdcard/sl4a/scripts/a \"b\".bsh"));
+    assertEquals("try { load(\"/sdcard/sl4a/scripts/c:\\\\d.js\"); } finally { quit(); }",
+        javaScript.getRunScriptStatement("/sdcard/sl4a/scripts/c:\\d.js"));
+    assertNull(python.getRunScriptStatement("/sdcard/sl4a/scripts/hello.py"));
+  }
+
+  public void testPrompt() {
+    assertEquals("bsh % ", beanShell.getPrompt());
+    assertEquals("js> ", javaScript.getPrompt());
+    assertNull(python.getPrompt());
+  }
+
   public void testAutoComplete() {
     checkAutoComplete(beanShell);
     checkAutoComplete(javaScript);
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.android_scripting.rpc;
+
+import com.googlecode.android_scripting.Log;
+import com.googlecode.android_scripting.jsonrpc.RpcReceiver;
+import com.googlecode.android_scripting.jsonrpc.RpcReceiverManager;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+
+import junit.framework.TestCase;
+
+import org.json.JSONArray;
+
+/**
+ * Compares the cost of {@link MethodDescriptor#invoke} against the reflective path it replaced,
+ * which looked up parameter types and annotations on every call. Results are logged in ns/op.
+ */
+public class MethodDescriptorBenchmark extends TestCase {
+
+  private static final int WARMUP = 10000;
+  private static final int ITERATIONS = 100000;
+
+  public static class BenchmarkManager extends RpcReceiverManager {
+    public BenchmarkManager(Collection<Class<? extends RpcReceiver>> classList) {
+      super(classList);
+    }
+  }
+
+  public static class BenchmarkReceiver extends RpcReceiver {
+    public BenchmarkReceiver(BenchmarkManager manager) {
+      super(manager);
+    }
+
+    @Rpc(description = "Like eventPoll with no arguments.")
+    public Object poll() {
+      return null;
+    }
+
+    @Rpc(description = "Like eventPoll with all arguments.")
+    public Object pollWithArguments(
+        @RpcParameter(name = "name", description = "") String name,
+        @RpcParameter(name = "count", description = "") @RpcDefault("1") Integer count,
+        @RpcParameter(name = "blocking", description = "") @RpcDefault("false") Boolean blocking) {
+      return null;
+    }
+
+    @Override
+    public void shutdown() {
+    }
+  }
+
+  private BenchmarkManager mManager;
+
+  @Override
+  protected void setUp() throws Exception {
+    Collection<Class<? extends RpcReceiver>> classes =
+        new ArrayList<Class<? extends RpcReceiver>>();
+    classes.add(BenchmarkReceiver.class);
+    mManager = new BenchmarkManager(classes);
+  }
+
+  public void testNoArguments() throws Throwable {
+    MethodDescriptor rpc = mManager.getMethodDescriptor("poll");
+    JSONArray parameters = new JSONArray();
+    report("no-arg", rpc, parameters);
+  }
+
+  public void testThreeArguments() throws Throwable {
+    MethodDescriptor rpc = mManager.getMethodDescriptor("pollWithArguments");
+    JSONArray parameters = new JSONArray();
+    parameters.put("sensors");
+    parameters.put(10);
+    parameters.put(true);
+    report("3-arg", rpc, parameters);
+  }
+
+  private void report(String name, MethodDescriptor rpc, JSONArray parameters) throws Throwable {
+    for (int i = 0; i < WARMUP; i++) {
+      invokeReflectively(rpc, parameters);
+      rpc.invoke(mManager, parameters);
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      invokeReflectively(rpc, parameters);
+    }
+    long before = (System.nanoTime() - start) / ITERATIONS;
+    start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      rpc.invoke(mManager, parameters);
+    }
+    long after = (System.nanoTime() - start) / ITERATIONS;
+    Log.v(String.format("MethodDescriptor %s: before %d ns/op, after %d ns/op", name, before,
+        after));
+  }
+
+  /** The per-call work {@link MethodDescriptor#invoke} used to do. */
+  private Object invokeReflectively(MethodDescriptor rpc, JSONArray parameters) throws Throwable {
+    Method method = rpc.getMethod();
+    Type[] parameterTypes = method.getGenericParameterTypes();
+    Object[] args = new Object[parameterTypes.length];
+    Annotation annotations[][] = method.getParameterAnnotations();
+    for (int i = 0; i < args.length; i++) {
+      if (i < parameters.length()) {
+        args[i] = MethodDescriptor.convertParameter(parameters, i, parameterTypes[i]);
+      } else if (MethodDescriptor.hasDefaultValue(annotations[i])) {
+        args[i] = MethodDescriptor.getDefaultValue(parameterTypes[i], annotations[i]);
+      }
+    }
+    return mManager.invoke(rpc.getDeclaringClass(), method, args);
+  }
+}
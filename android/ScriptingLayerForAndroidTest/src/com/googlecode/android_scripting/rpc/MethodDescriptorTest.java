@@ -17,6 +17,7 @@
 package com.googlecode.android_scripting.rpc;
 
 import com.googlecode.android_scripting.jsonrpc.RpcReceiver;
+import com.googlecode.android_scripting.jsonrpc.RpcReceiverManager;
 
 import java.lang.reflect.Method;
 import java.util.ArrayList;
@@ -110,6 +111,60 @@ public class MethodDescriptorTest extends TestCase {
     assertDefault(Arrays.asList(Integer.valueOf(1), Integer.valueOf(2), Integer.valueOf(3)), m, 16);
   }
 
+  public static class DefaultsManager extends RpcReceiverManager {
+    public DefaultsManager(Collection<Class<? extends RpcReceiver>> classList) {
+      super(classList);
+    }
+  }
+
+  public static class DefaultsReceiver extends RpcReceiver {
+    public DefaultsReceiver(DefaultsManager manager) {
+      super(manager);
+    }
+
+    @Rpc(description = "Modifies its default.")
+    public Integer append(
+        @RpcParameter(name = "list", description = "") @RpcDefault(value = "1,2", converter = CSVInteger.class) List<Integer> list) {
+      list.add(3);
+      return list.size();
+    }
+
+    @Rpc(description = "Has an invalid default.")
+    public void invalid(
+        @RpcParameter(name = "list", description = "") @RpcDefault(value = "1,a", converter = CSVInteger.class) List<Integer> list) {
+    }
+
+    @Override
+    public void shutdown() {
+    }
+  }
+
+  public void testDefaultsAreNotShared() throws Throwable {
+    Collection<Class<? extends RpcReceiver>> classes =
+        new ArrayList<Class<? extends RpcReceiver>>();
+    classes.add(DefaultsReceiver.class);
+    DefaultsManager manager = new DefaultsManager(classes);
+
+    MethodDescriptor append = manager.getMethodDescriptor("append");
+    assertEquals(3, append.invoke(manager, new JSONArray()));
+    assertEquals(3, append.invoke(manager, new JSONArray()));
+
+    MethodDescriptor invalid = manager.getMethodDescriptor("invalid");
+    Throwable first = null;
+    try {
+      invalid.invoke(manager, new JSONArray());
+      fail();
+    } catch (IllegalArgumentException e) {
+      first = e;
+    }
+    try {
+      invalid.invoke(manager, new JSONArray());
+      fail();
+    } catch (IllegalArgumentException e) {
+      assertNotSame(first, e);
+    }
+  }
+
   private void assertDefault(Object expected, Method m, int param) {
     assertEquals(expected, MethodDescriptor.getDefaultValue(m.getParameterTypes()[param],
         m.getParameterAnnotations()[param]));
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package de.mud.terminal;
+
+import com.googlecode.android_scripting.Log;
+
+import junit.framework.TestCase;
+
+/**
+ * Measures how fast {@link vt320} takes script output: lines of text are pushed through
+ * {@link vt320#putString(char[], byte[], int, int)} in chunks, the way the console relay does.
+ * Results are logged in MB/s for small and large scrollback settings.
+ */
+public class VDUBufferBenchmark extends TestCase {
+
+  private static final int MEGABYTES = 4;
+  private static final int CHUNK_SIZE = 4096;
+
+  public void testSmallScrollback() {
+    report(140);
+  }
+
+  public void testLargeScrollback() {
+    report(10000);
+  }
+
+  public void testHugeScrollback() {
+    report(50000);
+  }
+
+  private void report(int scrollback) {
+    char[] text = createText();
+    push(createTerminal(scrollback), text, 1 << 20);
+    // Start from an empty scrollback, so the measurement covers filling it as well as the steady
+    // state once it is full.
+    vt320 terminal = createTerminal(scrollback);
+    long start = System.nanoTime();
+    push(terminal, text, MEGABYTES << 20);
+    long nanos = System.nanoTime() - start;
+    Log.v(String.format("vt320 %d lines scrollback: %.1f MB/s", scrollback, MEGABYTES / (nanos
+        / 1e9)));
+  }
+
+  private static void push(vt320 terminal, char[] text, int count) {
+    for (int pushed = 0; pushed < count; pushed += text.length) {
+      for (int offset = 0; offset < text.length; offset += CHUNK_SIZE) {
+        terminal.putString(text, null, offset, Math.min(CHUNK_SIZE, text.length - offset));
+      }
+    }
+  }
+
+  /** Returns lines of 61 characters and a CR LF, like a script printing a log. */
+  private static char[] createText() {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 1024; i++) {
+      text.append(String.format("%05d the quick brown fox jumps over the lazy dog %11d\r\n", i,
+          i * 7919L));
+    }
+    char[] chars = new char[text.length()];
+    text.getChars(0, text.length(), chars, 0);
+    return chars;
+  }
+
+  private static vt320 createTerminal(int scrollback) {
+    vt320 terminal = new vt320(80, 24) {
+      @Override
+      public void debug(String notice) {
+      }
+
+      @Override
+      public void write(byte[] b) {
+      }
+
+      @Override
+      public void write(int b) {
+      }
+    };
+    terminal.setDisplay(new VDUDisplay() {
+      public void redraw() {
+      }
+
+      public void updateScrollBar() {
+      }
+
+      public void setVDUBuffer(VDUBuffer buffer) {
+      }
+
+      public VDUBuffer getVDUBuffer() {
+        return null;
+      }
+
+      public void setColor(int index, int red, int green, int blue) {
+      }
+
+      public void resetColors() {
+      }
+    });
+    terminal.setBufferSize(scrollback);
+    return terminal;
+  }
+}
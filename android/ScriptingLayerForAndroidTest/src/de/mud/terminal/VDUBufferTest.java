@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package de.mud.terminal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class VDUBufferTest extends TestCase {
+
+  private static final int WIDTH = 8;
+  private static final int HEIGHT = 3;
+
+  private VDUBuffer mBuffer;
+
+  @Override
+  protected void setUp() throws Exception {
+    mBuffer = new VDUBuffer(WIDTH, HEIGHT);
+    mBuffer.setDisplay(new NullDisplay());
+  }
+
+  /** Writes the lines at the bottom of the screen, scrolling up before each one. */
+  private void writeLines(int first, int count) {
+    for (int i = first; i < first + count; i++) {
+      mBuffer.insertLine(HEIGHT - 1);
+      mBuffer.putString(0, HEIGHT - 1, "line" + i);
+    }
+  }
+
+  private String getRow(int row) {
+    return new String(mBuffer.getCharRow(row)).trim();
+  }
+
+  public void testScrollbackGrows() {
+    mBuffer.setBufferSize(10);
+    writeLines(0, 5);
+    assertEquals(HEIGHT + 5, mBuffer.getBufferSize());
+    assertEquals(5, mBuffer.screenBase);
+    assertEquals(mBuffer.screenBase, mBuffer.windowBase);
+    for (int i = 0; i < 5; i++) {
+      assertEquals("line" + i, getRow(HEIGHT + i));
+    }
+    assertEquals('4', mBuffer.getChar(4, HEIGHT - 1));
+  }
+
+  public void testScrollbackDropsOldestLines() {
+    mBuffer.setBufferSize(5);
+    writeLines(0, 100);
+    assertEquals(5, mBuffer.getBufferSize());
+    assertEquals(2, mBuffer.screenBase);
+    for (int i = 0; i < 5; i++) {
+      assertEquals("line" + (95 + i), getRow(i));
+      assertEquals(0, mBuffer.getAttributeRow(i)[WIDTH - 1]);
+    }
+  }
+
+  public void testDiscardedLines() {
+    final List<String> discarded = new ArrayList<String>();
+    mBuffer = new VDUBuffer(WIDTH, HEIGHT) {
+      @Override
+      protected void discardLine(char[] chars) {
+        discarded.add(new String(chars).trim());
+      }
+    };
+    mBuffer.setDisplay(new NullDisplay());
+    mBuffer.setBufferSize(5);
+    writeLines(0, 10);
+    // The blank screen the buffer started with goes first.
+    assertEquals(Arrays.asList("", "", "", "line0", "line1", "line2", "line3", "line4"),
+        discarded);
+    discarded.clear();
+    mBuffer.setBufferSize(HEIGHT);
+    assertEquals(Arrays.asList("line5", "line6"), discarded);
+  }
+
+  public void testWindowKeepsPositionWhileGrowing() {
+    mBuffer.setBufferSize(10);
+    writeLines(0, 4);
+    mBuffer.setWindowBase(1);
+    writeLines(4, 2);
+    assertEquals(3, mBuffer.windowBase);
+    assertEquals("line0", getRow(mBuffer.windowBase));
+  }
+
+  public void testScrollRegion() {
+    mBuffer.setBufferSize(10);
+    mBuffer.putString(0, 0, "status");
+    mBuffer.setMargins(1, 2);
+    mBuffer.putString(0, 1, "first");
+    mBuffer.putString(0, 2, "second");
+    mBuffer.insertLine(2);
+    assertEquals("status", getRow(mBuffer.screenBase));
+    assertEquals("second", getRow(mBuffer.screenBase + 1));
+    assertEquals("", getRow(mBuffer.screenBase + 2));
+    // the line scrolled out of the region goes to the scrollback
+    assertEquals("first", getRow(mBuffer.screenBase - 1));
+  }
+
+  public void testScrollDown() {
+    mBuffer.putString(0, 0, "a");
+    mBuffer.putString(0, 1, "b");
+    mBuffer.putString(0, 2, "c");
+    mBuffer.insertLine(0, VDUBuffer.SCROLL_DOWN);
+    assertEquals("", getRow(mBuffer.screenBase));
+    assertEquals("a", getRow(mBuffer.screenBase + 1));
+    assertEquals("b", getRow(mBuffer.screenBase + 2));
+  }
+
+  public void testDeleteLine() {
+    mBuffer.putString(0, 0, "a");
+    mBuffer.putString(0, 1, "b");
+    mBuffer.putString(0, 2, "c");
+    mBuffer.deleteLine(0);
+    assertEquals("b", getRow(mBuffer.screenBase));
+    assertEquals("c", getRow(mBuffer.screenBase + 1));
+    assertEquals("", getRow(mBuffer.screenBase + 2));
+    assertNotSame(mBuffer.getCharRow(mBuffer.screenBase + 1), mBuffer
+        .getCharRow(mBuffer.screenBase + 2));
+  }
+
+  public void testShrinkBufferKeepsNewestLines() {
+    mBuffer.setBufferSize(10);
+    writeLines(0, 20);
+    mBuffer.setBufferSize(4);
+    assertEquals(4, mBuffer.getBufferSize());
+    assertEquals(1, mBuffer.screenBase);
+    assertEquals("line17", getRow(1));
+    writeLines(20, 1);
+    assertEquals("line18", getRow(1));
+    assertEquals("line20", getRow(3));
+  }
+
+  public void testResizeKeepsLines() {
+    mBuffer.setBufferSize(6);
+    writeLines(0, 10);
+    mBuffer.setScreenSize(4, HEIGHT, false);
+    assertEquals(4, mBuffer.getCharRow(0).length);
+    assertEquals("line", getRow(0));
+    writeLines(10, 1);
+    assertEquals(6, mBuffer.getBufferSize());
+  }
+
+  public void testDamagedColumns() {
+    mBuffer.update[2] = false;
+    mBuffer.putString(2, 1, "ab");
+    assertTrue(mBuffer.update[2]);
+    assertEquals(2, mBuffer.updateStart[2]);
+    assertEquals(4, mBuffer.updateEnd[2]);
+    mBuffer.putChars(6, 1, "xyz".toCharArray(), 1, 2, VDUBuffer.BOLD);
+    assertEquals(2, mBuffer.updateStart[2]);
+    assertEquals(8, mBuffer.updateEnd[2]);
+    assertEquals("ab  yz", getRow(mBuffer.screenBase + 1));
+
+    mBuffer.update[2] = false;
+    mBuffer.insertChar(5, 1, 'c', 0);
+    assertEquals(5, mBuffer.updateStart[2]);
+    assertEquals(WIDTH, mBuffer.updateEnd[2]);
+
+    mBuffer.update[2] = false;
+    mBuffer.markLine(1, 1);
+    assertEquals(0, mBuffer.updateStart[2]);
+    assertEquals(WIDTH, mBuffer.updateEnd[2]);
+  }
+
+  private static class NullDisplay implements VDUDisplay {
+    public void redraw() {
+    }
+
+    public void updateScrollBar() {
+    }
+
+    public void setVDUBuffer(VDUBuffer buffer) {
+    }
+
+    public VDUBuffer getVDUBuffer() {
+      return null;
+    }
+
+    public void setColor(int index, int red, int green, int blue) {
+    }
+
+    public void resetColors() {
+    }
+  }
+}
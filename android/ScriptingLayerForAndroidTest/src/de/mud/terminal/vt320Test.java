@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package de.mud.terminal;
+
+import junit.framework.TestCase;
+
+public class vt320Test extends TestCase {
+
+  private vt320 mTerminal;
+
+  @Override
+  protected void setUp() throws Exception {
+    mTerminal = new vt320(10, 3) {
+      @Override
+      public void debug(String notice) {
+      }
+
+      @Override
+      public void write(byte[] b) {
+      }
+
+      @Override
+      public void write(int b) {
+      }
+    };
+    mTerminal.setDisplay(new VDUDisplay() {
+      public void redraw() {
+      }
+
+      public void updateScrollBar() {
+      }
+
+      public void setVDUBuffer(VDUBuffer buffer) {
+      }
+
+      public VDUBuffer getVDUBuffer() {
+        return null;
+      }
+
+      public void setColor(int index, int red, int green, int blue) {
+      }
+
+      public void resetColors() {
+      }
+    });
+  }
+
+  private String getLine(int l) {
+    return new String(mTerminal.getCharRow(mTerminal.screenBase + l));
+  }
+
+  public void testPlainText() {
+    mTerminal.putString("hello");
+    assertEquals("hello     ", getLine(0));
+    assertEquals(5, mTerminal.getCursorColumn());
+    mTerminal.putString("\r\nworld");
+    assertEquals("world     ", getLine(1));
+    assertEquals(1, mTerminal.getCursorRow());
+  }
+
+  public void testWrap() {
+    mTerminal.putString("0123456789");
+    assertEquals(10, mTerminal.getCursorColumn());
+    assertEquals(0, mTerminal.getCursorRow());
+    mTerminal.putString("abc");
+    assertEquals("0123456789", getLine(0));
+    assertEquals("abc       ", getLine(1));
+  }
+
+  public void testAttributes() {
+    mTerminal.putString("a\u001b[1mbc\u001b[0md");
+    assertEquals(0, mTerminal.getAttributes(0, 0));
+    assertEquals(VDUBuffer.BOLD, mTerminal.getAttributes(1, 0));
+    assertEquals(VDUBuffer.BOLD, mTerminal.getAttributes(2, 0));
+    assertEquals(0, mTerminal.getAttributes(3, 0));
+  }
+
+  public void testCombiningMark() {
+    mTerminal.putString("cafe\u0301");
+    assertEquals("caf\u00e9      ", getLine(0));
+  }
+
+  public void testInsertMode() {
+    mTerminal.putString("world\r\u001b[4hhello \u001b[4l");
+    assertEquals("hello worl", getLine(0));
+  }
+
+  public void testLineDrawing() {
+    mTerminal.putString("\u001b(0qq\u001b(Bqq");
+    assertEquals("\u2500\u2500qq      ", getLine(0));
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.connectbot.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+public class ScrollbackArchiveTest extends TestCase {
+
+  private File mDirectory;
+  private ScrollbackArchive mArchive;
+
+  @Override
+  protected void setUp() throws Exception {
+    mDirectory = File.createTempFile("scrollback", "");
+    mDirectory.delete();
+    mArchive = new ScrollbackArchive(mDirectory, 1024 * 1024);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    mArchive.close();
+  }
+
+  private void addLines(ScrollbackArchive archive, int first, int count) throws IOException {
+    for (int i = first; i < first + count; i++) {
+      archive.addLine("line " + i);
+    }
+  }
+
+  public void testTrim() {
+    assertEquals("ab c", ScrollbackArchive.trim("ab c   ".toCharArray()));
+    assertEquals("", ScrollbackArchive.trim("    ".toCharArray()));
+  }
+
+  public void testGetLine() throws Exception {
+    int count = ScrollbackArchive.BLOCK_LINES * 3 + 5;
+    addLines(mArchive, 0, count);
+    assertEquals(count, mArchive.getLineCount());
+    // From the blocks the writer may not have reached yet.
+    for (int i = 0; i < count; i++) {
+      assertEquals("line " + i, mArchive.getLine(i));
+    }
+    mArchive.awaitWriter();
+    assertTrue(mArchive.getSize() > 0);
+    // From the blocks on disk and from the lines not yet written.
+    for (int i = 0; i < count; i++) {
+      assertEquals("line " + i, mArchive.getLine(i));
+    }
+    assertNull(mArchive.getLine(count));
+  }
+
+  public void testFind() throws IOException {
+    addLines(mArchive, 0, ScrollbackArchive.BLOCK_LINES * 2 + 10);
+    List<ScrollbackArchive.Match> lines =
+        mArchive.find(ScrollbackArchive.contains("line 13"), 0, 100);
+    assertEquals(11, lines.size());
+    assertEquals(13L, lines.get(0).getLine());
+    assertEquals("line 13", lines.get(0).getText());
+    assertEquals(130L, lines.get(1).getLine());
+    assertEquals(139L, lines.get(10).getLine());
+    assertEquals("line 139", lines.get(10).getText());
+
+    lines = mArchive.find(ScrollbackArchive.matches(Pattern.compile("^line 2[01]5$")), 200, 100);
+    assertEquals(2, lines.size());
+    assertEquals(205L, lines.get(0).getLine());
+    assertEquals(215L, lines.get(1).getLine());
+
+    lines = mArchive.find(ScrollbackArchive.contains("line"), 0, 5);
+    assertEquals(5, lines.size());
+    assertEquals(4L, lines.get(4).getLine());
+  }
+
+  public void testExport() throws IOException {
+    addLines(mArchive, 0, ScrollbackArchive.BLOCK_LINES + 3);
+    StringWriter writer = new StringWriter();
+    mArchive.export(writer, ScrollbackArchive.BLOCK_LINES + 1);
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i <= ScrollbackArchive.BLOCK_LINES; i++) {
+      expected.append("line " + i + "\n");
+    }
+    assertEquals(expected.toString(), writer.toString());
+  }
+
+  public void testDropsOldestSegments() throws Exception {
+    ScrollbackArchive archive = new ScrollbackArchive(new File(mDirectory, "small"), 4096);
+    try {
+      int count = 20000;
+      for (int i = 0; i < count; i += 1000) {
+        addLines(archive, i, 1000);
+        archive.awaitWriter();
+      }
+      assertTrue(archive.getSize() <= 4096);
+      long first = archive.getFirstLine();
+      assertTrue(first > 0);
+      assertNull(archive.getLine(first - 1));
+      for (long i = first; i < count; i++) {
+        assertEquals("line " + i, archive.getLine(i));
+      }
+      List<ScrollbackArchive.Match> lines =
+          archive.find(ScrollbackArchive.contains("line 1"), 0, 1);
+      assertTrue(lines.get(0).getLine() >= first);
+      assertEquals(archive.getLine(lines.get(0).getLine()), lines.get(0).getText());
+
+      StringWriter writer = new StringWriter();
+      archive.export(writer, count);
+      assertTrue(writer.toString().startsWith("line " + first + "\n"));
+      assertTrue(writer.toString().endsWith("line " + (count - 1) + "\n"));
+    } finally {
+      archive.close();
+    }
+  }
+
+  public void testClose() throws Exception {
+    addLines(mArchive, 0, ScrollbackArchive.BLOCK_LINES * 2);
+    mArchive.awaitWriter();
+    assertTrue(mDirectory.list().length > 0);
+    mArchive.close();
+    mArchive.awaitWriter();
+    assertFalse(mDirectory.exists());
+    try {
+      mArchive.addLine("after");
+      fail();
+    } catch (IOException e) {
+      // Expected.
+    }
+  }
+}
@@ -24,17 +24,279 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.widget.Toast;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Logs to the Android log with a tag naming the class and line of the caller.
+ * <p>
+ * Messages below the level set with {@link #setLevel} are dropped before the caller is looked up.
+ * Callers that build expensive messages should check {@link #isLoggable} first. Resolving the caller
+ * takes a stack trace, so hot paths should log through a {@link Logger}, whose tag is computed once
+ * per class. Writing can be moved off the calling thread with {@link #startAsync}, which queues
+ * messages in a fixed size ring buffer and writes them from a background thread.
+ */
 public class Log {
+
+  public static final int VERBOSE = android.util.Log.VERBOSE;
+  public static final int DEBUG = android.util.Log.DEBUG;
+  public static final int INFO = android.util.Log.INFO;
+  public static final int WARN = android.util.Log.WARN;
+  public static final int ERROR = android.util.Log.ERROR;
+
+  private static volatile int sLevel = VERBOSE;
+  private static volatile AsyncWriter sAsyncWriter;
+  private static final Map<StackTraceElement, String> sTags =
+      new ConcurrentHashMap<StackTraceElement, String>();
+
   private Log() {
     // Utility class.
   }
 
-  private static String getTag() {
-    StackTraceElement[] stackTraceElements = Thread.currentThread().getStackTrace();
-    String fullClassName = stackTraceElements[4].getClassName();
-    String className = fullClassName.substring(fullClassName.lastIndexOf(".") + 1);
-    int lineNumber = stackTraceElements[4].getLineNumber();
-    return "sl4a." + className + ":" + lineNumber;
+  /** Logs with a fixed tag naming a class, without looking up the caller. */
+  public static final class Logger {
+    private final String mmTag;
+
+    private Logger(String tag) {
+      mmTag = tag;
+    }
+
+    public void v(String message) {
+      log(VERBOSE, mmTag, message, null);
+    }
+
+    public void v(String message, Throwable e) {
+      log(VERBOSE, mmTag, message, e);
+    }
+
+    public void d(String message) {
+      log(DEBUG, mmTag, message, null);
+    }
+
+    public void d(String message, Throwable e) {
+      log(DEBUG, mmTag, message, e);
+    }
+
+    public void i(String message) {
+      log(INFO, mmTag, message, null);
+    }
+
+    public void i(String message, Throwable e) {
+      log(INFO, mmTag, message, e);
+    }
+
+    public void w(String message) {
+      log(WARN, mmTag, message, null);
+    }
+
+    public void w(String message, Throwable e) {
+      log(WARN, mmTag, message, e);
+    }
+
+    public void e(String message) {
+      log(ERROR, mmTag, message, null);
+    }
+
+    public void e(String message, Throwable e) {
+      log(ERROR, mmTag, message, e);
+    }
+  }
+
+  /** Returns a logger tagged with the simple name of {@code clazz}. */
+  public static Logger getLogger(Class<?> clazz) {
+    return new Logger("sl4a." + clazz.getSimpleName());
+  }
+
+  /** Writes queued messages from a background thread. */
+  private static class AsyncWriter extends Thread {
+    private final int[] mmLevels;
+    private final String[] mmTags;
+    private final Throwable[] mmCallers;
+    private final String[] mmMessages;
+    private final Throwable[] mmErrors;
+    private int mmHead = 0;
+    private int mmCount = 0;
+    private int mmDropped = 0;
+    private boolean mmWaiting = false;
+    private boolean mmStopped = false;
+
+    private AsyncWriter(int capacity) {
+      super("sl4a.Log");
+      mmLevels = new int[capacity];
+      mmTags = new String[capacity];
+      mmCallers = new Throwable[capacity];
+      mmMessages = new String[capacity];
+      mmErrors = new Throwable[capacity];
+      setDaemon(true);
+    }
+
+    /**
+     * Queues a message. Returns false once the writer is stopping, in which case the caller has to
+     * write the message itself.
+     */
+    private synchronized boolean offer(int level, String tag, Throwable caller, String message,
+        Throwable error) {
+      if (mmStopped) {
+        return false;
+      }
+      if (mmCount == mmLevels.length) {
+        mmDropped++;
+        return true;
+      }
+      int tail = (mmHead + mmCount) % mmLevels.length;
+      mmLevels[tail] = level;
+      mmTags[tail] = tag;
+      mmCallers[tail] = caller;
+      mmMessages[tail] = message;
+      mmErrors[tail] = error;
+      mmCount++;
+      if (mmWaiting) {
+        notify();
+      }
+      return true;
+    }
+
+    private synchronized void finish() {
+      mmStopped = true;
+      notify();
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        int level;
+        String tag;
+        Throwable caller;
+        String message;
+        Throwable error;
+        int dropped;
+        synchronized (this) {
+          while (mmCount == 0 && mmDropped == 0) {
+            if (mmStopped) {
+              return;
+            }
+            mmWaiting = true;
+            try {
+              wait();
+            } catch (InterruptedException e) {
+              // Keep draining until stopped.
+            } finally {
+              mmWaiting = false;
+            }
+          }
+          dropped = mmDropped;
+          mmDropped = 0;
+          level = mmLevels[mmHead];
+          tag = mmTags[mmHead];
+          caller = mmCallers[mmHead];
+          message = mmMessages[mmHead];
+          error = mmErrors[mmHead];
+          // Don't keep the entry reachable.
+          mmTags[mmHead] = null;
+          mmCallers[mmHead] = null;
+          mmMessages[mmHead] = null;
+          mmErrors[mmHead] = null;
+          if (mmCount > 0) {
+            mmHead = (mmHead + 1) % mmLevels.length;
+            mmCount--;
+          }
+        }
+        if (tag != null) {
+          write(level, tag, message, error);
+        } else if (caller != null) {
+          write(level, getTag(caller), message, error);
+        }
+        if (dropped > 0) {
+          android.util.Log.w("sl4a.Log", dropped + " messages dropped.");
+        }
+      }
+    }
+  }
+
+  /** Sets the lowest level that is logged, e.g. {@link #WARN}. */
+  public static void setLevel(int level) {
+    sLevel = level;
+  }
+
+  public static int getLevel() {
+    return sLevel;
+  }
+
+  /** Returns true if messages of the given level are logged. */
+  public static boolean isLoggable(int level) {
+    return level >= sLevel;
+  }
+
+  /**
+   * Starts writing messages from a background thread. Callers only record the message and their
+   * tag, or their stack if they don't have one. If more than {@code capacity} messages are waiting, new ones are dropped and counted.
+   */
+  public static synchronized void startAsync(int capacity) {
+    if (sAsyncWriter != null) {
+      return;
+    }
+    AsyncWriter writer = new AsyncWriter(capacity);
+    writer.start();
+    sAsyncWriter = writer;
+  }
+
+  /** Writes the messages still queued and goes back to writing on the calling thread. */
+  public static synchronized void stopAsync() {
+    AsyncWriter writer = sAsyncWriter;
+    if (writer == null) {
+      return;
+    }
+    sAsyncWriter = null;
+    writer.finish();
+  }
+
+  private static void log(int level, String message, Throwable error) {
+    if (level < sLevel) {
+      return;
+    }
+    // Only the native stack is captured here. It is turned into StackTraceElements when the tag is
+    // needed, which may be on the async writer's thread.
+    Throwable caller = new Throwable();
+    // A writer read here may be stopped by stopAsync() before it takes the message.
+    AsyncWriter writer = sAsyncWriter;
+    if (writer == null || !writer.offer(level, null, caller, message, error)) {
+      write(level, getTag(caller), message, error);
+    }
+  }
+
+  private static void log(int level, String tag, String message, Throwable error) {
+    if (level < sLevel) {
+      return;
+    }
+    AsyncWriter writer = sAsyncWriter;
+    if (writer == null || !writer.offer(level, tag, null, message, error)) {
+      write(level, tag, message, error);
+    }
+  }
+
+  private static void write(int level, String tag, String message, Throwable error) {
+    if (error != null) {
+      message = message + '\n' + android.util.Log.getStackTraceString(error);
+    }
+    android.util.Log.println(level, tag, message);
+  }
+
+  private static String getTag(Throwable caller) {
+    String logClassName = Log.class.getName();
+    for (StackTraceElement element : caller.getStackTrace()) {
+      if (element.getClassName().equals(logClassName)) {
+        continue;
+      }
+      String tag = sTags.get(element);
+      if (tag == null) {
+        String fullClassName = element.getClassName();
+        String className = fullClassName.substring(fullClassName.lastIndexOf(".") + 1);
+        tag = "sl4a." + className + ":" + element.getLineNumber();
+        sTags.put(element, tag);
+      }
+      return tag;
+    }
+    return "sl4a";
   }
 
   private static void toast(Context context, String message) {
@@ -42,7 +304,7 @@ public class Log {
   }
 
   public static void notify(Context context, String title, String contentTitle, String message) {
-    android.util.Log.v(getTag(), String.format("%s %s", contentTitle, message));
+    log(VERBOSE, String.format("%s %s", contentTitle, message), null);
 
     String packageName = context.getPackageName();
     int iconId = context.getResources().getIdentifier("stat_sys_warning", "drawable", packageName);
@@ -56,7 +318,7 @@ public class Log {
   }
 
   public static void showDialog(final Context context, final String title, final String message) {
-    android.util.Log.v(getTag(), String.format("%s %s", title, message));
+    log(VERBOSE, String.format("%s %s", title, message), null);
 
     MainThread.run(context, new Runnable() {
       @Override
@@ -78,100 +340,100 @@ public class Log {
   }
 
   public static void v(String message) {
-    android.util.Log.v(getTag(), message);
+    log(VERBOSE, message, null);
   }
 
   public static void v(String message, Throwable e) {
-    android.util.Log.v(getTag(), message, e);
+    log(VERBOSE, message, e);
   }
 
   public static void v(Context context, String message) {
     toast(context, message);
-    android.util.Log.v(getTag(), message);
+    log(VERBOSE, message, null);
   }
 
   public static void v(Context context, String message, Throwable e) {
     toast(context, message);
-    android.util.Log.v(getTag(), message, e);
+    log(VERBOSE, message, e);
   }
 
   public static void e(Throwable e) {
-    android.util.Log.e(getTag(), "Error", e);
+    log(ERROR, "Error", e);
   }
 
   public static void e(String message) {
-    android.util.Log.e(getTag(), message);
+    log(ERROR, message, null);
   }
 
   public static void e(String message, Throwable e) {
-    android.util.Log.e(getTag(), message, e);
+    log(ERROR, message, e);
   }
 
   public static void e(Context context, String message) {
     toast(context, message);
-    android.util.Log.e(getTag(), message);
+    log(ERROR, message, null);
   }
 
   public static void e(Context context, String message, Throwable e) {
     toast(context, message);
-    android.util.Log.e(getTag(), message, e);
+    log(ERROR, message, e);
   }
 
   public static void w(Throwable e) {
-    android.util.Log.w(getTag(), "Warning", e);
+    log(WARN, "Warning", e);
   }
 
   public static void w(String message) {
-    android.util.Log.w(getTag(), message);
+    log(WARN, message, null);
   }
 
   public static void w(String message, Throwable e) {
-    android.util.Log.w(getTag(), message, e);
+    log(WARN, message, e);
   }
 
   public static void w(Context context, String message) {
     toast(context, message);
-    android.util.Log.w(getTag(), message);
+    log(WARN, message, null);
   }
 
   public static void w(Context context, String message, Throwable e) {
     toast(context, message);
-    android.util.Log.w(getTag(), message, e);
+    log(WARN, message, e);
   }
 
   public static void d(String message) {
-    android.util.Log.d(getTag(), message);
+    log(DEBUG, message, null);
   }
 
   public static void d(String message, Throwable e) {
-    android.util.Log.d(getTag(), message, e);
+    log(DEBUG, message, e);
   }
 
   public static void d(Context context, String message) {
     toast(context, message);
-    android.util.Log.d(getTag(), message);
+    log(DEBUG, message, null);
   }
 
   public static void d(Context context, String message, Throwable e) {
     toast(context, message);
-    android.util.Log.d(getTag(), message, e);
+    log(DEBUG, message, e);
   }
 
   public static void i(String message) {
-    android.util.Log.i(getTag(), message);
+    log(INFO, message, null);
   }
 
   public static void i(String message, Throwable e) {
-    android.util.Log.i(getTag(), message, e);
+    log(INFO, message, e);
   }
 
   public static void i(Context context, String message) {
     toast(context, message);
-    android.util.Log.i(getTag(), message);
+    log(INFO, message, null);
   }
 
   public static void i(Context context, String message, Throwable e) {
     toast(context, message);
-    android.util.Log.i(getTag(), message, e);
+    log(INFO, message, e);
   }
 }
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.android_scripting;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A buffered file output stream that rotates its file once it reaches a maximum size. The file is
+ * renamed to {@code <name>.1}, older backups are shifted to {@code <name>.2} and so on, and the
+ * oldest backup is deleted.
+ */
+public class RotatingFileOutputStream extends OutputStream {
+
+  private static final int BUFFER_SIZE = 1024 * 8;
+
+  private final File mFile;
+  private final long mMaxSize;
+  private final int mBackups;
+  private OutputStream mStream;
+  private long mSize;
+
+  /**
+   * Creates the file, replacing it and any backups left by a previous stream.
+   * 
+   * @param maxSize
+   *          the size in bytes at which the file is rotated
+   * @param backups
+   *          the number of rotated files to keep
+   */
+  public RotatingFileOutputStream(File file, long maxSize, int backups) throws IOException {
+    if (maxSize <= 0 || backups < 0) {
+      throw new IllegalArgumentException("Invalid maximum size or number of backups.");
+    }
+    mFile = file;
+    mMaxSize = maxSize;
+    mBackups = backups;
+    for (int i = 1; i <= backups; i++) {
+      getBackup(i).delete();
+    }
+    open();
+  }
+
+  /** Returns the file of the given backup, where 1 is the most recent. */
+  public File getBackup(int index) {
+    return new File(mFile.getPath() + "." + index);
+  }
+
+  private void open() throws IOException {
+    mStream = new BufferedOutputStream(new FileOutputStream(mFile, false), BUFFER_SIZE);
+    mSize = 0;
+  }
+
+  private void rotate() throws IOException {
+    mStream.close();
+    if (mBackups == 0) {
+      mFile.delete();
+    } else {
+      getBackup(mBackups).delete();
+      for (int i = mBackups - 1; i > 0; i--) {
+        getBackup(i).renameTo(getBackup(i + 1));
+      }
+      mFile.renameTo(getBackup(1));
+    }
+    open();
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if (mSize >= mMaxSize) {
+      rotate();
+    }
+    mStream.write(b);
+    mSize++;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      if (mSize >= mMaxSize) {
+        rotate();
+      }
+      int count = (int) Math.min(len, mMaxSize - mSize);
+      mStream.write(b, off, count);
+      mSize += count;
+      off += count;
+      len -= count;
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    mStream.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    mStream.close();
+  }
+}
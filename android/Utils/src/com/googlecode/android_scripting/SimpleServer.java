@@ -19,6 +19,8 @@ package com.googlecode.android_scripting;
 import com.google.common.collect.Lists;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -27,33 +29,123 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A simple server.
  * 
+ * <p>
+ * By default every connection is served by its own {@link ConnectionThread} that calls
+ * {@link #handleConnection(Socket)}. Servers that speak a newline-delimited protocol and implement
+ * {@link LineHandlerFactory} may instead opt into selector mode (see {@link #setSelectorMode(int)}),
+ * where a single thread multiplexes all sockets with a {@link Selector} and complete lines are
+ * dispatched to a pool of worker threads.
+ * 
  * @author Damon Kohler (damonkohler@gmail.com)
  */
 public abstract class SimpleServer {
 
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final int BACKLOG = 5;
+  private static final int READ_BUFFER_SIZE = 8192;
+  /** Lines queued on a selector connection before we stop reading from its socket. */
+  private static final int MAX_PENDING_LINES = 64;
+  /** The longest line a selector connection may send before it is closed. */
+  private static final int MAX_LINE_LENGTH = 16 * 1024 * 1024;
+  /** How long a worker beyond the core pool waits for another request before it exits. */
+  private static final long WORKER_KEEP_ALIVE_SECONDS = 60;
+
   private final CopyOnWriteArrayList<ConnectionThread> mConnectionThreads =
       new CopyOnWriteArrayList<ConnectionThread>();
+  private final CopyOnWriteArrayList<SelectorConnection> mSelectorConnections =
+      new CopyOnWriteArrayList<SelectorConnection>();
+  private final ConcurrentLinkedQueue<SelectorConnection> mInterestUpdates =
+      new ConcurrentLinkedQueue<SelectorConnection>();
   private final List<SimpleServerObserver> mObservers = Lists.newArrayList();
   private volatile boolean mStopServer = false;
   private ServerSocket mServer;
   private Thread mServerThread;
 
+  private int mSelectorWorkerThreads = 0;
+  private Selector mSelector;
+  private ExecutorService mWorkers;
+
   public interface SimpleServerObserver {
     public void onConnect();
 
     public void onDisconnect();
   }
 
+  /**
+   * Handles the requests of a single connection served in selector mode. Calls for one connection
+   * are never concurrent and arrive in the order the lines were received.
+   */
+  public interface LineHandler {
+    /**
+     * Handles one request line (without its line terminator). Responses are written to {@code out}
+     * and are flushed once all currently queued lines of the connection have been handled.
+     * Throwing closes the connection after flushing whatever was written.
+     */
+    public void handleLine(String line, Writer out) throws Exception;
+
+    /** Called once the connection is closed. */
+    public void close();
+  }
+
+  /**
+   * Implemented by servers that support selector mode.
+   */
+  public interface LineHandlerFactory {
+    /** Returns the {@link LineHandler} for a new connection. */
+    public LineHandler createLineHandler();
+  }
+
   protected abstract void handleConnection(Socket socket) throws Exception;
 
+  /**
+   * Serves connections from a single {@link Selector} thread instead of one thread per connection.
+   * Must be called before the server is started, and only on servers that implement
+   * {@link LineHandlerFactory}.
+   * 
+   * @param workerThreads
+   *          the number of threads kept to handle requests; a request blocking in a handler (e.g.
+   *          waiting for an event) holds its thread, so further threads are started while all of
+   *          them are busy
+   */
+  public void setSelectorMode(int workerThreads) {
+    if (!(this instanceof LineHandlerFactory)) {
+      throw new UnsupportedOperationException(getClass().getSimpleName()
+          + " does not support selector mode.");
+    }
+    if (workerThreads < 1) {
+      throw new IllegalArgumentException("At least one worker thread is required.");
+    }
+    mSelectorWorkerThreads = workerThreads;
+  }
+
+  /** Returns true if connections are served in selector mode. */
+  public boolean isSelectorMode() {
+    return mSelectorWorkerThreads > 0;
+  }
+
   /** Adds an observer. */
   public void addObserver(SimpleServerObserver observer) {
     mObservers.add(observer);
@@ -112,9 +204,248 @@ public abstract class SimpleServer {
     }
   }
 
+  /**
+   * A non-blocking connection served in selector mode. Bytes are read and split into lines on the
+   * selector thread; the lines are handled on a worker thread, one batch per connection at a time.
+   */
+  private final class SelectorConnection implements Runnable {
+    private final SocketChannel mmChannel;
+    private final SelectionKey mmKey;
+    private final LineHandler mmHandler;
+    private final ChannelWriter mmWriter = new ChannelWriter(this);
+    private final LinkedList<String> mmLines = new LinkedList<String>();
+    private final LinkedList<ByteBuffer> mmOutgoing = new LinkedList<ByteBuffer>();
+    private byte[] mmLineBuffer = new byte[256];
+    private int mmLineLength = 0;
+    private boolean mmScheduled = false;
+    private boolean mmClosed = false;
+    private volatile boolean mmThrottled = false;
+
+    private SelectorConnection(SocketChannel channel) throws IOException {
+      mmChannel = channel;
+      mmHandler = ((LineHandlerFactory) SimpleServer.this).createLineHandler();
+      mmKey = channel.register(mSelector, SelectionKey.OP_READ, this);
+    }
+
+    /** Called on the selector thread when the channel is readable. */
+    private void read(ByteBuffer buffer) throws IOException {
+      buffer.clear();
+      int count = mmChannel.read(buffer);
+      if (count < 0) {
+        close();
+        return;
+      }
+      byte[] bytes = buffer.array();
+      int start = 0;
+      boolean added = false;
+      for (int i = 0; i < count; i++) {
+        if (bytes[i] == '\n') {
+          appendToLine(bytes, start, i - start);
+          synchronized (this) {
+            mmLines.add(takeLine());
+          }
+          added = true;
+          start = i + 1;
+        }
+      }
+      appendToLine(bytes, start, count - start);
+      if (added) {
+        schedule();
+      }
+    }
+
+    private void appendToLine(byte[] bytes, int offset, int length) throws IOException {
+      if (mmLineLength + length > MAX_LINE_LENGTH) {
+        throw new IOException("Line exceeds " + MAX_LINE_LENGTH + " bytes.");
+      }
+      if (mmLineLength + length > mmLineBuffer.length) {
+        byte[] grown = new byte[Math.max(mmLineBuffer.length * 2, mmLineLength + length)];
+        System.arraycopy(mmLineBuffer, 0, grown, 0, mmLineLength);
+        mmLineBuffer = grown;
+      }
+      System.arraycopy(bytes, offset, mmLineBuffer, mmLineLength, length);
+      mmLineLength += length;
+    }
+
+    private String takeLine() throws UnsupportedEncodingException {
+      int length = mmLineLength;
+      if (length > 0 && mmLineBuffer[length - 1] == '\r') {
+        length--;
+      }
+      mmLineLength = 0;
+      return new String(mmLineBuffer, 0, length, "UTF-8");
+    }
+
+    private void schedule() {
+      boolean throttle;
+      synchronized (this) {
+        throttle = mmLines.size() >= MAX_PENDING_LINES;
+        if (!mmScheduled && !mmClosed) {
+          mmScheduled = true;
+          mWorkers.execute(this);
+        }
+      }
+      if (throttle) {
+        updateInterestOps();
+      }
+    }
+
+    /** Handles queued lines on a worker thread. */
+    @Override
+    public void run() {
+      while (true) {
+        String line;
+        synchronized (this) {
+          line = mmLines.poll();
+        }
+        if (line == null) {
+          try {
+            mmWriter.flush();
+          } catch (IOException e) {
+            close();
+            return;
+          }
+          synchronized (this) {
+            if (mmLines.isEmpty()) {
+              mmScheduled = false;
+              break;
+            }
+          }
+          continue;
+        }
+        try {
+          mmHandler.handleLine(line, mmWriter);
+        } catch (Exception e) {
+          if (!mStopServer) {
+            Log.e("Server error.", e);
+          }
+          try {
+            mmWriter.flush();
+          } catch (IOException ignored) {
+          }
+          close();
+          return;
+        }
+      }
+      if (mmThrottled) {
+        // We stopped reading because too many lines were queued.
+        requestInterestUpdate();
+      }
+    }
+
+    /** Writes as much as possible directly and queues the rest for the selector thread. */
+    private void send(ByteBuffer buffer) throws IOException {
+      synchronized (mmOutgoing) {
+        if (mmOutgoing.isEmpty()) {
+          mmChannel.write(buffer);
+        }
+        if (!buffer.hasRemaining()) {
+          return;
+        }
+        mmOutgoing.add(buffer);
+      }
+      requestInterestUpdate();
+    }
+
+    /** Called on the selector thread when the channel is writable. */
+    private void write() throws IOException {
+      synchronized (mmOutgoing) {
+        while (!mmOutgoing.isEmpty()) {
+          ByteBuffer buffer = mmOutgoing.getFirst();
+          mmChannel.write(buffer);
+          if (buffer.hasRemaining()) {
+            return;
+          }
+          mmOutgoing.removeFirst();
+        }
+      }
+      updateInterestOps();
+    }
+
+    private void requestInterestUpdate() {
+      mInterestUpdates.add(this);
+      mSelector.wakeup();
+    }
+
+    /** Must be called on the selector thread. */
+    private void updateInterestOps() {
+      if (!mmKey.isValid()) {
+        return;
+      }
+      int ops = 0;
+      synchronized (this) {
+        mmThrottled = mmLines.size() >= MAX_PENDING_LINES;
+        if (!mmThrottled) {
+          ops |= SelectionKey.OP_READ;
+        }
+      }
+      synchronized (mmOutgoing) {
+        if (!mmOutgoing.isEmpty()) {
+          ops |= SelectionKey.OP_WRITE;
+        }
+      }
+      mmKey.interestOps(ops);
+    }
+
+    private void close() {
+      synchronized (this) {
+        if (mmClosed) {
+          return;
+        }
+        mmClosed = true;
+        mmLines.clear();
+      }
+      mmKey.cancel();
+      try {
+        mmChannel.close();
+      } catch (IOException e) {
+        Log.e(e.getMessage(), e);
+      }
+      mmHandler.close();
+      if (mSelectorConnections.remove(this)) {
+        notifyOnDisconnect();
+      }
+    }
+  }
+
+  /** Buffers the responses of a {@link SelectorConnection} until they are flushed. */
+  private static final class ChannelWriter extends Writer {
+    private final SelectorConnection mmConnection;
+    private final StringBuilder mmBuffer = new StringBuilder();
+
+    private ChannelWriter(SelectorConnection connection) {
+      mmConnection = connection;
+    }
+
+    @Override
+    public void write(char[] buffer, int offset, int count) {
+      mmBuffer.append(buffer, offset, count);
+    }
+
+    @Override
+    public void write(String string) {
+      mmBuffer.append(string);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      if (mmBuffer.length() == 0) {
+        return;
+      }
+      ByteBuffer bytes = UTF_8.encode(CharBuffer.wrap(mmBuffer));
+      mmBuffer.setLength(0);
+      mmConnection.send(bytes);
+    }
+
+    @Override
+    public void close() {
+      mmConnection.close();
+    }
+  }
+
   /** Returns the number of active connections to this server. */
   public int getNumberOfConnections() {
-    return mConnectionThreads.size();
+    return mConnectionThreads.size() + mSelectorConnections.size();
   }
 
   public static InetAddress getPrivateInetAddress() throws UnknownHostException, SocketException {
@@ -175,7 +506,7 @@ public abstract class SimpleServer {
     try {
       // address = InetAddress.getLocalHost();
       address = getPrivateInetAddress();
-      mServer = new ServerSocket(port, 5 /* backlog */, address);
+      mServer = bind(port, address);
     } catch (Exception e) {
       Log.e("Failed to start server.", e);
       return null;
@@ -197,7 +528,7 @@ public abstract class SimpleServer {
     try {
       // address = getPublicInetAddress();
       address = null;
-      mServer = new ServerSocket(port, 5 /* backlog */, address);
+      mServer = bind(port, address);
     } catch (Exception e) {
       Log.e("Failed to start server.", e);
       return null;
@@ -216,7 +547,7 @@ public abstract class SimpleServer {
    */
   public InetSocketAddress startAllInterfaces(int port) {
     try {
-      mServer = new ServerSocket(port, 5 /* backlog */);
+      mServer = bind(port, null);
     } catch (Exception e) {
       Log.e("Failed to start server.", e);
       return null;
@@ -225,7 +556,27 @@ public abstract class SimpleServer {
     return InetSocketAddress.createUnresolved(mServer.getInetAddress().getHostAddress(), boundPort);
   }
 
+  private ServerSocket bind(int port, InetAddress address) throws IOException {
+    if (!isSelectorMode()) {
+      return new ServerSocket(port, BACKLOG, address);
+    }
+    ServerSocketChannel channel = ServerSocketChannel.open();
+    try {
+      channel.socket().bind(new InetSocketAddress(address, port), BACKLOG);
+      channel.configureBlocking(false);
+      mSelector = Selector.open();
+      channel.register(mSelector, SelectionKey.OP_ACCEPT);
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+    return channel.socket();
+  }
+
   private int start() {
+    if (isSelectorMode()) {
+      return startSelector();
+    }
     mServerThread = new Thread() {
       @Override
       public void run() {
@@ -250,6 +601,120 @@ public abstract class SimpleServer {
     return mServer.getLocalPort();
   }
 
+  private int startSelector() {
+    // Requests may block for as long as they like (e.g. eventWait), and the event they wait for
+    // may have to come from another connection. So a request never waits for a free worker: once
+    // all workers are busy, another one is started, and it exits again after it has been idle.
+    mWorkers =
+        new ThreadPoolExecutor(mSelectorWorkerThreads, Integer.MAX_VALUE,
+            WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+            new ThreadFactory() {
+              private int mmCount = 0;
+
+              @Override
+              public synchronized Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "SimpleServer Worker " + mmCount++);
+                thread.setDaemon(true);
+                return thread;
+              }
+            });
+    mServerThread = new Thread() {
+      @Override
+      public void run() {
+        runSelector();
+      }
+    };
+    mServerThread.setName("SimpleServer Selector");
+    mServerThread.start();
+    Log.v("Bound to " + mServer.getInetAddress() + " in selector mode.");
+    return mServer.getLocalPort();
+  }
+
+  private void runSelector() {
+    ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    try {
+      while (!mStopServer) {
+        mSelector.select();
+        SelectorConnection pending;
+        while ((pending = mInterestUpdates.poll()) != null) {
+          pending.updateInterestOps();
+        }
+        Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if (!key.isValid()) {
+            continue;
+          }
+          if (key.isAcceptable()) {
+            accept((ServerSocketChannel) key.channel());
+            continue;
+          }
+          SelectorConnection connection = (SelectorConnection) key.attachment();
+          try {
+            if (key.isReadable()) {
+              connection.read(readBuffer);
+            }
+            if (key.isValid() && key.isWritable()) {
+              connection.write();
+            }
+          } catch (IOException e) {
+            connection.close();
+          } catch (RuntimeException e) {
+            // Only this connection is broken, the others are still served.
+            Log.e("Server error.", e);
+            connection.close();
+          }
+        }
+      }
+    } catch (Exception e) {
+      if (!mStopServer) {
+        Log.e("Selector failed.", e);
+      }
+    } finally {
+      try {
+        mSelector.close();
+      } catch (IOException e) {
+        Log.e("Failed to close selector.", e);
+      }
+    }
+  }
+
+  private void accept(ServerSocketChannel serverChannel) {
+    SocketChannel channel = null;
+    try {
+      channel = serverChannel.accept();
+      if (channel == null) {
+        return;
+      }
+      if (mStopServer) {
+        channel.close();
+        return;
+      }
+      channel.configureBlocking(false);
+      channel.socket().setTcpNoDelay(true);
+      mSelectorConnections.add(new SelectorConnection(channel));
+      notifyOnConnect();
+    } catch (IOException e) {
+      if (!mStopServer) {
+        Log.e("Failed to accept connection.", e);
+      }
+      closeChannel(channel);
+    } catch (RuntimeException e) {
+      Log.e("Failed to accept connection.", e);
+      closeChannel(channel);
+    }
+  }
+
+  private void closeChannel(SocketChannel channel) {
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException ignored) {
+      }
+    }
+  }
+
   private void startConnectionThread(final Socket sock) {
     ConnectionThread networkThread = new ConnectionThread(sock);
     mConnectionThreads.add(networkThread);
@@ -274,6 +739,17 @@ public abstract class SimpleServer {
     for (ConnectionThread connectionThread : mConnectionThreads) {
       connectionThread.close();
     }
+    if (isSelectorMode()) {
+      for (SelectorConnection connection : mSelectorConnections) {
+        connection.close();
+      }
+      if (mSelector != null) {
+        mSelector.wakeup();
+      }
+      if (mWorkers != null) {
+        mWorkers.shutdown();
+      }
+    }
     for (SimpleServerObserver observer : mObservers) {
       removeObserver(observer);
     }
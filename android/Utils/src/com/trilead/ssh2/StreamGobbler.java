@@ -1,30 +1,28 @@
 package com.trilead.ssh2;
 
 import com.googlecode.android_scripting.Log;
+import com.googlecode.android_scripting.RotatingFileOutputStream;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 
 /**
  * A <code>StreamGobbler</code> is an InputStream that uses an internal worker thread to constantly
- * consume input from another InputStream. It uses a buffer to store the consumed data. The buffer
- * size is automatically adjusted, if needed.
+ * consume input from another InputStream. It uses a ring buffer of fixed size to store the consumed
+ * data. If the buffer fills up because the data is not read fast enough, the oldest data is
+ * overwritten; the worker thread never blocks on the reader.
  * <p>
- * This class is sometimes very convenient - if you wrap a session's STDOUT and STDERR InputStreams
- * with instances of this class, then you don't have to bother about the shared window of STDOUT and
- * STDERR in the low level SSH-2 protocol, since all arriving data will be immediatelly consumed by
- * the worker threads. Also, as a side effect, the streams will be buffered (e.g., single byte
- * read() operations are faster).
+ * Everything consumed is also written to a log file by a second thread, so a slow file system does
+ * not hold up the worker thread. The log is rotated once it reaches a maximum size (see
+ * {@link RotatingFileOutputStream}). If the log thread falls behind by more than the size of the
+ * buffer, the overwritten data is missing from the log and a note is written in its place.
  * <p>
- * Other SSH for Java libraries include this functionality by default in their STDOUT and STDERR
- * InputStream implementations, however, please be aware that this approach has also a downside:
- * <p>
- * If you do not call the StreamGobbler's <code>read()</code> method often enough and the peer is
- * constantly sending huge amounts of data, then you will sooner or later encounter a low memory
- * situation due to the aggregated data (well, it also depends on the Java heap size). Joe Average
- * will like this class anyway - a paranoid programmer would never use such an approach.
+ * The worker thread is the only writer of the buffer, and the reader and log thread each keep their
+ * own position in it. No locks are taken while data is copied. Before it fills a region, the worker
+ * thread claims it; a consumer that finds its data claimed after copying it knows it was overwritten
+ * and skips ahead.
  * <p>
  * The term "StreamGobbler" was taken from an article called "When Runtime.exec() won't", see
  * http://www.javaworld.com/javaworld/jw-12-2000/jw-1229-traps.html.
@@ -34,133 +32,253 @@ import java.io.InputStream;
  */
 
 public class StreamGobbler extends InputStream {
-  class GobblerThread extends Thread {
-    @Override
-    public void run() {
 
+  /** The size in bytes at which logs are rotated by default. */
+  public static final long DEFAULT_MAX_LOG_SIZE = 1024 * 1024;
+  /** The number of rotated logs kept by default. */
+  public static final int DEFAULT_LOG_BACKUPS = 2;
+
+  private final InputStream mInput;
+  private final byte[] mBuffer;
+  private final int mCapacity;
+  private final Object mLock = new Object();
+  private final byte[] mSingleByte = new byte[1];
+
+  // The end of the region the gobbler thread is filling and the end of the data it has published.
+  // Both are stream positions, i.e. they count all bytes ever consumed.
+  private volatile long mClaimed = 0;
+  private volatile long mWritten = 0;
+  private volatile boolean mEOF = false;
+  private volatile boolean mClosed = false;
+  private volatile IOException mException;
+
+  private final Cursor mReader = new Cursor();
+  private volatile Cursor mLogger;
+
+  /** A consumer's position in the buffer. Each cursor is advanced by a single thread only. */
+  private class Cursor {
+    private volatile long mmPosition = 0;
+    private volatile boolean mmWaiting = false;
+    private long mmSkipped = 0;
+
+    /**
+     * Copies data without blocking, skipping data that was overwritten.
+     * 
+     * @return the number of bytes copied, 0 if there is no data
+     */
+    private int copy(byte[] b, int off, int len) {
       while (true) {
-        try {
-          byte[] saveBuffer = null;
-
-          int avail = is.read(buffer, write_pos, buffer.length - write_pos);
+        long position = mmPosition;
+        long oldest = mClaimed - mCapacity;
+        if (position < oldest) {
+          mmSkipped += oldest - position;
+          position = oldest;
+        }
+        int count = (int) Math.min(len, mWritten - position);
+        if (count <= 0) {
+          mmPosition = position;
+          return 0;
+        }
+        // The writer claims space (mClaimed) before it overwrites the oldest bytes, and publishes
+        // them (mWritten) afterwards. The copy below races with it, so it is validated like a
+        // seqlock: if the claim has moved past our position by the time the copy is done, some of
+        // the copied bytes may be newer data and we start over. The plain loads of the copy must
+        // not be reordered after the validating load of mClaimed. A volatile load alone doesn't
+        // prevent that, but a volatile store does: earlier loads can't move below it, and the
+        // volatile load after it can't move above it.
+        int offset = (int) (position % mCapacity);
+        int first = Math.min(count, mCapacity - offset);
+        System.arraycopy(mBuffer, offset, b, off, first);
+        System.arraycopy(mBuffer, 0, b, off + first, count - first);
+        mmPosition = position;
+        if (mClaimed - mCapacity > position) {
+          // Overwritten while we were copying.
+          continue;
+        }
+        mmPosition = position + count;
+        return count;
+      }
+    }
 
-          synchronized (synchronizer) {
-            if (avail <= 0) {
-              isEOF = true;
-              synchronizer.notifyAll();
-              break;
+    /**
+     * Waits until there is data after this cursor.
+     * 
+     * @return false at the end of the stream
+     */
+    private boolean await() {
+      if (mWritten > mmPosition) {
+        return true;
+      }
+      synchronized (mLock) {
+        mmWaiting = true;
+        try {
+          while (mWritten <= mmPosition) {
+            if (mEOF || (this == mReader && mClosed)) {
+              return false;
             }
-            write_pos += avail;
-
-            int space_available = buffer.length - write_pos;
-
-            if (space_available == 0) {
-              if (read_pos > 0) {
-                saveBuffer = new byte[read_pos];
-                System.arraycopy(buffer, 0, saveBuffer, 0, read_pos);
-                System.arraycopy(buffer, read_pos, buffer, 0, buffer.length - read_pos);
-                write_pos -= read_pos;
-                read_pos = 0;
-              } else {
-                write_pos = 0;
-                saveBuffer = buffer;
-              }
+            try {
+              mLock.wait();
+            } catch (InterruptedException e) {
             }
-
-            synchronizer.notifyAll();
           }
+          return true;
+        } finally {
+          mmWaiting = false;
+        }
+      }
+    }
+  }
 
-          writeToFile(saveBuffer);
-
-        } catch (IOException e) {
-          synchronized (synchronizer) {
-            exception = e;
-            synchronizer.notifyAll();
+  class GobblerThread extends Thread {
+    @Override
+    public void run() {
+      // Don't let a full buffer overwrite more than a fraction of the oldest data at a time.
+      int overwriteChunk = Math.max(1, mCapacity / 8);
+      try {
+        while (true) {
+          long written = mWritten;
+          long tail = mReader.mmPosition;
+          Cursor logger = mLogger;
+          if (logger != null) {
+            tail = Math.min(tail, logger.mmPosition);
+          }
+          int offset = (int) (written % mCapacity);
+          long free = mCapacity - (written - tail);
+          int length = (int) Math.min(mCapacity - offset, free > 0 ? free : overwriteChunk);
+          mClaimed = written + length;
+          int count = mInput.read(mBuffer, offset, length);
+          if (count <= 0) {
             break;
           }
+          mWritten = written + count;
+          if (mReader.mmWaiting || (logger != null && logger.mmWaiting)) {
+            synchronized (mLock) {
+              mLock.notifyAll();
+            }
+          }
         }
+      } catch (IOException e) {
+        mException = e;
+      }
+      synchronized (mLock) {
+        mEOF = true;
+        mLock.notifyAll();
       }
     }
   }
 
-  private InputStream is;
-  private GobblerThread t;
-
-  private Object synchronizer = new Object();
+  class LogThread extends Thread {
+    private final Cursor mmLogger;
+    private final OutputStream mmLogStream;
 
-  private boolean isEOF = false;
-  private boolean isClosed = false;
-  private IOException exception = null;
+    LogThread(Cursor logger, OutputStream logStream) {
+      mmLogger = logger;
+      mmLogStream = logStream;
+    }
 
-  private byte[] buffer;
-  private int read_pos = 0;
-  private int write_pos = 0;
-  private final FileOutputStream mLogStream;
-  private final int mBufferSize;
+    @Override
+    public void run() {
+      byte[] chunk = new byte[Math.min(mCapacity, 8192)];
+      long skipped = 0;
+      try {
+        while (true) {
+          int count = mmLogger.copy(chunk, 0, chunk.length);
+          if (count == 0) {
+            // Caught up. Make the log current before waiting.
+            mmLogStream.flush();
+            if (!mmLogger.await()) {
+              break;
+            }
+            continue;
+          }
+          if (mmLogger.mmSkipped != skipped) {
+            mmLogStream.write(("\n[" + (mmLogger.mmSkipped - skipped) + " bytes not logged]\n")
+                .getBytes());
+            skipped = mmLogger.mmSkipped;
+          }
+          mmLogStream.write(chunk, 0, count);
+        }
+      } catch (IOException e) {
+        Log.e(e);
+      } finally {
+        // Stop holding back the gobbler thread.
+        mmLogger.mmPosition = Long.MAX_VALUE;
+        try {
+          mmLogStream.close();
+        } catch (IOException e) {
+          Log.e(e);
+        }
+      }
+    }
+  }
 
   public StreamGobbler(InputStream is, File log, int buffer_size) {
-    this.is = is;
-    mBufferSize = buffer_size;
-    FileOutputStream out = null;
-    try {
-      out = new FileOutputStream(log, false);
-    } catch (IOException e) {
-      Log.e(e);
+    this(is, log, buffer_size, DEFAULT_MAX_LOG_SIZE, DEFAULT_LOG_BACKUPS);
+  }
+
+  /**
+   * @param log
+   *          the file to log all consumed data to, or null
+   * @param maxLogSize
+   *          the size in bytes at which the log is rotated
+   * @param logBackups
+   *          the number of rotated logs to keep
+   */
+  public StreamGobbler(InputStream is, File log, int buffer_size, long maxLogSize, int logBackups) {
+    mInput = is;
+    mCapacity = buffer_size;
+    mBuffer = new byte[mCapacity];
+    if (log != null) {
+      startLog(log, maxLogSize, logBackups);
     }
-    mLogStream = out;
-    buffer = new byte[mBufferSize];
-    t = new GobblerThread();
+    GobblerThread t = new GobblerThread();
     t.setDaemon(true);
     t.start();
   }
 
-  public void writeToFile(byte[] buffer) {
-    if (mLogStream != null && buffer != null) {
-      try {
-        mLogStream.write(buffer);
-      } catch (IOException e) {
-        Log.e(e);
-      }
+  /**
+   * Starts logging all data consumed from now on, for a gobbler that was created without a log.
+   * Data consumed before is not logged.
+   * 
+   * @param log
+   *          the file to log to
+   * @param maxLogSize
+   *          the size in bytes at which the log is rotated
+   * @param logBackups
+   *          the number of rotated logs to keep
+   */
+  public synchronized void startLog(File log, long maxLogSize, int logBackups) {
+    if (mLogger != null) {
+      throw new IllegalStateException("This StreamGobbler is already logging.");
+    }
+    OutputStream out;
+    try {
+      out = new RotatingFileOutputStream(log, maxLogSize, logBackups);
+    } catch (IOException e) {
+      Log.e(e);
+      return;
     }
+    Cursor logger = new Cursor();
+    logger.mmPosition = mWritten;
+    LogThread logThread = new LogThread(logger, out);
+    logThread.setDaemon(true);
+    logThread.start();
+    mLogger = logger;
   }
 
   @Override
   public int read() throws IOException {
-    synchronized (synchronizer) {
-      if (isClosed) {
-        throw new IOException("This StreamGobbler is closed.");
-      }
-
-      while (read_pos == write_pos) {
-        if (exception != null) {
-          throw exception;
-        }
-
-        if (isEOF) {
-          return -1;
-        }
-
-        try {
-          synchronizer.wait();
-        } catch (InterruptedException e) {
-        }
-      }
-
-      int b = buffer[read_pos++] & 0xff;
-
-      return b;
-    }
+    int count = read(mSingleByte, 0, 1);
+    return count < 0 ? -1 : mSingleByte[0] & 0xff;
   }
 
   @Override
   public int available() throws IOException {
-    synchronized (synchronizer) {
-      if (isClosed) {
-        throw new IOException("This StreamGobbler is closed.");
-      }
-
-      return write_pos - read_pos;
+    if (mClosed) {
+      throw new IOException("This StreamGobbler is closed.");
     }
+    long position = Math.max(mReader.mmPosition, mClaimed - mCapacity);
+    return (int) Math.max(0, mWritten - position);
   }
 
   @Override
@@ -170,15 +288,14 @@ public class StreamGobbler extends InputStream {
 
   @Override
   public void close() throws IOException {
-    synchronized (synchronizer) {
-      if (isClosed) {
+    synchronized (mLock) {
+      if (mClosed) {
         return;
       }
-      isClosed = true;
-      isEOF = true;
-      synchronizer.notifyAll();
-      is.close();
+      mClosed = true;
+      mLock.notifyAll();
     }
+    mInput.close();
   }
 
   @Override
@@ -195,35 +312,22 @@ public class StreamGobbler extends InputStream {
       return 0;
     }
 
-    synchronized (synchronizer) {
-      if (isClosed) {
-        throw new IOException("This StreamGobbler is closed.");
-      }
-
-      while (read_pos == write_pos) {
-        if (exception != null) {
-          throw exception;
-        }
-
-        if (isEOF) {
-          return -1;
-        }
+    if (mClosed) {
+      throw new IOException("This StreamGobbler is closed.");
+    }
 
-        try {
-          synchronizer.wait();
-        } catch (InterruptedException e) {
+    while (true) {
+      int count = mReader.copy(b, off, len);
+      if (count > 0) {
+        return count;
+      }
+      if (!mReader.await()) {
+        // Closing the stream ends a blocked read.
+        if (mException != null && !mClosed) {
+          throw mException;
         }
+        return -1;
       }
-
-      int avail = write_pos - read_pos;
-
-      avail = (avail > len) ? len : avail;
-
-      System.arraycopy(buffer, read_pos, b, off, avail);
-
-      read_pos += avail;
-
-      return avail;
     }
   }
 }
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.android_scripting.facade;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Distributes encoded frames to any number of clients. <br>
+ * <br>
+ * Each frame is encoded once into a pooled buffer and shared by all clients. A client only holds
+ * the latest frame it has not sent yet: publishing a new frame replaces it, so a slow client skips
+ * frames instead of holding up the encoder or the other clients. Buffers are reference counted and
+ * return to the pool once every client has released them.
+ */
+class FrameHub {
+
+  private static final int MAX_POOLED_FRAMES = 4;
+
+  private final LinkedList<Frame> mPool = new LinkedList<Frame>();
+  private final List<Client> mClients = new ArrayList<Client>();
+  private Frame mLatest;
+  private boolean mClosed = false;
+
+  /** An encoded frame. Frames are obtained from and returned to the hub. */
+  static class Frame {
+    private byte[] mmData;
+    private int mmLength;
+    private int mmReferences;
+
+    private Frame(int capacity) {
+      mmData = new byte[capacity];
+    }
+
+    public byte[] getData() {
+      return mmData;
+    }
+
+    public int getLength() {
+      return mmLength;
+    }
+
+    /** Returns a stream that replaces the contents of this frame. */
+    public OutputStream getOutputStream() {
+      mmLength = 0;
+      return new OutputStream() {
+        @Override
+        public void write(int b) {
+          ensureCapacity(mmLength + 1);
+          mmData[mmLength++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) {
+          ensureCapacity(mmLength + count);
+          System.arraycopy(buffer, offset, mmData, mmLength, count);
+          mmLength += count;
+        }
+      };
+    }
+
+    private void ensureCapacity(int capacity) {
+      if (capacity > mmData.length) {
+        byte[] grown = new byte[Math.max(capacity, mmData.length * 2)];
+        System.arraycopy(mmData, 0, grown, 0, mmLength);
+        mmData = grown;
+      }
+    }
+  }
+
+  /** A consumer of frames, e.g. a connection to an MJPEG viewer. */
+  class Client {
+    private final long mmConnected = System.currentTimeMillis();
+    private Frame mmPending;
+    private long mmFrames = 0;
+    private long mmBytes = 0;
+    private long mmDropped = 0;
+    private long mmWindowStart = mmConnected;
+    private int mmWindowFrames = 0;
+    private double mmFps = 0;
+
+    private Client() {
+    }
+
+    /**
+     * Waits for the next frame. The frame must be passed to
+     * {@link #release(Frame, long)} when the client is done with it.
+     * 
+     * @return the frame, or null if the hub was closed or the client removed
+     */
+    public Frame take() throws InterruptedException {
+      synchronized (FrameHub.this) {
+        while (mmPending == null) {
+          if (mClosed || !mClients.contains(this)) {
+            return null;
+          }
+          FrameHub.this.wait();
+        }
+        Frame frame = mmPending;
+        mmPending = null;
+        return frame;
+      }
+    }
+
+    /** Releases a frame returned by {@link #take()} after {@code sent} bytes were written. */
+    public void release(Frame frame, long sent) {
+      synchronized (FrameHub.this) {
+        mmFrames++;
+        mmBytes += sent;
+        mmWindowFrames++;
+        long now = System.currentTimeMillis();
+        if (now - mmWindowStart >= 1000) {
+          mmFps = mmWindowFrames * 1000.0 / (now - mmWindowStart);
+          mmWindowStart = now;
+          mmWindowFrames = 0;
+        }
+        unreference(frame);
+      }
+    }
+
+    private Map<String, Object> getStatistics() {
+      Map<String, Object> statistics = new HashMap<String, Object>();
+      statistics.put("connected", mmConnected / 1000.0);
+      statistics.put("frames", mmFrames);
+      statistics.put("bytes", mmBytes);
+      statistics.put("dropped", mmDropped);
+      statistics.put("fps", mmFps);
+      return statistics;
+    }
+  }
+
+  /** Returns an empty frame to encode into, reusing a pooled buffer if possible. */
+  public synchronized Frame obtain(int capacity) {
+    Frame frame = mPool.poll();
+    if (frame == null) {
+      frame = new Frame(capacity);
+    }
+    frame.mmLength = 0;
+    frame.mmReferences = 1;
+    return frame;
+  }
+
+  /**
+   * Makes a frame obtained from {@link #obtain(int)} the latest frame and hands it to all clients.
+   * The caller must not use the frame afterwards.
+   */
+  public synchronized void publish(Frame frame) {
+    if (mLatest != null) {
+      unreference(mLatest);
+    }
+    // The caller's reference becomes the hub's reference to the latest frame.
+    mLatest = frame;
+    for (Client client : mClients) {
+      if (client.mmPending != null) {
+        unreference(client.mmPending);
+        client.mmDropped++;
+      }
+      frame.mmReferences++;
+      client.mmPending = frame;
+    }
+    notifyAll();
+  }
+
+  /**
+   * Waits for the latest frame, e.g. to serve a snapshot. The frame must be passed to
+   * {@link #release(Frame)} when the caller is done with it.
+   * 
+   * @return the frame, or null if no frame was published within the timeout or the hub was closed
+   */
+  public synchronized Frame takeLatest(long timeout) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeout;
+    while (mLatest == null && !mClosed) {
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) {
+        return null;
+      }
+      wait(remaining);
+    }
+    if (mLatest == null) {
+      return null;
+    }
+    mLatest.mmReferences++;
+    return mLatest;
+  }
+
+  /** Releases a frame returned by {@link #takeLatest(long)} or an unpublished frame. */
+  public synchronized void release(Frame frame) {
+    unreference(frame);
+  }
+
+  /** Adds a client. It receives the frames published from now on. */
+  public synchronized Client addClient() {
+    Client client = new Client();
+    mClients.add(client);
+    return client;
+  }
+
+  /** Removes a client and releases its pending frame. A blocked {@link Client#take()} returns. */
+  public synchronized void removeClient(Client client) {
+    if (mClients.remove(client)) {
+      if (client.mmPending != null) {
+        unreference(client.mmPending);
+        client.mmPending = null;
+      }
+      notifyAll();
+    }
+  }
+
+  public synchronized int getClientCount() {
+    return mClients.size();
+  }
+
+  /** Returns the statistics of each client: fps, frames, bytes, dropped and connected. */
+  public synchronized List<Map<String, Object>> getStatistics() {
+    List<Map<String, Object>> statistics = new ArrayList<Map<String, Object>>(mClients.size());
+    for (Client client : mClients) {
+      statistics.add(client.getStatistics());
+    }
+    return statistics;
+  }
+
+  /** Drops the latest frame, e.g. when the stream is stopped. */
+  public synchronized void clear() {
+    if (mLatest != null) {
+      unreference(mLatest);
+      mLatest = null;
+    }
+  }
+
+  /** Removes all clients. Blocked clients return from {@link Client#take()}. */
+  public synchronized void close() {
+    mClosed = true;
+    for (Client client : new ArrayList<Client>(mClients)) {
+      removeClient(client);
+    }
+    clear();
+    notifyAll();
+  }
+
+  private void unreference(Frame frame) {
+    if (--frame.mmReferences == 0 && mPool.size() < MAX_POOLED_FRAMES) {
+      mPool.add(frame);
+    }
+  }
+}
@@ -1,5 +0,0 @@
-package com.googlecode.android_scripting.facade;
-
-interface JpegProvider {
-  public byte[] getJpeg();
-}
\ No newline at end of file
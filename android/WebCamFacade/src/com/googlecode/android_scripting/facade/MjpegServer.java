@@ -16,46 +16,272 @@
 
 package com.googlecode.android_scripting.facade;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
 
 import com.googlecode.android_scripting.SimpleServer;
 
+/**
+ * Serves the frames of a {@link FrameHub} over HTTP.
+ * 
+ * <ul>
+ * <li>{@code GET /} or {@code GET /stream} returns an MJPEG stream. {@code /stream?fps=N} limits
+ * the stream to N frames per second.</li>
+ * <li>{@code GET /snapshot} returns the latest frame as a single JPEG.</li>
+ * </ul>
+ * Connections are kept alive between requests as HTTP/1.1 prescribes, so pollers can fetch
+ * snapshots without reconnecting.
+ */
 class MjpegServer extends SimpleServer {
 
-  private final JpegProvider mProvider;
+  private static final int MAX_LINE_LENGTH = 8192;
+  private static final long SNAPSHOT_TIMEOUT = 5000;
+
+  private static final byte[] STREAM_HEADER = ascii(
+      "Server: SL4A\r\n" +
+      "Connection: close\r\n" +
+      "Max-Age: 0\r\n" +
+      "Expires: 0\r\n" +
+      "Cache-Control: no-cache, private\r\n" +
+      "Pragma: no-cache\r\n" +
+      "Content-Type: multipart/x-mixed-replace; boundary=--BoundaryString\r\n\r\n");
+  private static final byte[] SNAPSHOT_HEADER = ascii(
+      "Server: SL4A\r\n" +
+      "Cache-Control: no-cache, private\r\n" +
+      "Pragma: no-cache\r\n" +
+      "Content-Type: image/jpeg\r\n" +
+      "Content-Length: ");
+  private static final byte[] PART_HEADER =
+      ascii("--BoundaryString\r\nContent-type: image/jpg\r\nContent-Length: ");
+  private static final byte[] CRLF = ascii("\r\n");
+  private static final byte[] PART_TRAILER = ascii("\r\n\r\n");
+  private static final byte[] HTTP_1_0 = ascii("HTTP/1.0 ");
+  private static final byte[] HTTP_1_1 = ascii("HTTP/1.1 ");
+  private static final byte[] STATUS_OK = ascii("200 OK\r\n");
+
+  private final FrameHub mHub;
+
+  public MjpegServer(FrameHub hub) {
+    mHub = hub;
+  }
+
+  private static byte[] ascii(String string) {
+    byte[] bytes = new byte[string.length()];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) string.charAt(i);
+    }
+    return bytes;
+  }
+
+  /** A parsed request line and the headers we care about. */
+  private static class Request {
+    private String mmMethod;
+    private String mmPath;
+    private String mmQuery;
+    private boolean mmHttp11;
+    private boolean mmKeepAlive;
 
-  public MjpegServer(JpegProvider provider) {
-    mProvider = provider;
+    /** Returns the value of a query parameter or null. */
+    private String getParameter(String name) {
+      if (mmQuery == null) {
+        return null;
+      }
+      for (String parameter : mmQuery.split("&")) {
+        int separator = parameter.indexOf('=');
+        if (separator > 0 && parameter.substring(0, separator).equals(name)) {
+          return parameter.substring(separator + 1);
+        }
+      }
+      return null;
+    }
   }
 
   @Override
   protected void handleConnection(Socket socket) throws Exception {
-    byte[] data = mProvider.getJpeg();
-    if (data == null) {
-      return;
-    }
-    OutputStream outputStream = socket.getOutputStream();
-    outputStream.write((
-        "HTTP/1.0 200 OK\r\n" +
-        "Server: SL4A\r\n" +
-        "Connection: close\r\n" +
-        "Max-Age: 0\r\n" +
-        "Expires: 0\r\n" +
-        "Cache-Control: no-cache, private\r\n" + 
-        "Pragma: no-cache\r\n" + 
-        "Content-Type: multipart/x-mixed-replace; boundary=--BoundaryString\r\n\r\n").getBytes());
+    InputStream inputStream = new BufferedInputStream(socket.getInputStream());
+    OutputStream outputStream = new BufferedOutputStream(socket.getOutputStream());
+    byte[] digits = new byte[10];
     while (true) {
-      data = mProvider.getJpeg();
-      if (data == null) {
+      Request request = readRequest(inputStream);
+      if (request == null) {
         return;
       }
-      outputStream.write("--BoundaryString\r\n".getBytes());
-      outputStream.write("Content-type: image/jpg\r\n".getBytes());
-      outputStream.write(("Content-Length: " + data.length + "\r\n\r\n").getBytes());
-      outputStream.write(data);
-      outputStream.write("\r\n\r\n".getBytes());
+      if (!request.mmMethod.equals("GET")) {
+        writeError(outputStream, request, "405 Method Not Allowed");
+      } else if (request.mmPath.equals("/snapshot")) {
+        writeSnapshot(outputStream, request, digits);
+      } else if (request.mmPath.equals("/") || request.mmPath.equals("/stream")) {
+        int fps = 0;
+        String value = request.getParameter("fps");
+        if (value != null) {
+          try {
+            fps = Integer.parseInt(value);
+          } catch (NumberFormatException e) {
+            fps = -1;
+          }
+        }
+        if (fps < 0) {
+          writeError(outputStream, request, "400 Bad Request");
+        } else {
+          // A stream ends only when the connection is closed.
+          writeStream(outputStream, request, fps, digits);
+          return;
+        }
+      } else {
+        writeError(outputStream, request, "404 Not Found");
+      }
       outputStream.flush();
+      if (!request.mmKeepAlive) {
+        return;
+      }
+    }
+  }
+
+  /** Reads a request and its headers. Returns null at the end of the stream. */
+  private Request readRequest(InputStream input) throws IOException {
+    String line = readLine(input);
+    // Tolerate empty lines between requests.
+    while (line != null && line.length() == 0) {
+      line = readLine(input);
+    }
+    if (line == null) {
+      return null;
+    }
+    String[] parts = line.split(" ");
+    if (parts.length != 3) {
+      throw new IOException("Malformed request line: " + line);
+    }
+    Request request = new Request();
+    request.mmMethod = parts[0];
+    int query = parts[1].indexOf('?');
+    request.mmPath = query < 0 ? parts[1] : parts[1].substring(0, query);
+    request.mmQuery = query < 0 ? null : parts[1].substring(query + 1);
+    request.mmHttp11 = parts[2].equals("HTTP/1.1");
+    request.mmKeepAlive = request.mmHttp11;
+    while ((line = readLine(input)) != null && line.length() > 0) {
+      int colon = line.indexOf(':');
+      if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Connection")) {
+        String value = line.substring(colon + 1).trim();
+        if (value.equalsIgnoreCase("close")) {
+          request.mmKeepAlive = false;
+        } else if (value.equalsIgnoreCase("keep-alive")) {
+          request.mmKeepAlive = true;
+        }
+      }
     }
+    return request;
+  }
+
+  /** Reads an ISO-8859-1 line without its terminator. Returns null at the end of the stream. */
+  private static String readLine(InputStream input) throws IOException {
+    StringBuilder line = new StringBuilder();
+    int c;
+    while ((c = input.read()) != '\n') {
+      if (c < 0) {
+        return line.length() == 0 ? null : line.toString();
+      }
+      if (line.length() == MAX_LINE_LENGTH) {
+        throw new IOException("Request line too long.");
+      }
+      line.append((char) c);
+    }
+    int length = line.length();
+    if (length > 0 && line.charAt(length - 1) == '\r') {
+      line.setLength(length - 1);
+    }
+    return line.toString();
+  }
+
+  private void writeStatus(OutputStream output, Request request, byte[] status) throws IOException {
+    output.write(request.mmHttp11 ? HTTP_1_1 : HTTP_1_0);
+    output.write(status);
+  }
+
+  private void writeError(OutputStream output, Request request, String status) throws IOException {
+    StringBuilder response = new StringBuilder(status);
+    response.append("\r\nServer: SL4A\r\nContent-Length: 0\r\n");
+    if (!request.mmMethod.equals("GET")) {
+      response.append("Allow: GET\r\n");
+    }
+    if (!request.mmKeepAlive) {
+      response.append("Connection: close\r\n");
+    }
+    writeStatus(output, request, ascii(response.append("\r\n").toString()));
+  }
+
+  private void writeSnapshot(OutputStream output, Request request, byte[] digits)
+      throws IOException, InterruptedException {
+    FrameHub.Frame frame = mHub.takeLatest(SNAPSHOT_TIMEOUT);
+    if (frame == null) {
+      writeError(output, request, "503 Service Unavailable");
+      return;
+    }
+    try {
+      writeStatus(output, request, STATUS_OK);
+      output.write(SNAPSHOT_HEADER);
+      writeDecimal(output, frame.getLength(), digits);
+      output.write(CRLF);
+      if (!request.mmKeepAlive) {
+        output.write(ascii("Connection: close\r\n"));
+      }
+      output.write(CRLF);
+      output.write(frame.getData(), 0, frame.getLength());
+    } finally {
+      mHub.release(frame);
+    }
+  }
+
+  private void writeStream(OutputStream output, Request request, int fps, byte[] digits)
+      throws IOException, InterruptedException {
+    long interval = fps > 0 ? 1000 / fps : 0;
+    FrameHub.Client client = mHub.addClient();
+    try {
+      writeStatus(output, request, STATUS_OK);
+      output.write(STREAM_HEADER);
+      while (true) {
+        FrameHub.Frame frame = client.take();
+        if (frame == null) {
+          return;
+        }
+        long start = System.currentTimeMillis();
+        long sent = 0;
+        try {
+          output.write(PART_HEADER);
+          int length = writeDecimal(output, frame.getLength(), digits);
+          output.write(PART_TRAILER);
+          output.write(frame.getData(), 0, frame.getLength());
+          output.write(PART_TRAILER);
+          output.flush();
+          sent = PART_HEADER.length + length + frame.getLength() + 2 * PART_TRAILER.length;
+        } finally {
+          client.release(frame, sent);
+        }
+        if (interval > 0) {
+          long delay = start + interval - System.currentTimeMillis();
+          if (delay > 0) {
+            // Frames published meanwhile replace each other in the client's slot.
+            Thread.sleep(delay);
+          }
+        }
+      }
+    } finally {
+      mHub.removeClient(client);
+    }
+  }
+
+  /** Writes a non-negative number in ASCII and returns the number of digits written. */
+  private static int writeDecimal(OutputStream output, int value, byte[] digits)
+      throws IOException {
+    int position = digits.length;
+    do {
+      digits[--position] = (byte) ('0' + value % 10);
+      value /= 10;
+    } while (value > 0);
+    output.write(digits, position, digits.length - position);
+    return digits.length - position;
   }
-}
\ No newline at end of file
+}
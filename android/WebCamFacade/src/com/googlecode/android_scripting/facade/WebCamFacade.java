@@ -27,8 +27,12 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.app.Service;
 import android.graphics.ImageFormat;
@@ -62,7 +66,12 @@ import com.googlecode.android_scripting.rpc.RpcParameter;
  * <br>
  * <h3>Usage Notes</h3>
  * <br><b>webCamStart</b> and <b>webCamStop</b> are used to start and stop an Mpeg stream on a given port. <b>webcamAdjustQuality</b> is used to ajust the quality of the streaming video.
+ * Any number of viewers may connect to the stream. Each frame is encoded once and sent to all of them; viewers that can't keep up skip frames.
+ * <b>webcamGetStreamStats</b> reports the frame rate and bytes sent of each viewer.
+ * <br>The server answers <b>GET /stream?fps=N</b> with a stream limited to N frames per second and <b>GET /snapshot</b> with the latest frame as a single JPEG.
  * <br><b>cameraStartPreview</b> is used to get access to the camera preview screen. It will generate "preview" events as images become available.
+ * <br>Preview frames are compressed by a small pool of threads, so events may arrive slightly out of order; use the <b>frame</b> element to order them.
+ * Frames arriving while all threads are busy are dropped. <b>cameraGetPreviewStats</b> reports how many frames were posted, skipped or dropped.
  * <br>The preview has two modes: data or file. If you pass a non-blank, writable file path to the <b>cameraStartPreview</b> it will store jpg images in that folder. 
  * It is up to the caller to clean up these files after the fact. If no file element is provided, 
  * the event will include the image data as a base64 encoded string. 
@@ -73,6 +82,7 @@ import com.googlecode.android_scripting.rpc.RpcParameter;
  * <li><b>width</b> - image width (in pixels)
  * <li><b>height</b> - image height (in pixels)
  * <li><b>quality</b> - JPEG quality. Number from 1-100
+ * <li><b>frame</b> - Number of the camera frame the image was taken from.
  * <li><b>filename</b> - Name of file where image was saved. Only relevant if filepath defined.
  * <li><b>error</b> - included if there was an IOException saving file, ie, disk full or path write protected.
  * <li><b>encoding</b> - Data encoding. If filepath defined, will be "file" otherwise "base64"
@@ -89,13 +99,25 @@ import com.googlecode.android_scripting.rpc.RpcParameter;
 @RpcMinSdk(8)
 public class WebCamFacade extends RpcReceiver {
 
+  private static final int PREVIEW_ENCODERS =
+      Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+  private static final int MAX_PENDING_WRITES = 8;
+
   private final Service mService;
   private final Executor mJpegCompressionExecutor = new SingleThreadExecutor();
-  private final ByteArrayOutputStream mJpegCompressionBuffer = new ByteArrayOutputStream();
+  private final Executor mPreviewWriter = new SingleThreadExecutor();
 
-  private volatile byte[] mJpegData;
+  private volatile FrameHub mFrameHub;
+  private volatile ExecutorService mPreviewEncoders;
+  private final AtomicInteger mPreviewEncoding = new AtomicInteger();
+  private final AtomicInteger mPreviewWriting = new AtomicInteger();
+  private final AtomicLong mPreviewFrames = new AtomicLong();
+  private final AtomicLong mPreviewPosted = new AtomicLong();
+  private final AtomicLong mPreviewSkipped = new AtomicLong();
+  private final AtomicLong mPreviewDropped = new AtomicLong();
+  private long mPreviewInterval;
+  private long mLastPreviewTime;
 
-  private CountDownLatch mJpegDataReady;
   private boolean mStreaming;
   private int mPreviewHeight;
   private int mPreviewWidth;
@@ -106,7 +128,7 @@ public class WebCamFacade extends RpcReceiver {
   private Camera mCamera;
   private Parameters mParameters;
   private final EventFacade mEventFacade;
-  private boolean mPreview;
+  private volatile boolean mPreview;
   private File mDest;
   
   private final PreviewCallback mPreviewCallback = new PreviewCallback() {
@@ -115,8 +137,12 @@ public class WebCamFacade extends RpcReceiver {
       mJpegCompressionExecutor.execute(new Runnable() {
         @Override
         public void run() {
-          mJpegData = compressYuvToJpeg(data);
-          mJpegDataReady.countDown();
+          FrameHub hub = mFrameHub;
+          if (hub != null) {
+            FrameHub.Frame frame = hub.obtain(data.length / 4);
+            compressYuvToJpeg(data, frame.getOutputStream());
+            hub.publish(frame);
+          }
           if (mStreaming) {
             camera.setOneShotPreviewCallback(mPreviewCallback);
           }
@@ -125,57 +151,117 @@ public class WebCamFacade extends RpcReceiver {
     }
   };
 
+  /**
+   * Receives preview frames into buffers added with {@link Camera#addCallbackBuffer(byte[])}. Every
+   * frame is compressed on one of the encoder threads, which returns the buffer to the camera as
+   * soon as it is done with it.
+   */
   private final PreviewCallback mPreviewEvent = new PreviewCallback() {
     @Override
     public void onPreviewFrame(final byte[] data, final Camera camera) {
-      mJpegCompressionExecutor.execute(new Runnable() {
-        @Override
-        public void run() {
-          mJpegData = compressYuvToJpeg(data);
-          Map<String,Object> map = new HashMap<String, Object>(); 
-          map.put("format", "jpeg");
-          map.put("width", mPreviewWidth);
-          map.put("height", mPreviewHeight);
-          map.put("quality", mJpegQuality);
-          if (mDest!=null) {
+      final long frame = mPreviewFrames.incrementAndGet();
+      long now = System.currentTimeMillis();
+      ExecutorService encoders = mPreviewEncoders;
+      if (encoders == null) {
+        return;
+      }
+      if (now - mLastPreviewTime < mPreviewInterval) {
+        mPreviewSkipped.incrementAndGet();
+        recycleBuffer(camera, data);
+        return;
+      }
+      if (mPreviewEncoding.get() >= PREVIEW_ENCODERS) {
+        mPreviewDropped.incrementAndGet();
+        recycleBuffer(camera, data);
+        return;
+      }
+      mLastPreviewTime = now;
+      mPreviewEncoding.incrementAndGet();
+      try {
+        encoders.execute(new Runnable() {
+          @Override
+          public void run() {
             try {
-              File dest=File.createTempFile("prv",".jpg",mDest);
-              OutputStream output = new FileOutputStream(dest);
-              output.write(mJpegData);
-              output.close();
-              map.put("encoding","file");
-              map.put("filename",dest.toString());
-            } catch (IOException e) {
-              map.put("error", e.toString());
+              ByteArrayOutputStream jpeg = new ByteArrayOutputStream(data.length / 4);
+              compressYuvToJpeg(data, jpeg);
+              recycleBuffer(camera, data);
+              postPreviewEvent(frame, jpeg);
+            } finally {
+              mPreviewEncoding.decrementAndGet();
             }
           }
-          else {
-            map.put("encoding","Base64");
-            map.put("data", Base64.encodeToString(mJpegData, Base64.DEFAULT));
-          }
-          mEventFacade.postEvent("preview", map);
-          if (mPreview) {
-            camera.setOneShotPreviewCallback(mPreviewEvent);
-          }
-        }
-      });
+        });
+      } catch (RejectedExecutionException e) {
+        // The preview was stopped.
+        mPreviewEncoding.decrementAndGet();
+      }
     }
   };
-  
+
+  private void recycleBuffer(Camera camera, byte[] data) {
+    if (mPreview) {
+      try {
+        camera.addCallbackBuffer(data);
+      } catch (RuntimeException e) {
+        // The camera was released.
+      }
+    }
+  }
+
+  private void postPreviewEvent(long frame, final ByteArrayOutputStream jpeg) {
+    final Map<String, Object> map = new HashMap<String, Object>();
+    map.put("format", "jpeg");
+    map.put("width", mPreviewWidth);
+    map.put("height", mPreviewHeight);
+    map.put("quality", mJpegQuality);
+    map.put("frame", frame);
+    if (mDest == null) {
+      map.put("encoding", "Base64");
+      map.put("data", Base64.encodeToString(jpeg.toByteArray(), Base64.DEFAULT));
+      mEventFacade.postEvent("preview", map);
+      mPreviewPosted.incrementAndGet();
+      return;
+    }
+    if (mPreviewWriting.incrementAndGet() > MAX_PENDING_WRITES) {
+      mPreviewWriting.decrementAndGet();
+      mPreviewDropped.incrementAndGet();
+      return;
+    }
+    final File directory = mDest;
+    mPreviewWriter.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          File dest = File.createTempFile("prv", ".jpg", directory);
+          OutputStream output = new FileOutputStream(dest);
+          try {
+            jpeg.writeTo(output);
+          } finally {
+            output.close();
+          }
+          map.put("encoding", "file");
+          map.put("filename", dest.toString());
+        } catch (IOException e) {
+          map.put("error", e.toString());
+        } finally {
+          mPreviewWriting.decrementAndGet();
+        }
+        mEventFacade.postEvent("preview", map);
+        mPreviewPosted.incrementAndGet();
+      }
+    });
+  }
+
   public WebCamFacade(FacadeManager manager) {
     super(manager);
     mService = manager.getService();
-    mJpegDataReady = new CountDownLatch(1);
     mEventFacade = manager.getReceiver(EventFacade.class);
   }
 
-  private byte[] compressYuvToJpeg(final byte[] yuvData) {
-    mJpegCompressionBuffer.reset();
+  private void compressYuvToJpeg(final byte[] yuvData, OutputStream output) {
     YuvImage yuvImage =
         new YuvImage(yuvData, ImageFormat.NV21, mPreviewWidth, mPreviewHeight, null);
-    yuvImage.compressToJpeg(new Rect(0, 0, mPreviewWidth, mPreviewHeight), mJpegQuality,
-        mJpegCompressionBuffer);
-    return mJpegCompressionBuffer.toByteArray();
+    yuvImage.compressToJpeg(new Rect(0, 0, mPreviewWidth, mPreviewHeight), mJpegQuality, output);
   }
 
   @Rpc(description = "Starts an MJPEG stream and returns a Tuple of address and port for the stream.")
@@ -194,17 +280,8 @@ public class WebCamFacade extends RpcReceiver {
   }
 
   private InetSocketAddress startServer(Integer port) {
-    mJpegServer = new MjpegServer(new JpegProvider() {
-      @Override
-      public byte[] getJpeg() {
-        try {
-          mJpegDataReady.await();
-        } catch (InterruptedException e) {
-          Log.e(e);
-        }
-        return mJpegData;
-      }
-    });
+    mFrameHub = new FrameHub();
+    mJpegServer = new MjpegServer(mFrameHub);
     mJpegServer.addObserver(new SimpleServerObserver() {
       @Override
       public void onDisconnect() {
@@ -228,6 +305,19 @@ public class WebCamFacade extends RpcReceiver {
       mJpegServer.shutdown();
       mJpegServer = null;
     }
+    if (mFrameHub != null) {
+      mFrameHub.close();
+      mFrameHub = null;
+    }
+  }
+
+  @Rpc(description = "Returns statistics for each viewer of the webcam stream.", returns = "A list with a map per viewer: fps, frames and bytes sent, frames dropped because the viewer fell behind and the time it connected.")
+  public List<Map<String, Object>> webcamGetStreamStats() {
+    FrameHub hub = mFrameHub;
+    if (hub == null) {
+      throw new IllegalStateException("Webcam not streaming.");
+    }
+    return hub.getStatistics();
   }
 
   @Rpc(description = "Adjusts the quality of the webcam stream while it is running.")
@@ -275,8 +365,10 @@ public class WebCamFacade extends RpcReceiver {
   }
 
   private void stopStream() {
-    mJpegDataReady = new CountDownLatch(1);
     mStreaming = false;
+    if (mFrameHub != null) {
+      mFrameHub.clear();
+    }
     if (mPreviewTask != null) {
       mPreviewTask.finish();
       mPreviewTask = null;
@@ -336,7 +428,8 @@ public class WebCamFacade extends RpcReceiver {
   public boolean cameraStartPreview(
           @RpcParameter(name = "resolutionLevel", description = "increasing this number provides higher resolution") @RpcDefault("0") Integer resolutionLevel,
           @RpcParameter(name = "jpegQuality", description = "a number from 0-100") @RpcDefault("20") Integer jpegQuality,
-          @RpcParameter(name = "filepath", description = "Path to store jpeg files.") @RpcOptional String filepath)
+          @RpcParameter(name = "filepath", description = "Path to store jpeg files.") @RpcOptional String filepath,
+          @RpcParameter(name = "frameRate", description = "Maximum number of preview events per second. 0 for as many as the camera delivers.") @RpcDefault("0") Integer frameRate)
       throws InterruptedException {
     mDest=null;
     if (filepath!=null && (filepath.length()>0)) {
@@ -353,22 +446,52 @@ public class WebCamFacade extends RpcReceiver {
       Log.e(e);
       return false;
     }
-    startPreview();
+    startPreview(frameRate);
     return true;
   }
 
+  @Rpc(description = "Returns statistics of the running preview.", returns = "A map with the number of frames delivered by the camera (frames), posted as events (posted), skipped to keep to the frame rate (skipped) and dropped because the encoders or the file writer were busy (dropped).")
+  public Map<String, Object> cameraGetPreviewStats() {
+    Map<String, Object> statistics = new HashMap<String, Object>();
+    statistics.put("frames", mPreviewFrames.get());
+    statistics.put("posted", mPreviewPosted.get());
+    statistics.put("skipped", mPreviewSkipped.get());
+    statistics.put("dropped", mPreviewDropped.get());
+    return statistics;
+  }
+
   @Rpc(description = "Stop the preview mode.")
   public void cameraStopPreview() {
     stopPreview();
   }
 
-  private void startPreview() {
+  private void startPreview(int frameRate) {
+    mPreviewInterval = frameRate > 0 ? 1000 / frameRate : 0;
+    mLastPreviewTime = 0;
+    mPreviewFrames.set(0);
+    mPreviewPosted.set(0);
+    mPreviewSkipped.set(0);
+    mPreviewDropped.set(0);
+    mPreviewEncoders = Executors.newFixedThreadPool(PREVIEW_ENCODERS);
     mPreview = true;
-    mCamera.setOneShotPreviewCallback(mPreviewEvent);
+    // One buffer per encoder, one being filled by the camera and one spare.
+    int bufferSize =
+        mPreviewWidth * mPreviewHeight * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8;
+    for (int i = 0; i < PREVIEW_ENCODERS + 2; i++) {
+      mCamera.addCallbackBuffer(new byte[bufferSize]);
+    }
+    mCamera.setPreviewCallbackWithBuffer(mPreviewEvent);
   }
   
   private void stopPreview() {
     mPreview = false;
+    if (mCamera != null) {
+      mCamera.setPreviewCallbackWithBuffer(null);
+    }
+    if (mPreviewEncoders != null) {
+      mPreviewEncoders.shutdown();
+      mPreviewEncoders = null;
+    }
     if (mPreviewTask!=null)
     {
       mPreviewTask.finish();
@@ -379,7 +502,7 @@ public class WebCamFacade extends RpcReceiver {
 
   @Override
   public void shutdown() {
-    mPreview=false;
+    stopPreview();
     webcamStop();
   }
 }